@@ -2,10 +2,12 @@ package me.gnat008.perworldinventory;
 
 import me.gnat008.perworldinventory.util.Utils;
 import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
 import org.bukkit.event.Event;
 import org.bukkit.scheduler.BukkitTask;
 
 import javax.inject.Inject;
+import java.util.UUID;
 
 /**
  * Service for scheduling things with the Bukkit API.
@@ -92,6 +94,17 @@ public class BukkitService {
         return Utils.checkServerVersion(plugin.getServer().getVersion(), 1, 11, 0);
     }
 
+    /**
+     * Check if a player is online. This may be called from any thread.
+     *
+     * @param uuid The UUID of the player.
+     * @return True if the player is online.
+     */
+    public boolean isOnline(UUID uuid) {
+        Player player = Bukkit.getPlayer(uuid);
+        return player != null && player.isOnline();
+    }
+
     /**
      * Call an {@link Event}.
      *
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory;
+
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import net.milkbowl.vault.economy.Economy;
+import net.milkbowl.vault.economy.EconomyResponse;
+import org.bukkit.entity.Player;
+
+import javax.inject.Inject;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Reads and sets the balances of players through Vault.
+ * <p>
+ * A balance is set with a single deposit or withdrawal of the difference between the target
+ * and the current balance, and not at all if there is no difference, instead of withdrawing
+ * everything and depositing the target. When {@link PwiProperties#ECONOMY_ASYNC} is on,
+ * balances are read and set on a dedicated thread instead of the main thread. Only the last
+ * target for one player that is not applied yet is kept, so several loads in the same tick
+ * cost one transaction. Failed transactions are retried a few times.
+ */
+public class EconomyService {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 50;
+    /** Differences smaller than this are rounding errors, not money. */
+    private static final double EPSILON = 1.0E-6;
+
+    private final PerWorldInventory plugin;
+    private final Settings settings;
+
+    private final Map<UUID, Account> accounts = new ConcurrentHashMap<>();
+    private ExecutorService executor;
+
+    @Inject
+    EconomyService(PerWorldInventory plugin, Settings settings) {
+        this.plugin = plugin;
+        this.settings = settings;
+    }
+
+    /**
+     * Get the balance of a player. If a new balance is still waiting to be applied,
+     * that balance is returned.
+     *
+     * @param player The player.
+     * @return The balance.
+     */
+    public double getBalance(Player player) {
+        Target expected = getExpected(player);
+        return expected != null ? expected.balance : plugin.getEconomy().getBalance(player);
+    }
+
+    /**
+     * Get the bank balance of a player. If a new bank balance is still waiting to be applied,
+     * that balance is returned.
+     *
+     * @param player The player.
+     * @return The bank balance, or 0 if the economy has no banks.
+     */
+    public double getBankBalance(Player player) {
+        Target expected = getExpected(player);
+        if (expected != null && expected.bankBalance != null) {
+            return expected.bankBalance;
+        }
+
+        Economy economy = plugin.getEconomy();
+        return economy.hasBankSupport() ? economy.bankBalance(player.getName()).balance : 0;
+    }
+
+    /**
+     * Set the balance of a player, leaving their bank balance as it is.
+     *
+     * @param player The player.
+     * @param balance The new balance.
+     */
+    public void setBalance(Player player, double balance) {
+        set(player, new Target(balance, null));
+    }
+
+    /**
+     * Set the balance and the bank balance of a player.
+     *
+     * @param player The player.
+     * @param balance The new balance.
+     * @param bankBalance The new bank balance.
+     */
+    public void setBalances(Player player, double balance, double bankBalance) {
+        set(player, new Target(balance, bankBalance));
+    }
+
+    /**
+     * Apply all balances that are still waiting, and stop the economy thread.
+     */
+    public void shutdown() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                ConsoleLogger.severe("[ECON] Timed out applying the balances of " + accounts.size() + " players!");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void set(Player player, Target target) {
+        Economy economy = plugin.getEconomy();
+        if (economy == null) {
+            ConsoleLogger.warning("Economy saving is turned on, but no economy found!");
+            return;
+        }
+
+        if (!settings.getProperty(PwiProperties.ECONOMY_ASYNC)) {
+            apply(economy, player, getChange(economy, player, target), false);
+            return;
+        }
+
+        while (true) {
+            Account account = accounts.computeIfAbsent(player.getUniqueId(), uuid -> new Account());
+            synchronized (account) {
+                if (account.removed) {
+                    // Finished and removed by the economy thread in the meantime
+                    continue;
+                }
+
+                account.pending = target.keepBankBalance(account.pending);
+                account.expected = target.keepBankBalance(account.expected);
+                if (!account.scheduled) {
+                    account.scheduled = true;
+                    getExecutor().execute(() -> drain(economy, player, account));
+                }
+                return;
+            }
+        }
+    }
+
+    private void drain(Economy economy, Player player, Account account) {
+        while (true) {
+            Target target;
+            synchronized (account) {
+                target = account.pending;
+                account.pending = null;
+                if (target == null) {
+                    account.removed = true;
+                    accounts.remove(player.getUniqueId(), account);
+                    return;
+                }
+            }
+
+            try {
+                apply(economy, player, getChange(economy, player, target), true);
+            } catch (RuntimeException ex) {
+                ConsoleLogger.severe("[ECON] Unable to set the balance of '" + player.getName() + "':", ex);
+            }
+        }
+    }
+
+    /**
+     * Get the difference between a target and the current balances of a player.
+     */
+    private static Change getChange(Economy economy, Player player, Target target) {
+        double bankDelta = 0;
+        if (target.bankBalance != null && economy.hasBankSupport()) {
+            bankDelta = target.bankBalance - economy.bankBalance(player.getName()).balance;
+        }
+        return new Change(target.balance - economy.getBalance(player), bankDelta);
+    }
+
+    private void apply(Economy economy, Player player, Change change, boolean retry) {
+        double delta = change.balance;
+        if (delta > EPSILON) {
+            transact(() -> economy.depositPlayer(player, delta), "deposit " + delta + " to", player, retry);
+        } else if (delta < -EPSILON) {
+            transact(() -> economy.withdrawPlayer(player, -delta), "withdraw " + -delta + " from", player, retry);
+        }
+
+        double bankDelta = change.bankBalance;
+        if (bankDelta > EPSILON) {
+            transact(() -> economy.bankDeposit(player.getName(), bankDelta),
+                    "deposit " + bankDelta + " to the bank of", player, retry);
+        } else if (bankDelta < -EPSILON) {
+            transact(() -> economy.bankWithdraw(player.getName(), -bankDelta),
+                    "withdraw " + -bankDelta + " from the bank of", player, retry);
+        }
+    }
+
+    private void transact(Supplier<EconomyResponse> transaction, String description, Player player, boolean retry) {
+        int attempts = retry ? MAX_ATTEMPTS : 1;
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            EconomyResponse response = transaction.get();
+            if (response.transactionSuccess()) {
+                ConsoleLogger.debug("[ECON] Did " + description + " '" + player.getName() + "'");
+                return;
+            }
+
+            if (attempt == attempts) {
+                ConsoleLogger.warning("[ECON] Unable to " + description + " '" + player.getName() + "': " + response.errorMessage);
+            } else {
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private Target getExpected(Player player) {
+        Account account = accounts.get(player.getUniqueId());
+        if (account == null) {
+            return null;
+        }
+
+        synchronized (account) {
+            return account.removed ? null : account.expected;
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "PerWorldInventory Economy");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    private static final class Target {
+        private final double balance;
+        private final Double bankBalance;
+
+        Target(double balance, Double bankBalance) {
+            this.balance = balance;
+            this.bankBalance = bankBalance;
+        }
+
+        /**
+         * Replace an earlier target with this one, keeping its bank balance if this target
+         * does not set one.
+         */
+        Target keepBankBalance(Target earlier) {
+            return bankBalance == null && earlier != null ? new Target(balance, earlier.bankBalance) : this;
+        }
+    }
+
+    private static final class Change {
+        private final double balance;
+        private final double bankBalance;
+
+        Change(double balance, double bankBalance) {
+            this.balance = balance;
+            this.bankBalance = bankBalance;
+        }
+    }
+
+    private static final class Account {
+        /** The target that has not been picked up by the economy thread yet. */
+        private Target pending;
+        /** The last target that was set, which is what the balance will be once it is applied. */
+        private Target expected;
+        private boolean scheduled;
+        private boolean removed;
+    }
+}
@@ -25,12 +25,16 @@ import me.gnat008.perworldinventory.config.PwiProperties;
 import me.gnat008.perworldinventory.config.Settings;
 import me.gnat008.perworldinventory.data.DataSource;
 import me.gnat008.perworldinventory.data.DataSourceProvider;
+import me.gnat008.perworldinventory.data.FormatMigrator;
+import me.gnat008.perworldinventory.data.StorageScheduler;
 import me.gnat008.perworldinventory.data.players.PWIPlayerManager;
+import me.gnat008.perworldinventory.data.players.ProfileCache;
 import me.gnat008.perworldinventory.groups.GroupManager;
 import me.gnat008.perworldinventory.listeners.entity.EntityPortalEventListener;
 import me.gnat008.perworldinventory.listeners.player.*;
 import me.gnat008.perworldinventory.listeners.server.InventoryLoadingListener;
 import me.gnat008.perworldinventory.listeners.server.PluginListener;
+import me.gnat008.perworldinventory.listeners.server.WorldUnloadListener;
 import me.gnat008.perworldinventory.permission.PermissionManager;
 import me.gnat008.perworldinventory.util.Utils;
 import net.milkbowl.vault.economy.Economy;
@@ -61,8 +65,12 @@ public class PerWorldInventory extends JavaPlugin {
     private Economy economy;
     private GroupManager groupManager;
     private PWIPlayerManager playerManager;
+    private DataSource dataSource;
     private Settings settings;
     private PermissionManager permissionManager;
+    private EconomyService economyService;
+    private ServerLoadMonitor loadMonitor;
+    private StorageScheduler storageScheduler;
     private WorldInventoriesDupingPatch patch;
 
     private final Map<String, ExecutableCommand> commands = new HashMap<>();
@@ -176,6 +184,31 @@ public class PerWorldInventory extends JavaPlugin {
                     }
                 }));
             }
+
+            // How often PWI went into or out of degraded mode, and how much work it put off
+            bStats.addCustomChart(new Metrics.SingleLineChart("degraded_mode_changes", loadMonitor::pollModeChanges));
+            bStats.addCustomChart(new Metrics.SingleLineChart("deferred_tasks", loadMonitor::pollDeferred));
+
+            // How much memory each tier of the profile cache holds
+            ProfileCache profileCache = playerManager.getProfileCache();
+            bStats.addCustomChart(new Metrics.SingleLineChart("cache_hot_profiles", profileCache::countHot));
+            bStats.addCustomChart(new Metrics.SingleLineChart("cache_hot_items", profileCache::countHotItems));
+            bStats.addCustomChart(new Metrics.SingleLineChart("cache_warm_profiles", profileCache::countWarm));
+            bStats.addCustomChart(new Metrics.SingleLineChart("cache_warm_kilobytes",
+                    () -> (int) (profileCache.getWarmBytes() / 1024)));
+
+            // How many files are still read in an old data format
+            FormatMigrator formatMigrator = injector.getSingleton(FormatMigrator.class);
+            bStats.addCustomChart(new Metrics.SingleLineChart("legacy_files_read", formatMigrator::pollLegacyReads));
+
+            // How many permission checks are answered without asking the permission plugin
+            bStats.addCustomChart(new Metrics.SingleLineChart("permission_cache_hit_rate", permissionManager::pollHitRate));
+
+            // How long storage work waits before it starts, per priority class
+            bStats.addCustomChart(new Metrics.SingleLineChart("storage_wait_interactive_p95_ms", () -> (int)
+                    storageScheduler.getWaitHistogram(StorageScheduler.Priority.INTERACTIVE).getPercentileMillis(95)));
+            bStats.addCustomChart(new Metrics.SingleLineChart("storage_wait_background_p95_ms", () -> (int)
+                    storageScheduler.getWaitHistogram(StorageScheduler.Priority.BACKGROUND).getPercentileMillis(95)));
         }
 
         patch = new WorldInventoriesDupingPatch();
@@ -186,7 +219,11 @@ public class PerWorldInventory extends JavaPlugin {
 
     @Override
     public void onDisable() {
+        // Queued saves go first, so they do not overwrite the final saves of online players
+        storageScheduler.shutdown();
         playerManager.onDisable();
+        dataSource.close();
+        economyService.shutdown();
         groupManager.clearGroups();
         patch.disable();
         getServer().getScheduler().cancelTasks(this);
@@ -196,7 +233,11 @@ public class PerWorldInventory extends JavaPlugin {
         settings = injector.getSingleton(Settings.class);
         groupManager = injector.getSingleton(GroupManager.class);
         playerManager = injector.getSingleton(PWIPlayerManager.class);
+        dataSource = injector.getSingleton(DataSource.class);
         permissionManager = injector.getSingleton(PermissionManager.class);
+        economyService = injector.getSingleton(EconomyService.class);
+        loadMonitor = injector.getSingleton(ServerLoadMonitor.class);
+        storageScheduler = injector.getSingleton(StorageScheduler.class);
         api = injector.getSingleton(PerWorldInventoryAPI.class);
     }
 
@@ -210,10 +251,14 @@ public class PerWorldInventory extends JavaPlugin {
         pluginManager.registerEvents(injector.getSingleton(PlayerTeleportListener.class), this);
         pluginManager.registerEvents(injector.getSingleton(PlayerChangedWorldListener.class), this);
         pluginManager.registerEvents(injector.getSingleton(PlayerDeathListener.class), this);
+        pluginManager.registerEvents(injector.getSingleton(EnderChestOpenListener.class), this);
         pluginManager.registerEvents(injector.getSingleton(PlayerGameModeChangeListener.class), this);
+        pluginManager.registerEvents(injector.getSingleton(PlayerJoinListener.class), this);
+        pluginManager.registerEvents(injector.getSingleton(PlayerLoginListener.class), this);
         pluginManager.registerEvents(injector.getSingleton(PlayerQuitListener.class), this);
         pluginManager.registerEvents(injector.getSingleton(EntityPortalEventListener.class), this);
         pluginManager.registerEvents(injector.getSingleton(InventoryLoadingListener.class), this);
+        pluginManager.registerEvents(injector.getSingleton(WorldUnloadListener.class), this);
 
         // The PlayerSpawnLocationEvent is only fired in Spigot
         // As of version 1.9.2
@@ -225,10 +270,13 @@ public class PerWorldInventory extends JavaPlugin {
 
     protected void registerCommands(Injector injector) {
         commands.put("pwi", injector.getSingleton(PerWorldInventoryCommand.class));
+        commands.put("bulk", injector.getSingleton(BulkCommand.class));
         commands.put("convert", injector.getSingleton(ConvertCommand.class));
         commands.put("help", injector.getSingleton(HelpCommand.class));
         commands.put("reload", injector.getSingleton(ReloadCommand.class));
         commands.put("setworlddefault", injector.getSingleton(SetWorldDefaultCommand.class));
+        commands.put("storage", injector.getSingleton(StorageCommand.class));
+        commands.put("verify", injector.getSingleton(VerifyCommand.class));
         commands.put("version", injector.getSingleton(VersionCommand.class));
         getLogger().info("Commands registered!");
     }
@@ -251,6 +299,10 @@ public class PerWorldInventory extends JavaPlugin {
         return this.economy;
     }
 
+    public EconomyService getEconomyService() {
+        return economyService;
+    }
+
     public File getDefaultFilesDirectory() {
         return new File(getDataFolder() + File.separator + "data" + File.separator + "defaults");
     }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory;
+
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of how long server ticks take, and puts PWI into a degraded mode
+ * when the server is overloaded.
+ * <p>
+ * While degraded, work that can wait (autosaves, cache sweeps, conversions) is deferred by
+ * checking {@link #shouldDefer(String)}, up to {@link PwiProperties#DEGRADED_MODE_MAX_DEFER_SECONDS}.
+ * Work a player is waiting on, like applying an inventory on a world change, always runs.
+ * <p>
+ * The Bukkit API has no way to read the tick duration directly, so the time between two
+ * runs of a task scheduled every tick is used instead. This is 50 ms on a healthy server,
+ * and grows with the duration of the ticks once the server can not keep up.
+ */
+public class ServerLoadMonitor {
+
+    /** Weight of the newest sample in the moving average. */
+    private static final double SMOOTHING = 0.05;
+    /** Fraction of the threshold the average has to fall below to leave degraded mode. */
+    private static final double RECOVERY_FACTOR = 0.9;
+    private static final double HEALTHY_TICK_MILLIS = 1000.0 / BukkitService.TICKS_PER_SECOND;
+
+    private final BukkitService bukkitService;
+    private final int threshold;
+    private final long maxDeferNanos;
+
+    private long lastTickNanos;
+    private volatile double averageTickMillis = HEALTHY_TICK_MILLIS;
+    private volatile boolean degraded;
+
+    private final AtomicInteger modeChanges = new AtomicInteger();
+    private final AtomicInteger deferred = new AtomicInteger();
+    // When each piece of work was first deferred in the current overload, by name
+    private final Map<String, Long> deferredSince = new ConcurrentHashMap<>();
+    // Work that was deferred for too long, and runs until the server recovers
+    private final Set<String> overdue = ConcurrentHashMap.newKeySet();
+
+    @Inject
+    ServerLoadMonitor(BukkitService bukkitService, Settings settings) {
+        this.bukkitService = bukkitService;
+        this.threshold = settings.getProperty(PwiProperties.DEGRADED_MODE_MSPT);
+        this.maxDeferNanos = TimeUnit.SECONDS.toNanos(settings.getProperty(PwiProperties.DEGRADED_MODE_MAX_DEFER_SECONDS));
+    }
+
+    @PostConstruct
+    private void startSampling() {
+        if (threshold > 0) {
+            bukkitService.runRepeatingTask(() -> sample(System.nanoTime()), 1, 1);
+        }
+    }
+
+    /**
+     * Record the start of a server tick.
+     *
+     * @param nanoTime The current value of {@link System#nanoTime()}.
+     */
+    void sample(long nanoTime) {
+        if (lastTickNanos != 0) {
+            double tickMillis = (nanoTime - lastTickNanos) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+            averageTickMillis += SMOOTHING * (tickMillis - averageTickMillis);
+
+            if (!degraded && averageTickMillis > threshold) {
+                degraded = true;
+                modeChanges.incrementAndGet();
+                ConsoleLogger.warning("Server is overloaded (average tick " + formatAverage() + " ms)! Deferring autosaves and other background work");
+            } else if (degraded && averageTickMillis < threshold * RECOVERY_FACTOR) {
+                degraded = false;
+                modeChanges.incrementAndGet();
+                ConsoleLogger.info("Server load is back to normal (average tick " + formatAverage() + " ms). Resuming background work");
+            }
+        }
+
+        lastTickNanos = nanoTime;
+    }
+
+    /**
+     * Get whether the server is overloaded and non-urgent work should be deferred.
+     *
+     * @return True if PWI is in degraded mode.
+     */
+    public boolean isDegraded() {
+        return degraded;
+    }
+
+    /**
+     * Get whether a piece of work should be skipped for now because the server is overloaded.
+     * Work is deferred for at most {@link PwiProperties#DEGRADED_MODE_MAX_DEFER_SECONDS} per
+     * overload; after that it is no longer deferred until the server has recovered.
+     *
+     * @param work The name of the work, the same every time it is checked.
+     * @return True if the work should be skipped this time.
+     */
+    public boolean shouldDefer(String work) {
+        return shouldDefer(work, System.nanoTime());
+    }
+
+    boolean shouldDefer(String work, long nanoTime) {
+        if (!degraded) {
+            deferredSince.remove(work);
+            overdue.remove(work);
+            return false;
+        }
+        if (overdue.contains(work)) {
+            return false;
+        }
+
+        Long since = deferredSince.putIfAbsent(work, nanoTime);
+        if (since == null) {
+            deferred.incrementAndGet();
+            return true;
+        }
+        if (nanoTime - since < maxDeferNanos) {
+            return true;
+        }
+
+        overdue.add(work);
+        ConsoleLogger.warning("The " + work + " was deferred for " + TimeUnit.NANOSECONDS.toSeconds(maxDeferNanos)
+                + " seconds because the server is overloaded! Running it anyway");
+        return false;
+    }
+
+    /**
+     * Get the moving average of the tick duration.
+     *
+     * @return The average tick duration in milliseconds.
+     */
+    public double getAverageTickMillis() {
+        return averageTickMillis;
+    }
+
+    /**
+     * Get the number of times PWI entered or left degraded mode, and reset the count.
+     *
+     * @return The number of mode changes since the last call.
+     */
+    public int pollModeChanges() {
+        return modeChanges.getAndSet(0);
+    }
+
+    /**
+     * Get the number of pieces of work that were deferred, and reset the count. Work that is
+     * deferred on many ticks of the same overload counts once.
+     *
+     * @return The number of deferred pieces of work since the last call.
+     */
+    public int pollDeferred() {
+        return deferred.getAndSet(0);
+    }
+
+    private String formatAverage() {
+        return String.format("%.1f", averageTickMillis);
+    }
+}
@@ -3,6 +3,8 @@ package me.gnat008.perworldinventory.api;
 import me.gnat008.perworldinventory.PerWorldInventory;
 import me.gnat008.perworldinventory.config.PwiProperties;
 import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.data.ProfileProjection;
+import me.gnat008.perworldinventory.data.ProfileSection;
 import me.gnat008.perworldinventory.data.players.PWIPlayer;
 import me.gnat008.perworldinventory.data.players.PWIPlayerManager;
 import me.gnat008.perworldinventory.groups.Group;
@@ -12,6 +14,9 @@ import org.bukkit.GameMode;
 import org.bukkit.entity.Player;
 
 import javax.inject.Inject;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
 
 /**
  * This class is for other plugin developers to access parts of PWI.
@@ -52,9 +57,9 @@ public class PerWorldInventoryAPI {
         Group otherGroup = groupManager.getGroupFromWorld(second);
 
         if (!firstGroup.isConfigured() || !otherGroup.isConfigured()) {
-            return firstGroup.containsWorld(second) || settings.getProperty(PwiProperties.SHARE_IF_UNCONFIGURED);
+            return firstGroup == otherGroup || firstGroup.containsWorld(second) || settings.getProperty(PwiProperties.SHARE_IF_UNCONFIGURED);
         } else {
-            return firstGroup.containsWorld(second);
+            return firstGroup == otherGroup;
         }
     }
 
@@ -110,4 +115,42 @@ public class PerWorldInventoryAPI {
     public PWIPlayer getCachedPlayer(Group group, Player player) {
         return playerManager.getPlayer(group, player);
     }
+
+    /**
+     * Read some sections of a player's profile for a group and gamemode, without loading the
+     * whole profile. Only the requested sections are decoded, so reading the stats or balance of
+     * many players, for example for a leaderboard, does not decode all of their items.
+     * <p>
+     * The player may be offline. The data is read asynchronously; the callback is run on the
+     * main thread once it is available. Sections the player has no data for are not in the
+     * result, see {@link ProfileProjection#has(ProfileSection)}.
+     *
+     * @param uuid The UUID of the player.
+     * @param group The group to read the profile of.
+     * @param gameMode The gamemode to read the profile of. It is ignored if gamemodes
+     *                 share their inventories.
+     * @param sections The sections to read.
+     * @param callback The callback to pass the read sections to.
+     */
+    public void getProfileSections(UUID uuid, Group group, GameMode gameMode, Set<ProfileSection> sections,
+                                   Consumer<ProfileProjection> callback) {
+        playerManager.loadSections(uuid, group, gameMode, sections, callback);
+    }
+
+    /**
+     * Forget the cached permission decisions of a player. Call this after changing the
+     * bypass permissions of a player, so the change applies on their next world change.
+     *
+     * @param player The player whose permissions changed.
+     */
+    public void invalidatePermissions(Player player) {
+        permissionManager.invalidate(player);
+    }
+
+    /**
+     * Forget the cached permission decisions of all players.
+     */
+    public void invalidateAllPermissions() {
+        permissionManager.invalidateAll();
+    }
 }
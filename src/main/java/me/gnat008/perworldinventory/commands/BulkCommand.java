@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.commands;
+
+import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.data.DataSource;
+import me.gnat008.perworldinventory.data.ProfileCheck;
+import me.gnat008.perworldinventory.data.ProfileKey;
+import me.gnat008.perworldinventory.data.ProfileScan;
+import me.gnat008.perworldinventory.data.ProfileScanner;
+import me.gnat008.perworldinventory.data.ProfileSection;
+import me.gnat008.perworldinventory.data.ProfileVisitor;
+import me.gnat008.perworldinventory.data.StorageScheduler;
+import me.gnat008.perworldinventory.data.players.PWIPlayerManager;
+import me.gnat008.perworldinventory.groups.Group;
+import me.gnat008.perworldinventory.groups.GroupManager;
+import me.gnat008.perworldinventory.permission.AdminPermission;
+import me.gnat008.perworldinventory.permission.PermissionNode;
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.scheduler.BukkitTask;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Runs jobs over the stored profiles of all players in the background. One job runs at a time.
+ */
+public class BulkCommand implements ExecutableCommand {
+
+    /** Ticks between progress messages. */
+    private static final long PROGRESS_INTERVAL = BukkitService.TICKS_PER_SECOND * 10;
+    /** The most duplicated items to list. */
+    private static final int MAX_DUPLICATES_SHOWN = 10;
+    /** The most corrupt profiles to list; all of them are logged. */
+    private static final int MAX_CORRUPT_SHOWN = 10;
+    /** The most distinct items the duplicates job compares, to bound its memory. */
+    private static final int MAX_TRACKED_ITEMS = 100_000;
+
+    @Inject
+    private BukkitService bukkitService;
+    @Inject
+    private DataSource dataSource;
+    @Inject
+    private GroupManager groupManager;
+    @Inject
+    private PWIPlayerManager playerManager;
+    @Inject
+    private ProfileScanner profileScanner;
+    @Inject
+    private Settings settings;
+    @Inject
+    private StorageScheduler storageScheduler;
+
+    private ProfileScan current;
+    private BukkitTask progressTask;
+    private BukkitTask onlineTask;
+
+    BulkCommand() {
+    }
+
+    @Override
+    public void executeCommand(CommandSender sender, List<String> args) {
+        String job = args.isEmpty() ? "" : args.get(0).toLowerCase();
+        switch (job) {
+            case "status":
+                sendStatus(sender);
+                break;
+            case "cancel":
+                if (isRunning()) {
+                    current.cancel();
+                    sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.GRAY + "Cancelling '" + current.getName() + "'...");
+                } else {
+                    sender.sendMessage(ChatColor.DARK_RED + "» " + ChatColor.GRAY + "No bulk job is running.");
+                }
+                break;
+            case "wealth":
+                if (canStart(sender, args, 1)) {
+                    startWealth(sender);
+                }
+                break;
+            case "duplicates":
+                if (canStart(sender, args, 1)) {
+                    startDuplicates(sender);
+                }
+                break;
+            case "reset":
+                if (canStart(sender, args, 3)) {
+                    startReset(sender, args.get(1), args.get(2));
+                }
+                break;
+            case "verify":
+                boolean quarantine = args.size() == 2 && args.get(1).equalsIgnoreCase("quarantine");
+                if (canStart(sender, args, quarantine ? 2 : 1)) {
+                    startVerify(sender, quarantine);
+                }
+                break;
+            default:
+                sender.sendMessage(ChatColor.DARK_RED + "» " + ChatColor.GRAY + "Usage: " + ChatColor.WHITE
+                        + "/pwi bulk <wealth|duplicates|reset <group> confirm|verify [quarantine]|status|cancel>");
+        }
+    }
+
+    private boolean canStart(CommandSender sender, List<String> args, int expectedArgs) {
+        if (args.size() != expectedArgs) {
+            sender.sendMessage(ChatColor.DARK_RED + "» " + ChatColor.GRAY + "Incorrect usage. Type /pwi help for help.");
+            return false;
+        }
+        if (isRunning()) {
+            sender.sendMessage(ChatColor.DARK_RED + "» " + ChatColor.GRAY + "'" + current.getName()
+                    + "' is still running. See " + ChatColor.WHITE + "/pwi bulk status");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds up the balances stored in each group.
+     */
+    private void startWealth(CommandSender sender) {
+        Map<String, DoubleAdder> totals = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+        start(sender, "wealth", EnumSet.of(ProfileSection.ECONOMY), false, (key, projection) -> {
+            if (projection.has(ProfileSection.ECONOMY)) {
+                totals.computeIfAbsent(key.getGroup(), group -> new DoubleAdder()).add(projection.getProfile().getBalance());
+                counts.computeIfAbsent(key.getGroup(), group -> new AtomicInteger()).incrementAndGet();
+            }
+        }, scan -> {
+            if (totals.isEmpty()) {
+                sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.GRAY + "No balances are stored.");
+            }
+            for (Map.Entry<String, DoubleAdder> entry : new TreeMap<>(totals).entrySet()) {
+                sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.WHITE + entry.getKey() + ChatColor.GRAY + ": "
+                        + String.format("%.2f", entry.getValue().sum()) + " in " + counts.get(entry.getKey()) + " profiles");
+            }
+        });
+    }
+
+    /**
+     * Finds unstackable items with custom data, like named or enchanted gear, that are stored in
+     * more than one profile.
+     */
+    private void startDuplicates(CommandSender sender) {
+        Map<ItemStack, Owners> owners = new ConcurrentHashMap<>();
+        AtomicInteger untracked = new AtomicInteger();
+        Set<ProfileSection> sections = EnumSet.of(ProfileSection.INVENTORY, ProfileSection.ENDER_CHEST);
+        start(sender, "duplicates", sections, false, (key, projection) -> {
+            // Each item counts once per profile
+            Set<ItemStack> found = new HashSet<>();
+            Consumer<ItemStack[]> collect = items -> {
+                for (ItemStack item : items) {
+                    if (item != null && item.getMaxStackSize() == 1 && item.hasItemMeta()) {
+                        found.add(item);
+                    }
+                }
+            };
+            collect.accept(projection.getProfile().getInventory());
+            collect.accept(projection.getProfile().getArmor());
+            collect.accept(projection.getProfile().getEnderChest());
+
+            for (ItemStack item : found) {
+                Owners itemOwners = owners.get(item);
+                if (itemOwners == null) {
+                    if (owners.size() >= MAX_TRACKED_ITEMS) {
+                        untracked.incrementAndGet();
+                        continue;
+                    }
+                    itemOwners = owners.computeIfAbsent(item, unused -> new Owners(key));
+                }
+                itemOwners.count.incrementAndGet();
+            }
+        }, scan -> {
+            List<Map.Entry<ItemStack, Owners>> duplicates = owners.entrySet().stream()
+                    .filter(entry -> entry.getValue().count.get() > 1)
+                    .sorted((a, b) -> Integer.compare(b.getValue().count.get(), a.getValue().count.get()))
+                    .collect(Collectors.toList());
+            sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.GRAY + "Found " + duplicates.size()
+                    + " items that are stored in more than one profile.");
+            if (untracked.get() > 0) {
+                sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.GRAY + "Only the first " + MAX_TRACKED_ITEMS
+                        + " distinct items were compared; " + untracked + " later items were not.");
+            }
+            for (Map.Entry<ItemStack, Owners> entry : duplicates.subList(0, Math.min(MAX_DUPLICATES_SHOWN, duplicates.size()))) {
+                ItemStack item = entry.getKey();
+                String name = item.getItemMeta().hasDisplayName() ? item.getItemMeta().getDisplayName() : item.getType().name();
+                sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.WHITE + name + ChatColor.GRAY + " in "
+                        + entry.getValue().count + " profiles, e.g. " + entry.getValue().first);
+            }
+        });
+    }
+
+    /**
+     * Deletes the stored profiles of a group, for all players who are offline. The cached
+     * profiles of offline players are dropped first, so they are not saved again. Each profile
+     * is deleted on the storage threads after the saves that were queued for its player.
+     */
+    private void startReset(CommandSender sender, String groupName, String confirmation) {
+        Group group = groupManager.getGroup(groupName);
+        if (group == null) {
+            sender.sendMessage(ChatColor.DARK_RED + "» " + ChatColor.GRAY + "Group '" + groupName + "' does not exist.");
+            return;
+        }
+        if (!confirmation.equalsIgnoreCase("confirm")) {
+            sender.sendMessage(ChatColor.DARK_RED + "» " + ChatColor.GRAY + "This deletes all inventories of '"
+                    + group.getName() + "'. Type " + ChatColor.WHITE + "/pwi bulk reset " + group.getName() + " confirm");
+            return;
+        }
+
+        Set<UUID> online = trackOnlinePlayers();
+        Set<UUID> skipped = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        AtomicInteger deleted = new AtomicInteger();
+        playerManager.discardOfflineProfiles(group.getName());
+
+        // Resumes where it stopped if it was cancelled or the server restarted
+        start(sender, "reset-" + group.getName(), EnumSet.noneOf(ProfileSection.class), true, (key, projection) -> {
+            if (!key.getGroup().equals(group.getName())) {
+                return;
+            }
+            if (online.contains(key.getUuid())) {
+                skipped.add(key.getUuid());
+            } else if (deleteAfterQueuedSaves(key)) {
+                deleted.incrementAndGet();
+            }
+        }, scan -> sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.GRAY + "Deleted " + deleted
+                + " profiles of '" + group.getName() + "'; skipped " + skipped.size() + " players who were online."));
+    }
+
+    /**
+     * Checks every stored profile for damage without loading it, and moves corrupt profiles to
+     * the quarantine folder if asked. Corrupt profiles of online players are only reported, as
+     * they are saved again when the player leaves the group.
+     */
+    private void startVerify(CommandSender sender, boolean quarantine) {
+        Set<UUID> online = trackOnlinePlayers();
+        AtomicInteger intact = new AtomicInteger();
+        AtomicInteger unchecked = new AtomicInteger();
+        AtomicInteger quarantined = new AtomicInteger();
+        Map<ProfileKey, String> corrupt = new ConcurrentHashMap<>();
+
+        // Resumes where it stopped if it was cancelled or the server restarted
+        start(sender, "verify", EnumSet.noneOf(ProfileSection.class), true, (key, projection) -> {
+            ProfileCheck check;
+            try {
+                check = dataSource.verifyProfile(key);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+
+            switch (check.getStatus()) {
+                case INTACT:
+                    intact.incrementAndGet();
+                    break;
+                case UNCHECKED:
+                    unchecked.incrementAndGet();
+                    break;
+                default:
+                    ConsoleLogger.warning("[VERIFY] " + key + " is corrupt: " + check.getProblem());
+                    corrupt.put(key, check.getProblem());
+                    if (quarantine && !online.contains(key.getUuid()) && dataSource.quarantineProfile(key)) {
+                        quarantined.incrementAndGet();
+                    }
+            }
+        }, scan -> {
+            sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.GRAY + intact + " profiles are intact, " + unchecked
+                    + " have no checksum yet and " + corrupt.size() + " are corrupt"
+                    + (quarantine ? "; quarantined " + quarantined + "." : "."));
+            corrupt.entrySet().stream().limit(MAX_CORRUPT_SHOWN).forEach(entry -> sender.sendMessage(ChatColor.BLUE
+                    + "» " + ChatColor.WHITE + entry.getKey() + ChatColor.GRAY + ": " + entry.getValue()));
+        });
+    }
+
+    /**
+     * Delete a profile on the storage threads, after the work that is queued for its player.
+     * Saves that were queued before the reset started would otherwise write the profile again.
+     * The delete is background work, so a reset does not hold up the loads of online players.
+     */
+    private boolean deleteAfterQueuedSaves(ProfileKey key) {
+        FutureTask<Boolean> delete = new FutureTask<>(() -> dataSource.deleteProfile(key));
+        storageScheduler.runBackground(key.getUuid(), delete);
+        try {
+            return delete.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while deleting " + key, ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Unable to delete " + key, ex.getCause());
+        }
+    }
+
+    /**
+     * Get the players who are online, and keep adding the players who join until the next
+     * job is done, so the job does not change the profiles of players who are playing.
+     */
+    private Set<UUID> trackOnlinePlayers() {
+        Set<UUID> online = ConcurrentHashMap.newKeySet();
+        Runnable collect = () -> {
+            for (Player player : Bukkit.getOnlinePlayers()) {
+                online.add(player.getUniqueId());
+            }
+        };
+        collect.run();
+        onlineTask = bukkitService.runRepeatingTask(collect, 1, 1);
+        return online;
+    }
+
+    /**
+     * Start a job, and report its progress to the sender until it is done.
+     *
+     * @param report Reports the result of the job, if it was not cancelled.
+     */
+    private void start(CommandSender sender, String name, Set<ProfileSection> sections, boolean checkpoint,
+                       ProfileVisitor visitor, Consumer<ProfileScan> report) {
+        current = profileScanner.start(name, sections, settings.getProperty(PwiProperties.SCAN_THREADS),
+                settings.getProperty(PwiProperties.SCAN_PROFILES_PER_SECOND), checkpoint, visitor, scan -> {
+                    if (progressTask != null) {
+                        progressTask.cancel();
+                        progressTask = null;
+                    }
+                    if (onlineTask != null) {
+                        onlineTask.cancel();
+                        onlineTask = null;
+                    }
+                    sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.GRAY + "'" + scan.getName() + "' "
+                            + (scan.isCancelled() ? "was cancelled" : "is done") + " after " + scan.getProfiles()
+                            + " profiles; " + scan.getFailures() + " failed.");
+                    if (!scan.isCancelled()) {
+                        report.accept(scan);
+                    }
+                });
+
+        sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.GRAY + "Started '" + name
+                + "'. Check the progress with " + ChatColor.WHITE + "/pwi bulk status");
+        if (!current.isDone()) {
+            progressTask = bukkitService.runRepeatingTask(() -> sendStatus(sender), PROGRESS_INTERVAL, PROGRESS_INTERVAL);
+        }
+    }
+
+    private void sendStatus(CommandSender sender) {
+        if (current == null) {
+            sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.GRAY + "No bulk job has run yet.");
+            return;
+        }
+
+        sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.GRAY + "'" + current.getName() + "' "
+                + (current.isDone() ? "is done" : "is running") + ": " + current.getProfiles() + " profiles of "
+                + current.getPlayers() + " players, " + current.getFailures() + " failed, "
+                + String.format("%.1f", current.getProfilesPerSecond()) + " profiles per second"
+                + (current.getResumed() > 0 ? "; " + current.getResumed() + " players done before a restart" : ""));
+    }
+
+    private boolean isRunning() {
+        return current != null && !current.isDone();
+    }
+
+    @Override
+    public PermissionNode getRequiredPermission() {
+        return AdminPermission.BULK;
+    }
+
+    private static final class Owners {
+        /** The first profile the item was found in. */
+        private final ProfileKey first;
+        /** The number of profiles the item was found in. */
+        private final AtomicInteger count = new AtomicInteger();
+
+        Owners(ProfileKey first) {
+            this.first = first;
+        }
+    }
+}
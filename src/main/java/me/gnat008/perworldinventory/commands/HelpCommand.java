@@ -18,9 +18,12 @@ public class HelpCommand implements ExecutableCommand {
             sender.sendMessage(ChatColor.DARK_GRAY + "                [ " + ChatColor.BLUE + "PerWorldInventory Commands" + ChatColor.DARK_GRAY + " ]");
             sender.sendMessage(ChatColor.GRAY + "Commands may be run using either " + ChatColor.WHITE + "/perworldinventory" + ChatColor.GRAY + " or " + ChatColor.WHITE + "/pwi");
             sender.sendMessage("");
+            sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.WHITE + "/perworldinventory bulk <wealth|duplicates|reset <group> confirm|verify [quarantine]|status|cancel>" + ChatColor.BLUE + " - " + ChatColor.GRAY + "Run a job over the stored inventories of all players in the background");
+            sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.WHITE + "/perworldinventory verify [quarantine]" + ChatColor.BLUE + " - " + ChatColor.GRAY + "Check all stored inventories for damage in the background");
             sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.WHITE + "/perworldinventory convert multiverse" + ChatColor.BLUE + " - " + ChatColor.GRAY + "Convert data from Multiverse-Inventories");
             sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.WHITE + "/perworldinventory help" + ChatColor.BLUE + " - " + ChatColor.GRAY + "Shows this help page");
             sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.WHITE + "/perworldinventory reload" + ChatColor.BLUE + " - " + ChatColor.GRAY + "Reloads all configuration files");
+            sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.WHITE + "/perworldinventory storage" + ChatColor.BLUE + " - " + ChatColor.GRAY + "Shows how long loads and saves wait before they start");
             sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.WHITE + "/perworldinventory version" + ChatColor.BLUE + " - " + ChatColor.GRAY + "Shows the version and authors of the server");
             sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.WHITE + "/perworldinventory setworlddefault [group|serverDefault]" + ChatColor.BLUE + " - " + ChatColor.GRAY + "Set the default inventory loadout for a world, or the server default." + '\n' + ChatColor.YELLOW + "The group you are standing in will be used if no group is specified.");
             sender.sendMessage(ChatColor.DARK_GRAY + "" + ChatColor.STRIKETHROUGH + "-----------------------------------------------------");
@@ -28,8 +31,11 @@ public class HelpCommand implements ExecutableCommand {
             // Sender is the console, no pretty stuff for you!
             sender.sendMessage("-----------------------------------------------------");
             sender.sendMessage("PerWorldInventory commands:");
+            sender.sendMessage("/perworldinventory bulk <wealth|duplicates|reset <group> confirm|verify [quarantine]|status|cancel> - Run a job over all stored inventories");
+            sender.sendMessage("/perworldinventory verify [quarantine] - Check all stored inventories for damage");
             sender.sendMessage("/perworldinventory convert - Convert MultiVerse-Inventories data");
             sender.sendMessage("/perworldinventory help - Displays this help");
+            sender.sendMessage("/perworldinventory storage - Shows how long loads and saves wait");
             sender.sendMessage("/perworldinventory version - Shows the version of the server");
             sender.sendMessage("/perworldinventory reload - Reload config and world files");
             sender.sendMessage("-----------------------------------------------------");
@@ -2,8 +2,10 @@ package me.gnat008.perworldinventory.commands;
 
 import me.gnat008.perworldinventory.PerWorldInventory;
 import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.data.players.ProfileApplier;
 import me.gnat008.perworldinventory.groups.GroupManager;
 import me.gnat008.perworldinventory.permission.AdminPermission;
+import me.gnat008.perworldinventory.permission.PermissionManager;
 import me.gnat008.perworldinventory.permission.PermissionNode;
 import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
@@ -19,12 +21,18 @@ public class ReloadCommand implements ExecutableCommand {
     private GroupManager groupManager;
     @Inject
     private Settings settings;
+    @Inject
+    private ProfileApplier profileApplier;
+    @Inject
+    private PermissionManager permissionManager;
 
 
     @Override
     public void executeCommand(CommandSender sender, List<String> args) {
         settings.reload();
         plugin.reload();
+        profileApplier.reload();
+        permissionManager.reload();
         groupManager.loadGroupsToMemory(plugin.getWorldsConfig());
 
         sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.GRAY + "Configuration files reloaded!");
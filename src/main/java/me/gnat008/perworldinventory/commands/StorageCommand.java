@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.commands;
+
+import me.gnat008.perworldinventory.data.StorageScheduler;
+import me.gnat008.perworldinventory.data.StorageScheduler.Priority;
+import me.gnat008.perworldinventory.permission.AdminPermission;
+import me.gnat008.perworldinventory.permission.PermissionNode;
+import me.gnat008.perworldinventory.util.WaitHistogram;
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+
+import javax.inject.Inject;
+import java.util.List;
+
+/**
+ * Shows how long storage work waits before it starts, per priority class.
+ */
+public class StorageCommand implements ExecutableCommand {
+
+    private static final double[] PERCENTILES = {50, 95, 99};
+
+    @Inject
+    private StorageScheduler storageScheduler;
+
+    StorageCommand() {
+    }
+
+    @Override
+    public void executeCommand(CommandSender sender, List<String> args) {
+        for (Priority priority : Priority.values()) {
+            WaitHistogram histogram = storageScheduler.getWaitHistogram(priority);
+            StringBuilder summary = new StringBuilder()
+                    .append(storageScheduler.getQueued(priority)).append(" queued, ")
+                    .append(histogram.getTotal()).append(" started");
+            for (double percentile : PERCENTILES) {
+                long millis = histogram.getPercentileMillis(percentile);
+                summary.append(", p").append((int) percentile).append(' ')
+                        .append(millis < 0 ? WaitHistogram.getLabel(histogram.getCounts().length - 1) : "<" + millis + "ms");
+            }
+            sender.sendMessage(ChatColor.BLUE + "» " + ChatColor.GRAY + priority.name().toLowerCase() + ": "
+                    + ChatColor.WHITE + summary);
+
+            StringBuilder buckets = new StringBuilder();
+            long[] counts = histogram.getCounts();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    buckets.append(buckets.length() == 0 ? "" : ", ").append(WaitHistogram.getLabel(i))
+                            .append(": ").append(counts[i]);
+                }
+            }
+            if (buckets.length() > 0) {
+                sender.sendMessage(ChatColor.GRAY + "  " + buckets);
+            }
+        }
+    }
+
+    @Override
+    public PermissionNode getRequiredPermission() {
+        return AdminPermission.STORAGE;
+    }
+}
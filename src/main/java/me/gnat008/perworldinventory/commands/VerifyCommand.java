@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.commands;
+
+import me.gnat008.perworldinventory.permission.AdminPermission;
+import me.gnat008.perworldinventory.permission.PermissionNode;
+import org.bukkit.command.CommandSender;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks all stored profiles for damage in the background; the same as {@code /pwi bulk verify}.
+ */
+public class VerifyCommand implements ExecutableCommand {
+
+    @Inject
+    private BulkCommand bulkCommand;
+
+    VerifyCommand() {
+    }
+
+    @Override
+    public void executeCommand(CommandSender sender, List<String> args) {
+        List<String> bulkArgs = new ArrayList<>(args.size() + 1);
+        bulkArgs.add("verify");
+        bulkArgs.addAll(args);
+        bulkCommand.executeCommand(sender, bulkArgs);
+    }
+
+    @Override
+    public PermissionNode getRequiredPermission() {
+        return AdminPermission.BULK;
+    }
+}
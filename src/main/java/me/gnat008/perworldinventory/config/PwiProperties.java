@@ -4,10 +4,13 @@ import ch.jalu.configme.Comment;
 import ch.jalu.configme.SectionComments;
 import ch.jalu.configme.SettingsHolder;
 import ch.jalu.configme.properties.Property;
+import me.gnat008.perworldinventory.data.DataSourceType;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import static ch.jalu.configme.properties.PropertyInitializer.newListProperty;
 import static ch.jalu.configme.properties.PropertyInitializer.newProperty;
 
 /**
@@ -145,6 +148,192 @@ public final class PwiProperties implements SettingsHolder {
     public static final Property<Boolean> DISABLE_BYPASS =
             newProperty("disable-bypass", false);
 
+    @Comment({
+        "Write unsaved player data to a single journal file when the server stops,",
+        "instead of saving every player to their own files. The journal is written",
+        "back to the player files in the background the next time the server starts.",
+        "Speeds up shutdowns with many players online.",
+        "Only used with the FLATFILE data source"})
+    public static final Property<Boolean> USE_SHUTDOWN_JOURNAL =
+            newProperty("shutdown-journal", false);
+
+    @Comment({
+        "Players are saved spread out over the save interval rather than all at once.",
+        "This is the most saves that will be started in a single server tick"})
+    public static final Property<Integer> SAVE_MAX_PER_TICK =
+            newProperty("save-max-per-tick", 10);
+
+    @Comment({
+        "When the average server tick takes longer than this many milliseconds,",
+        "PWI defers autosaves and other background work until the server recovers.",
+        "Inventory changes are never deferred. Set to 0 to disable"})
+    public static final Property<Integer> DEGRADED_MODE_MSPT =
+            newProperty("degraded-mode-mspt", 60);
+
+    @Comment({
+        "Background work is deferred for at most this many seconds while the server is overloaded.",
+        "After that it runs anyway, so unsaved data and the cache do not keep growing on a server",
+        "that never recovers"})
+    public static final Property<Integer> DEGRADED_MODE_MAX_DEFER_SECONDS =
+            newProperty("degraded-mode-max-defer-seconds", 300);
+
+    @Comment({
+        "When a player's data is still cached, only change the inventory slots and stats",
+        "that are different from what the player currently has, instead of resetting",
+        "everything first. Stats that are not set to load are then left as they are"})
+    public static final Property<Boolean> DIFF_APPLY =
+            newProperty("diff-apply", false);
+
+    @Comment({
+        "Store every distinct item once in the 'items' folder, and only save a reference",
+        "to it in the player files. Saves a lot of disk space when many players carry",
+        "the same kits. Only used with the 'FLATFILE' data source. Files saved with",
+        "references can still be read when this is off"})
+    public static final Property<Boolean> ITEM_STORE =
+            newProperty("item-store", false);
+
+    @Comment({
+        "How many cached profiles keep their items ready to use. Profiles that have not",
+        "been used for longer have their items packed into a compact form, which takes",
+        "far less memory and is unpacked again when needed. Set to 0 to never pack items"})
+    public static final Property<Integer> CACHE_HOT_SIZE =
+            newProperty("cache-hot-size", 0);
+
+    @Comment({
+        "How many packed profiles to keep in memory. Saved profiles beyond this are",
+        "dropped from the cache and read from disk again when needed. Set to 0 for no limit"})
+    public static final Property<Integer> CACHE_WARM_SIZE =
+            newProperty("cache-warm-size", 0);
+
+    @Comment({
+        "Keep packed items outside of the Java heap, so the garbage collector",
+        "does not have to scan them"})
+    public static final Property<Boolean> CACHE_WARM_OFF_HEAP =
+            newProperty("cache-warm-off-heap", false);
+
+    @Comment({
+        "Keep all cached profiles of a player in the group they are in, one per gamemode, in",
+        "memory until they leave the group, so changing gamemodes does not read from disk"})
+    public static final Property<Boolean> CACHE_PIN_CURRENT_GROUP =
+            newProperty("cache-pin-current-group", true);
+
+    @Comment({
+        "Player files saved by old versions of PWI take a slow path to load. They are",
+        "upgraded to the current format in the background, this many files per second.",
+        "Files are also upgraded when they are loaded. Set to 0 to disable the background upgrade"})
+    public static final Property<Integer> LEGACY_UPGRADE_PER_SECOND =
+            newProperty("legacy-upgrade-per-second", 20);
+
+    @Comment({
+        "How many seconds to remember whether a player has a bypass permission. Permission",
+        "plugins can take a while to answer, and PWI checks these on every world change.",
+        "Changes to a player's permissions may take this long to apply. Set to 0 to disable"})
+    public static final Property<Integer> PERMISSION_CACHE_SECONDS =
+            newProperty("permission-cache-seconds", 30);
+
+    @Comment({
+        "Set balances on a separate thread instead of the main thread, so a slow economy",
+        "plugin does not hold up world changes. Only enable this if your economy plugin",
+        "can be used from other threads"})
+    public static final Property<Boolean> ECONOMY_ASYNC =
+            newProperty("economy-async", false);
+
+    @Comment({
+        "How many profiles bulk jobs such as /pwi bulk read at the same time"})
+    public static final Property<Integer> SCAN_THREADS =
+            newProperty("scan-threads", 2);
+
+    @Comment({
+        "The most profiles bulk jobs such as /pwi bulk read per second, so they do not compete",
+        "with players for the disk. Set to 0 for no limit"})
+    public static final Property<Integer> SCAN_PROFILES_PER_SECOND =
+            newProperty("scan-profiles-per-second", 200);
+
+    @Comment({
+        "Where player data is stored. FLATFILE keeps it in the data folder of this server.",
+        "SHARED keeps it in a profile store that several servers behind a proxy can share, so",
+        "players keep their inventories when they switch servers. The store is provided by",
+        "another plugin; if none is installed, FLATFILE is used instead.",
+        "LOG appends all saves to a few large files in the log folder, which is easier on",
+        "the disk than FLATFILE when many players are saved at once"})
+    public static final Property<DataSourceType> DATA_SOURCE =
+            newProperty(DataSourceType.class, "data-source", DataSourceType.FLATFILE);
+
+    @Comment({
+        "The name of this server in the shared profile store. Must be different on every server",
+        "that shares the store. Leave empty to use a random name that is kept in the server-id file"})
+    public static final Property<String> SERVER_ID =
+            newProperty("server-id", "");
+
+    @Comment({
+        "How many seconds a player who joins waits for the server they came from to finish",
+        "saving their data. If it takes longer, they are asked to join again later"})
+    public static final Property<Integer> LEASE_WAIT_SECONDS =
+            newProperty("lease-wait-seconds", 10);
+
+    @Comment({
+        "How many seconds a server keeps owning a player after it stops responding, for example",
+        "because it crashed. Other servers can only load the player after this time"})
+    public static final Property<Integer> LEASE_TTL_SECONDS =
+            newProperty("lease-ttl-seconds", 60);
+
+    @Comment({
+        "When data-source is LOG, the size in megabytes at which a new log file is started.",
+        "Log files that are mostly outdated are cleaned up in the background"})
+    public static final Property<Integer> LOG_SEGMENT_SIZE_MB =
+            newProperty("log-segment-size-mb", 64);
+
+    @Comment({
+        "When data-source is LOG, how many kilobytes per second the background clean-up of",
+        "the log files may copy. Set to 0 for no limit"})
+    public static final Property<Integer> LOG_COMPACTION_KB_PER_SECOND =
+            newProperty("log-compaction-kb-per-second", 4096);
+
+    @Comment({
+        "Keep the folder of each player in two levels of folders named after the start of their",
+        "UUID, e.g. data/7f/7c/7f7c909b-..., so no folder gets too large. Existing players are",
+        "moved to the new folders in the background"})
+    public static final Property<Boolean> SHARDED_LAYOUT =
+            newProperty("sharded-layout", false);
+
+    @Comment({
+        "Folders to spread the player data over, e.g. on different disks. Relative paths are in",
+        "the plugin folder. Players are assigned to a folder by their UUID, and adding a folder",
+        "only moves the players that now belong to it. Leave empty to use the data folder"})
+    public static final Property<List<String>> DATA_ROOTS =
+            newListProperty("data-roots");
+
+    @Comment({
+        "How many players per second are moved to their new folder in the background after",
+        "sharded-layout or data-roots changed. Set to 0 to disable moving players"})
+    public static final Property<Integer> LAYOUT_MIGRATION_PER_SECOND =
+            newProperty("layout-migration-per-second", 50);
+
+    @Comment({
+        "Keep the ender chest of a player encoded when they change groups, and only decode it when",
+        "they open it. An ender chest that is not opened is saved exactly as it was loaded. Plugins",
+        "that change ender chests without opening them may not see the items until it is opened"})
+    public static final Property<Boolean> LAZY_ENDER_CHESTS =
+            newProperty("lazy-ender-chests", false);
+
+    @Comment({
+        "How many threads load and save player data. Loads of players who are changing worlds",
+        "always go before saves and other background work"})
+    public static final Property<Integer> STORAGE_THREADS =
+            newProperty("storage-threads", 2);
+
+    @Comment({
+        "How many saves, migrations and other background storage tasks may start per second.",
+        "Set to 0 for no limit"})
+    public static final Property<Integer> STORAGE_BACKGROUND_PER_SECOND =
+            newProperty("storage-background-per-second", 200);
+
+    @Comment({
+        "How many milliseconds background storage work may wait before it goes ahead of",
+        "loads, so a steady stream of loads can not hold back saves forever"})
+    public static final Property<Integer> STORAGE_BACKGROUND_MAX_WAIT_MS =
+            newProperty("storage-background-max-wait-ms", 2000);
+
     private PwiProperties() {
     }
 
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data;
+
+import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.DataFolder;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Decides in which folder the data files of a player are kept.
+ * <p>
+ * Players are spread over the configured data roots by a consistent hash of their UUID, so adding
+ * a root only moves the players that now belong to it. With the sharded layout, the folder of a
+ * player is nested under two levels of folders named after the start of their UUID, e.g.
+ * {@code data/7f/7c/7f7c909b-...}, so no folder holds more than a few thousand entries.
+ * <p>
+ * When the layout changes, the {@link LayoutMigrator} moves players to their new folder in the
+ * background. Until a player is moved, their data is read from and written to the old folder.
+ * Once every player is moved, a marker file is written and old folders are not looked for anymore.
+ */
+public class DataLayout {
+
+    static final String DONE_FILE_NAME = "layout.done";
+    private static final int LOCK_STRIPES = 64;
+
+    private final File pluginFolder;
+    private final File legacyRoot;
+    private final List<String> rootNames = new ArrayList<>();
+    private final List<File> roots = new ArrayList<>();
+    private final boolean sharded;
+    private final String signature;
+    private final ReadWriteLock[] locks = new ReadWriteLock[LOCK_STRIPES];
+    private volatile boolean settled;
+
+    @Inject
+    DataLayout(@DataFolder File pluginFolder, Settings settings) {
+        this.pluginFolder = pluginFolder;
+        this.legacyRoot = new File(pluginFolder, "data");
+        this.sharded = settings.getProperty(PwiProperties.SHARDED_LAYOUT);
+
+        for (String name : settings.getProperty(PwiProperties.DATA_ROOTS)) {
+            File root = new File(name);
+            rootNames.add(name);
+            roots.add(root.isAbsolute() ? root : new File(pluginFolder, name));
+        }
+        if (roots.isEmpty()) {
+            rootNames.add("data");
+            roots.add(legacyRoot);
+        }
+
+        this.signature = (sharded ? "sharded" : "flat") + " " + String.join(" ", rootNames);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        this.settled = signature.equals(readDoneFile());
+    }
+
+    /**
+     * Get the folder the data of a player belongs in with the current layout.
+     *
+     * @param uuid The UUID of the player.
+     * @return The folder.
+     */
+    public File getHomeFolder(UUID uuid) {
+        return getFolder(roots.get(getRootIndex(uuid)), uuid, sharded);
+    }
+
+    /**
+     * Get the folder the data of a player is in right now: their home folder, or the folder
+     * of an earlier layout if they have not been moved yet. The caller should hold the lock
+     * from {@link #lockPlayer(UUID)} while it uses the folder.
+     *
+     * @param uuid The UUID of the player.
+     * @return The folder.
+     */
+    public File getUserFolder(UUID uuid) {
+        File home = getHomeFolder(uuid);
+        if (settled || home.isDirectory()) {
+            return home;
+        }
+
+        for (File folder : getOldFolders(uuid)) {
+            if (folder.isDirectory()) {
+                return folder;
+            }
+        }
+        return home;
+    }
+
+    /**
+     * Lock the folder of a player, so it is not moved until the returned lock is unlocked.
+     * Any number of threads can lock the same player at the same time.
+     *
+     * @param uuid The UUID of the player.
+     * @return The lock, which is locked already.
+     */
+    public Lock lockPlayer(UUID uuid) {
+        Lock lock = getLock(uuid).readLock();
+        lock.lock();
+        return lock;
+    }
+
+    /**
+     * Lock the folder of a player for moving it or replacing one of its files, waiting until
+     * nothing else uses it.
+     *
+     * @param uuid The UUID of the player.
+     * @return The lock, which is locked already.
+     */
+    Lock lockForMove(UUID uuid) {
+        Lock lock = getLock(uuid).writeLock();
+        lock.lock();
+        return lock;
+    }
+
+    /**
+     * Get all folders that may contain data of players: the data roots, and while players are
+     * still being moved, the data folder of the plugin.
+     *
+     * @return The folders.
+     */
+    public List<File> getRoots() {
+        Set<File> folders = new LinkedHashSet<>(roots);
+        if (!settled) {
+            folders.add(legacyRoot);
+        }
+        return new ArrayList<>(folders);
+    }
+
+    /**
+     * Passes the UUID and the folder of every player with data to an action, one at a time.
+     * While players are being moved, a player whose data is in two folders is passed once,
+     * with the folder {@link #getUserFolder(UUID)} returns.
+     *
+     * @param action The action, which returns false to stop the scan.
+     * @throws IOException If a folder could not be listed.
+     */
+    public void scanPlayers(PlayerFolderAction action) throws IOException {
+        for (File root : getRoots()) {
+            if (root.isDirectory() && !scan(root.toPath(), 0, false, action)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Passes every player folder in the data roots to an action, including the folders of
+     * players whose data is in two folders after an interrupted move.
+     *
+     * @param action The action, which returns false to stop the scan.
+     * @throws IOException If a folder could not be listed.
+     */
+    void scanAllFolders(PlayerFolderAction action) throws IOException {
+        for (File root : getRoots()) {
+            if (root.isDirectory() && !scan(root.toPath(), 0, true, action)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get whether every player is in their home folder.
+     *
+     * @return True if no player has to be moved.
+     */
+    public boolean isSettled() {
+        return settled;
+    }
+
+    /**
+     * Remember that every player is in their home folder, so old folders are not looked for anymore.
+     */
+    void markSettled() {
+        try {
+            Files.write(new File(pluginFolder, DONE_FILE_NAME).toPath(), signature.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            ConsoleLogger.warning("[LAYOUT] Unable to write '" + DONE_FILE_NAME + "':", ex);
+        }
+        settled = true;
+    }
+
+    private boolean scan(Path folder, int depth, boolean all, PlayerFolderAction action) throws IOException {
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(folder, Files::isDirectory)) {
+            for (Path child : children) {
+                String name = child.getFileName().toString();
+                UUID uuid = parseUuid(name);
+                if (uuid != null) {
+                    File playerFolder = child.toFile();
+                    if ((all || settled || playerFolder.equals(getUserFolder(uuid))) && !action.accept(uuid, playerFolder)) {
+                        return false;
+                    }
+                } else if (depth < 2 && isShardName(name) && !scan(child, depth + 1, all, action)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private List<File> getOldFolders(UUID uuid) {
+        List<File> folders = new ArrayList<>();
+        for (File root : getRoots()) {
+            folders.add(getFolder(root, uuid, false));
+            folders.add(getFolder(root, uuid, true));
+        }
+        folders.remove(getHomeFolder(uuid));
+        return folders;
+    }
+
+    /**
+     * Pick the root of a player by rendezvous hashing: the root with the highest score for the
+     * player wins, so adding or removing a root only changes the root of the players it wins or loses.
+     */
+    private int getRootIndex(UUID uuid) {
+        int best = 0;
+        long bestScore = Long.MIN_VALUE;
+        for (int i = 0; i < rootNames.size(); i++) {
+            long score = mix(uuid.getMostSignificantBits() ^ mix(uuid.getLeastSignificantBits() + rootNames.get(i).hashCode()));
+            if (score > bestScore) {
+                best = i;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private ReadWriteLock getLock(UUID uuid) {
+        return locks[Math.floorMod(uuid.hashCode(), LOCK_STRIPES)];
+    }
+
+    private String readDoneFile() {
+        File file = new File(pluginFolder, DONE_FILE_NAME);
+        try {
+            return file.exists() ? new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8) : null;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    static File getFolder(File root, UUID uuid, boolean sharded) {
+        String name = uuid.toString();
+        return sharded
+                ? new File(new File(new File(root, name.substring(0, 2)), name.substring(2, 4)), name)
+                : new File(root, name);
+    }
+
+    private static boolean isShardName(String name) {
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0 && Character.digit(name.charAt(1), 16) >= 0;
+    }
+
+    private static UUID parseUuid(String name) {
+        if (name.length() != 36) {
+            return null;
+        }
+        try {
+            return UUID.fromString(name);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /** The finalizer of SplitMix64, which spreads the bits of a value evenly. */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * Receives the folders of players during a scan.
+     */
+    @FunctionalInterface
+    public interface PlayerFolderAction {
+
+        /**
+         * Called for each player.
+         *
+         * @param uuid The UUID of the player.
+         * @param folder The folder the data of the player is in.
+         * @return False to stop the scan.
+         */
+        boolean accept(UUID uuid, File folder);
+    }
+}
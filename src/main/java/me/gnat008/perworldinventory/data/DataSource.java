@@ -24,8 +24,35 @@ import org.bukkit.GameMode;
 import org.bukkit.Location;
 import org.bukkit.entity.Player;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
 public interface DataSource {
 
+    /**
+     * Makes sure that this server may load and save the data of a player who is logging in.
+     * If another server, or an earlier session on this server, is still saving the player,
+     * waits for it to finish, up to a configured time. A player whose old session is still
+     * online on this server may log in right away; the old session is saved before the new
+     * one loads. This method blocks, so it must not be called on the main thread.
+     *
+     * @param uuid The UUID of the player
+     * @return True if the data of the player may be loaded, false if it is still being saved
+     */
+    boolean acquirePlayer(UUID uuid);
+
+    /**
+     * Lets other servers load the data of a player again. Called once all data of the
+     * player has been saved, on the thread that saved it.
+     *
+     * @param uuid The UUID of the player
+     */
+    void releasePlayer(UUID uuid);
+
     /**
      * Save the location of a player when they log out or are kicked from the server.
      *
@@ -58,6 +85,74 @@ public interface DataSource {
      */
     void getFromDatabase(Group group, GameMode gamemode, Player player, DeserializeCause cause);
 
+    /**
+     * Reads some sections of a player's stored data for a group, without reading the rest.
+     * The data is read asynchronously; the callback is run on the main thread once it is done.
+     * If there is no data, or it could not be read, the projection has no sections.
+     *
+     * @param group The {@link me.gnat008.perworldinventory.groups.Group} to read the data of
+     * @param gamemode The {@link org.bukkit.GameMode} to read the data of
+     * @param uuid The UUID of the player, who does not need to be online
+     * @param sections The sections to read
+     * @param callback The callback to pass the read sections to
+     */
+    void getSections(Group group, GameMode gamemode, UUID uuid, Set<ProfileSection> sections,
+                     Consumer<ProfileProjection> callback);
+
+    /**
+     * Reads some sections of a stored profile on the calling thread, without reading the rest.
+     *
+     * @param key The profile to read
+     * @param sections The sections to read
+     * @return The read sections, or a projection without sections if there is no data
+     * @throws IOException If the data could not be read
+     */
+    ProfileProjection readSections(ProfileKey key, Set<ProfileSection> sections) throws IOException;
+
+    /**
+     * Passes the UUID of every player with stored data to an action, one at a time, without
+     * listing all players first. Runs on the calling thread.
+     *
+     * @param action The action, which returns false to stop the scan
+     * @throws IOException If the stored players could not be listed
+     */
+    void scanPlayers(Predicate<UUID> action) throws IOException;
+
+    /**
+     * Lists the profiles that are stored for a player.
+     *
+     * @param uuid The UUID of the player
+     * @return The keys of the stored profiles
+     */
+    List<ProfileKey> listProfiles(UUID uuid);
+
+    /**
+     * Deletes a stored profile.
+     *
+     * @param key The profile to delete
+     * @return True if the profile was deleted, false if it did not exist or could not be deleted
+     */
+    boolean deleteProfile(ProfileKey key);
+
+    /**
+     * Checks a stored profile for damage on the calling thread: whether it matches its checksum,
+     * and whether all of it can be decoded. Nothing is loaded.
+     *
+     * @param key The profile to check
+     * @return The result
+     * @throws IOException If the profile could not be read
+     */
+    ProfileCheck verifyProfile(ProfileKey key) throws IOException;
+
+    /**
+     * Moves a stored profile to the quarantine folder, so it is not loaded anymore but can still
+     * be looked at. The player gets the defaults of the group the next time they enter it.
+     *
+     * @param key The profile to move
+     * @return True if the profile was moved
+     */
+    boolean quarantineProfile(ProfileKey key);
+
     /**
      * Get the name of the world that a player logged out in.
      * If this is their first time logging in, this method will return null instead of a location.
@@ -79,4 +174,9 @@ public interface DataSource {
      * @param group The group to write the defaults for.
      */
     void setGroupDefault(Player player, Group group);
+
+    /**
+     * Called when the plugin is disabled, after all players have been saved.
+     */
+    void close();
 }
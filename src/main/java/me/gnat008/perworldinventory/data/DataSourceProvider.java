@@ -2,6 +2,11 @@ package me.gnat008.perworldinventory.data;
 
 import ch.jalu.injector.Injector;
 import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.data.log.LogProfileStore;
+import org.bukkit.Server;
+import org.bukkit.plugin.RegisteredServiceProvider;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -14,6 +19,12 @@ public class DataSourceProvider implements Provider<DataSource> {
     @Inject
     private Injector injector;
 
+    @Inject
+    private Settings settings;
+
+    @Inject
+    private Server server;
+
     DataSourceProvider() {}
 
     @Override
@@ -27,12 +38,28 @@ public class DataSourceProvider implements Provider<DataSource> {
     }
 
     private DataSource createDataSource() {
-        DataSourceType type = DataSourceType.FLATFILE;
+        DataSourceType type = settings.getProperty(PwiProperties.DATA_SOURCE);
         DataSource dataSource;
 
         switch(type) {
             case FLATFILE:
-                dataSource = injector.getSingleton(FlatFile.class);
+                dataSource = createFlatFile();
+                break;
+            case SHARED:
+                ProfileStore store = findProfileStore();
+                if (store == null) {
+                    ConsoleLogger.severe("The data source is SHARED, but no profile store is installed! "
+                            + "Storing player data in the data folder of this server (FLATFILE) instead");
+                    settings.setProperty(PwiProperties.DATA_SOURCE, DataSourceType.FLATFILE);
+                    dataSource = createFlatFile();
+                    break;
+                }
+                injector.register(ProfileStore.class, store);
+                dataSource = injector.getSingleton(SharedDataSource.class);
+                break;
+            case LOG:
+                injector.register(ProfileStore.class, injector.getSingleton(LogProfileStore.class));
+                dataSource = injector.getSingleton(SharedDataSource.class);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown data source type '" + type + "'");
@@ -40,4 +67,23 @@ public class DataSourceProvider implements Provider<DataSource> {
 
         return dataSource;
     }
-}
\ No newline at end of file
+
+    private DataSource createFlatFile() {
+        DataSource dataSource = injector.getSingleton(FlatFile.class);
+        injector.getSingleton(LayoutMigrator.class);
+        return dataSource;
+    }
+
+    /**
+     * Get the profile store that another plugin registered with the services manager.
+     *
+     * @return The profile store to use, or null if there is none.
+     */
+    private ProfileStore findProfileStore() {
+        RegisteredServiceProvider<ProfileStore> rsp = server.getServicesManager().getRegistration(ProfileStore.class);
+        if (rsp != null) {
+            return rsp.getProvider();
+        }
+        return null;
+    }
+}
@@ -5,5 +5,9 @@ package me.gnat008.perworldinventory.data;
  */
 public enum DataSourceType {
 
-    FLATFILE
+    FLATFILE,
+
+    SHARED,
+
+    LOG
 }
\ No newline at end of file
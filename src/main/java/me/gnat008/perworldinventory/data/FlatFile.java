@@ -30,120 +30,372 @@ import me.gnat008.perworldinventory.data.serializers.DeserializeCause;
 import me.gnat008.perworldinventory.data.serializers.LocationSerializer;
 import me.gnat008.perworldinventory.data.serializers.PlayerSerializer;
 import me.gnat008.perworldinventory.groups.Group;
+import me.gnat008.perworldinventory.util.FlightRecorder;
 import org.bukkit.ChatColor;
 import org.bukkit.GameMode;
 import org.bukkit.Location;
 import org.bukkit.entity.Player;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import static me.gnat008.perworldinventory.util.FileUtils.createFileIfNotExists;
+import static me.gnat008.perworldinventory.util.FileUtils.newReader;
 import static me.gnat008.perworldinventory.util.FileUtils.writeData;
+import static me.gnat008.perworldinventory.util.FileUtils.writeJson;
 import static me.gnat008.perworldinventory.util.Utils.zeroPlayer;
 
 public class FlatFile implements DataSource {
 
     private final File FILE_PATH;
+    private final File quarantineFolder;
 
     private final PerWorldInventory plugin;
     private final BukkitService bukkitService;
     private final PlayerSerializer playerSerializer;
     private final PWIPlayerFactory pwiPlayerFactory;
+    private final ShutdownJournal shutdownJournal;
+    private final FormatMigrator formatMigrator;
+    private final DataLayout layout;
+    private final StorageScheduler storageScheduler;
 
     @Inject
     FlatFile(@DataFolder File dataFolder, PerWorldInventory plugin, BukkitService bukkitService, PlayerSerializer playerSerializer,
-             PWIPlayerFactory pwiPlayerFactory) {
+             PWIPlayerFactory pwiPlayerFactory, ShutdownJournal shutdownJournal, FormatMigrator formatMigrator,
+             DataLayout layout, StorageScheduler storageScheduler) {
         this.FILE_PATH = new File(dataFolder, "data");
+        this.quarantineFolder = new File(dataFolder, "quarantine");
         this.plugin = plugin;
         this.bukkitService = bukkitService;
         this.playerSerializer = playerSerializer;
         this.pwiPlayerFactory = pwiPlayerFactory;
+        this.shutdownJournal = shutdownJournal;
+        this.formatMigrator = formatMigrator;
+        this.layout = layout;
+        this.storageScheduler = storageScheduler;
     }
 
-    @Override
-    public void saveLogoutData(PWIPlayer player, boolean createTask) {
-        File file = new File(getUserFolder(player.getUuid()), "last-logout.json");
+    /**
+     * Replays the journal left by the last shutdown, if there is one, into the data files.
+     * Loads for players with records in the journal wait until their records are written.
+     */
+    @PostConstruct
+    private void replayShutdownJournal() {
+        if (shutdownJournal.hasJournal()) {
+            // Not on the storage threads, where loads wait for it
+            bukkitService.runTaskAsync(() -> shutdownJournal.replay(this::writeJournalRecord));
+        }
+    }
 
-        if (createTask) {
-            bukkitService.runTaskAsync(() -> saveLogout(file, player));
-        } else {
-            saveLogout(file, player);
+    private boolean writeJournalRecord(ShutdownJournal.Record record) {
+        Lock lock = layout.lockPlayer(record.getUuid());
+        try {
+            return writeJournalRecord(record, record.getUuid());
+        } finally {
+            lock.unlock();
         }
     }
 
-    private void saveLogout(File file, PWIPlayer player) {
+    private boolean writeJournalRecord(ShutdownJournal.Record record, UUID uuid) {
+        File file;
+        if (record.isLogout()) {
+            file = new File(getUserFolder(uuid), "last-logout.json");
+        } else {
+            file = getFile(record.getGameMode(), new Group(record.getGroup(), null, null), uuid);
+        }
+
         try {
             createFileIfNotExists(file);
         } catch (IOException ex) {
             if (!(ex instanceof FileAlreadyExistsException)) {
                 ConsoleLogger.severe("Error creating file '" + file.getPath() + "':", ex);
-                return;
+                return false;
             }
         }
 
-        String data = LocationSerializer.serialize(player.getLocation());
-        writeData(file, data);
+        ConsoleLogger.debug("[JOURNAL] Writing journal record to file '" + file.getPath() + "'");
+        writeData(file, record.getData());
+        return true;
     }
 
     @Override
-    public void saveToDatabase(Group group, GameMode gamemode, PWIPlayer player) {
-        File file = getFile(gamemode, group, player.getUuid());
-        ConsoleLogger.debug("Saving data for player '" + player.getName() + "' in file '" + file.getPath() + "'");
+    public boolean acquirePlayer(UUID uuid) {
+        // The data folder belongs to this server alone
+        return true;
+    }
 
+    @Override
+    public void releasePlayer(UUID uuid) {
+    }
+
+    @Override
+    public void saveLogoutData(PWIPlayer player, boolean createTask) {
+        if (createTask) {
+            storageScheduler.runBackground(player.getUuid(), () -> saveLogout(player));
+        } else {
+            saveLogout(player);
+        }
+    }
+
+    private void saveLogout(PWIPlayer player) {
+        Lock lock = layout.lockPlayer(player.getUuid());
         try {
-            createFileIfNotExists(file);
-        } catch (IOException ex) {
-            if (!(ex instanceof FileAlreadyExistsException)) {
-                ConsoleLogger.severe("Error creating file '" + file.getPath() + "':", ex);
-                return;
-            }
+            saveLogout(new File(getUserFolder(player.getUuid()), "last-logout.json"), player);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        ConsoleLogger.debug("Writing player data for player '" + player.getName() + "' to file");
+    private void saveLogout(File file, PWIPlayer player) {
+        if (!createParentFolder(file)) {
+            return;
+        }
 
-        String data = playerSerializer.serialize(player);
-        writeData(file, data);
+        writeJson(file, writer -> LocationSerializer.serialize(player.getLocation(), writer));
     }
 
     @Override
-    public void getFromDatabase(Group group, GameMode gamemode, Player player, DeserializeCause cause) {
-        File file = getFile(gamemode, group, player.getUniqueId());
+    public void saveToDatabase(Group group, GameMode gamemode, PWIPlayer player) {
+        Lock lock = layout.lockPlayer(player.getUuid());
+        try {
+            FlightRecorder.Event event = FlightRecorder.begin(FlightRecorder.Type.PROFILE_SAVE)
+                    .player(player.getUuid()).group(group.getName()).gameMode(gamemode);
+            File file = getFile(gamemode, group, player.getUuid());
+            save(file, player);
+            if (event.isRecording()) {
+                event.bytes(file.length());
+            }
+            event.commit();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        ConsoleLogger.debug("Getting data for player '" + player.getName() + "' from file '" + file.getPath() + "'");
+    private void save(File file, PWIPlayer player) {
+        ConsoleLogger.debug("Saving data for player '" + player.getName() + "' in file '" + file.getPath() + "'");
 
-        bukkitService.runTaskAsync(() -> {
-            try (JsonReader reader = new JsonReader(new FileReader(file))) {
-                JsonParser parser = new JsonParser();
-                JsonObject data = parser.parse(reader).getAsJsonObject();
+        if (!createParentFolder(file)) {
+            return;
+        }
 
-                bukkitService.runTask(() -> playerSerializer.deserialize(data, player, cause));
-            } catch (FileNotFoundException ex) {
-                if (!file.getParentFile().exists()) {
-                    file.getParentFile().mkdir();
-                }
+        ConsoleLogger.debug("Writing player data for player '" + player.getName() + "' to file");
 
-                ConsoleLogger.debug("File not found for player '" + player.getName() + "' for group '" + group.getName() + "'. Getting data from default sources");
+        writeJson(file, writer -> playerSerializer.serialize(player, writer), true);
+    }
+
+    /**
+     * Create the folder of a file that is about to be written. The file itself is not created,
+     * as an empty file could be read before the data is moved into place.
+     */
+    private static boolean createParentFolder(File file) {
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            return true;
+        } catch (IOException ex) {
+            ConsoleLogger.severe("Error creating folder '" + file.getParent() + "':", ex);
+            return false;
+        }
+    }
 
-                getFromDefaults(group, player, cause);
+    @Override
+    public void getFromDatabase(Group group, GameMode gamemode, Player player, DeserializeCause cause) {
+        ConsoleLogger.debug("Getting data for player '" + player.getName() + "' from file '"
+                + getFile(gamemode, group, player.getUniqueId()).getPath() + "'");
+
+        storageScheduler.runInteractive(player.getUniqueId(), () -> {
+            FlightRecorder.Event event = FlightRecorder.begin(FlightRecorder.Type.PROFILE_LOAD)
+                    .player(player.getUniqueId()).group(group.getName()).gameMode(gamemode).cause(cause);
+            shutdownJournal.awaitReplay(player.getUniqueId());
+
+            JsonObject data;
+            File file = getFile(gamemode, group, player.getUniqueId());
+            Lock lock = layout.lockPlayer(player.getUniqueId());
+            try (JsonReader reader = new JsonReader(newReader(file))) {
+                JsonParser parser = new JsonParser();
+                data = parser.parse(reader).getAsJsonObject();
+                formatMigrator.upgradeLoaded(file, data);
+                if (event.isRecording()) {
+                    event.bytes(file.length());
+                }
+            } catch (FileNotFoundException ex) {
+                data = null;
             } catch (IOException exIO) {
                 ConsoleLogger.severe("Unable to read data for '" + player.getName() + "' for group '" + group.getName() +
                         "' in gamemode '" + gamemode.toString() + "' for reason:", exIO);
+                return;
+            } finally {
+                lock.unlock();
+                event.commit();
+            }
+
+            if (data == null) {
+                ConsoleLogger.debug("File not found for player '" + player.getName() + "' for group '" + group.getName() + "'. Getting data from default sources");
+
+                getFromDefaults(group, gamemode, player, cause);
+            } else {
+                JsonObject loaded = data;
+                bukkitService.runTask(() -> playerSerializer.deserialize(loaded, player, group, gamemode, cause));
             }
         });
     }
 
+    @Override
+    public void getSections(Group group, GameMode gamemode, UUID uuid, Set<ProfileSection> sections,
+                            Consumer<ProfileProjection> callback) {
+        storageScheduler.runInteractive(uuid, () -> {
+            ProfileProjection projection;
+            try {
+                projection = readSections(uuid, group, gamemode, sections);
+            } catch (IOException | RuntimeException ex) {
+                ConsoleLogger.warning("Unable to read " + sections + " from '"
+                        + getFile(gamemode, group, uuid).getPath() + "':", ex);
+                projection = new ProfileProjection(pwiPlayerFactory.createEmpty(uuid, group),
+                        EnumSet.noneOf(ProfileSection.class));
+            }
+
+            ProfileProjection result = projection;
+            bukkitService.runTask(() -> callback.accept(result));
+        });
+    }
+
+    @Override
+    public ProfileProjection readSections(ProfileKey key, Set<ProfileSection> sections) throws IOException {
+        return readSections(key.getUuid(), new Group(key.getGroup(), null, null), key.getGameMode(), sections);
+    }
+
+    private ProfileProjection readSections(UUID uuid, Group group, GameMode gamemode, Set<ProfileSection> sections)
+            throws IOException {
+        shutdownJournal.awaitReplay(uuid);
+
+        PWIPlayer profile = pwiPlayerFactory.createEmpty(uuid, group);
+        Lock lock = layout.lockPlayer(uuid);
+        try (JsonReader reader = new JsonReader(newReader(getFile(gamemode, group, uuid)))) {
+            return new ProfileProjection(profile, playerSerializer.readSections(reader, profile, sections));
+        } catch (FileNotFoundException ex) {
+            return new ProfileProjection(profile, EnumSet.noneOf(ProfileSection.class));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void scanPlayers(Predicate<UUID> action) throws IOException {
+        layout.scanPlayers((uuid, folder) -> action.test(uuid));
+    }
+
+    @Override
+    public List<ProfileKey> listProfiles(UUID uuid) {
+        List<ProfileKey> keys = new ArrayList<>();
+        String[] names;
+        Lock lock = layout.lockPlayer(uuid);
+        try {
+            names = getUserFolder(uuid).list();
+        } finally {
+            lock.unlock();
+        }
+        if (names == null) {
+            return keys;
+        }
+
+        for (String name : names) {
+            if (!name.endsWith(".json") || name.equals("last-logout.json") || name.equals("tmp.json")) {
+                continue;
+            }
+
+            String group = name.substring(0, name.length() - ".json".length());
+            GameMode gameMode = GameMode.SURVIVAL;
+            if (group.endsWith("_creative")) {
+                group = group.substring(0, group.length() - "_creative".length());
+                gameMode = GameMode.CREATIVE;
+            } else if (group.endsWith("_adventure")) {
+                group = group.substring(0, group.length() - "_adventure".length());
+                gameMode = GameMode.ADVENTURE;
+            }
+            keys.add(new ProfileKey(uuid, group, gameMode));
+        }
+        return keys;
+    }
+
+    @Override
+    public boolean deleteProfile(ProfileKey key) {
+        shutdownJournal.awaitReplay(key.getUuid());
+        Lock lock = layout.lockPlayer(key.getUuid());
+        try {
+            return getFile(key.getGameMode(), new Group(key.getGroup(), null, null), key.getUuid()).delete();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public ProfileCheck verifyProfile(ProfileKey key) throws IOException {
+        shutdownJournal.awaitReplay(key.getUuid());
+
+        Group group = new Group(key.getGroup(), null, null);
+        byte[] data;
+        Lock lock = layout.lockPlayer(key.getUuid());
+        try {
+            data = Files.readAllBytes(getFile(key.getGameMode(), group, key.getUuid()).toPath());
+        } finally {
+            lock.unlock();
+        }
+
+        return playerSerializer.verify(data, pwiPlayerFactory.createEmpty(key.getUuid(), group));
+    }
+
+    @Override
+    public boolean quarantineProfile(ProfileKey key) {
+        File target = getQuarantineFile(key);
+        Lock lock = layout.lockPlayer(key.getUuid());
+        try {
+            Files.createDirectories(target.getParentFile().toPath());
+            Files.move(getFile(key.getGameMode(), new Group(key.getGroup(), null, null), key.getUuid()).toPath(),
+                    target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException ex) {
+            ConsoleLogger.warning("Unable to quarantine " + key + ":", ex);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the file a corrupt profile is moved to, where it is not loaded but can still be looked at.
+     *
+     * @param key The profile.
+     * @return The file.
+     */
+    File getQuarantineFile(ProfileKey key) {
+        File folder = new File(quarantineFolder, key.getUuid().toString());
+        return getFile(key.getGameMode(), new Group(key.getGroup(), null, null), folder);
+    }
+
     @Override
     public Location getLogoutData(Player player) {
-        File file = new File(getUserFolder(player.getUniqueId()), "last-logout.json");
+        // Called on the main thread, so the journal is read instead of waiting for its replay
+        String journaled = shutdownJournal.getUnreplayedLogout(player.getUniqueId());
+        if (journaled != null) {
+            return LocationSerializer.deserialize(new JsonParser().parse(journaled).getAsJsonObject());
+        }
 
         Location location;
-        try (JsonReader reader = new JsonReader(new FileReader(file))) {
+        Lock lock = layout.lockPlayer(player.getUniqueId());
+        try (JsonReader reader = new JsonReader(newReader(new File(getUserFolder(player.getUniqueId()), "last-logout.json")))) {
             JsonParser parser = new JsonParser();
             JsonObject data = parser.parse(reader).getAsJsonObject();
 
@@ -155,26 +407,47 @@ public class FlatFile implements DataSource {
             // Something went wrong
             ConsoleLogger.warning("Unable to get logout location data for '" + player.getName() + "':", ioEx);
             location = null;
+        } finally {
+            lock.unlock();
         }
 
         return location;
     }
 
-    private void getFromDefaults(Group group, Player player, DeserializeCause cause) {
+    /**
+     * Load the default loadout of a group onto a player, or the server default if the group
+     * has none. Reads the file on the calling thread.
+     *
+     * @param group The group of the player.
+     * @param gamemode The gamemode of the profile that is loaded.
+     * @param player The player to load the defaults onto.
+     * @param cause The reason the data is loaded.
+     */
+    void getFromDefaults(Group group, GameMode gamemode, Player player, DeserializeCause cause) {
+        FlightRecorder.Event event = FlightRecorder.begin(FlightRecorder.Type.DEFAULT_LOADOUT)
+                .player(player.getUniqueId()).group(group.getName()).gameMode(gamemode).cause(cause);
         File file = new File(FILE_PATH + File.separator + "defaults", group.getName() + ".json");
 
-        try (JsonReader reader = new JsonReader(new FileReader(file))) {
+        try (JsonReader reader = new JsonReader(newReader(file))) {
             JsonParser parser = new JsonParser();
             JsonObject data = parser.parse(reader).getAsJsonObject();
+            formatMigrator.upgradeLoaded(file, data);
+            if (event.isRecording()) {
+                event.bytes(file.length());
+            }
 
-            bukkitService.runTask(() -> playerSerializer.deserialize(data, player, cause));
+            bukkitService.runTask(() -> playerSerializer.deserialize(data, player, group, gamemode, cause));
         } catch (FileNotFoundException ex) {
             file = new File(FILE_PATH + File.separator + "defaults", "__default.json");
 
-            try (JsonReader reader = new JsonReader(new FileReader(file))) {
+            try (JsonReader reader = new JsonReader(newReader(file))) {
                 JsonParser parser = new JsonParser();
                 JsonObject data = parser.parse(reader).getAsJsonObject();
-                bukkitService.runTask(() -> playerSerializer.deserialize(data, player, cause));
+                formatMigrator.upgradeLoaded(file, data);
+                if (event.isRecording()) {
+                    event.bytes(file.length());
+                }
+                bukkitService.runTask(() -> playerSerializer.deserialize(data, player, group, gamemode, cause));
             } catch (FileNotFoundException ex2) {
                 player.sendMessage(ChatColor.RED + "» " + ChatColor.GRAY + "Something went horribly wrong when loading your inventory! " +
                         "Please notify a server administrator!");
@@ -188,6 +461,7 @@ public class FlatFile implements DataSource {
             ConsoleLogger.severe("Unable to read data for '" + player.getName() + "' for group '" + group.getName() +
                     "' for reason:", exIO);
         }
+        event.commit();
     }
 
     /**
@@ -200,7 +474,10 @@ public class FlatFile implements DataSource {
      * @return The data file to read from or write to.
      */
     public File getFile(GameMode gamemode, Group group, UUID uuid) {
-        File dir = getUserFolder(uuid);
+        return getFile(gamemode, group, getUserFolder(uuid));
+    }
+
+    private static File getFile(GameMode gamemode, Group group, File dir) {
         File file;
         switch(gamemode) {
             case ADVENTURE:
@@ -225,7 +502,7 @@ public class FlatFile implements DataSource {
      * @return The data folder of the player
      */
     private File getUserFolder(UUID uuid) {
-        return new File(FILE_PATH, uuid.toString());
+        return layout.getUserFolder(uuid);
     }
 
     @Override
@@ -236,24 +513,39 @@ public class FlatFile implements DataSource {
             return;
         }
 
-        File tmp = new File(getUserFolder(player.getUniqueId()), "tmp.json");
+        Group tempGroup = new Group("tmp", null, null);
+        PWIPlayer current = pwiPlayerFactory.create(player, tempGroup);
+        File tmp;
+        Lock lock = layout.lockPlayer(player.getUniqueId());
         try {
-            createFileIfNotExists(tmp);
-        } catch (IOException ex) {
-            if (!(ex instanceof FileAlreadyExistsException)) {
-                player.sendMessage(ChatColor.DARK_RED + "» " + ChatColor.GRAY +  "Could not create temporary file! Aborting!");
-                return;
+            tmp = new File(getUserFolder(player.getUniqueId()), "tmp.json");
+            try {
+                createFileIfNotExists(tmp);
+            } catch (IOException ex) {
+                if (!(ex instanceof FileAlreadyExistsException)) {
+                    player.sendMessage(ChatColor.DARK_RED + "» " + ChatColor.GRAY +  "Could not create temporary file! Aborting!");
+                    return;
+                }
             }
+            writeJson(tmp, writer -> playerSerializer.serialize(current, writer));
+        } finally {
+            lock.unlock();
         }
-        Group tempGroup = new Group("tmp", null, null);
-        writeData(tmp, playerSerializer.serialize(pwiPlayerFactory.create(player, tempGroup)));
 
-        zeroPlayer(plugin, player, false);
+        zeroPlayer(player, false);
 
-        writeData(file, playerSerializer.serialize(pwiPlayerFactory.create(player, group)));
+        PWIPlayer defaults = pwiPlayerFactory.create(player, group);
+        // The balance is not reset with the stats, and a default loadout does not hand out money
+        defaults.setBalance(0);
+        defaults.setBankBalance(0);
+        writeJson(file, writer -> playerSerializer.serialize(defaults, writer));
 
         getFromDatabase(tempGroup, GameMode.SURVIVAL, player, DeserializeCause.CHANGED_DEFAULTS);
         tmp.delete();
         player.sendMessage(ChatColor.BLUE + "» " + ChatColor.GRAY +  "Defaults for '" + group.getName() + "' set!");
     }
+
+    @Override
+    public void close() {
+    }
 }
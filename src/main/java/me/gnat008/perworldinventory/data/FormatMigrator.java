@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.DataFolder;
+import me.gnat008.perworldinventory.ServerLoadMonitor;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.data.serializers.ItemSerializer;
+import me.gnat008.perworldinventory.data.serializers.PlayerSerializer;
+import me.gnat008.perworldinventory.data.serializers.PotionEffectSerializer;
+import me.gnat008.perworldinventory.util.FileUtils;
+import me.gnat008.perworldinventory.util.JsonChecksum;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.scheduler.BukkitTask;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Rewrites player files that are saved in an old data format in the current format.
+ * <p>
+ * Items in format 0 and potion effects in formats 0 and 1 take a much slower path to load
+ * than the current format. The migrator checks every data file in the background, a few at
+ * a time, and upgrades the ones with an old format. It pauses while the server is overloaded.
+ * Files that are read in an old format when a player loads them are upgraded right away.
+ * <p>
+ * Once every file is in the current format, a marker file is written and the data folder is
+ * not checked again. Delete {@value #DONE_FILE_NAME} to check it again, for example after
+ * copying in old data.
+ */
+public class FormatMigrator {
+
+    static final String DONE_FILE_NAME = "legacy-upgrade.done";
+
+    private static final long BATCH_INTERVAL = BukkitService.TICKS_PER_SECOND;
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private final File pluginFolder;
+    private final DataLayout layout;
+    private final BukkitService bukkitService;
+    private final StorageScheduler storageScheduler;
+    private final ServerLoadMonitor loadMonitor;
+    private final ItemSerializer itemSerializer;
+    private final Settings settings;
+
+    private final Queue<File> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicInteger legacyReads = new AtomicInteger();
+    private volatile boolean scanned;
+    private volatile boolean finished;
+    private int total;
+    private int checked;
+    private int upgraded;
+    private int failed;
+    private BukkitTask task;
+
+    @Inject
+    FormatMigrator(@DataFolder File pluginFolder, DataLayout layout, BukkitService bukkitService,
+                   StorageScheduler storageScheduler, ServerLoadMonitor loadMonitor, ItemSerializer itemSerializer,
+                   Settings settings) {
+        this.pluginFolder = pluginFolder;
+        this.layout = layout;
+        this.bukkitService = bukkitService;
+        this.storageScheduler = storageScheduler;
+        this.loadMonitor = loadMonitor;
+        this.itemSerializer = itemSerializer;
+        this.settings = settings;
+    }
+
+    @PostConstruct
+    private void scheduleMigration() {
+        if (settings.getProperty(PwiProperties.LEGACY_UPGRADE_PER_SECOND) > 0
+                && !new File(pluginFolder, DONE_FILE_NAME).exists()) {
+            task = bukkitService.runRepeatingTask(this::startBatch, BATCH_INTERVAL, BATCH_INTERVAL);
+        }
+    }
+
+    /**
+     * Starts upgrading the next few files in the background, unless the previous batch is
+     * still running or the server is overloaded.
+     */
+    private void startBatch() {
+        if (finished) {
+            task.cancel();
+            return;
+        }
+        if (loadMonitor.shouldDefer("data format upgrade")) {
+            return;
+        }
+
+        if (running.compareAndSet(false, true)) {
+            storageScheduler.runBackground(null, () -> {
+                try {
+                    migrateBatch(settings.getProperty(PwiProperties.LEGACY_UPGRADE_PER_SECOND));
+                } finally {
+                    running.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Check the next files, and upgrade those with an old format. The first batch finds all
+     * data files. Does nothing while a shutdown journal is waiting to be replayed.
+     *
+     * @param limit The most files to check.
+     */
+    synchronized void migrateBatch(int limit) {
+        if (finished || new File(pluginFolder, ShutdownJournal.FILE_NAME).exists()) {
+            return;
+        }
+
+        if (!scanned) {
+            for (File root : layout.getRoots()) {
+                collectFiles(root);
+            }
+            total = pending.size();
+            scanned = true;
+            ConsoleLogger.info("[MIGRATE] Checking " + total + " data files for old data formats");
+        }
+
+        for (int i = 0; i < limit; i++) {
+            File file = pending.poll();
+            if (file == null) {
+                finish();
+                return;
+            }
+
+            migrateFile(file);
+            if (++checked % PROGRESS_INTERVAL == 0) {
+                ConsoleLogger.info("[MIGRATE] Checked " + checked + " of " + total + " data files, upgraded "
+                        + upgraded + "; " + pending.size() + " left to check");
+            }
+        }
+    }
+
+    /**
+     * Upgrade data that was just read from a file in an old format, so it takes the fast path
+     * when it is applied, and write it back to the file in the background.
+     *
+     * @param file The file the data was read from.
+     * @param data The data. It is changed to the current format.
+     */
+    public void upgradeLoaded(File file, JsonObject data) {
+        if (getFormat(data) >= PlayerSerializer.DATA_FORMAT) {
+            return;
+        }
+
+        legacyReads.incrementAndGet();
+        long lastModified = file.lastModified();
+        try {
+            upgrade(data);
+        } catch (RuntimeException ex) {
+            ConsoleLogger.warning("[MIGRATE] Unable to upgrade '" + file.getPath() + "', reading it as it is:", ex);
+            return;
+        }
+
+        // Queued behind the saves of the player, which the check below only catches by timestamp
+        storageScheduler.runBackground(getOwner(file), () -> write(file, data, lastModified));
+    }
+
+    /**
+     * Get the number of files that were read in an old format since the last call, to show
+     * whether the legacy code paths are still in use.
+     *
+     * @return The number of files.
+     */
+    public int pollLegacyReads() {
+        return legacyReads.getAndSet(0);
+    }
+
+    /**
+     * Get the number of files the background migrator has yet to check.
+     *
+     * @return The number of files, or -1 if the files have not been found yet.
+     */
+    public int getRemaining() {
+        return scanned ? pending.size() : -1;
+    }
+
+    /**
+     * Change data in an old format to the current format. Nothing is changed if an error occurs.
+     *
+     * @param data The data to upgrade.
+     * @return True if the data was upgraded, false if it already was in the current format.
+     */
+    boolean upgrade(JsonObject data) {
+        int format = getFormat(data);
+        if (format >= PlayerSerializer.DATA_FORMAT) {
+            return false;
+        }
+
+        // Convert everything first, so a failure leaves the data as it was
+        JsonArray enderChest = null;
+        JsonArray inventory = null;
+        JsonArray armor = null;
+        JsonObject inventories = data.has("inventory") ? data.getAsJsonObject("inventory") : null;
+        if (format == 0) {
+            enderChest = upgradeItems(data.getAsJsonArray("ender-chest"), format);
+            if (inventories != null) {
+                inventory = upgradeItems(inventories.getAsJsonArray("inventory"), format);
+                armor = upgradeItems(inventories.getAsJsonArray("armor"), format);
+            }
+        }
+
+        JsonObject stats = data.has("stats") ? data.getAsJsonObject("stats") : null;
+        JsonArray potionEffects = null;
+        if (stats != null && stats.has("potion-effects") && stats.get("potion-effects").isJsonPrimitive()) {
+            potionEffects = PotionEffectSerializer.serialize(
+                    PotionEffectSerializer.deserialize(stats.get("potion-effects").getAsString()));
+        }
+
+        if (enderChest != null) {
+            data.add("ender-chest", enderChest);
+        }
+        if (inventory != null) {
+            inventories.add("inventory", inventory);
+        }
+        if (armor != null) {
+            inventories.add("armor", armor);
+        }
+        if (potionEffects != null) {
+            stats.add("potion-effects", potionEffects);
+        }
+        data.addProperty("data-format", PlayerSerializer.DATA_FORMAT);
+        return true;
+    }
+
+    private JsonArray upgradeItems(JsonArray items, int format) {
+        if (items == null) {
+            return null;
+        }
+
+        JsonArray upgradedItems = new JsonArray();
+        for (JsonElement element : items) {
+            JsonObject item = element.getAsJsonObject();
+            int index = item.get("index").getAsInt();
+            ItemStack stack = itemSerializer.deserializeItem(item, format);
+            JsonObject upgradedItem = itemSerializer.serializeItem(stack, index);
+            if (upgradedItem == null) {
+                throw new IllegalStateException("Unable to convert the item in slot " + index);
+            }
+            upgradedItems.add(upgradedItem);
+        }
+        return upgradedItems;
+    }
+
+    /**
+     * Upgrade a file if it has an old format. The file is read and replaced under the move
+     * lock of the player, so a save can not happen in between.
+     */
+    private void migrateFile(File file) {
+        UUID owner = getOwner(file);
+        Lock lock = owner == null ? null : layout.lockForMove(owner);
+        try {
+            if (!file.exists() || readFormat(file) >= PlayerSerializer.DATA_FORMAT) {
+                return;
+            }
+
+            long lastModified = file.lastModified();
+            JsonObject data;
+            try (Reader reader = FileUtils.newReader(file)) {
+                data = new JsonParser().parse(reader).getAsJsonObject();
+                upgrade(data);
+            } catch (Exception ex) {
+                ConsoleLogger.warning("[MIGRATE] Unable to upgrade '" + file.getPath() + "':", ex);
+                failed++;
+                return;
+            }
+
+            if (write(file, data, lastModified)) {
+                upgraded++;
+            } else {
+                failed++;
+            }
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Write upgraded data over the file it was read from, unless the file was saved again
+     * since it was read. The file is replaced in one step, so it is never read half written.
+     * The check and the replacement hold the move lock of the player, which saves wait for.
+     */
+    private boolean write(File file, JsonObject data, long lastModified) {
+        File tmp = new File(file.getParentFile(), file.getName() + ".upgrade");
+        data.remove(JsonChecksum.KEY);
+        if (!FileUtils.writeJson(tmp, writer -> PlayerSerializer.GSON.toJson(data, writer), true)) {
+            return false;
+        }
+
+        UUID owner = getOwner(file);
+        Lock lock = owner == null ? null : layout.lockForMove(owner);
+        try {
+            if (file.lastModified() != lastModified) {
+                ConsoleLogger.debug("[MIGRATE] '" + file.getPath() + "' was saved while upgrading it; keeping the saved data");
+                Files.delete(tmp.toPath());
+                return true;
+            }
+
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException ex) {
+            ConsoleLogger.warning("[MIGRATE] Unable to replace '" + file.getPath() + "' with its upgrade:", ex);
+            tmp.delete();
+            return false;
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Get the player a data file belongs to, from the name of its folder.
+     *
+     * @return The UUID of the player, or null if the file does not belong to a player.
+     */
+    private static UUID getOwner(File file) {
+        try {
+            return UUID.fromString(file.getParentFile().getName());
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private void finish() {
+        finished = true;
+        ConsoleLogger.info("[MIGRATE] Done checking " + checked + " data files: upgraded " + upgraded
+                + ", unable to upgrade " + failed);
+
+        if (failed == 0) {
+            try {
+                FileUtils.createFileIfNotExists(new File(pluginFolder, DONE_FILE_NAME));
+            } catch (IOException ex) {
+                ConsoleLogger.warning("[MIGRATE] Unable to mark the upgrade as done:", ex);
+            }
+        }
+    }
+
+    private void collectFiles(File folder) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectFiles(file);
+            } else if (file.getName().endsWith(".json") && !file.getName().equals("last-logout.json")) {
+                pending.add(file);
+            }
+        }
+    }
+
+    /**
+     * Read the data format of a file without reading all of it. The current serializer writes the
+     * format first; files in format 0 have no format at all, so they are read up to the end.
+     */
+    private static int readFormat(File file) {
+        try (JsonReader reader = new JsonReader(FileUtils.newReader(file))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("data-format")) {
+                    return reader.nextInt();
+                }
+                reader.skipValue();
+            }
+            return 0;
+        } catch (Exception ex) {
+            // Let the full read report the error
+            return 0;
+        }
+    }
+
+    private static int getFormat(JsonObject data) {
+        return data.has("data-format") ? data.get("data-format").getAsInt() : 0;
+    }
+}
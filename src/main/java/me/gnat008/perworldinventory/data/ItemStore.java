@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.DataFolder;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A content-addressed store for serialized items.
+ * <p>
+ * Every distinct encoded item is written once, to a file named after the SHA-256 hash of its
+ * contents. Player files then only hold the hash, so a kit that hundreds of thousands of
+ * players carry is stored once instead of once per profile. The most recently used encoded items
+ * are also kept in memory, so reading a profile full of common items does not touch the disk for
+ * each item.
+ * <p>
+ * The store is only used with the {@link DataSourceType#FLATFILE} data source, as that is the
+ * only one whose files the garbage collector can scan. It runs in the background, counts the
+ * item references in all player, default and quarantined files and in kept shutdown journals,
+ * and removes the items nothing refers to anymore. Items that were stored since the scan before
+ * are never removed, as the profile that refers to them may not be saved yet.
+ */
+public class ItemStore {
+
+    /** Name of the property that holds an item reference in a serialized item. */
+    public static final String REFERENCE_KEY = "item-ref";
+
+    private static final String EXTENSION = ".item";
+    private static final long GC_INTERVAL = BukkitService.TICKS_PER_MINUTE * 60L;
+    /** Items touched this shortly before a scan are kept too; some file systems round modification times. */
+    private static final long GRACE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    /** The number of encoded items kept in memory. */
+    private static final int MAX_CACHED_ITEMS = 4096;
+
+    private final File storeFolder;
+    private final DataLayout layout;
+    private final File pluginFolder;
+    private final BukkitService bukkitService;
+    private final Settings settings;
+
+    private final Map<String, String> encodedItems = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_ITEMS;
+        }
+    });
+    private final Map<String, AtomicInteger> referenceCounts = new ConcurrentHashMap<>();
+    // Puts hold the read lock, so the collector can delete files without racing a put of the same item
+    private final ReadWriteLock deleteLock = new ReentrantReadWriteLock();
+    private final AtomicBoolean collecting = new AtomicBoolean();
+    // Items stored since the last scan started, and between the two scans before it
+    private volatile Set<String> storedSinceScan = ConcurrentHashMap.newKeySet();
+    private volatile Set<String> storedBeforeScan = Collections.emptySet();
+
+    @Inject
+    ItemStore(@DataFolder File pluginFolder, DataLayout layout, BukkitService bukkitService, Settings settings) {
+        this.pluginFolder = pluginFolder;
+        this.storeFolder = new File(pluginFolder, "items");
+        this.layout = layout;
+        this.bukkitService = bukkitService;
+        this.settings = settings;
+    }
+
+    @PostConstruct
+    private void scheduleGarbageCollection() {
+        if (isEnabled()) {
+            bukkitService.runRepeatingTask(() -> bukkitService.runTaskAsync(this::collectGarbage),
+                    BukkitService.TICKS_PER_MINUTE, GC_INTERVAL);
+        }
+    }
+
+    /**
+     * Get whether new items should be written to the store.
+     *
+     * @return True if the item store is enabled and player data is saved to flat files.
+     */
+    public boolean isEnabled() {
+        return settings.getProperty(PwiProperties.ITEM_STORE)
+                && settings.getProperty(PwiProperties.DATA_SOURCE) == DataSourceType.FLATFILE;
+    }
+
+    /**
+     * Store an encoded item, if it is not stored yet.
+     *
+     * @param encoded The encoded item.
+     * @return The reference to save instead of the item.
+     * @throws IOException If the item could not be written.
+     */
+    public String put(String encoded) throws IOException {
+        String hash = hash(encoded);
+
+        deleteLock.readLock().lock();
+        try {
+            // Kept by the next scans even if the profile that refers to it is not saved yet
+            storedSinceScan.add(hash);
+            File file = getFile(hash);
+            if (!encodedItems.containsKey(hash) && !file.exists()) {
+                file.getParentFile().mkdirs();
+                File tmp = new File(file.getParentFile(), hash + ".tmp-" + Thread.currentThread().getId());
+                Files.write(tmp.toPath(), encoded.getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            deleteLock.readLock().unlock();
+        }
+
+        encodedItems.put(hash, encoded);
+        referenceCounts.computeIfAbsent(hash, h -> new AtomicInteger()).incrementAndGet();
+        return hash;
+    }
+
+    /**
+     * Get a stored item.
+     *
+     * @param hash The reference of the item.
+     * @return The encoded item, or null if it is not in the store.
+     */
+    public String get(String hash) {
+        String encoded = encodedItems.get(hash);
+        if (encoded != null) {
+            return encoded;
+        }
+
+        File file = getFile(hash);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            encoded = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            encodedItems.put(hash, encoded);
+            return encoded;
+        } catch (IOException ex) {
+            ConsoleLogger.severe("Unable to read stored item '" + hash + "':", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Get how many times an item was referenced in the last garbage collection, plus the number
+     * of times it was stored since.
+     *
+     * @param hash The reference of the item.
+     * @return The number of references.
+     */
+    public int getReferenceCount(String hash) {
+        AtomicInteger count = referenceCounts.get(hash);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Count the references to every stored item in the player, default and quarantined files and
+     * in kept shutdown journals, and remove the items that are not referenced anymore. Does
+     * nothing while a shutdown journal is waiting to be replayed, as its profiles may refer to
+     * items as well, or if player data is not saved to flat files.
+     *
+     * @return The number of items that were removed.
+     */
+    public int collectGarbage() {
+        if (settings.getProperty(PwiProperties.DATA_SOURCE) != DataSourceType.FLATFILE || !storeFolder.isDirectory()
+                || new File(pluginFolder, ShutdownJournal.FILE_NAME).exists() || !collecting.compareAndSet(false, true)) {
+            return 0;
+        }
+
+        try {
+            long start = System.currentTimeMillis();
+            storedBeforeScan = storedSinceScan;
+            storedSinceScan = ConcurrentHashMap.newKeySet();
+
+            Map<String, AtomicInteger> counts = new HashMap<>();
+            try {
+                for (File folder : getScannedFolders()) {
+                    countReferences(folder, counts);
+                }
+                countJournalReferences(counts);
+            } catch (IllegalStateException ex) {
+                ConsoleLogger.warning("[ITEMS] Skipping garbage collection:", ex);
+                return 0;
+            }
+
+            int removed = 0;
+            File[] buckets = storeFolder.listFiles(File::isDirectory);
+            if (buckets != null) {
+                for (File bucket : buckets) {
+                    removed += sweep(bucket, counts, start);
+                }
+            }
+
+            referenceCounts.keySet().retainAll(counts.keySet());
+            for (Map.Entry<String, AtomicInteger> entry : counts.entrySet()) {
+                referenceCounts.put(entry.getKey(), entry.getValue());
+            }
+
+            ConsoleLogger.debug("[ITEMS] Garbage collection found " + counts.size() + " referenced items and removed "
+                    + removed + " in " + (System.currentTimeMillis() - start) + " ms");
+            return removed;
+        } finally {
+            collecting.set(false);
+        }
+    }
+
+    private int sweep(File bucket, Map<String, AtomicInteger> counts, long start) {
+        File[] files = bucket.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files == null) {
+            return 0;
+        }
+
+        int removed = 0;
+        deleteLock.writeLock().lock();
+        try {
+            for (File file : files) {
+                String hash = file.getName().substring(0, file.getName().length() - EXTENSION.length());
+                if (!counts.containsKey(hash) && !storedBeforeScan.contains(hash) && !storedSinceScan.contains(hash)
+                        && file.lastModified() < start - GRACE_MILLIS && file.delete()) {
+                    encodedItems.remove(hash);
+                    removed++;
+                }
+            }
+        } finally {
+            deleteLock.writeLock().unlock();
+        }
+        return removed;
+    }
+
+    /**
+     * Get the folders that hold files with item references. Folders inside another scanned
+     * folder are left out, so their files are not counted twice.
+     */
+    private List<File> getScannedFolders() {
+        Set<Path> folders = new LinkedHashSet<>();
+        for (File root : layout.getRoots()) {
+            folders.add(root.toPath().toAbsolutePath().normalize());
+        }
+        folders.add(new File(pluginFolder, "data" + File.separator + "defaults").toPath().toAbsolutePath().normalize());
+        folders.add(new File(pluginFolder, "quarantine").toPath().toAbsolutePath().normalize());
+
+        List<File> scanned = new ArrayList<>(folders.size());
+        for (Path folder : folders) {
+            if (folders.stream().noneMatch(other -> !other.equals(folder) && folder.startsWith(other))) {
+                scanned.add(folder.toFile());
+            }
+        }
+        return scanned;
+    }
+
+    private void countJournalReferences(Map<String, AtomicInteger> counts) {
+        File[] journals = pluginFolder.listFiles((dir, name) -> name.startsWith(ShutdownJournal.FAILED_PREFIX));
+        if (journals == null) {
+            return;
+        }
+
+        for (File journal : journals) {
+            try {
+                for (ShutdownJournal.Record record : ShutdownJournal.readRecords(journal)) {
+                    if (!record.isLogout()) {
+                        countReferences(new JsonParser().parse(record.getData()), counts);
+                    }
+                }
+            } catch (Exception ex) {
+                throw new IllegalStateException("Could not scan '" + journal.getPath() + "' for item references", ex);
+            }
+        }
+    }
+
+    private void countReferences(File folder, Map<String, AtomicInteger> counts) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                countReferences(file, counts);
+            } else if (file.getName().endsWith(".json")) {
+                try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                    countReferences(new JsonParser().parse(reader), counts);
+                } catch (Exception ex) {
+                    // Keep every item if a file can not be read, it may hold the only reference
+                    throw new IllegalStateException("Could not scan '" + file.getPath() + "' for item references", ex);
+                }
+            }
+        }
+    }
+
+    private static void countReferences(JsonElement element, Map<String, AtomicInteger> counts) {
+        if (element.isJsonArray()) {
+            for (JsonElement child : (JsonArray) element) {
+                countReferences(child, counts);
+            }
+        } else if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            if (object.has(REFERENCE_KEY)) {
+                counts.computeIfAbsent(object.get(REFERENCE_KEY).getAsString(), h -> new AtomicInteger()).incrementAndGet();
+            }
+            for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                countReferences(entry.getValue(), counts);
+            }
+        }
+    }
+
+    private File getFile(String hash) {
+        return new File(new File(storeFolder, hash.substring(0, 2)), hash + EXTENSION);
+    }
+
+    private static String hash(String encoded) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(encoded.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data;
+
+import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.ServerLoadMonitor;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import org.bukkit.scheduler.BukkitTask;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Moves the folders of players to the folder the current {@link DataLayout} puts them in.
+ * <p>
+ * The first batch finds every player folder that is not where it belongs, then a few players are
+ * moved every second. The migrator pauses while the server is overloaded. A player is locked while
+ * they are moved, so their data is never read or saved halfway through a move. When a folder can
+ * not be renamed in one step, for example because it moves to another disk, it is copied first
+ * and the old folder is deleted once the copy is in place.
+ */
+public class LayoutMigrator {
+
+    private static final long BATCH_INTERVAL = BukkitService.TICKS_PER_SECOND;
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private final DataLayout layout;
+    private final BukkitService bukkitService;
+    private final StorageScheduler storageScheduler;
+    private final ServerLoadMonitor loadMonitor;
+    private final Settings settings;
+
+    private final Queue<Move> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile boolean scanned;
+    private volatile boolean finished;
+    private int total;
+    private int moved;
+    private int failed;
+    private BukkitTask task;
+
+    @Inject
+    LayoutMigrator(DataLayout layout, BukkitService bukkitService, StorageScheduler storageScheduler,
+                   ServerLoadMonitor loadMonitor, Settings settings) {
+        this.layout = layout;
+        this.bukkitService = bukkitService;
+        this.storageScheduler = storageScheduler;
+        this.loadMonitor = loadMonitor;
+        this.settings = settings;
+    }
+
+    @PostConstruct
+    private void scheduleMigration() {
+        if (settings.getProperty(PwiProperties.LAYOUT_MIGRATION_PER_SECOND) > 0 && !layout.isSettled()) {
+            task = bukkitService.runRepeatingTask(this::startBatch, BATCH_INTERVAL, BATCH_INTERVAL);
+        }
+    }
+
+    /**
+     * Starts moving the next few players in the background, unless the previous batch is
+     * still running or the server is overloaded.
+     */
+    private void startBatch() {
+        if (finished) {
+            task.cancel();
+            return;
+        }
+        if (loadMonitor.shouldDefer("data layout migration")) {
+            return;
+        }
+
+        if (running.compareAndSet(false, true)) {
+            storageScheduler.runBackground(null, () -> {
+                try {
+                    migrateBatch(settings.getProperty(PwiProperties.LAYOUT_MIGRATION_PER_SECOND));
+                } finally {
+                    running.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Move the next players to their home folder. The first batch finds all folders that have
+     * to be moved.
+     *
+     * @param limit The most folders to move.
+     */
+    synchronized void migrateBatch(int limit) {
+        if (finished) {
+            return;
+        }
+
+        if (!scanned) {
+            try {
+                layout.scanAllFolders((uuid, folder) -> {
+                    if (!folder.equals(layout.getHomeFolder(uuid))) {
+                        pending.add(new Move(uuid, folder));
+                    }
+                    return true;
+                });
+            } catch (IOException ex) {
+                ConsoleLogger.warning("[LAYOUT] Unable to look for player folders to move:", ex);
+                return;
+            }
+            total = pending.size();
+            scanned = true;
+            ConsoleLogger.info("[LAYOUT] Moving " + total + " player folders to the new data layout");
+        }
+
+        for (int i = 0; i < limit; i++) {
+            Move move = pending.poll();
+            if (move == null) {
+                finish();
+                return;
+            }
+
+            if (move(move.uuid, move.folder)) {
+                moved++;
+            } else {
+                failed++;
+            }
+            if ((moved + failed) % PROGRESS_INTERVAL == 0) {
+                ConsoleLogger.info("[LAYOUT] Moved " + moved + " of " + total + " player folders; "
+                        + pending.size() + " left to move");
+            }
+        }
+    }
+
+    private boolean move(UUID uuid, File folder) {
+        Lock lock = layout.lockForMove(uuid);
+        try {
+            File home = layout.getHomeFolder(uuid);
+            if (home.isDirectory()) {
+                // The data was moved before, but the old folder could not be deleted
+                ConsoleLogger.debug("[LAYOUT] Deleting '" + folder.getPath() + "', it was moved already");
+                deleteRecursively(folder.toPath());
+                return true;
+            }
+
+            Files.createDirectories(home.getParentFile().toPath());
+            try {
+                Files.move(folder.toPath(), home.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                // On another file system, so copy it first; the old folder is read until the copy is complete
+                File tmp = new File(home.getParentFile(), home.getName() + ".tmp-move");
+                deleteRecursively(tmp.toPath());
+                copyRecursively(folder.toPath(), tmp.toPath());
+                Files.move(tmp.toPath(), home.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                deleteRecursively(folder.toPath());
+            }
+            return true;
+        } catch (IOException ex) {
+            ConsoleLogger.warning("[LAYOUT] Unable to move '" + folder.getPath() + "':", ex);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finish() {
+        finished = true;
+        ConsoleLogger.info("[LAYOUT] Done moving player folders: moved " + moved + ", unable to move " + failed);
+
+        if (failed == 0) {
+            layout.markSettled();
+        }
+    }
+
+    private static void copyRecursively(Path source, Path target) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.copy(file, target.resolve(source.relativize(file).toString()), StandardCopyOption.COPY_ATTRIBUTES);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void deleteRecursively(Path folder) throws IOException {
+        if (!Files.exists(folder)) {
+            return;
+        }
+
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                if (ex != null) {
+                    throw ex;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static final class Move {
+        private final UUID uuid;
+        private final File folder;
+
+        Move(UUID uuid, File folder) {
+            this.uuid = uuid;
+            this.folder = folder;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * A {@link ProfileStore} that keeps everything in memory. Data sources that use the same
+ * store instance behave like servers on a network sharing one store, which makes it possible
+ * to try out and test the shared data source on a single machine. Nothing is kept after the
+ * JVM stops.
+ */
+public class LoopbackProfileStore implements ProfileStore {
+
+    private static final Map<String, LoopbackProfileStore> STORES = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final LongSupplier clock;
+    private final Map<UUID, Player> players = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new, empty store.
+     *
+     * @param name The name of the store.
+     */
+    public LoopbackProfileStore(String name) {
+        this(name, System::currentTimeMillis);
+    }
+
+    LoopbackProfileStore(String name, LongSupplier clock) {
+        this.name = name;
+        this.clock = clock;
+    }
+
+    /**
+     * Get the store with the given name in this JVM, creating it if it does not exist yet.
+     *
+     * @param name The name of the store.
+     * @return The store.
+     */
+    public static LoopbackProfileStore named(String name) {
+        return STORES.computeIfAbsent(name, LoopbackProfileStore::new);
+    }
+
+    @Override
+    public String getName() {
+        return "loopback:" + name;
+    }
+
+    @Override
+    public boolean tryAcquireLease(UUID uuid, String owner, long ttlMillis) {
+        Player player = getPlayer(uuid);
+        synchronized (player) {
+            long now = clock.getAsLong();
+            if (player.leaseHolder != null && !player.leaseHolder.equals(owner) && player.leaseExpiry > now) {
+                return false;
+            }
+
+            player.leaseHolder = owner;
+            player.leaseExpiry = now + ttlMillis;
+            return true;
+        }
+    }
+
+    @Override
+    public void releaseLease(UUID uuid, String owner) {
+        Player player = getPlayer(uuid);
+        synchronized (player) {
+            if (owner.equals(player.leaseHolder)) {
+                player.leaseHolder = null;
+            }
+        }
+    }
+
+    @Override
+    public String getLeaseHolder(UUID uuid) {
+        Player player = getPlayer(uuid);
+        synchronized (player) {
+            return holdsLease(player, player.leaseHolder) ? player.leaseHolder : null;
+        }
+    }
+
+    @Override
+    public String readProfile(ProfileKey key) {
+        Player player = players.get(key.getUuid());
+        return player == null ? null : player.profiles.get(key);
+    }
+
+    @Override
+    public boolean writeProfile(ProfileKey key, String data, String owner) {
+        Player player = getPlayer(key.getUuid());
+        synchronized (player) {
+            if (!holdsLease(player, owner)) {
+                return false;
+            }
+
+            player.profiles.put(key, data);
+            return true;
+        }
+    }
+
+    @Override
+    public boolean deleteProfile(ProfileKey key) {
+        Player player = players.get(key.getUuid());
+        return player != null && player.profiles.remove(key) != null;
+    }
+
+    @Override
+    public List<ProfileKey> listProfiles(UUID uuid) {
+        Player player = players.get(uuid);
+        return player == null ? new ArrayList<>() : new ArrayList<>(player.profiles.keySet());
+    }
+
+    @Override
+    public void scanPlayers(Predicate<UUID> action) {
+        for (Map.Entry<UUID, Player> entry : players.entrySet()) {
+            if (!entry.getValue().profiles.isEmpty() && !action.test(entry.getKey())) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String readLogout(UUID uuid) {
+        Player player = players.get(uuid);
+        return player == null ? null : player.logout;
+    }
+
+    @Override
+    public boolean writeLogout(UUID uuid, String data, String owner) {
+        Player player = getPlayer(uuid);
+        synchronized (player) {
+            if (!holdsLease(player, owner)) {
+                return false;
+            }
+
+            player.logout = data;
+            return true;
+        }
+    }
+
+    @Override
+    public void close() {
+        // Kept for other data sources using the same store
+    }
+
+    private Player getPlayer(UUID uuid) {
+        return players.computeIfAbsent(uuid, u -> new Player());
+    }
+
+    private boolean holdsLease(Player player, String owner) {
+        return owner != null && owner.equals(player.leaseHolder) && player.leaseExpiry > clock.getAsLong();
+    }
+
+    private static final class Player {
+        private final Map<ProfileKey, String> profiles = new ConcurrentHashMap<>();
+        private volatile String logout;
+        private String leaseHolder;
+        private long leaseExpiry;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data;
+
+/**
+ * The result of checking a stored profile for damage, see {@link DataSource#verifyProfile(ProfileKey)}.
+ */
+public class ProfileCheck {
+
+    /**
+     * How a profile held up.
+     */
+    public enum Status {
+        /** The profile matches its checksum, and all of it can be decoded. */
+        INTACT,
+        /** The profile has no checksum, for example because it was saved by an older version, but all of it can be decoded. */
+        UNCHECKED,
+        /** The profile does not match its checksum, or some of it can not be decoded. */
+        CORRUPT
+    }
+
+    public static final ProfileCheck INTACT = new ProfileCheck(Status.INTACT, null);
+    public static final ProfileCheck UNCHECKED = new ProfileCheck(Status.UNCHECKED, null);
+
+    private final Status status;
+    private final String problem;
+
+    private ProfileCheck(Status status, String problem) {
+        this.status = status;
+        this.problem = problem;
+    }
+
+    /**
+     * Create the result of a corrupt profile.
+     *
+     * @param problem What is wrong with the profile.
+     * @return The result.
+     */
+    public static ProfileCheck corrupt(String problem) {
+        return new ProfileCheck(Status.CORRUPT, problem);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return What is wrong with the profile, or null if it is not corrupt.
+     */
+    public String getProblem() {
+        return problem;
+    }
+}
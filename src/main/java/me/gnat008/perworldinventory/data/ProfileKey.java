@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data;
+
+import org.bukkit.GameMode;
+
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Identifies one stored profile: the data of a player for a group and gamemode.
+ */
+public final class ProfileKey {
+
+    private final UUID uuid;
+    private final String group;
+    private final GameMode gameMode;
+
+    /**
+     * Constructor.
+     *
+     * @param uuid The UUID of the player.
+     * @param group The name of the group.
+     * @param gameMode The gamemode the profile is stored for.
+     */
+    public ProfileKey(UUID uuid, String group, GameMode gameMode) {
+        this.uuid = uuid;
+        this.group = group;
+        this.gameMode = gameMode;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public GameMode getGameMode() {
+        return gameMode;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ProfileKey)) {
+            return false;
+        }
+
+        ProfileKey key = (ProfileKey) other;
+        return uuid.equals(key.uuid) && group.equals(key.group) && gameMode == key.gameMode;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(uuid, group, gameMode);
+    }
+
+    @Override
+    public String toString() {
+        return uuid + "." + group + "." + gameMode.toString().toLowerCase();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data;
+
+import me.gnat008.perworldinventory.data.players.PWIPlayer;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * The sections of a profile that were read for a player and group.
+ * <p>
+ * Only the requested sections that were found are filled in on the profile; everything else
+ * is left at its default value. Use {@link #has(ProfileSection)} to tell the two apart.
+ */
+public class ProfileProjection {
+
+    private final PWIPlayer profile;
+    private final Set<ProfileSection> sections;
+
+    /**
+     * Constructor.
+     *
+     * @param profile The profile the sections were read into.
+     * @param sections The sections that were read.
+     */
+    public ProfileProjection(PWIPlayer profile, Set<ProfileSection> sections) {
+        this.profile = profile;
+        this.sections = Collections.unmodifiableSet(sections);
+    }
+
+    /**
+     * Get the profile the sections were read into.
+     *
+     * @return The profile.
+     */
+    public PWIPlayer getProfile() {
+        return profile;
+    }
+
+    /**
+     * Get whether a section was read. A requested section is missing if the player has
+     * no data for the group yet, or if it was never saved, like the economy when it is off.
+     *
+     * @param section The section.
+     * @return True if the section was read.
+     */
+    public boolean has(ProfileSection section) {
+        return sections.contains(section);
+    }
+
+    /**
+     * Get the sections that were read.
+     *
+     * @return The sections.
+     */
+    public Set<ProfileSection> getSections() {
+        return sections;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data;
+
+import me.gnat008.perworldinventory.ConsoleLogger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A job that visits every stored profile, started with {@link ProfileScanner}.
+ * <p>
+ * Players are listed one at a time while the scan runs, and the profiles of each player are
+ * read and visited on a pool of worker threads. Only the requested sections of each profile
+ * are read. With a checkpoint, every player whose profiles were all visited is written to a
+ * file, so a scan that is cancelled or interrupted by a restart continues where it stopped
+ * when it is started again.
+ */
+public final class ProfileScan {
+
+    private final String name;
+    private final Set<ProfileSection> sections;
+    private final int parallelism;
+    private final long intervalNanos;
+    private final File checkpointFile;
+    private final ProfileVisitor visitor;
+
+    private final AtomicInteger players = new AtomicInteger();
+    private final AtomicInteger profiles = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger resumed = new AtomicInteger();
+    private final long startedAt = System.currentTimeMillis();
+    private volatile boolean cancelled;
+    private volatile boolean done;
+
+    private Writer checkpoint;
+    // Guarded by this
+    private long nextRead;
+
+    ProfileScan(String name, Set<ProfileSection> sections, int parallelism, int profilesPerSecond,
+                File checkpointFile, ProfileVisitor visitor) {
+        this.name = name;
+        this.sections = sections;
+        this.parallelism = Math.max(1, parallelism);
+        this.intervalNanos = profilesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / profilesPerSecond : 0;
+        this.checkpointFile = checkpointFile;
+        this.visitor = visitor;
+    }
+
+    /**
+     * Visit all profiles, and return once all of them are visited or the scan is cancelled.
+     *
+     * @param dataSource The data source to read the profiles from.
+     */
+    void run(DataSource dataSource) {
+        Set<UUID> completed = readCheckpoint();
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "PerWorldInventory Scan " + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Keeps the listing only a little ahead of the workers
+        Semaphore queued = new Semaphore(parallelism * 2);
+
+        try {
+            openCheckpoint();
+            dataSource.scanPlayers(uuid -> {
+                if (cancelled) {
+                    return false;
+                }
+                if (completed.contains(uuid)) {
+                    resumed.incrementAndGet();
+                    return true;
+                }
+
+                queued.acquireUninterruptibly();
+                workers.execute(() -> {
+                    try {
+                        visitPlayer(dataSource, uuid);
+                    } finally {
+                        queued.release();
+                    }
+                });
+                return true;
+            });
+        } catch (IOException ex) {
+            ConsoleLogger.severe("[SCAN] Unable to list the stored players for '" + name + "':", ex);
+            failures.incrementAndGet();
+        } finally {
+            workers.shutdown();
+            try {
+                while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                    ConsoleLogger.info("[SCAN] Waiting for '" + name + "' to finish");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            closeCheckpoint();
+            done = true;
+        }
+    }
+
+    private void visitPlayer(DataSource dataSource, UUID uuid) {
+        boolean failed = false;
+        for (ProfileKey key : dataSource.listProfiles(uuid)) {
+            if (cancelled) {
+                return;
+            }
+
+            try {
+                awaitTurn();
+                ProfileProjection projection = sections.isEmpty() ? null : dataSource.readSections(key, sections);
+                visitor.visit(key, projection);
+                profiles.incrementAndGet();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception ex) {
+                ConsoleLogger.warning("[SCAN] Unable to visit profile '" + key + "' for '" + name + "':", ex);
+                failures.incrementAndGet();
+                failed = true;
+            }
+        }
+
+        players.incrementAndGet();
+        if (!failed) {
+            writeCheckpoint(uuid);
+        }
+    }
+
+    /**
+     * Wait until the next profile may be read, to stay within the configured rate.
+     */
+    private void awaitTurn() throws InterruptedException {
+        if (intervalNanos == 0) {
+            return;
+        }
+
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            nextRead = Math.max(nextRead, now);
+            wait = nextRead - now;
+            nextRead += intervalNanos;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    private Set<UUID> readCheckpoint() {
+        if (checkpointFile == null || !checkpointFile.exists()) {
+            return Collections.emptySet();
+        }
+
+        Set<UUID> completed = new HashSet<>();
+        try {
+            for (String line : Files.readAllLines(checkpointFile.toPath(), StandardCharsets.UTF_8)) {
+                if (!line.isEmpty()) {
+                    completed.add(UUID.fromString(line));
+                }
+            }
+        } catch (IOException | IllegalArgumentException ex) {
+            ConsoleLogger.warning("[SCAN] Unable to read the checkpoint of '" + name + "', starting over:", ex);
+            return Collections.emptySet();
+        }
+
+        ConsoleLogger.info("[SCAN] Resuming '" + name + "'; " + completed.size() + " players were already done");
+        return completed;
+    }
+
+    private void openCheckpoint() throws IOException {
+        if (checkpointFile != null) {
+            checkpointFile.getParentFile().mkdirs();
+            checkpoint = new BufferedWriter(Files.newBufferedWriter(checkpointFile.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        }
+    }
+
+    private synchronized void writeCheckpoint(UUID uuid) {
+        if (checkpoint == null) {
+            return;
+        }
+
+        try {
+            checkpoint.write(uuid.toString());
+            checkpoint.write('\n');
+            checkpoint.flush();
+        } catch (IOException ex) {
+            ConsoleLogger.warning("[SCAN] Unable to write the checkpoint of '" + name + "':", ex);
+        }
+    }
+
+    private synchronized void closeCheckpoint() {
+        if (checkpoint == null) {
+            return;
+        }
+
+        try {
+            checkpoint.close();
+        } catch (IOException ex) {
+            ConsoleLogger.warning("[SCAN] Unable to close the checkpoint of '" + name + "':", ex);
+        }
+        checkpoint = null;
+
+        // A finished scan starts over the next time
+        if (!cancelled && failures.get() == 0 && !checkpointFile.delete()) {
+            ConsoleLogger.warning("[SCAN] Unable to delete the checkpoint '" + checkpointFile.getPath() + "'");
+        }
+    }
+
+    /**
+     * Stop the scan. Profiles that are being visited are finished first; the checkpoint is kept.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return The number of players whose profiles were visited.
+     */
+    public int getPlayers() {
+        return players.get();
+    }
+
+    /**
+     * @return The number of profiles that were visited.
+     */
+    public int getProfiles() {
+        return profiles.get();
+    }
+
+    /**
+     * @return The number of profiles that could not be read or visited.
+     */
+    public int getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return The number of players that were skipped because the checkpoint says they were done.
+     */
+    public int getResumed() {
+        return resumed.get();
+    }
+
+    /**
+     * @return The number of profiles visited per second so far.
+     */
+    public double getProfilesPerSecond() {
+        long millis = Math.max(1, System.currentTimeMillis() - startedAt);
+        return profiles.get() * 1000.0 / millis;
+    }
+}
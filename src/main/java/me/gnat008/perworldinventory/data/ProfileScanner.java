@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data;
+
+import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.DataFolder;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Starts bulk jobs over all stored profiles, such as computing statistics or resetting a group.
+ * See {@link ProfileScan} for how they run.
+ */
+public class ProfileScanner {
+
+    private final File checkpointFolder;
+    private final BukkitService bukkitService;
+    private final DataSource dataSource;
+    private final Settings settings;
+
+    @Inject
+    ProfileScanner(@DataFolder File pluginFolder, BukkitService bukkitService, DataSource dataSource, Settings settings) {
+        this.checkpointFolder = new File(pluginFolder, "scans");
+        this.bukkitService = bukkitService;
+        this.dataSource = dataSource;
+        this.settings = settings;
+    }
+
+    /**
+     * Start a scan with the parallelism and rate from the config, and without a checkpoint.
+     *
+     * @param name The name of the scan, for logging.
+     * @param sections The sections of each profile to read; none to only visit the keys.
+     * @param visitor The visitor of each profile.
+     * @param onDone Run on the main thread when the scan is done or cancelled.
+     * @return The running scan.
+     */
+    public ProfileScan start(String name, Set<ProfileSection> sections, ProfileVisitor visitor,
+                             Consumer<ProfileScan> onDone) {
+        return start(name, sections, settings.getProperty(PwiProperties.SCAN_THREADS),
+                settings.getProperty(PwiProperties.SCAN_PROFILES_PER_SECOND), false, visitor, onDone);
+    }
+
+    /**
+     * Start a scan over all stored profiles in the background.
+     *
+     * @param name The name of the scan. Scans with a checkpoint are resumed by name.
+     * @param sections The sections of each profile to read; none to only visit the keys.
+     * @param threads The number of profiles to read and visit at the same time.
+     * @param profilesPerSecond The most profiles to read per second, or 0 for no limit.
+     * @param checkpoint If the progress should be saved, to resume the scan if it is stopped.
+     * @param visitor The visitor of each profile.
+     * @param onDone Run on the main thread when the scan is done or cancelled.
+     * @return The running scan.
+     */
+    public ProfileScan start(String name, Set<ProfileSection> sections, int threads, int profilesPerSecond,
+                             boolean checkpoint, ProfileVisitor visitor, Consumer<ProfileScan> onDone) {
+        File checkpointFile = checkpoint ? new File(checkpointFolder, name + ".checkpoint") : null;
+        Set<ProfileSection> copy = EnumSet.noneOf(ProfileSection.class);
+        copy.addAll(sections);
+        ProfileScan scan = new ProfileScan(name, copy, threads, profilesPerSecond, checkpointFile, visitor);
+
+        ConsoleLogger.info("[SCAN] Starting '" + name + "' with " + threads + " threads");
+        bukkitService.runTaskAsync(() -> {
+            scan.run(dataSource);
+            ConsoleLogger.info("[SCAN] '" + name + "' " + (scan.isCancelled() ? "was cancelled" : "is done")
+                    + ": visited " + scan.getProfiles() + " profiles of " + scan.getPlayers() + " players, "
+                    + scan.getFailures() + " failed");
+            bukkitService.runTask(() -> onDone.accept(scan));
+        });
+        return scan;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data;
+
+/**
+ * The top level sections of a stored profile, which can be read on their own.
+ */
+public enum ProfileSection {
+
+    /** The ender chest contents. */
+    ENDER_CHEST("ender-chest"),
+
+    /** The inventory and armor contents. */
+    INVENTORY("inventory"),
+
+    /** Experience, health, potion effects and the other stats. */
+    STATS("stats"),
+
+    /** The balance. */
+    ECONOMY("economy");
+
+    private final String key;
+
+    ProfileSection(String key) {
+        this.key = key;
+    }
+
+    /**
+     * Get the key of the section in the stored data.
+     *
+     * @return The key.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Get the section that is stored under a key.
+     *
+     * @param key The key.
+     * @return The section, or null if the key is not a section.
+     */
+    public static ProfileSection fromKey(String key) {
+        for (ProfileSection section : values()) {
+            if (section.key.equals(key)) {
+                return section;
+            }
+        }
+        return null;
+    }
+}
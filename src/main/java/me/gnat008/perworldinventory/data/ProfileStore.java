@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+/**
+ * Stores the profiles of players in a place that several servers can reach, for use with
+ * the {@link DataSourceType#SHARED} data source.
+ * <p>
+ * Only one server may own a player at a time. A server takes ownership by acquiring a lease
+ * on the player, renews it while the player is online, and releases it after the last save.
+ * Writes from a server that does not hold the lease are refused, so a server that lost its
+ * lease can never overwrite data that another server has loaded.
+ * <p>
+ * Other plugins can provide an implementation backed by a database or a cache cluster by
+ * registering it with the Bukkit services manager before PerWorldInventory is enabled.
+ * All methods may block and are never called on the main thread, except for
+ * {@link #getName()}.
+ */
+public interface ProfileStore {
+
+    /**
+     * Get the name of the store, for logging.
+     *
+     * @return The name.
+     */
+    String getName();
+
+    /**
+     * Try to acquire or renew the lease on a player.
+     *
+     * @param uuid The UUID of the player
+     * @param owner The ID of the server that wants the lease
+     * @param ttlMillis How long the lease is valid for if it is not renewed
+     * @return True if the server now holds the lease, false if another server holds it
+     * @throws IOException If the store could not be reached
+     */
+    boolean tryAcquireLease(UUID uuid, String owner, long ttlMillis) throws IOException;
+
+    /**
+     * Release the lease on a player, if the given server holds it.
+     *
+     * @param uuid The UUID of the player
+     * @param owner The ID of the server that holds the lease
+     * @throws IOException If the store could not be reached
+     */
+    void releaseLease(UUID uuid, String owner) throws IOException;
+
+    /**
+     * Get the server that holds the lease on a player.
+     *
+     * @param uuid The UUID of the player
+     * @return The ID of the server, or null if the lease is free or has expired
+     * @throws IOException If the store could not be reached
+     */
+    String getLeaseHolder(UUID uuid) throws IOException;
+
+    /**
+     * Read a stored profile.
+     *
+     * @param key The profile to read
+     * @return The serialized profile, or null if there is none
+     * @throws IOException If the store could not be reached
+     */
+    String readProfile(ProfileKey key) throws IOException;
+
+    /**
+     * Write a profile, if the given server holds the lease on the player.
+     *
+     * @param key The profile to write
+     * @param data The serialized profile
+     * @param owner The ID of the server writing the profile
+     * @return True if the profile was written, false if the server does not hold the lease
+     * @throws IOException If the store could not be reached
+     */
+    boolean writeProfile(ProfileKey key, String data, String owner) throws IOException;
+
+    /**
+     * Delete a stored profile.
+     *
+     * @param key The profile to delete
+     * @return True if the profile was deleted, false if it did not exist
+     * @throws IOException If the store could not be reached
+     */
+    boolean deleteProfile(ProfileKey key) throws IOException;
+
+    /**
+     * List the profiles that are stored for a player.
+     *
+     * @param uuid The UUID of the player
+     * @return The keys of the stored profiles
+     * @throws IOException If the store could not be reached
+     */
+    List<ProfileKey> listProfiles(UUID uuid) throws IOException;
+
+    /**
+     * Pass the UUID of every player with stored profiles to an action, one at a time.
+     *
+     * @param action The action, which returns false to stop the scan
+     * @throws IOException If the store could not be reached
+     */
+    void scanPlayers(Predicate<UUID> action) throws IOException;
+
+    /**
+     * Read the location a player last logged out at.
+     *
+     * @param uuid The UUID of the player
+     * @return The serialized location, or null if there is none
+     * @throws IOException If the store could not be reached
+     */
+    String readLogout(UUID uuid) throws IOException;
+
+    /**
+     * Write the location a player logged out at, if the given server holds the lease on the player.
+     *
+     * @param uuid The UUID of the player
+     * @param data The serialized location
+     * @param owner The ID of the server writing the location
+     * @return True if the location was written, false if the server does not hold the lease
+     * @throws IOException If the store could not be reached
+     */
+    boolean writeLogout(UUID uuid, String data, String owner) throws IOException;
+
+    /**
+     * Called when PerWorldInventory is disabled, after all players have been saved. The store
+     * is not used anymore after this.
+     *
+     * @throws IOException If the store could not be closed cleanly
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data;
+
+/**
+ * Visits stored profiles during a {@link ProfileScan}.
+ * <p>
+ * Profiles are visited on several threads at once, so implementations must be thread safe,
+ * and must not use the Bukkit API except for what may be used asynchronously.
+ */
+@FunctionalInterface
+public interface ProfileVisitor {
+
+    /**
+     * Visit a stored profile.
+     *
+     * @param key The profile.
+     * @param projection The requested sections of the profile, or null if no sections were requested.
+     */
+    void visit(ProfileKey key, ProfileProjection projection);
+}
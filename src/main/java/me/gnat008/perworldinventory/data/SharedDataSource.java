@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.DataFolder;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.data.players.PWIPlayer;
+import me.gnat008.perworldinventory.data.players.PWIPlayerFactory;
+import me.gnat008.perworldinventory.data.serializers.DeserializeCause;
+import me.gnat008.perworldinventory.data.serializers.LocationSerializer;
+import me.gnat008.perworldinventory.data.serializers.PlayerSerializer;
+import me.gnat008.perworldinventory.groups.Group;
+import me.gnat008.perworldinventory.util.FileUtils;
+import org.bukkit.GameMode;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Stores player data in a {@link ProfileStore}, such as one shared by several servers.
+ * <p>
+ * A player is owned by one server at a time through a lease in the store. The lease is
+ * acquired before the player logs in, renewed while they are online and released once their
+ * last data has been saved, so a server never loads a player that another server has not
+ * finished saving. Default loadouts are still kept in the data folder of each server.
+ */
+public class SharedDataSource implements DataSource {
+
+    private static final long POLL_MILLIS = 100;
+    /** Keeps the generated server ID when none is configured. */
+    static final String SERVER_ID_FILE = "server-id";
+
+    private final ProfileStore store;
+    private final BukkitService bukkitService;
+    private final PlayerSerializer playerSerializer;
+    private final PWIPlayerFactory pwiPlayerFactory;
+    private final FlatFile flatFile;
+    private final StorageScheduler storageScheduler;
+
+    private final String serverId;
+    private final long waitMillis;
+    private final long ttlMillis;
+
+    /** Players this server holds the lease on. */
+    private final Set<UUID> owned = ConcurrentHashMap.newKeySet();
+    /** Players who logged in again while their old session was still online, which keeps the lease. */
+    private final Set<UUID> rejoined = ConcurrentHashMap.newKeySet();
+    /** Keeps a renewal from taking back a lease that is being released. */
+    private final Object leaseLock = new Object();
+    private ScheduledExecutorService renewer;
+
+    @Inject
+    SharedDataSource(@DataFolder File dataFolder, ProfileStore store, Settings settings, BukkitService bukkitService,
+                     PlayerSerializer playerSerializer, PWIPlayerFactory pwiPlayerFactory, FlatFile flatFile,
+                     StorageScheduler storageScheduler) {
+        this.store = store;
+        this.bukkitService = bukkitService;
+        this.playerSerializer = playerSerializer;
+        this.pwiPlayerFactory = pwiPlayerFactory;
+        this.storageScheduler = storageScheduler;
+        this.flatFile = flatFile;
+
+        String configuredId = settings.getProperty(PwiProperties.SERVER_ID);
+        this.serverId = configuredId.isEmpty() ? loadServerId(new File(dataFolder, SERVER_ID_FILE)) : configuredId;
+        this.waitMillis = TimeUnit.SECONDS.toMillis(Math.max(0, settings.getProperty(PwiProperties.LEASE_WAIT_SECONDS)));
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(Math.max(1, settings.getProperty(PwiProperties.LEASE_TTL_SECONDS)));
+        ConsoleLogger.info("Storing player data in '" + store.getName() + "' as '" + serverId + "'");
+    }
+
+    /**
+     * Get the server ID kept in the given file, or generate one and keep it there. A server
+     * that came back after a restart has to use the same ID to get back the leases it held.
+     *
+     * @param file The file with the server ID.
+     * @return The server ID.
+     */
+    private static String loadServerId(File file) {
+        try {
+            if (file.exists()) {
+                String stored = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+                if (!stored.isEmpty()) {
+                    return stored;
+                }
+            }
+        } catch (IOException ex) {
+            ConsoleLogger.warning("[SHARED] Unable to read the server ID from '" + file.getPath() + "':", ex);
+        }
+
+        String generated = "server-" + UUID.randomUUID();
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            Files.write(file.toPath(), generated.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            ConsoleLogger.warning("[SHARED] Unable to keep the server ID in '" + file.getPath()
+                    + "', it will be different after a restart:", ex);
+        }
+        return generated;
+    }
+
+    /**
+     * Get the name of this server in the profile store.
+     *
+     * @return The server ID.
+     */
+    public String getServerId() {
+        return serverId;
+    }
+
+    @Override
+    public boolean acquirePlayer(UUID uuid) {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        try {
+            while (true) {
+                if (owned.contains(uuid) && bukkitService.isOnline(uuid)) {
+                    // The old session is kicked as a duplicate login, and saved before the new one loads
+                    rejoined.add(uuid);
+                    return true;
+                }
+
+                // A quit save of an earlier session on this server may still be running
+                if (!owned.contains(uuid) && store.tryAcquireLease(uuid, serverId, ttlMillis)) {
+                    owned.add(uuid);
+                    startRenewing();
+                    return true;
+                }
+
+                if (System.currentTimeMillis() >= deadline) {
+                    String holder = owned.contains(uuid) ? serverId : store.getLeaseHolder(uuid);
+                    ConsoleLogger.warning("[SHARED] Timed out waiting for '" + holder + "' to release player '" + uuid + "'");
+                    return false;
+                }
+                Thread.sleep(POLL_MILLIS);
+            }
+        } catch (IOException ex) {
+            ConsoleLogger.severe("[SHARED] Unable to acquire the lease on player '" + uuid + "':", ex);
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public void releasePlayer(UUID uuid) {
+        if (rejoined.remove(uuid)) {
+            // Released by the session that was replaced, or by a login that was denied after all
+            return;
+        }
+
+        synchronized (leaseLock) {
+            owned.remove(uuid);
+            try {
+                store.releaseLease(uuid, serverId);
+            } catch (IOException ex) {
+                ConsoleLogger.warning("[SHARED] Unable to release the lease on player '" + uuid
+                        + "', it expires in " + ttlMillis / 1000 + " seconds:", ex);
+            }
+        }
+        stopRenewingIfIdle();
+    }
+
+    @Override
+    public void saveLogoutData(PWIPlayer player, boolean createTask) {
+        Runnable save = () -> {
+            try {
+                if (!store.writeLogout(player.getUuid(), LocationSerializer.serialize(player.getLocation()), serverId)) {
+                    ConsoleLogger.severe("[SHARED] Not saving logout location of '" + player.getName()
+                            + "', this server no longer owns them!");
+                }
+            } catch (IOException ex) {
+                ConsoleLogger.severe("[SHARED] Unable to save logout location of '" + player.getName() + "':", ex);
+            }
+        };
+
+        if (createTask) {
+            storageScheduler.runBackground(player.getUuid(), save);
+        } else {
+            save.run();
+        }
+    }
+
+    @Override
+    public void saveToDatabase(Group group, GameMode gamemode, PWIPlayer player) {
+        ProfileKey key = toKey(player.getUuid(), group, gamemode);
+        ConsoleLogger.debug("Saving data for player '" + player.getName() + "' as " + key);
+
+        try {
+            if (!store.writeProfile(key, playerSerializer.serialize(player), serverId)) {
+                ConsoleLogger.severe("[SHARED] Not saving " + key + " of '" + player.getName()
+                        + "', this server no longer owns them!");
+            }
+        } catch (IOException ex) {
+            ConsoleLogger.severe("[SHARED] Unable to save " + key + " of '" + player.getName() + "':", ex);
+        }
+    }
+
+    @Override
+    public void getFromDatabase(Group group, GameMode gamemode, Player player, DeserializeCause cause) {
+        ProfileKey key = toKey(player.getUniqueId(), group, gamemode);
+        ConsoleLogger.debug("Getting data for player '" + player.getName() + "' as " + key);
+
+        storageScheduler.runInteractive(player.getUniqueId(), () -> {
+            String stored;
+            try {
+                stored = store.readProfile(key);
+            } catch (IOException ex) {
+                ConsoleLogger.severe("Unable to read data for '" + player.getName() + "' for group '" + group.getName() +
+                        "' in gamemode '" + gamemode.toString() + "' for reason:", ex);
+                return;
+            }
+
+            if (stored == null) {
+                ConsoleLogger.debug("No data for player '" + player.getName() + "' for group '" + group.getName() + "'. Getting data from default sources");
+                flatFile.getFromDefaults(group, gamemode, player, cause);
+                return;
+            }
+
+            JsonObject data;
+            try {
+                data = new JsonParser().parse(stored).getAsJsonObject();
+            } catch (JsonParseException | IllegalStateException ex) {
+                ConsoleLogger.severe("[SHARED] Unable to read " + key + " of '" + player.getName()
+                        + "', the stored data is not valid:", ex);
+                return;
+            }
+            bukkitService.runTask(() -> playerSerializer.deserialize(data, player, group, gamemode, cause));
+        });
+    }
+
+    @Override
+    public void getSections(Group group, GameMode gamemode, UUID uuid, Set<ProfileSection> sections,
+                            Consumer<ProfileProjection> callback) {
+        ProfileKey key = toKey(uuid, group, gamemode);
+
+        storageScheduler.runInteractive(uuid, () -> {
+            ProfileProjection projection;
+            try {
+                projection = readSections(key, sections);
+            } catch (IOException | RuntimeException ex) {
+                ConsoleLogger.warning("Unable to read " + sections + " of " + key + ":", ex);
+                projection = new ProfileProjection(pwiPlayerFactory.createEmpty(uuid, group),
+                        EnumSet.noneOf(ProfileSection.class));
+            }
+
+            ProfileProjection result = projection;
+            bukkitService.runTask(() -> callback.accept(result));
+        });
+    }
+
+    @Override
+    public ProfileProjection readSections(ProfileKey key, Set<ProfileSection> sections) throws IOException {
+        PWIPlayer profile = pwiPlayerFactory.createEmpty(key.getUuid(), new Group(key.getGroup(), null, null));
+        String stored = store.readProfile(key);
+        if (stored == null) {
+            return new ProfileProjection(profile, EnumSet.noneOf(ProfileSection.class));
+        }
+
+        try (JsonReader reader = new JsonReader(new StringReader(stored))) {
+            return new ProfileProjection(profile, playerSerializer.readSections(reader, profile, sections));
+        }
+    }
+
+    @Override
+    public void scanPlayers(Predicate<UUID> action) throws IOException {
+        store.scanPlayers(action);
+    }
+
+    @Override
+    public List<ProfileKey> listProfiles(UUID uuid) {
+        try {
+            return store.listProfiles(uuid);
+        } catch (IOException ex) {
+            ConsoleLogger.warning("[SHARED] Unable to list the profiles of '" + uuid + "':", ex);
+            return new ArrayList<>();
+        }
+    }
+
+    @Override
+    public boolean deleteProfile(ProfileKey key) {
+        try {
+            return store.deleteProfile(key);
+        } catch (IOException ex) {
+            ConsoleLogger.warning("[SHARED] Unable to delete " + key + ":", ex);
+            return false;
+        }
+    }
+
+    @Override
+    public ProfileCheck verifyProfile(ProfileKey key) throws IOException {
+        String stored = store.readProfile(key);
+        if (stored == null) {
+            throw new FileNotFoundException(key + " is not stored");
+        }
+        return playerSerializer.verify(stored, pwiPlayerFactory.createEmpty(key.getUuid(), new Group(key.getGroup(), null, null)));
+    }
+
+    @Override
+    public boolean quarantineProfile(ProfileKey key) {
+        try {
+            String stored = store.readProfile(key);
+            if (stored == null) {
+                return false;
+            }
+
+            File target = flatFile.getQuarantineFile(key);
+            Files.createDirectories(target.getParentFile().toPath());
+            FileUtils.writeData(target, stored);
+            return store.deleteProfile(key);
+        } catch (IOException ex) {
+            ConsoleLogger.warning("[SHARED] Unable to quarantine " + key + ":", ex);
+            return false;
+        }
+    }
+
+    @Override
+    public Location getLogoutData(Player player) {
+        try {
+            String stored = store.readLogout(player.getUniqueId());
+            return stored == null ? null : LocationSerializer.deserialize(new JsonParser().parse(stored).getAsJsonObject());
+        } catch (IOException | JsonParseException | IllegalStateException ex) {
+            ConsoleLogger.warning("Unable to get logout location data for '" + player.getName() + "':", ex);
+            return null;
+        }
+    }
+
+    @Override
+    public void setGroupDefault(Player player, Group group) {
+        flatFile.setGroupDefault(player, group);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (renewer != null) {
+                renewer.shutdown();
+                renewer = null;
+            }
+        }
+
+        try {
+            store.close();
+        } catch (IOException ex) {
+            ConsoleLogger.warning("[SHARED] Unable to close '" + store.getName() + "':", ex);
+        }
+    }
+
+    /**
+     * Get the key of a profile. Spectators share the profile of creative mode, like in the flat file.
+     */
+    private static ProfileKey toKey(UUID uuid, Group group, GameMode gamemode) {
+        return new ProfileKey(uuid, group.getName(), gamemode == GameMode.SPECTATOR ? GameMode.CREATIVE : gamemode);
+    }
+
+    private synchronized void startRenewing() {
+        if (renewer != null) {
+            return;
+        }
+
+        renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PerWorldInventory Leases");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(POLL_MILLIS, ttlMillis / 3);
+        renewer.scheduleAtFixedRate(this::renewLeases, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopRenewingIfIdle() {
+        if (renewer != null && owned.isEmpty()) {
+            renewer.shutdown();
+            renewer = null;
+        }
+    }
+
+    private void renewLeases() {
+        for (UUID uuid : owned) {
+            try {
+                if (!renewLease(uuid)) {
+                    ConsoleLogger.severe("[SHARED] Lost the lease on player '" + uuid + "' to '"
+                            + store.getLeaseHolder(uuid) + "', their changes will not be saved!");
+                }
+            } catch (IOException | RuntimeException ex) {
+                ConsoleLogger.warning("[SHARED] Unable to renew the lease on player '" + uuid + "':", ex);
+            }
+        }
+    }
+
+    private boolean renewLease(UUID uuid) throws IOException {
+        synchronized (leaseLock) {
+            return !owned.contains(uuid) || store.tryAcquireLease(uuid, serverId, ttlMillis);
+        }
+    }
+}
@@ -0,0 +1,529 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data;
+
+import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.DataFolder;
+import me.gnat008.perworldinventory.data.players.PWIPlayer;
+import me.gnat008.perworldinventory.data.serializers.LocationSerializer;
+import me.gnat008.perworldinventory.data.serializers.PlayerSerializer;
+import org.bukkit.GameMode;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * An append-only journal that unsaved profiles are written to when the server shuts down.
+ * <p>
+ * Saving every profile to its own file on shutdown means opening, truncating and flushing
+ * one file per profile on the main thread. The journal instead writes every profile
+ * sequentially into a single file, which is opened once and synced once. On the next start
+ * the journal is read while the plugin is enabled, before any player can join, and then
+ * replayed into the regular data store in the background. Loads for the players that are in
+ * the journal wait until their records have been replayed.
+ * <p>
+ * Records are written with a length prefix, so a journal that was cut off part-way through
+ * a record can still be replayed up to the last complete record. A journal that is damaged
+ * elsewhere is replayed up to the damage, and then kept under another name.
+ */
+public class ShutdownJournal {
+
+    /** Name of the journal file in the plugin folder. */
+    static final String FILE_NAME = "shutdown.journal";
+    /** Prefix of journals that could not be replayed completely and were kept. */
+    static final String FAILED_PREFIX = FILE_NAME + ".failed-";
+
+    /** Magic number at the start of every journal file. */
+    private static final int MAGIC = 0x50574931; // "PWI1"
+
+    private static final byte TYPE_PROFILE = 1;
+    private static final byte TYPE_LOGOUT = 2;
+
+    /** The longest time a load may wait for its player's records to be replayed. */
+    private static final long MAX_WAIT_SECONDS = 30;
+
+    private final File journalFile;
+    private final PlayerSerializer playerSerializer;
+
+    // The newest record of each profile, in the order they were written; cleared by the replay
+    private final Map<String, Record> records = new LinkedHashMap<>();
+    private final Map<UUID, CountDownLatch> pending = new ConcurrentHashMap<>();
+    // Logout records that have not been replayed yet, by UUID
+    private final Map<UUID, Record> pendingLogouts = new ConcurrentHashMap<>();
+    private volatile boolean replaying;
+    // Whether the journal could only be read up to a damaged part
+    private boolean damaged;
+
+    @Inject
+    ShutdownJournal(@DataFolder File dataFolder, PlayerSerializer playerSerializer) {
+        this.journalFile = new File(dataFolder, FILE_NAME);
+        this.playerSerializer = playerSerializer;
+    }
+
+    /**
+     * Reads the journal of the last shutdown, if there is one. This happens on the main thread
+     * while the plugin is enabled, so every player in the journal is known to be pending before
+     * any player can join.
+     */
+    @PostConstruct
+    void readJournal() {
+        if (!hasJournal()) {
+            return;
+        }
+
+        try {
+            readRecords(journalFile, records);
+        } catch (IOException ex) {
+            ConsoleLogger.severe("[JOURNAL] The shutdown journal is damaged! Replaying the " + records.size()
+                    + " records before the damage:", ex);
+            damaged = true;
+        }
+
+        for (Record record : records.values()) {
+            pending.putIfAbsent(record.getUuid(), new CountDownLatch(1));
+            if (record.isLogout()) {
+                pendingLogouts.put(record.getUuid(), record);
+            }
+        }
+        replaying = true;
+    }
+
+    /**
+     * Get whether a journal from a previous shutdown exists and has to be replayed.
+     *
+     * @return True if there is a journal to replay.
+     */
+    public boolean hasJournal() {
+        return journalFile.exists();
+    }
+
+    /**
+     * Open the journal for writing. Records are appended to any journal that has not been
+     * replayed yet, so the newest record for a profile is always the last one in the file.
+     *
+     * @return The writer to append records with. Closing it syncs the journal to disk.
+     * @throws IOException If the journal could not be opened.
+     */
+    public Writer openWriter() throws IOException {
+        if (replaying) {
+            ConsoleLogger.warning("[JOURNAL] Journal is still being replayed! Waiting for it to finish before writing");
+            for (CountDownLatch latch : pending.values()) {
+                await(latch);
+            }
+        }
+
+        return new Writer(new FileOutputStream(journalFile, true));
+    }
+
+    /**
+     * Replay the journal. Every record is passed to the given handler in the order it was
+     * written; only the newest record of each profile is handed over. The journal is
+     * deleted once every record was handled successfully, and kept under another name if
+     * a record failed or the journal was damaged.
+     * <p>
+     * This method does blocking I/O and should be called off the main thread.
+     *
+     * @param handler Writes a record to the data store, returning false if that failed.
+     */
+    public void replay(Predicate<Record> handler) {
+        if (!replaying) {
+            return;
+        }
+
+        try {
+            ConsoleLogger.info("[JOURNAL] Replaying " + records.size() + " records for " + pending.size() + " players from the shutdown journal");
+
+            boolean failed = false;
+            UUID current = null;
+            for (Record record : sortByPlayer(records.values())) {
+                if (current != null && !current.equals(record.getUuid())) {
+                    release(current);
+                }
+                current = record.getUuid();
+
+                if (!handler.test(record)) {
+                    failed = true;
+                }
+            }
+            if (current != null) {
+                release(current);
+            }
+
+            if (failed || damaged) {
+                File failedFile = new File(journalFile.getParentFile(), FAILED_PREFIX + System.currentTimeMillis());
+                ConsoleLogger.severe("[JOURNAL] Not all records could be replayed! Journal kept as '"
+                        + failedFile.getName() + "'");
+                if (!journalFile.renameTo(failedFile)) {
+                    ConsoleLogger.severe("[JOURNAL] Unable to rename journal '" + journalFile.getPath() + "'");
+                }
+            } else if (!journalFile.delete()) {
+                ConsoleLogger.warning("[JOURNAL] Unable to delete replayed journal '" + journalFile.getPath() + "'");
+            } else {
+                ConsoleLogger.info("[JOURNAL] Shutdown journal replayed");
+            }
+        } finally {
+            for (UUID uuid : new ArrayList<>(pending.keySet())) {
+                release(uuid);
+            }
+            records.clear();
+            replaying = false;
+        }
+    }
+
+    /**
+     * Wait until the journal records of a player have been replayed. Returns immediately
+     * if no journal is being replayed or the player has no records in it. This method blocks,
+     * so it must not be called on the main thread.
+     *
+     * @param uuid The UUID of the player about to be loaded.
+     */
+    public void awaitReplay(UUID uuid) {
+        if (!replaying) {
+            return;
+        }
+
+        CountDownLatch latch = pending.get(uuid);
+        if (latch != null) {
+            ConsoleLogger.debug("[JOURNAL] Waiting for journal records of '" + uuid + "' to be replayed");
+            await(latch);
+        }
+    }
+
+    /**
+     * Get the logout location of a player from the journal, if it has not been replayed into
+     * the data store yet. Does not block, so it can be used on the main thread instead of
+     * {@link #awaitReplay(UUID)}.
+     *
+     * @param uuid The UUID of the player.
+     * @return The serialized location, or null if the data store is up to date.
+     */
+    public String getUnreplayedLogout(UUID uuid) {
+        Record record = pendingLogouts.get(uuid);
+        return record == null ? null : record.getData();
+    }
+
+    /**
+     * Read the newest record of each profile from a journal file, such as a journal that could
+     * not be replayed and was kept.
+     *
+     * @param file The journal file.
+     * @return The records, in the order they were written.
+     * @throws IOException If the file could not be read completely.
+     */
+    static Collection<Record> readRecords(File file) throws IOException {
+        Map<String, Record> records = new LinkedHashMap<>();
+        readRecords(file, records);
+        return records.values();
+    }
+
+    /**
+     * Read the records of a journal file into the given map. If the file is damaged, the
+     * records before the damage are in the map when the exception is thrown.
+     */
+    private static void readRecords(File file, Map<String, Record> records) throws IOException {
+        long length = file.length();
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+             DataInputStream in = new DataInputStream(counter)) {
+            // An empty file means the server died before anything was written
+            if (length == 0) {
+                return;
+            }
+
+            while (true) {
+                int magic;
+                try {
+                    magic = in.readInt();
+                } catch (EOFException ex) {
+                    return;
+                }
+                if (magic != MAGIC) {
+                    throw new IOException("Not a PWI journal (magic " + Integer.toHexString(magic) + ")");
+                }
+
+                try {
+                    readBlock(in, counter, length, records);
+                } catch (EOFException ex) {
+                    ConsoleLogger.warning("[JOURNAL] Journal ends with an incomplete record; replaying everything before it");
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the records of a single writer session. A session ends with a zero type byte,
+     * after which either the file ends or another session starts.
+     */
+    private static void readBlock(DataInputStream in, CountingInputStream counter, long length,
+                                  Map<String, Record> records) throws IOException {
+        while (true) {
+            byte type = in.readByte();
+            if (type == 0) {
+                return;
+            }
+
+            UUID uuid = new UUID(in.readLong(), in.readLong());
+            String group = null;
+            GameMode gameMode = null;
+            if (type == TYPE_PROFILE) {
+                group = in.readUTF();
+                gameMode = readGameMode(in.readUTF());
+            } else if (type != TYPE_LOGOUT) {
+                throw new IOException("Unknown journal record type '" + type + "'");
+            }
+
+            int size = in.readInt();
+            if (size < 0) {
+                throw new IOException("Journal record of '" + uuid + "' has an invalid length of " + size + " bytes");
+            } else if (size > length - counter.getCount()) {
+                // Like a record that was cut off, without allocating the length it claims
+                throw new EOFException("Journal record of '" + uuid + "' is longer than the rest of the journal");
+            }
+            byte[] data = new byte[size];
+            in.readFully(data);
+
+            Record record = new Record(uuid, group, gameMode, new String(data, StandardCharsets.UTF_8));
+            records.remove(record.getKey());
+            records.put(record.getKey(), record);
+        }
+    }
+
+    private static GameMode readGameMode(String name) throws IOException {
+        try {
+            return GameMode.valueOf(name);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Unknown gamemode '" + name + "' in journal record", ex);
+        }
+    }
+
+    private static List<Record> sortByPlayer(Collection<Record> records) {
+        Map<UUID, List<Record>> byPlayer = new LinkedHashMap<>();
+        for (Record record : records) {
+            byPlayer.computeIfAbsent(record.getUuid(), k -> new ArrayList<>()).add(record);
+        }
+
+        List<Record> sorted = new ArrayList<>(records.size());
+        byPlayer.values().forEach(sorted::addAll);
+        return sorted;
+    }
+
+    private void release(UUID uuid) {
+        pendingLogouts.remove(uuid);
+        CountDownLatch latch = pending.remove(uuid);
+        if (latch != null) {
+            latch.countDown();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(MAX_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                ConsoleLogger.warning("[JOURNAL] Timed out waiting for the shutdown journal to be replayed");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Appends records to the journal. Everything is buffered in memory and written
+     * sequentially; {@link #close()} flushes the buffer and syncs the file exactly once.
+     */
+    public final class Writer implements Closeable {
+
+        private final FileOutputStream fileStream;
+        private final DataOutputStream out;
+        private int count;
+
+        private Writer(FileOutputStream fileStream) throws IOException {
+            this.fileStream = fileStream;
+            this.out = new DataOutputStream(new BufferedOutputStream(fileStream, 64 * 1024));
+            out.writeInt(MAGIC);
+        }
+
+        /**
+         * Append a profile to the journal.
+         *
+         * @param group The name of the group the profile belongs to.
+         * @param gameMode The GameMode the profile belongs to.
+         * @param player The profile to write.
+         * @throws IOException If the record could not be written.
+         */
+        public void appendProfile(String group, GameMode gameMode, PWIPlayer player) throws IOException {
+            out.writeByte(TYPE_PROFILE);
+            writeUuid(player.getUuid());
+            out.writeUTF(group);
+            out.writeUTF(gameMode.name());
+            writeData(playerSerializer.serialize(player));
+        }
+
+        /**
+         * Append the logout location of a player to the journal.
+         *
+         * @param player The player whose location to write.
+         * @throws IOException If the record could not be written.
+         */
+        public void appendLogout(PWIPlayer player) throws IOException {
+            out.writeByte(TYPE_LOGOUT);
+            writeUuid(player.getUuid());
+            writeData(LocationSerializer.serialize(player.getLocation()));
+        }
+
+        /**
+         * Get the number of records written so far.
+         *
+         * @return The number of records.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        private void writeUuid(UUID uuid) throws IOException {
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        }
+
+        private void writeData(String data) throws IOException {
+            byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            count++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.writeByte(0);
+                out.flush();
+                fileStream.getFD().sync();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read through it, to check lengths against the rest of the file.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read >= 0) {
+                count++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * A single record read from the journal.
+     */
+    public static final class Record {
+
+        private final UUID uuid;
+        private final String group;
+        private final GameMode gameMode;
+        private final String data;
+
+        Record(UUID uuid, String group, GameMode gameMode, String data) {
+            this.uuid = uuid;
+            this.group = group;
+            this.gameMode = gameMode;
+            this.data = data;
+        }
+
+        public UUID getUuid() {
+            return uuid;
+        }
+
+        /**
+         * Get the name of the group of this profile record.
+         *
+         * @return The group name, or null if this is a logout record.
+         */
+        public String getGroup() {
+            return group;
+        }
+
+        /**
+         * Get the GameMode of this profile record.
+         *
+         * @return The GameMode, or null if this is a logout record.
+         */
+        public GameMode getGameMode() {
+            return gameMode;
+        }
+
+        /**
+         * Get the serialized JSON data of this record.
+         *
+         * @return The data.
+         */
+        public String getData() {
+            return data;
+        }
+
+        /**
+         * Get whether this record holds a logout location rather than a profile.
+         *
+         * @return True if this is a logout record.
+         */
+        public boolean isLogout() {
+            return gameMode == null;
+        }
+
+        private String getKey() {
+            return isLogout() ? uuid + ".logout" : uuid + "." + group + "." + gameMode.name();
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data;
+
+import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.util.WaitHistogram;
+
+import javax.inject.Inject;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs storage work on a few dedicated threads, in two priority classes.
+ * <p>
+ * {@link Priority#INTERACTIVE} work is waited on by an online player, like loading their data
+ * when they change worlds, and always goes first. {@link Priority#BACKGROUND} work, like saves,
+ * migrations and conversions, starts at most {@link PwiProperties#STORAGE_BACKGROUND_PER_SECOND}
+ * times per second. Background work that has waited longer than
+ * {@link PwiProperties#STORAGE_BACKGROUND_MAX_WAIT_MS} goes before interactive work, so a steady
+ * stream of loads can not hold it back forever.
+ * <p>
+ * Work for one player stays in order: interactive work for a player pulls the queued background
+ * work of that player ahead of it, so a load never overtakes a save of the same player. Work for
+ * a player only starts once the earlier work for that player has finished, so it also stays in
+ * order with more than one thread.
+ */
+public class StorageScheduler {
+
+    /**
+     * The priority classes of storage work.
+     */
+    public enum Priority {
+        /** Work an online player is waiting for. */
+        INTERACTIVE,
+        /** Work nobody is waiting for. */
+        BACKGROUND
+    }
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private final Settings settings;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // Guarded by lock
+    private final Deque<Task> interactive = new ArrayDeque<>();
+    private final Deque<Task> background = new ArrayDeque<>();
+    private final List<Thread> workers = new ArrayList<>();
+    /** The queued tasks of each player, in the order they have to run. */
+    private final Map<UUID, Deque<Task>> queuedByPlayer = new HashMap<>();
+    /** The players that a task is running for. */
+    private final Set<UUID> running = new HashSet<>();
+    private long nextBackgroundNanos = System.nanoTime();
+    private boolean shutdown;
+
+    private final Map<Priority, WaitHistogram> waits = new EnumMap<>(Priority.class);
+
+    @Inject
+    StorageScheduler(Settings settings) {
+        this.settings = settings;
+        for (Priority priority : Priority.values()) {
+            waits.put(priority, new WaitHistogram());
+        }
+    }
+
+    /**
+     * Run storage work that an online player is waiting for.
+     *
+     * @param player The UUID of the player the work is for.
+     * @param task The work.
+     */
+    public void runInteractive(UUID player, Runnable task) {
+        submit(Priority.INTERACTIVE, player, task);
+    }
+
+    /**
+     * Run storage work that nobody is waiting for.
+     *
+     * @param player The UUID of the player the work is for, or null if it is not for one player.
+     * @param task The work.
+     */
+    public void runBackground(UUID player, Runnable task) {
+        submit(Priority.BACKGROUND, player, task);
+    }
+
+    /**
+     * Run storage work. Once the scheduler is shut down, the work is run right away on the
+     * calling thread.
+     *
+     * @param priority The priority class of the work.
+     * @param player The UUID of the player the work is for, or null if it is not for one player.
+     * @param task The work.
+     */
+    public void submit(Priority priority, UUID player, Runnable task) {
+        lock.lock();
+        try {
+            if (!shutdown) {
+                startWorkers();
+                Task queued = new Task(priority, player, task);
+                if (player != null) {
+                    queuedByPlayer.computeIfAbsent(player, uuid -> new ArrayDeque<>()).addLast(queued);
+                }
+                if (priority == Priority.INTERACTIVE) {
+                    pullAhead(player);
+                    interactive.addLast(queued);
+                } else {
+                    background.addLast(queued);
+                }
+                changed.signalAll();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        task.run();
+    }
+
+    /**
+     * Get how long work of a priority class waited in the queue before it started.
+     *
+     * @param priority The priority class.
+     * @return The histogram of the wait times.
+     */
+    public WaitHistogram getWaitHistogram(Priority priority) {
+        return waits.get(priority);
+    }
+
+    /**
+     * Get the number of queued tasks of a priority class that have not started yet.
+     *
+     * @param priority The priority class.
+     * @return The number of queued tasks.
+     */
+    public int getQueued(Priority priority) {
+        lock.lock();
+        try {
+            int count = 0;
+            for (Task task : interactive) {
+                count += task.priority == priority ? 1 : 0;
+            }
+            for (Task task : background) {
+                count += task.priority == priority ? 1 : 0;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Run all queued work without the rate limit, and stop the threads. Work that is submitted
+     * afterwards runs on the calling thread.
+     */
+    public void shutdown() {
+        List<Thread> running;
+        lock.lock();
+        try {
+            shutdown = true;
+            changed.signalAll();
+            running = new ArrayList<>(workers);
+        } finally {
+            lock.unlock();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SHUTDOWN_TIMEOUT_SECONDS);
+        try {
+            for (Thread worker : running) {
+                worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        int left = getQueued(Priority.INTERACTIVE) + getQueued(Priority.BACKGROUND);
+        if (left > 0) {
+            ConsoleLogger.severe("[STORAGE] Timed out running " + left + " queued storage tasks!");
+        }
+    }
+
+    private void startWorkers() {
+        if (!workers.isEmpty()) {
+            return;
+        }
+
+        int count = Math.max(1, settings.getProperty(PwiProperties.STORAGE_THREADS));
+        for (int i = 1; i <= count; i++) {
+            Thread worker = new Thread(this::work, "PerWorldInventory Storage #" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * Move the queued background work of a player to the end of the interactive queue.
+     */
+    private void pullAhead(UUID player) {
+        if (player == null) {
+            return;
+        }
+
+        Iterator<Task> tasks = background.iterator();
+        while (tasks.hasNext()) {
+            Task task = tasks.next();
+            if (player.equals(task.player)) {
+                tasks.remove();
+                interactive.addLast(task);
+            }
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Task task;
+            try {
+                task = take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (task == null) {
+                return;
+            }
+
+            try {
+                task.runnable.run();
+            } catch (RuntimeException ex) {
+                ConsoleLogger.severe("[STORAGE] Unexpected error in a storage task:", ex);
+            } finally {
+                finish(task);
+            }
+        }
+    }
+
+    /**
+     * Take the next task to run, waiting until there is one.
+     *
+     * @return The task, or null if the scheduler is shut down and no work is left.
+     */
+    private Task take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                Task first = findRunnable(interactive);
+                Task oldest = findRunnable(background);
+                boolean starving = oldest != null && now - oldest.queuedNanos >= getMaxWaitNanos();
+
+                Task next = null;
+                if (first != null && !starving) {
+                    next = first;
+                } else if (oldest != null && (shutdown || now - nextBackgroundNanos >= 0)) {
+                    nextBackgroundNanos = now + getBackgroundIntervalNanos();
+                    next = oldest;
+                } else if (first != null) {
+                    // The background work is starving, but its rate limit still applies
+                    next = first;
+                }
+
+                if (next != null) {
+                    start(next);
+                    waits.get(next.priority).record(now - next.queuedNanos);
+                    return next;
+                }
+
+                if (oldest != null) {
+                    changed.awaitNanos(nextBackgroundNanos - now);
+                } else if (shutdown && interactive.isEmpty() && background.isEmpty()) {
+                    return null;
+                } else {
+                    changed.await();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Find the first task in a queue that can start now: its player has no task running and no
+     * task that was queued before it.
+     */
+    private Task findRunnable(Deque<Task> queue) {
+        for (Task task : queue) {
+            if (task.player == null
+                    || !running.contains(task.player) && queuedByPlayer.get(task.player).peekFirst() == task) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private void start(Task task) {
+        // Background work that was pulled ahead is in the interactive queue
+        if (!interactive.remove(task)) {
+            background.remove(task);
+        }
+        if (task.player != null) {
+            Deque<Task> queued = queuedByPlayer.get(task.player);
+            queued.pollFirst();
+            if (queued.isEmpty()) {
+                queuedByPlayer.remove(task.player);
+            }
+            running.add(task.player);
+        }
+    }
+
+    private void finish(Task task) {
+        if (task.player == null) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            running.remove(task.player);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long getBackgroundIntervalNanos() {
+        int perSecond = settings.getProperty(PwiProperties.STORAGE_BACKGROUND_PER_SECOND);
+        return perSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / perSecond : 0;
+    }
+
+    private long getMaxWaitNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(settings.getProperty(PwiProperties.STORAGE_BACKGROUND_MAX_WAIT_MS));
+    }
+
+    private static final class Task {
+        private final Priority priority;
+        private final UUID player;
+        private final Runnable runnable;
+        private final long queuedNanos = System.nanoTime();
+
+        Task(Priority priority, UUID player, Runnable runnable) {
+            this.priority = priority;
+            this.player = player;
+            this.runnable = runnable;
+        }
+    }
+}
@@ -29,7 +29,9 @@ import com.onarandombox.multiverseinventories.api.profile.WorldGroupProfile;
 import com.onarandombox.multiverseinventories.api.share.Sharables;
 import me.gnat008.perworldinventory.BukkitService;
 import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.ServerLoadMonitor;
 import me.gnat008.perworldinventory.data.FlatFile;
+import me.gnat008.perworldinventory.data.StorageScheduler;
 import me.gnat008.perworldinventory.data.serializers.InventorySerializer;
 import me.gnat008.perworldinventory.data.serializers.PotionEffectSerializer;
 import me.gnat008.perworldinventory.groups.Group;
@@ -53,6 +55,8 @@ import static me.gnat008.perworldinventory.util.FileUtils.writeData;
 @NoMethodScan
 public class DataConverter {
 
+    private static final int CONVERSION_RETRY_SECONDS = 30;
+
     @Inject
     private BukkitService bukkitService;
     @Inject
@@ -63,10 +67,20 @@ public class DataConverter {
     private InventorySerializer inventorySerializer;
     @Inject
     private PluginManager pluginManager;
+    @Inject
+    private ServerLoadMonitor loadMonitor;
+    @Inject
+    private StorageScheduler storageScheduler;
 
     DataConverter() {}
 
     public void convertMultiVerseData() {
+        if (loadMonitor.shouldDefer("data conversion")) {
+            ConsoleLogger.warning("Server is overloaded! Postponing data conversion by " + CONVERSION_RETRY_SECONDS + " seconds");
+            bukkitService.runTaskLater(this::convertMultiVerseData, CONVERSION_RETRY_SECONDS * BukkitService.TICKS_PER_SECOND);
+            return;
+        }
+
         ConsoleLogger.info("Beginning data conversion. This may take a while...");
         MultiverseInventories mvinventories = (MultiverseInventories) pluginManager.getPlugin("Multiverse-Inventories");
         List<WorldGroupProfile> mvgroups = mvinventories.getGroupManager().getGroups();
@@ -79,14 +93,14 @@ public class DataConverter {
             if (pwiGroup == null)
                 groupManager.addGroup(mvgroup.getName(), worlds);
             else
-                pwiGroup.addWorlds(worlds);
+                groupManager.addWorlds(pwiGroup, worlds);
 
             ProfileType[] MV_PROFILETYPES = { ProfileTypes.SURVIVAL, ProfileTypes.CREATIVE, ProfileTypes.ADVENTURE };
             for (ProfileType profileType : MV_PROFILETYPES) {
                 GameMode gameMode = GameMode.valueOf(profileType.getName());
 
                 for (OfflinePlayer player1 : Bukkit.getOfflinePlayers()) {
-                    bukkitService.runTaskAsync(() -> {
+                    storageScheduler.runBackground(player1.getUniqueId(), () -> {
                         try {
                             PlayerProfile playerData = mvgroup.getPlayerData(profileType, player1);
                             if (playerData != null) {
@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data.log;
+
+import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.DataFolder;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.data.ProfileKey;
+import me.gnat008.perworldinventory.data.ProfileStore;
+import me.gnat008.perworldinventory.data.log.Segment.Entry;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link ProfileStore} that appends every saved profile to a log of segment files, instead of
+ * rewriting a file per profile, so saving only ever writes sequentially.
+ * <p>
+ * Where the latest record of each profile is stored is kept in memory. On startup this index is
+ * rebuilt from the footers of the sealed segments, and only the segment that was being written
+ * is read in full. A background task copies the records that are still current out of segments
+ * that are mostly outdated, and then deletes those segments, at a limited number of bytes per second.
+ * <p>
+ * The log belongs to one server, so leases are always granted.
+ */
+public class LogProfileStore implements ProfileStore {
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+    private static final long COMPACTION_PERIOD_SECONDS = 30;
+    /** Segments with less current data than this share of their size are compacted. */
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    private static final int READ_ATTEMPTS = 3;
+
+    private final File folder;
+    private final long segmentSize;
+    private final long compactionBytesPerSecond;
+
+    // Guarded by this
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<ProfileKey, Entry> profiles = new HashMap<>();
+    private final Map<ProfileKey, Entry> tombstones = new HashMap<>();
+    private final Map<UUID, Entry> logouts = new HashMap<>();
+    private final Map<UUID, Set<ProfileKey>> profilesByPlayer = new HashMap<>();
+    private Segment active;
+    private boolean closed;
+    /** Set when the store is closing, to stop a compaction that is running. */
+    private volatile boolean closing;
+
+    private ScheduledExecutorService compactor;
+
+    @Inject
+    LogProfileStore(@DataFolder File dataFolder, Settings settings) {
+        this(new File(dataFolder, "log"),
+                Math.max(1, settings.getProperty(PwiProperties.LOG_SEGMENT_SIZE_MB)) * 1024L * 1024L,
+                Math.max(0, settings.getProperty(PwiProperties.LOG_COMPACTION_KB_PER_SECOND)) * 1024L);
+    }
+
+    LogProfileStore(File folder, long segmentSize, long compactionBytesPerSecond) {
+        this.folder = folder;
+        this.segmentSize = segmentSize;
+        this.compactionBytesPerSecond = compactionBytesPerSecond;
+    }
+
+    @PostConstruct
+    private void open() {
+        try {
+            load();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Unable to open the profile log in '" + folder.getPath() + "'", ex);
+        }
+
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PerWorldInventory Compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                while (compact()) {
+                    // Keep going while there are segments to compact
+                }
+            } catch (IOException | RuntimeException ex) {
+                ConsoleLogger.warning("[LOG] Unable to compact the profile log:", ex);
+            }
+        }, COMPACTION_PERIOD_SECONDS, COMPACTION_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Open the segments in the folder and rebuild the index from them.
+     *
+     * @throws IOException If a segment could not be read.
+     */
+    synchronized void load() throws IOException {
+        long start = System.currentTimeMillis();
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Unable to create folder '" + folder.getPath() + "'");
+        }
+
+        TreeMap<Integer, File> files = new TreeMap<>();
+        String[] names = folder.list();
+        for (String name : names == null ? new String[0] : names) {
+            Matcher matcher = SEGMENT_NAME.matcher(name);
+            if (matcher.matches()) {
+                files.put(Integer.parseInt(matcher.group(1)), new File(folder, name));
+            }
+        }
+
+        int scanned = 0;
+        List<Entry> records = new ArrayList<>();
+        for (Map.Entry<Integer, File> file : files.entrySet()) {
+            Segment segment = Segment.open(file.getKey(), file.getValue(), records);
+            segments.put(segment.getId(), segment);
+            records.forEach(this::apply);
+            records.clear();
+            if (!segment.isSealed()) {
+                scanned++;
+            }
+        }
+
+        // Only the newest segment is appended to
+        for (Segment segment : segments.values()) {
+            if (!segment.isSealed() && segment != segments.lastEntry().getValue()) {
+                segment.seal();
+            }
+        }
+        active = segments.isEmpty() || segments.lastEntry().getValue().isSealed()
+                ? newSegment() : segments.lastEntry().getValue();
+
+        ConsoleLogger.info("[LOG] Indexed " + profiles.size() + " profiles in " + segments.size() + " segments ("
+                + scanned + " without footer) in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    @Override
+    public String getName() {
+        return "log:" + folder.getPath();
+    }
+
+    @Override
+    public boolean tryAcquireLease(UUID uuid, String owner, long ttlMillis) {
+        return true;
+    }
+
+    @Override
+    public void releaseLease(UUID uuid, String owner) {
+    }
+
+    @Override
+    public String getLeaseHolder(UUID uuid) {
+        return null;
+    }
+
+    @Override
+    public String readProfile(ProfileKey key) throws IOException {
+        return read(() -> profiles.get(key));
+    }
+
+    @Override
+    public boolean writeProfile(ProfileKey key, String data, String owner) throws IOException {
+        append(Segment.encode(Segment.PROFILE, key.getUuid(), key.getGroup(), key.getGameMode(), data));
+        return true;
+    }
+
+    @Override
+    public boolean deleteProfile(ProfileKey key) throws IOException {
+        byte[] tombstone = Segment.encode(Segment.DELETE, key.getUuid(), key.getGroup(), key.getGameMode(), null);
+        synchronized (this) {
+            if (!profiles.containsKey(key)) {
+                return false;
+            }
+            append(tombstone);
+            return true;
+        }
+    }
+
+    @Override
+    public synchronized List<ProfileKey> listProfiles(UUID uuid) {
+        Set<ProfileKey> keys = profilesByPlayer.get(uuid);
+        return keys == null ? new ArrayList<>() : new ArrayList<>(keys);
+    }
+
+    @Override
+    public void scanPlayers(Predicate<UUID> action) {
+        List<UUID> players;
+        synchronized (this) {
+            players = new ArrayList<>(profilesByPlayer.keySet());
+        }
+
+        for (UUID uuid : players) {
+            if (!action.test(uuid)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String readLogout(UUID uuid) throws IOException {
+        return read(() -> logouts.get(uuid));
+    }
+
+    @Override
+    public boolean writeLogout(UUID uuid, String data, String owner) throws IOException {
+        append(Segment.encode(Segment.LOGOUT, uuid, "", null, data));
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        if (compactor != null) {
+            // Not interrupted, which would close the file of the segment being read
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (this) {
+            closed = true;
+            for (Segment segment : segments.values()) {
+                try {
+                    segment.close();
+                } catch (IOException ex) {
+                    ConsoleLogger.warning("[LOG] Unable to close segment " + segment.getId() + ":", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy the current records out of the most outdated segment, if one is outdated enough,
+     * and delete it.
+     *
+     * @return True if a segment was compacted.
+     * @throws IOException If the records could not be copied.
+     */
+    boolean compact() throws IOException {
+        Segment segment;
+        List<Entry> current = new ArrayList<>();
+        boolean oldest;
+        synchronized (this) {
+            segment = findCompactable();
+            if (segment == null) {
+                return false;
+            }
+
+            for (Map<?, Entry> index : getIndexes()) {
+                for (Entry entry : index.values()) {
+                    if (entry.segment == segment) {
+                        current.add(entry);
+                    }
+                }
+            }
+            oldest = segments.firstKey() == segment.getId();
+        }
+
+        long start = System.nanoTime();
+        long copied = 0;
+        for (Entry entry : current) {
+            if (closing) {
+                return false;
+            }
+            if (entry.type == Segment.DELETE && oldest) {
+                // There is nothing older left for the tombstone to hide
+                synchronized (this) {
+                    if (tombstones.remove(toKey(entry), entry)) {
+                        segment.getLiveBytes().addAndGet(-entry.length);
+                    }
+                }
+                continue;
+            }
+
+            byte[] record = entry.segment.read(entry);
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                if (getCurrent(entry) == entry) {
+                    // Not saved again since the segment was picked
+                    append(record);
+                    copied += record.length;
+                }
+            }
+            throttle(start, copied);
+        }
+
+        synchronized (this) {
+            if (closed || segment.getLiveBytes().get() != 0) {
+                return false;
+            }
+
+            segments.remove(segment.getId());
+            if (!segment.delete()) {
+                ConsoleLogger.warning("[LOG] Unable to delete compacted segment " + segment.getId());
+            }
+        }
+        ConsoleLogger.debug("[LOG] Compacted segment " + segment.getId() + ", copied " + copied + " bytes");
+        return true;
+    }
+
+    /**
+     * Get the number of segment files.
+     *
+     * @return The number of segments.
+     */
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    private String read(Supplier<Entry> lookup) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            Entry entry;
+            synchronized (this) {
+                entry = lookup.get();
+            }
+            if (entry == null) {
+                return null;
+            }
+
+            try {
+                return Segment.decodeData(entry.segment.read(entry));
+            } catch (ClosedChannelException ex) {
+                // The segment was compacted after the lookup
+                if (attempt == READ_ATTEMPTS) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    private synchronized void append(byte[] record) throws IOException {
+        if (closed) {
+            throw new IOException("The profile log is closed");
+        }
+
+        if (active.getSize() >= segmentSize) {
+            active.seal();
+            active = newSegment();
+        }
+        apply(active.append(record));
+    }
+
+    private Segment newSegment() throws IOException {
+        int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        Segment segment = Segment.create(id, new File(folder, String.format("segment-%06d.log", id)));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Point the index at a record, which replaces what the index pointed to for its key before.
+     */
+    private void apply(Entry entry) {
+        switch (entry.type) {
+            case Segment.PROFILE: {
+                ProfileKey key = toKey(entry);
+                release(profiles.put(key, entry));
+                release(tombstones.remove(key));
+                profilesByPlayer.computeIfAbsent(entry.uuid, uuid -> new HashSet<>()).add(key);
+                break;
+            }
+            case Segment.DELETE: {
+                ProfileKey key = toKey(entry);
+                release(profiles.remove(key));
+                release(tombstones.put(key, entry));
+                Set<ProfileKey> keys = profilesByPlayer.get(entry.uuid);
+                if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                    profilesByPlayer.remove(entry.uuid);
+                }
+                break;
+            }
+            case Segment.LOGOUT:
+                release(logouts.put(entry.uuid, entry));
+                break;
+            default:
+                throw new IllegalStateException("Unknown record type " + entry.type);
+        }
+        entry.segment.getLiveBytes().addAndGet(entry.length);
+    }
+
+    private static void release(Entry replaced) {
+        if (replaced != null) {
+            replaced.segment.getLiveBytes().addAndGet(-replaced.length);
+        }
+    }
+
+    private Entry getCurrent(Entry entry) {
+        switch (entry.type) {
+            case Segment.PROFILE:
+                return profiles.get(toKey(entry));
+            case Segment.DELETE:
+                return tombstones.get(toKey(entry));
+            default:
+                return logouts.get(entry.uuid);
+        }
+    }
+
+    private List<Map<?, Entry>> getIndexes() {
+        List<Map<?, Entry>> indexes = new ArrayList<>();
+        indexes.add(profiles);
+        indexes.add(tombstones);
+        indexes.add(logouts);
+        return indexes;
+    }
+
+    private Segment findCompactable() {
+        Segment best = null;
+        double bestRatio = COMPACTION_THRESHOLD;
+        for (Segment segment : segments.values()) {
+            if (segment == active || segment.getSize() == 0) {
+                continue;
+            }
+
+            double ratio = (double) segment.getLiveBytes().get() / segment.getSize();
+            if (ratio < bestRatio) {
+                best = segment;
+                bestRatio = ratio;
+            }
+        }
+        return best;
+    }
+
+    private void throttle(long start, long copied) {
+        if (compactionBytesPerSecond <= 0) {
+            return;
+        }
+
+        long aheadNanos = copied * 1_000_000_000L / compactionBytesPerSecond - (System.nanoTime() - start);
+        if (aheadNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(aheadNanos);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static ProfileKey toKey(Entry entry) {
+        return new ProfileKey(entry.uuid, entry.group, entry.gameMode);
+    }
+}
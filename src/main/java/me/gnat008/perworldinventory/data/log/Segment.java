@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data.log;
+
+import org.bukkit.GameMode;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * One file of the profile log. Records are only ever appended to the end of a segment.
+ * <p>
+ * A record is laid out as {@code magic, body length, body, CRC32 of the body}, where the body
+ * holds the type, the key and the data of the record. Once a segment is full it is sealed by
+ * appending a footer that lists the key, offset and length of every record in it, followed by
+ * {@code footer offset, CRC32 of the footer, magic}. On startup the index of a sealed segment is
+ * read from its footer alone; a segment without a footer, such as the one that was being written
+ * when the server stopped, is scanned record by record up to the first incomplete record.
+ */
+final class Segment implements Closeable {
+
+    static final byte PROFILE = 1;
+    static final byte LOGOUT = 2;
+    static final byte DELETE = 3;
+
+    private static final int RECORD_MAGIC = 0x50574952;
+    private static final int TRAILER_MAGIC = 0x50574946;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int TRAILER_SIZE = 16;
+
+    private final int id;
+    private final File file;
+    private volatile FileChannel channel;
+    private volatile boolean closed;
+    /** Bytes in the segment that belong to records the index still points to. */
+    private final AtomicLong liveBytes = new AtomicLong();
+    private long size;
+    /** The records appended so far, for the footer; null once the segment is sealed. */
+    private List<Entry> entries;
+
+    private Segment(int id, File file, FileChannel channel, long size, List<Entry> entries) {
+        this.id = id;
+        this.file = file;
+        this.channel = channel;
+        this.size = size;
+        this.entries = entries;
+    }
+
+    /**
+     * Create a new, empty segment.
+     *
+     * @param id The ID of the segment.
+     * @param file The file to create.
+     * @return The segment.
+     * @throws IOException If the file could not be created.
+     */
+    static Segment create(int id, File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(id, file, channel, 0, new ArrayList<>());
+    }
+
+    /**
+     * Open an existing segment and read the records in it, from the footer if it is sealed.
+     * An incomplete record at the end of an unsealed segment is cut off.
+     *
+     * @param id The ID of the segment.
+     * @param file The file of the segment.
+     * @param records The list to add the records of the segment to, in the order they were written.
+     * @return The segment.
+     * @throws IOException If the file could not be read.
+     */
+    static Segment open(int id, File file, List<Entry> records) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            Segment segment = new Segment(id, file, channel, channel.size(), null);
+            if (!segment.readFooter(records)) {
+                segment.entries = new ArrayList<>();
+                segment.scan(records);
+            }
+            return segment;
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Encode a record.
+     *
+     * @param type The type of record.
+     * @param uuid The UUID of the player.
+     * @param group The group of the profile, or an empty string.
+     * @param gameMode The gamemode of the profile, or null.
+     * @param data The data of the record, or null.
+     * @return The record, as it is written to a segment.
+     */
+    static byte[] encode(byte type, UUID uuid, String group, GameMode gameMode, String data) {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeByte(type);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+            out.writeUTF(group);
+            out.writeUTF(gameMode == null ? "" : gameMode.name());
+            byte[] bytes = data == null ? new byte[0] : data.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+
+            byte[] bodyBytes = body.toByteArray();
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bodyBytes.length + 4);
+            record.putInt(RECORD_MAGIC).putInt(bodyBytes.length).put(bodyBytes).putInt(crc(bodyBytes));
+            return record.array();
+        } catch (IOException ex) {
+            // Not thrown by byte array streams
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Get the data of an encoded record.
+     *
+     * @param record The record, as read from a segment.
+     * @return The data of the record.
+     * @throws IOException If the record is damaged.
+     */
+    static String decodeData(byte[] record) throws IOException {
+        try (DataInputStream in = openBody(record)) {
+            byte type = in.readByte();
+            in.skipBytes(16);
+            in.readUTF();
+            in.readUTF();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return type == DELETE ? null : new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Append an encoded record to the end of the segment.
+     *
+     * @param record The record.
+     * @return The entry of the record.
+     * @throws IOException If the record could not be written.
+     */
+    Entry append(byte[] record) throws IOException {
+        Entry entry = parse(record, this, size);
+        write(ByteBuffer.wrap(record), size);
+        size += record.length;
+        entries.add(entry);
+        return entry;
+    }
+
+    /**
+     * Read the bytes of a record in this segment.
+     *
+     * @param entry The entry of the record.
+     * @return The record.
+     * @throws IOException If the record could not be read, for example because the segment was compacted.
+     */
+    byte[] read(Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        readFully(buffer, entry.offset);
+        return buffer.array();
+    }
+
+    /**
+     * Write the footer, after which nothing can be appended to the segment anymore.
+     *
+     * @throws IOException If the footer could not be written.
+     */
+    void seal() throws IOException {
+        ByteArrayOutputStream footer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(footer);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            out.writeByte(entry.type);
+            out.writeLong(entry.uuid.getMostSignificantBits());
+            out.writeLong(entry.uuid.getLeastSignificantBits());
+            out.writeUTF(entry.group);
+            out.writeUTF(entry.gameMode == null ? "" : entry.gameMode.name());
+            out.writeLong(entry.offset);
+            out.writeInt(entry.length);
+        }
+
+        byte[] bytes = footer.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + TRAILER_SIZE);
+        buffer.put(bytes).putLong(size).putInt(crc(bytes)).putInt(TRAILER_MAGIC);
+        buffer.flip();
+        write(buffer, size);
+        channel().force(false);
+        size += bytes.length + TRAILER_SIZE;
+        entries = null;
+    }
+
+    boolean isSealed() {
+        return entries == null;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    AtomicLong getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * Close and delete the segment.
+     *
+     * @return True if the file was deleted.
+     */
+    boolean delete() {
+        try {
+            close();
+        } catch (IOException ignored) {
+            // Deleting it anyway
+        }
+        return file.delete();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+
+    /**
+     * Get the channel of the file. A channel is also closed when a thread using it is interrupted,
+     * in which case it is opened again.
+     */
+    private FileChannel channel() throws IOException {
+        FileChannel current = channel;
+        if (!current.isOpen() && !closed) {
+            synchronized (this) {
+                if (!channel.isOpen() && !closed) {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                current = channel;
+            }
+        }
+        return current;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel().read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + file.getName() + " at " + (position + buffer.position()));
+            }
+        }
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel().write(buffer, position);
+        }
+    }
+
+    private boolean readFooter(List<Entry> records) throws IOException {
+        if (size < TRAILER_SIZE) {
+            return false;
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        readFully(trailer, size - TRAILER_SIZE);
+        trailer.flip();
+        long footerOffset = trailer.getLong();
+        int crc = trailer.getInt();
+        if (trailer.getInt() != TRAILER_MAGIC || footerOffset < 0 || footerOffset > size - TRAILER_SIZE) {
+            return false;
+        }
+
+        ByteBuffer footer = ByteBuffer.allocate((int) (size - TRAILER_SIZE - footerOffset));
+        readFully(footer, footerOffset);
+        if (crc(footer.array()) != crc) {
+            return false;
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(footer.array()))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte type = in.readByte();
+                UUID uuid = new UUID(in.readLong(), in.readLong());
+                String group = in.readUTF();
+                GameMode gameMode = toGameMode(in.readUTF());
+                records.add(new Entry(this, type, uuid, group, gameMode, in.readLong(), in.readInt()));
+            }
+        }
+        return true;
+    }
+
+    private void scan(List<Entry> records) throws IOException {
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            int bodyLength = header.getInt(4);
+            if (header.getInt(0) != RECORD_MAGIC || bodyLength < 0
+                    || position + RECORD_HEADER_SIZE + bodyLength + 4 > size) {
+                break;
+            }
+
+            Entry entry;
+            try {
+                entry = parse(read(new Entry(this, (byte) 0, null, "", null, position,
+                        RECORD_HEADER_SIZE + bodyLength + 4)), this, position);
+            } catch (IOException ex) {
+                break;
+            }
+            records.add(entry);
+            entries.add(entry);
+            position += entry.length;
+        }
+
+        if (position < size) {
+            // The server stopped while this record was being written
+            channel().truncate(position);
+            size = position;
+        }
+    }
+
+    private static Entry parse(byte[] record, Segment segment, long offset) throws IOException {
+        try (DataInputStream in = openBody(record)) {
+            byte type = in.readByte();
+            UUID uuid = new UUID(in.readLong(), in.readLong());
+            String group = in.readUTF();
+            GameMode gameMode = toGameMode(in.readUTF());
+            return new Entry(segment, type, uuid, group, gameMode, offset, record.length);
+        }
+    }
+
+    /**
+     * Check the magic and checksum of a record, and open its body for reading.
+     */
+    private static DataInputStream openBody(byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        if (buffer.remaining() < RECORD_HEADER_SIZE + 4 || buffer.getInt() != RECORD_MAGIC) {
+            throw new IOException("Not a record");
+        }
+
+        int bodyLength = buffer.getInt();
+        if (bodyLength < 0 || bodyLength + 4 != buffer.remaining()) {
+            throw new IOException("Record is cut off");
+        }
+        byte[] body = new byte[bodyLength];
+        buffer.get(body);
+        if (buffer.getInt() != crc(body)) {
+            throw new IOException("Record is damaged");
+        }
+        return new DataInputStream(new ByteArrayInputStream(body));
+    }
+
+    private static GameMode toGameMode(String name) {
+        return name.isEmpty() ? null : GameMode.valueOf(name);
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Where a record is stored, and what it is for.
+     */
+    static final class Entry {
+        final Segment segment;
+        final byte type;
+        final UUID uuid;
+        final String group;
+        final GameMode gameMode;
+        final long offset;
+        final int length;
+
+        Entry(Segment segment, byte type, UUID uuid, String group, GameMode gameMode, long offset, int length) {
+            this.segment = segment;
+            this.type = type;
+            this.uuid = uuid;
+            this.group = group;
+            this.gameMode = gameMode;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data.players;
+
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.util.io.BukkitObjectInputStream;
+import org.bukkit.util.io.BukkitObjectOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The armor, ender chest and inventory of a profile, encoded into a single buffer.
+ * <p>
+ * Live ItemStacks, with their ItemMeta, take up many times more memory than their encoded
+ * form, and every one of them has to be traced by the garbage collector. The buffer can be
+ * allocated outside of the Java heap, where the garbage collector does not scan it at all.
+ */
+final class EncodedItems {
+
+    private final ByteBuffer buffer;
+
+    private EncodedItems(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Encode the items of a profile.
+     *
+     * @param armor The armor contents.
+     * @param enderChest The ender chest contents.
+     * @param inventory The inventory contents.
+     * @param offHeap If the buffer should be allocated outside of the Java heap.
+     * @return The encoded items.
+     * @throws IOException If an item could not be encoded.
+     */
+    static EncodedItems encode(ItemStack[] armor, ItemStack[] enderChest, ItemStack[] inventory,
+                               boolean offHeap) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BukkitObjectOutputStream output = new BukkitObjectOutputStream(bytes)) {
+            writeArray(output, armor);
+            writeArray(output, enderChest);
+            writeArray(output, inventory);
+        }
+
+        byte[] encoded = bytes.toByteArray();
+        ByteBuffer buffer = offHeap ? ByteBuffer.allocateDirect(encoded.length) : ByteBuffer.allocate(encoded.length);
+        buffer.put(encoded);
+        buffer.flip();
+        return new EncodedItems(buffer);
+    }
+
+    /**
+     * Decode the items.
+     *
+     * @return The armor, ender chest and inventory contents, in that order.
+     * @throws IOException If an item could not be decoded.
+     */
+    ItemStack[][] decode() throws IOException {
+        byte[] encoded = new byte[buffer.remaining()];
+        buffer.duplicate().get(encoded);
+
+        try (BukkitObjectInputStream input = new BukkitObjectInputStream(new ByteArrayInputStream(encoded))) {
+            return new ItemStack[][]{readArray(input), readArray(input), readArray(input)};
+        } catch (ClassNotFoundException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Get the size of the encoded items.
+     *
+     * @return The number of bytes.
+     */
+    int size() {
+        return buffer.remaining();
+    }
+
+    /**
+     * Get whether the encoded items are stored outside of the Java heap.
+     *
+     * @return True if the buffer is a direct buffer.
+     */
+    boolean isOffHeap() {
+        return buffer.isDirect();
+    }
+
+    private static void writeArray(BukkitObjectOutputStream output, ItemStack[] items) throws IOException {
+        output.writeInt(items.length);
+        for (ItemStack item : items) {
+            output.writeObject(item);
+        }
+    }
+
+    private static ItemStack[] readArray(BukkitObjectInputStream input) throws IOException, ClassNotFoundException {
+        ItemStack[] items = new ItemStack[input.readInt()];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = (ItemStack) input.readObject();
+        }
+        return items;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data.players;
+
+import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import org.bukkit.Material;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+
+import javax.inject.Inject;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the ender chests of players encoded until they are opened, when
+ * {@link PwiProperties#LAZY_ENDER_CHESTS} is on. Most players do not open their ender chest
+ * in every group they visit, so decoding it on every switch is mostly wasted.
+ * <p>
+ * The ender chest of a player is cleared when its stored contents are deferred, and the
+ * contents are decoded into it when the player opens it. Until then, every profile made of
+ * the player gets the stored contents, which are saved exactly as they were read. Items that
+ * are put into the ender chest in the meantime, e.g. by another plugin, are merged with the
+ * stored contents, which are no longer deferred after that.
+ */
+public class LazyEnderChests {
+
+    private final Map<UUID, StoredItems> deferred = new ConcurrentHashMap<>();
+
+    @Inject
+    LazyEnderChests() {
+    }
+
+    /**
+     * Defer the ender chest of a profile that is applied to a player, if it has not been
+     * decoded yet. Any ender chest that was deferred for the player before is dropped.
+     *
+     * @param player The player the profile is applied to.
+     * @param profile The profile.
+     * @param lazy If the ender chest may be deferred at all.
+     * @return True if the ender chest was deferred, false if it has to be applied.
+     */
+    boolean defer(Player player, PWIPlayer profile, boolean lazy) {
+        StoredItems stored = lazy ? profile.getStoredEnderChest() : null;
+        if (stored == null) {
+            deferred.remove(player.getUniqueId());
+            return false;
+        }
+
+        player.getEnderChest().clear();
+        deferred.put(player.getUniqueId(), stored);
+        return true;
+    }
+
+    /**
+     * Decode the deferred ender chest of a player into their ender chest, if there is one.
+     * Has to be called before the ender chest is used.
+     *
+     * @param player The player.
+     */
+    public void materialize(Player player) {
+        StoredItems stored = deferred.remove(player.getUniqueId());
+        if (stored != null) {
+            ConsoleLogger.debug("Decoding the deferred ender chest of '" + player.getName() + "'");
+            Inventory enderChest = player.getEnderChest();
+            ItemStack[] live = enderChest.getContents();
+            enderChest.setContents(isEmpty(live) ? stored.decode() : merge(player, stored.decode(), live));
+        }
+    }
+
+    /**
+     * Give a profile made of a player the deferred ender chest of that player, if there is one.
+     * If items were put into the ender chest since it was deferred, it is decoded and merged
+     * with them first, and the profile gets the merged contents.
+     *
+     * @param player The player.
+     * @param profile The profile made of the player.
+     */
+    void copyTo(Player player, PWIPlayer profile) {
+        StoredItems stored = deferred.get(player.getUniqueId());
+        if (stored == null) {
+            return;
+        }
+
+        if (isEmpty(player.getEnderChest().getContents())) {
+            profile.setStoredEnderChest(stored);
+        } else {
+            materialize(player);
+            profile.setEnderChest(PWIPlayer.copyItems(player.getEnderChest().getContents()));
+        }
+    }
+
+    /**
+     * Drop the deferred ender chest of a player, after their ender chest has been cleared
+     * or they have been saved for the last time.
+     *
+     * @param player The player.
+     */
+    public void discard(Player player) {
+        deferred.remove(player.getUniqueId());
+    }
+
+    /**
+     * Merge the items that were put into a deferred ender chest with its stored contents. An item
+     * keeps its slot if the stored contents leave it empty, and goes into the first empty slot
+     * otherwise. Items that do not fit are dropped at the player's feet.
+     */
+    private static ItemStack[] merge(Player player, ItemStack[] stored, ItemStack[] live) {
+        ItemStack[] merged = Arrays.copyOf(stored, Math.max(stored.length, live.length));
+        int free = 0;
+        for (int slot = 0; slot < live.length; slot++) {
+            ItemStack item = live[slot];
+            if (isEmpty(item)) {
+                continue;
+            }
+
+            if (isEmpty(merged[slot])) {
+                merged[slot] = item;
+                continue;
+            }
+
+            while (free < merged.length && !isEmpty(merged[free])) {
+                free++;
+            }
+            if (free < merged.length) {
+                merged[free] = item;
+            } else {
+                ConsoleLogger.warning("No room in the ender chest of '" + player.getName() + "' for " + item
+                        + ", dropping it");
+                player.getWorld().dropItemNaturally(player.getLocation(), item);
+            }
+        }
+        return merged;
+    }
+
+    private static boolean isEmpty(ItemStack[] items) {
+        for (ItemStack item : items) {
+            if (!isEmpty(item)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isEmpty(ItemStack item) {
+        return item == null || item.getType() == Material.AIR;
+    }
+}
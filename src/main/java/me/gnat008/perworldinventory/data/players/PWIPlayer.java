@@ -17,6 +17,7 @@
 
 package me.gnat008.perworldinventory.data.players;
 
+import me.gnat008.perworldinventory.data.ProfileSection;
 import me.gnat008.perworldinventory.groups.Group;
 import org.bukkit.GameMode;
 import org.bukkit.Location;
@@ -25,7 +26,10 @@ import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.potion.PotionEffect;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -35,6 +39,10 @@ import java.util.UUID;
  *
  * A PWIPlayer is meant to be used as a cache, in order to improve performance
  * both when using a MySQL database, and perhaps for flat-file storage as well.
+ *
+ * A PWIPlayer that is created from a player holds copies of their items, and is not
+ * changed once it is cached: newer data replaces it with a new PWIPlayer instead. This
+ * lets it be saved on any thread while the player keeps playing.
  */
 public class PWIPlayer {
 
@@ -42,6 +50,12 @@ public class PWIPlayer {
     private ItemStack[] armor;
     private ItemStack[] enderChest;
     private ItemStack[] inventory;
+    // Encoded copy of the three arrays above; while demoted, the arrays are null
+    private EncodedItems encodedItems;
+    private boolean demoted;
+    // The ender chest as it was stored; it replaces the array above until it is first read
+    private StoredItems storedEnderChest;
+    private boolean enderChestDecoded = true;
 
     /* PLAYER STATS */
     private boolean canFly;
@@ -70,7 +84,8 @@ public class PWIPlayer {
     private String name;
 
     /* PERWORLDINVENTORY STUFF */
-    private boolean saved;
+    private volatile boolean saved;
+    private volatile boolean persisted;
     private Group group;
 
     PWIPlayer(Player player, Group group, double bankBalance, double balance, boolean useAttributes) {
@@ -81,9 +96,9 @@ public class PWIPlayer {
         this.group = group;
         this.saved = false;
 
-        this.armor = player.getInventory().getArmorContents();
-        this.enderChest = player.getEnderChest().getContents();
-        this.inventory = player.getInventory().getContents();
+        this.armor = copyItems(player.getInventory().getArmorContents());
+        this.enderChest = copyItems(player.getEnderChest().getContents());
+        this.inventory = copyItems(player.getInventory().getContents());
 
         this.canFly = player.getAllowFlight();
         this.displayName = player.getDisplayName();
@@ -100,7 +115,7 @@ public class PWIPlayer {
         this.gamemode = player.getGameMode();
         this.level = player.getLevel();
         this.saturationLevel = player.getSaturation();
-        this.potionEffects = player.getActivePotionEffects();
+        this.potionEffects = new ArrayList<>(player.getActivePotionEffects());
         this.fallDistance = player.getFallDistance();
         this.fireTicks = player.getFireTicks();
         this.maxAir = player.getMaximumAir();
@@ -110,12 +125,91 @@ public class PWIPlayer {
         this.balance = balance;
     }
 
+    /**
+     * Create an empty profile for a player, to be filled with data read from storage.
+     */
+    PWIPlayer(Player player) {
+        this.uuid = player.getUniqueId();
+        this.name = player.getName();
+        this.location = player.getLocation();
+
+        this.saved = true;
+        this.persisted = true;
+
+        this.armor = new ItemStack[0];
+        this.enderChest = new ItemStack[0];
+        this.inventory = new ItemStack[0];
+        this.potionEffects = new ArrayList<>();
+    }
+
+    /**
+     * Create an empty profile in a group for a player who may be offline, to be filled with
+     * data read from storage.
+     */
+    PWIPlayer(UUID uuid, Group group) {
+        this.uuid = uuid;
+        this.group = group;
+
+        this.saved = true;
+        this.persisted = true;
+
+        this.armor = new ItemStack[0];
+        this.enderChest = new ItemStack[0];
+        this.inventory = new ItemStack[0];
+        this.potionEffects = new ArrayList<>();
+    }
+
+    /**
+     * Create a copy of some sections of this profile, for code that may change what it is given
+     * while this profile stays cached. The other sections are left empty.
+     *
+     * @param sections The sections to copy.
+     * @return The copy.
+     */
+    PWIPlayer copySections(Set<ProfileSection> sections) {
+        PWIPlayer copy = new PWIPlayer(uuid, group);
+        copy.name = name;
+        copy.location = location;
+
+        if (sections.contains(ProfileSection.ENDER_CHEST)) {
+            copy.enderChest = copyItems(getEnderChest());
+        }
+        if (sections.contains(ProfileSection.INVENTORY)) {
+            copy.armor = copyItems(getArmor());
+            copy.inventory = copyItems(getInventory());
+        }
+        if (sections.contains(ProfileSection.STATS)) {
+            copy.canFly = canFly;
+            copy.displayName = displayName;
+            copy.exhaustion = exhaustion;
+            copy.experience = experience;
+            copy.isFlying = isFlying;
+            copy.foodLevel = foodLevel;
+            copy.maxHealth = maxHealth;
+            copy.health = health;
+            copy.gamemode = gamemode;
+            copy.level = level;
+            copy.saturationLevel = saturationLevel;
+            copy.potionEffects = new ArrayList<>(potionEffects);
+            copy.fallDistance = fallDistance;
+            copy.fireTicks = fireTicks;
+            copy.maxAir = maxAir;
+            copy.remainingAir = remainingAir;
+        }
+        if (sections.contains(ProfileSection.ECONOMY)) {
+            copy.bankBalance = bankBalance;
+            copy.balance = balance;
+        }
+        return copy;
+    }
+
     /**
      * Get the armor contents of a player.
      *
      * @return Armor contents
      */
-    public ItemStack[] getArmor() {
+    public synchronized ItemStack[] getArmor() {
+        promote();
         return this.armor;
     }
 
@@ -124,8 +218,10 @@ public class PWIPlayer {
      *
      * @param armor Armor to set
      */
-    public void setArmor(ItemStack[] armor) {
+    public synchronized void setArmor(ItemStack[] armor) {
+        promote();
         this.armor = armor;
+        this.encodedItems = null;
     }
 
     /**
@@ -133,7 +229,13 @@ public class PWIPlayer {
      *
      * @return EnderChest contents
      */
-    public ItemStack[] getEnderChest() {
+    public synchronized ItemStack[] getEnderChest() {
+        promote();
+        if (!enderChestDecoded) {
+            this.enderChest = storedEnderChest.decode();
+            this.enderChestDecoded = true;
+            this.encodedItems = null;
+        }
         return this.enderChest;
     }
 
@@ -142,8 +244,36 @@ public class PWIPlayer {
      *
      * @param enderChest EnderChest contents to set
      */
-    public void setEnderChest(ItemStack[] enderChest) {
+    public synchronized void setEnderChest(ItemStack[] enderChest) {
+        promote();
         this.enderChest = enderChest;
+        this.storedEnderChest = null;
+        this.enderChestDecoded = true;
+        this.encodedItems = null;
+    }
+
+    /**
+     * Set the EnderChest contents of a player as they were stored, without decoding them.
+     * They are decoded the first time {@link #getEnderChest()} is called.
+     *
+     * @param storedEnderChest The stored EnderChest contents
+     */
+    public synchronized void setStoredEnderChest(StoredItems storedEnderChest) {
+        promote();
+        this.enderChest = new ItemStack[0];
+        this.storedEnderChest = storedEnderChest;
+        this.enderChestDecoded = false;
+        this.encodedItems = null;
+    }
+
+    /**
+     * Get the EnderChest contents of a player as they were stored, if they were set with
+     * {@link #setStoredEnderChest(StoredItems)} and not replaced since.
+     *
+     * @return The stored EnderChest contents, or null
+     */
+    public synchronized StoredItems getStoredEnderChest() {
+        return this.storedEnderChest;
     }
 
     /**
@@ -151,7 +281,8 @@ public class PWIPlayer {
      *
      * @return Inventory contents
      */
-    public ItemStack[] getInventory() {
+    public synchronized ItemStack[] getInventory() {
+        promote();
         return this.inventory;
     }
 
@@ -160,8 +291,102 @@ public class PWIPlayer {
      *
      * @param inventory Inventory contents to set
      */
-    public void setInventory(ItemStack[] inventory) {
+    public synchronized void setInventory(ItemStack[] inventory) {
+        promote();
         this.inventory = inventory;
+        this.encodedItems = null;
+    }
+
+    /**
+     * Replace the items of this profile with their encoded form, to save memory while the
+     * profile is not used. The items are decoded again the first time they are accessed.
+     *
+     * @param offHeap If the encoded items should be stored outside of the Java heap.
+     * @throws IOException If the items could not be encoded.
+     */
+    synchronized void demote(boolean offHeap) throws IOException {
+        if (demoted) {
+            return;
+        }
+
+        // Items that were not changed since the last demotion are still encoded
+        if (encodedItems == null || encodedItems.isOffHeap() != offHeap) {
+            encodedItems = EncodedItems.encode(armor, enderChest, inventory, offHeap);
+        }
+        armor = null;
+        enderChest = null;
+        inventory = null;
+        demoted = true;
+    }
+
+    /**
+     * Get whether the items of this profile are currently encoded.
+     *
+     * @return True if the profile is demoted.
+     */
+    synchronized boolean isDemoted() {
+        return demoted;
+    }
+
+    /**
+     * Get the encoded items of this profile, if it has been demoted before.
+     *
+     * @return The encoded items, or null.
+     */
+    synchronized EncodedItems getEncodedItems() {
+        return encodedItems;
+    }
+
+    /**
+     * Copy an array of items, so later changes to the items of the player are not seen here.
+     *
+     * @param items The items to copy.
+     * @return The copies.
+     */
+    static ItemStack[] copyItems(ItemStack[] items) {
+        ItemStack[] copy = new ItemStack[items.length];
+        for (int i = 0; i < items.length; i++) {
+            copy[i] = items[i] == null ? null : items[i].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * Count the item stacks of this profile that are not encoded.
+     *
+     * @return The number of item stacks, or 0 if the profile is demoted.
+     */
+    synchronized int countDecodedItems() {
+        if (demoted) {
+            return 0;
+        }
+
+        int count = 0;
+        for (ItemStack[] items : new ItemStack[][]{armor, enderChest, inventory}) {
+            for (ItemStack item : items) {
+                if (item != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void promote() {
+        if (!demoted) {
+            return;
+        }
+
+        try {
+            ItemStack[][] items = encodedItems.decode();
+            armor = items[0];
+            enderChest = items[1];
+            inventory = items[2];
+            demoted = false;
+        } catch (IOException ex) {
+            // Never hand out empty arrays; they would be saved over the real items
+            throw new IllegalStateException("Unable to decode the cached items of '" + name + "'", ex);
+        }
     }
 
     /**
@@ -462,6 +687,25 @@ public class PWIPlayer {
         this.saved = saved;
     }
 
+    /**
+     * Check if the data for this player is in the database or flatfile. Unlike {@link #isSaved()},
+     * this is only true once a save has finished, so the player can be dropped from the cache.
+     *
+     * @return True if persisted
+     */
+    public boolean isPersisted() {
+        return persisted;
+    }
+
+    /**
+     * Set if the data for this player is in the database or flatfile.
+     *
+     * @param persisted True if persisted, false if not
+     */
+    public void setPersisted(boolean persisted) {
+        this.persisted = persisted;
+    }
+
     /**
      * Get the location of the player.
      *
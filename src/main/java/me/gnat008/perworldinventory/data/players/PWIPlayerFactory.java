@@ -1,12 +1,13 @@
 package me.gnat008.perworldinventory.data.players;
 
 import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.EconomyService;
 import me.gnat008.perworldinventory.PerWorldInventory;
 import me.gnat008.perworldinventory.groups.Group;
-import net.milkbowl.vault.economy.Economy;
 import org.bukkit.entity.Player;
 
 import javax.inject.Inject;
+import java.util.UUID;
 
 /**
  * Factory for creating {@link PWIPlayer} objects.
@@ -19,6 +20,12 @@ public class PWIPlayerFactory {
     @Inject
     BukkitService bukkitService;
 
+    @Inject
+    private EconomyService economyService;
+
+    @Inject
+    private LazyEnderChests lazyEnderChests;
+
     PWIPlayerFactory() {
     }
 
@@ -33,11 +40,35 @@ public class PWIPlayerFactory {
         double balance = 0;
         double bankBalance = 0;
         if (plugin.isEconEnabled()) {
-            Economy economy = plugin.getEconomy();
-            bankBalance = economy.bankBalance(player.getName()).balance;
-            balance = economy.getBalance(player);
+            bankBalance = economyService.getBankBalance(player);
+            balance = economyService.getBalance(player);
         }
 
-        return new PWIPlayer(player, group, bankBalance, balance, bukkitService.shouldUseAttributes());
+        PWIPlayer pwiPlayer = new PWIPlayer(player, group, bankBalance, balance, bukkitService.shouldUseAttributes());
+        lazyEnderChests.copyTo(player, pwiPlayer);
+        return pwiPlayer;
+    }
+
+    /**
+     * Creates an empty PWI player, to fill with data that is read from storage.
+     * The player is not cached, so it does not belong to a group.
+     *
+     * @param player the Bukkit player the data belongs to
+     * @return the created PWI player
+     */
+    public PWIPlayer createEmpty(Player player) {
+        return new PWIPlayer(player);
+    }
+
+    /**
+     * Creates an empty PWI player in a group, to fill with parts of the data that is stored
+     * for that group. The player does not need to be online.
+     *
+     * @param uuid the UUID of the player the data belongs to
+     * @param group the group the data belongs to
+     * @return the created PWI player
+     */
+    public PWIPlayer createEmpty(UUID uuid, Group group) {
+        return new PWIPlayer(uuid, group);
     }
 }
@@ -20,29 +20,39 @@ package me.gnat008.perworldinventory.data.players;
 import me.gnat008.perworldinventory.BukkitService;
 import me.gnat008.perworldinventory.PerWorldInventory;
 import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.EconomyService;
+import me.gnat008.perworldinventory.ServerLoadMonitor;
 import me.gnat008.perworldinventory.config.PwiProperties;
 import me.gnat008.perworldinventory.config.Settings;
 import me.gnat008.perworldinventory.data.DataSource;
+import me.gnat008.perworldinventory.data.DataSourceType;
+import me.gnat008.perworldinventory.data.ProfileProjection;
+import me.gnat008.perworldinventory.data.ProfileSection;
+import me.gnat008.perworldinventory.data.ShutdownJournal;
+import me.gnat008.perworldinventory.data.StorageScheduler;
 import me.gnat008.perworldinventory.data.serializers.DeserializeCause;
 import me.gnat008.perworldinventory.events.InventoryLoadCompleteEvent;
 import me.gnat008.perworldinventory.groups.Group;
 import me.gnat008.perworldinventory.groups.GroupManager;
-import net.milkbowl.vault.economy.Economy;
-import net.milkbowl.vault.economy.EconomyResponse;
+import me.gnat008.perworldinventory.util.FlightRecorder;
 import org.bukkit.Bukkit;
 import org.bukkit.GameMode;
-import org.bukkit.attribute.Attribute;
 import org.bukkit.entity.Player;
-import org.bukkit.potion.PotionEffect;
 import org.bukkit.scheduler.BukkitTask;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
-import static me.gnat008.perworldinventory.util.Utils.checkServerVersion;
 import static me.gnat008.perworldinventory.util.Utils.zeroPlayer;
 
 /**
@@ -59,25 +69,62 @@ public class PWIPlayerManager {
     private GroupManager groupManager;
     private PWIPlayerFactory pwiPlayerFactory;
     private Settings settings;
+    private ShutdownJournal shutdownJournal;
+    private ServerLoadMonitor loadMonitor;
+    private ProfileApplier profileApplier;
+    private EconomyService economyService;
+    private LazyEnderChests lazyEnderChests;
+    private StorageScheduler storageScheduler;
 
     private int interval;
+    private int maxSavesPerTick;
     private BukkitTask task;
+    private long autoSaveTick;
+
+    // Saves that are due but did not fit in the tick they were due in; main thread only
+    private final Map<String, Runnable> pendingSaves = new LinkedHashMap<>();
+    // The online players due in each tick of the current second of the autosave; main thread only
+    private final List<List<Player>> onlineThisSecond = new ArrayList<>();
 
     // Key format: uuid.group.gamemode
-    private Map<String, PWIPlayer> playerCache = new ConcurrentHashMap<>();
+    private final ProfileCache playerCache;
 
     @Inject
     PWIPlayerManager(PerWorldInventory plugin, BukkitService bukkitService, DataSource dataSource, GroupManager groupManager,
-                     PWIPlayerFactory pwiPlayerFactory, Settings settings) {
+                     PWIPlayerFactory pwiPlayerFactory, Settings settings, ShutdownJournal shutdownJournal,
+                     ServerLoadMonitor loadMonitor, ProfileApplier profileApplier, EconomyService economyService,
+                     LazyEnderChests lazyEnderChests, StorageScheduler storageScheduler) {
         this.plugin = plugin;
         this.bukkitService = bukkitService;
         this.dataSource = dataSource;
         this.groupManager = groupManager;
         this.pwiPlayerFactory = pwiPlayerFactory;
         this.settings = settings;
+        this.shutdownJournal = shutdownJournal;
+        this.loadMonitor = loadMonitor;
+        this.profileApplier = profileApplier;
+        this.economyService = economyService;
+        this.lazyEnderChests = lazyEnderChests;
+        this.storageScheduler = storageScheduler;
 
         int setting = settings.getProperty(PwiProperties.SAVE_INTERVAL);
         this.interval = (setting != -1 ? setting : 300) * 20;
+        this.maxSavesPerTick = Math.max(1, settings.getProperty(PwiProperties.SAVE_MAX_PER_TICK));
+        this.playerCache = new ProfileCache(settings.getProperty(PwiProperties.CACHE_HOT_SIZE),
+                settings.getProperty(PwiProperties.CACHE_WARM_SIZE), settings.getProperty(PwiProperties.CACHE_WARM_OFF_HEAP),
+                interval);
+        for (int i = 0; i < BukkitService.TICKS_PER_SECOND; i++) {
+            onlineThisSecond.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Get the cache of player data, to read its usage per tier.
+     *
+     * @return The cache.
+     */
+    public ProfileCache getProfileCache() {
+        return playerCache;
     }
 
     /**
@@ -85,15 +132,57 @@ public class PWIPlayerManager {
      */
     public void onDisable() {
         task.cancel();
-
-        for (Player player : Bukkit.getOnlinePlayers()) {
-            Group group = groupManager.getGroupFromWorld(player.getWorld().getName());
-            savePlayer(group, player, false);
+        pendingSaves.clear();
+
+        // Only flat files replay the journal, which also stays on this server where other servers cannot see it
+        boolean useJournal = settings.getProperty(PwiProperties.USE_SHUTDOWN_JOURNAL)
+                && settings.getProperty(PwiProperties.DATA_SOURCE) == DataSourceType.FLATFILE;
+        if (!useJournal || !writeShutdownJournal()) {
+            for (Player player : Bukkit.getOnlinePlayers()) {
+                Group group = groupManager.getGroupFromWorld(player.getWorld().getName());
+                savePlayer(group, player, false);
+            }
         }
 
         playerCache.clear();
     }
 
+    /**
+     * Write every unsaved cached player, and the current state of every online player,
+     * to the shutdown journal.
+     *
+     * @return True if the journal was written, false if the players have to be saved normally.
+     */
+    private boolean writeShutdownJournal() {
+        try (ShutdownJournal.Writer writer = shutdownJournal.openWriter()) {
+            for (Map.Entry<String, PWIPlayer> entry : playerCache.entrySet()) {
+                PWIPlayer cached = entry.getValue();
+                if (cached.isSaved()) {
+                    continue;
+                }
+
+                String[] parts = entry.getKey().split("\\.");
+                writer.appendProfile(parts[1], GameMode.valueOf(parts[2].toUpperCase()), cached);
+            }
+
+            for (Player player : Bukkit.getOnlinePlayers()) {
+                Group group = groupManager.getGroupFromWorld(player.getWorld().getName());
+                PWIPlayer pwiPlayer = pwiPlayerFactory.create(player, group);
+                GameMode gameMode = settings.getProperty(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES)
+                        ? player.getGameMode() : GameMode.SURVIVAL;
+
+                writer.appendProfile(group.getName(), gameMode, pwiPlayer);
+                writer.appendLogout(pwiPlayer);
+            }
+
+            ConsoleLogger.info("[JOURNAL] Wrote " + writer.getCount() + " records to the shutdown journal");
+            return true;
+        } catch (IOException ex) {
+            ConsoleLogger.severe("[JOURNAL] Unable to write the shutdown journal! Saving players normally:", ex);
+            return false;
+        }
+    }
+
     /**
      * Add a new player to the cache.
      * <p>
@@ -129,8 +218,18 @@ public class PWIPlayerManager {
      * @param player The player to remove from the cache
      */
     public void removePlayer(Player player) {
+        removePlayer(player.getUniqueId());
+    }
+
+    /**
+     * Remove all cached data of a player, without saving it.
+     *
+     * @param uuid The UUID of the player.
+     */
+    public void removePlayer(UUID uuid) {
+        playerCache.unpin(uuid);
         for (String key : playerCache.keySet()) {
-            if (key.startsWith(player.getUniqueId().toString())) {
+            if (key.startsWith(uuid.toString())) {
                 playerCache.remove(key);
             }
         }
@@ -151,6 +250,79 @@ public class PWIPlayerManager {
         return playerCache.get(key);
     }
 
+    /**
+     * Read some sections of a player's profile for a group, for example to show their stats
+     * in another group. The player does not need to be online.
+     * <p>
+     * The newest data is used: the player themselves if they are in that group and gamemode
+     * right now, then a cached profile, and otherwise only the requested sections of the stored
+     * data are read. The callback is always run on the main thread, on a later tick.
+     *
+     * @param uuid The UUID of the player.
+     * @param group The group to read the profile of.
+     * @param gameMode The gamemode to read the profile of.
+     * @param sections The sections to read.
+     * @param callback The callback to pass the read sections to.
+     */
+    public void loadSections(UUID uuid, Group group, GameMode gameMode, Set<ProfileSection> sections,
+                             Consumer<ProfileProjection> callback) {
+        bukkitService.runTask(() -> {
+            String key = makeKey(uuid, group, gameMode);
+            Set<ProfileSection> available = EnumSet.noneOf(ProfileSection.class);
+            available.addAll(sections);
+            if (!plugin.isEconEnabled()) {
+                available.remove(ProfileSection.ECONOMY);
+            }
+
+            Player player = Bukkit.getPlayer(uuid);
+            if (player != null && key.equals(makeKey(uuid,
+                    groupManager.getGroupFromWorld(player.getWorld().getName()), player.getGameMode()))) {
+                callback.accept(new ProfileProjection(pwiPlayerFactory.create(player, group), available));
+                return;
+            }
+
+            // A copy, as the cached profile may still be saved or loaded into the player
+            PWIPlayer cached = playerCache.peek(key);
+            if (cached != null) {
+                callback.accept(new ProfileProjection(cached.copySections(available), available));
+                return;
+            }
+
+            dataSource.getSections(group,
+                    settings.getProperty(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES) ? gameMode : GameMode.SURVIVAL,
+                    uuid, sections, callback);
+        });
+    }
+
+    /**
+     * Remove the cached profiles of a group for all players who are offline, without saving
+     * them, so the stored data of the group can be replaced. Saves of these profiles that are
+     * waiting for their tick are cancelled; saves that were handed to the {@link StorageScheduler}
+     * already still run. Must be called on the main thread.
+     *
+     * @param group The name of the group.
+     * @return The number of profiles that were removed.
+     */
+    public int discardOfflineProfiles(String group) {
+        int removed = 0;
+        for (String key : playerCache.keySet()) {
+            // Key format: uuid.group.gamemode
+            int groupStart = key.indexOf('.') + 1;
+            int groupEnd = key.lastIndexOf('.');
+            if (groupEnd <= groupStart || !key.substring(groupStart, groupEnd).equals(group)) {
+                continue;
+            }
+
+            UUID uuid = UUID.fromString(key.substring(0, groupStart - 1));
+            if (Bukkit.getPlayer(uuid) == null) {
+                playerCache.remove(key);
+                pendingSaves.remove(key);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
     /**
      * Get player data from the cache and apply it to
      * the player.
@@ -161,17 +333,51 @@ public class PWIPlayerManager {
      * @param cause The the trigger for getting player data
      */
     public void getPlayerData(Group group, GameMode gamemode, Player player, DeserializeCause cause) {
+        pinGroup(player, group);
         ConsoleLogger.debug("Trying to get data from cache for player '" + player.getName() + "'");
-        zeroPlayer(plugin, player);
 
         if(isPlayerCached(group, gamemode, player)) {
+            // Cached data is applied right away, so in diff mode there is no need to reset the player first
+            if (!settings.getProperty(PwiProperties.DIFF_APPLY)) {
+                zeroPlayer(player);
+                lazyEnderChests.discard(player);
+            }
             getDataFromCache(group, gamemode, player, cause);
         } else {
+            // Data from disk arrives a few ticks later; the player may not keep the old items until then
+            zeroPlayer(player);
+            lazyEnderChests.discard(player);
             ConsoleLogger.debug("Player was not in cache! Loading from file");
             dataSource.getFromDatabase(group, gamemode, player, cause);
         }
     }
 
+    /**
+     * Pin the cached profiles of a player in the group they are loaded into, if
+     * {@link PwiProperties#CACHE_PIN_CURRENT_GROUP} is on. The profiles of the group they were
+     * pinned in before are released, and queued to be saved if they have unsaved changes.
+     *
+     * @param player The player.
+     * @param group The group the player is loaded into.
+     */
+    private void pinGroup(Player player, Group group) {
+        String previous = settings.getProperty(PwiProperties.CACHE_PIN_CURRENT_GROUP)
+                ? playerCache.pin(player.getUniqueId(), group.getName())
+                : playerCache.unpin(player.getUniqueId());
+        if (previous == null || previous.equals(group.getName())) {
+            return;
+        }
+
+        String prefix = player.getUniqueId() + "." + previous + ".";
+        for (String key : playerCache.keySet()) {
+            PWIPlayer cached = playerCache.peek(key);
+            if (key.startsWith(prefix) && key.indexOf('.', prefix.length()) < 0 && cached != null && !cached.isSaved()) {
+                ConsoleLogger.debug("Releasing pinned profile '" + key + "'");
+                pendingSaves.putIfAbsent(key, () -> saveCachedPlayer(key));
+            }
+        }
+    }
+
     /**
      * Save all cached instances of a player to the disk.
      *
@@ -186,39 +392,40 @@ public class PWIPlayerManager {
         // Should remove the possibility of having to write the same data twice
         playerCache.remove(key);
 
+        // The writes run one after another, so the player is only released once all of them are done
+        List<Runnable> writes = new ArrayList<>();
         for (String cachedKey : playerCache.keySet()) {
             if (cachedKey.startsWith(player.getUniqueId().toString())) {
-                PWIPlayer cached = playerCache.get(cachedKey);
-                if (cached.isSaved()) {
+                PWIPlayer cached = playerCache.peek(cachedKey);
+                if (cached == null || cached.isSaved()) {
                     continue;
                 }
 
+                // The group of an unloaded world may no longer be known by name
                 String[] parts = cachedKey.split("\\.");
-                Group groupKey = groupManager.getGroup(parts[1]);
+                Group groupKey = cached.getGroup();
                 GameMode gamemode = GameMode.valueOf(parts[2].toUpperCase());
 
                 ConsoleLogger.debug("Saving cached player '" + cached.getName() + "' for group '" + groupKey.getName() + "' with gamemdde '" + gamemode.name() + "'");
 
                 cached.setSaved(true);
-                if (!createTask) {
-                    dataSource.saveToDatabase(groupKey, gamemode, cached);
-                } else {
-                    bukkitService.runTaskAsync(() -> dataSource.saveToDatabase(groupKey, gamemode, cached));
-                }
+                writes.add(() -> persist(groupKey, gamemode, cached));
             }
         }
 
         PWIPlayer pwiPlayer = pwiPlayerFactory.create(player, group);
+        lazyEnderChests.discard(player);
+        GameMode gameMode = settings.getProperty(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES) ? player.getGameMode() : GameMode.SURVIVAL;
+        writes.add(() -> persist(group, gameMode, pwiPlayer));
+        writes.add(() -> dataSource.saveLogoutData(pwiPlayer, false));
+        writes.add(() -> dataSource.releasePlayer(pwiPlayer.getUuid()));
+
         if (!createTask) {
-            dataSource.saveToDatabase(group,
-                    settings.getProperty(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES) ? player.getGameMode() : GameMode.SURVIVAL,
-                    pwiPlayer);
+            // If we're disabling, cant create a new task
+            writes.forEach(Runnable::run);
         } else {
-            bukkitService.runTaskAsync(() -> dataSource.saveToDatabase(group,
-                    settings.getProperty(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES) ? player.getGameMode() : GameMode.SURVIVAL,
-                    pwiPlayer));
+            storageScheduler.runBackground(player.getUniqueId(), () -> writes.forEach(Runnable::run));
         }
-        dataSource.saveLogoutData(pwiPlayer, createTask); // If we're disabling, cant create a new task
         removePlayer(player);
     }
 
@@ -257,77 +464,13 @@ public class PWIPlayerManager {
 
         ConsoleLogger.debug("Player '" + player.getName() + "' found in cache! Setting their data");
 
-        if (settings.getProperty(PwiProperties.LOAD_ENDER_CHESTS))
-            player.getEnderChest().setContents(cachedPlayer.getEnderChest());
-        if (settings.getProperty(PwiProperties.LOAD_INVENTORY)) {
-            player.getInventory().setContents(cachedPlayer.getInventory());
-            player.getInventory().setArmorContents(cachedPlayer.getArmor());
-        }
-        if (settings.getProperty(PwiProperties.LOAD_CAN_FLY))
-            player.setAllowFlight(cachedPlayer.getCanFly());
-        if (settings.getProperty(PwiProperties.LOAD_DISPLAY_NAME))
-            player.setDisplayName(cachedPlayer.getDisplayName());
-        if (settings.getProperty(PwiProperties.LOAD_EXHAUSTION))
-            player.setExhaustion(cachedPlayer.getExhaustion());
-        if (settings.getProperty(PwiProperties.LOAD_EXP))
-            player.setExp(cachedPlayer.getExperience());
-        if (settings.getProperty(PwiProperties.LOAD_FLYING) && player.getAllowFlight())
-            player.setFlying(cachedPlayer.isFlying());
-        if (settings.getProperty(PwiProperties.LOAD_HUNGER))
-            player.setFoodLevel(cachedPlayer.getFoodLevel());
-        if (settings.getProperty(PwiProperties.LOAD_HEALTH)) {
-            if (bukkitService.shouldUseAttributes()) {
-                player.getAttribute(Attribute.GENERIC_MAX_HEALTH).setBaseValue(cachedPlayer.getMaxHealth());
-            } else {
-                player.setMaxHealth(cachedPlayer.getMaxHealth());
-            }
-            if (cachedPlayer.getHealth() > 0 && cachedPlayer.getHealth() <= cachedPlayer.getMaxHealth()) {
-                player.setHealth(cachedPlayer.getHealth());
-            } else {
-                player.setHealth(cachedPlayer.getMaxHealth());
-            }
-        }
-        if (settings.getProperty(PwiProperties.LOAD_GAMEMODE) && (!settings.getProperty(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES)))
-            player.setGameMode(cachedPlayer.getGamemode());
-        if (settings.getProperty(PwiProperties.LOAD_LEVEL))
-            player.setLevel(cachedPlayer.getLevel());
-        if (settings.getProperty(PwiProperties.LOAD_POTION_EFFECTS)) {
-            for (PotionEffect effect : player.getActivePotionEffects()) {
-                player.removePotionEffect(effect.getType());
-            }
-            player.addPotionEffects(cachedPlayer.getPotionEffects());
-        }
-        if (settings.getProperty(PwiProperties.LOAD_SATURATION))
-            player.setSaturation(cachedPlayer.getSaturationLevel());
-        if (settings.getProperty(PwiProperties.LOAD_FALL_DISTANCE))
-            player.setFallDistance(cachedPlayer.getFallDistance());
-        if (settings.getProperty(PwiProperties.LOAD_FIRE_TICKS))
-            player.setFireTicks(cachedPlayer.getFireTicks());
-        if (settings.getProperty(PwiProperties.LOAD_MAX_AIR))
-            player.setMaximumAir(cachedPlayer.getMaxAir());
-        if (settings.getProperty(PwiProperties.LOAD_REMAINING_AIR))
-            player.setRemainingAir(cachedPlayer.getRemainingAir());
+        FlightRecorder.Event applyEvent = FlightRecorder.begin(FlightRecorder.Type.APPLY)
+                .player(player.getUniqueId()).group(group.getName()).gameMode(gamemode).cause(cause);
+        profileApplier.apply(player, cachedPlayer);
         if (settings.getProperty(PwiProperties.USE_ECONOMY)) {
-            Economy econ = plugin.getEconomy();
-            if (econ == null) {
-                ConsoleLogger.warning("Economy saving is turned on, but no economy found!");
-                return;
-            }
-
-            EconomyResponse er = econ.withdrawPlayer(player, econ.getBalance(player));
-            if (er.transactionSuccess()) {
-                econ.depositPlayer(player, cachedPlayer.getBalance());
-            } else {
-                ConsoleLogger.warning("[ECON] Unable to withdraw currency from '" + player.getName() + "': " + er.errorMessage);
-            }
-
-            EconomyResponse bankER = econ.bankWithdraw(player.getName(), econ.bankBalance(player.getName()).amount);
-            if (bankER.transactionSuccess()) {
-                econ.bankDeposit(player.getName(), cachedPlayer.getBankBalance());
-            } else {
-                ConsoleLogger.warning("[ECON] Unable to withdraw currency from bank of '" + player.getName() + "': " + er.errorMessage);
-            }
+            economyService.setBalances(player, cachedPlayer.getBalance(), cachedPlayer.getBankBalance());
         }
+        applyEvent.commit();
 
         InventoryLoadCompleteEvent event = new InventoryLoadCompleteEvent(player, cause);
         Bukkit.getPluginManager().callEvent(event);
@@ -353,78 +496,159 @@ public class PWIPlayerManager {
     }
 
     /**
-     * Starts a synchronized repeating task to iterate through all PWIPlayers in the player
-     * cache. If the player has not yet been saved to a database, they will be saved.
+     * Starts a synchronized repeating task that spreads saving across the save interval.
      * <p>
-     * Additionally, if a player is still in the cache, but they have already been saved,
-     * remove them from the cache.
+     * Every player is assigned to one tick of the interval based on their UUID. Each tick,
+     * the unsaved cached data of the players of that tick is saved, as well as the current
+     * data of those players if they are online. Cached data that has already been saved is
+     * removed from the cache. At most {@link PwiProperties#SAVE_MAX_PER_TICK} saves are
+     * started per tick; anything left over carries on to the next tick. While the server
+     * is overloaded the task is paused, and resumes where it left off afterwards.
      * <p>
-     * By default, this task will execute once every 5 minutes.
+     * By default, every player is saved once every 5 minutes.
      */
     @PostConstruct
     private void scheduleRepeatingTask() {
-        this.task = bukkitService.runRepeatingTask(() -> {
-            for (String key : playerCache.keySet()) {
-                PWIPlayer player = playerCache.get(key);
-                if (!player.isSaved()) {
-                    String[] parts = key.split("\\.");
-                    Group group = groupManager.getGroup(parts[1]);
-                    GameMode gamemode = GameMode.valueOf(parts[2].toUpperCase());
-
-                    ConsoleLogger.debug("Saving cached player with key '" + key + "'");
-                    ConsoleLogger.debug("Player: " + player.getName());
-                    ConsoleLogger.debug("Group: " + group.getName());
-                    ConsoleLogger.debug("Gamemode: " + gamemode.toString());
-
-                    player.setSaved(true);
-                    bukkitService.runTaskAsync(() -> dataSource.saveToDatabase(group, gamemode, player));
-                } else {
-                    ConsoleLogger.debug("Removing player '" + player.getName() + "' from cache");
-                    playerCache.remove(key);
+        this.task = bukkitService.runRepeatingTask(this::autoSave, 1, 1);
+    }
+
+    /**
+     * Runs one tick of the autosave task.
+     */
+    void autoSave() {
+        if (loadMonitor.shouldDefer("autosave")) {
+            return;
+        }
+
+        int bucket = (int) (autoSaveTick++ % interval);
+        int tickOfSecond = bucket % BukkitService.TICKS_PER_SECOND;
+        if (tickOfSecond == 0) {
+            collectOnlinePlayers(bucket);
+        }
+
+        // Online players first, so their current data wins over the cached data with the same key
+        for (Player player : onlineThisSecond.get(tickOfSecond)) {
+            if (player.isOnline()) {
+                Group group = groupManager.getGroupFromWorld(player.getWorld().getName());
+                pendingSaves.putIfAbsent(makeKey(player.getUniqueId(), group, player.getGameMode()),
+                        () -> saveOnlinePlayer(player));
+            }
+        }
+
+        for (String key : playerCache.keysInBucket(bucket)) {
+            PWIPlayer cached = playerCache.peek(key);
+            if (cached == null) {
+                continue;
+            }
+
+            if (cached.isPersisted()) {
+                if (playerCache.isPinned(key)) {
+                    continue;
                 }
+                ConsoleLogger.debug("Removing player '" + cached.getName() + "' from cache");
+                playerCache.remove(key);
+                ProfileCache.recordEviction(cached, "SAVED");
+            } else if (!cached.isSaved()) {
+                pendingSaves.putIfAbsent(key, () -> saveCachedPlayer(key));
             }
-        }, interval, interval);
+        }
+
+        Iterator<Runnable> saves = pendingSaves.values().iterator();
+        for (int i = 0; i < maxSavesPerTick && saves.hasNext(); i++) {
+            saves.next().run();
+            saves.remove();
+        }
+
+        if (bucket % BukkitService.TICKS_PER_SECOND == 0) {
+            playerCache.enforceTiers();
+        }
     }
 
     /**
-     * Updates all the values of a player in the cache.
+     * Sort the online players whose buckets fall in the next second by the tick of their bucket,
+     * so the online players are walked once per second instead of on every tick.
      *
-     * @param newData The current snapshot of the Player
-     * @param currentPlayer The PWIPlayer currently in the cache
+     * @param bucket The first bucket of the second.
      */
-    public void updateCache(Player newData, PWIPlayer currentPlayer) {
-        ConsoleLogger.debug("Updating player '" + newData.getName() + "' in the cache");
+    private void collectOnlinePlayers(int bucket) {
+        for (List<Player> players : onlineThisSecond) {
+            players.clear();
+        }
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            int offset = playerCache.getBucket(player.getUniqueId()) - bucket;
+            if (offset >= 0 && offset < BukkitService.TICKS_PER_SECOND) {
+                onlineThisSecond.get(offset).add(player);
+            }
+        }
+    }
 
-        currentPlayer.setSaved(false);
+    private void saveCachedPlayer(String key) {
+        PWIPlayer player = playerCache.peek(key);
+        if (player == null || player.isSaved()) {
+            return;
+        }
 
-        currentPlayer.setArmor(newData.getInventory().getArmorContents());
-        currentPlayer.setEnderChest(newData.getEnderChest().getContents());
-        currentPlayer.setInventory(newData.getInventory().getContents());
+        String[] parts = key.split("\\.");
+        Group group = player.getGroup();
+        GameMode gamemode = GameMode.valueOf(parts[2].toUpperCase());
 
-        currentPlayer.setCanFly(newData.getAllowFlight());
-        currentPlayer.setDisplayName(newData.getDisplayName());
-        currentPlayer.setExhaustion(newData.getExhaustion());
-        currentPlayer.setExperience(newData.getExp());
-        currentPlayer.setFlying(newData.isFlying());
-        currentPlayer.setFoodLevel(newData.getFoodLevel());
-        if (checkServerVersion(plugin.getServer().getVersion(), 1, 9, 0)) {
-            currentPlayer.setMaxHealth(newData.getAttribute(Attribute.GENERIC_MAX_HEALTH).getBaseValue());
-        } else {
-            currentPlayer.setMaxHealth(newData.getMaxHealth());
+        ConsoleLogger.debug("Saving cached player with key '" + key + "'");
+        ConsoleLogger.debug("Player: " + player.getName());
+        ConsoleLogger.debug("Group: " + group.getName());
+        ConsoleLogger.debug("Gamemode: " + gamemode.toString());
+
+        player.setSaved(true);
+        storageScheduler.runBackground(player.getUuid(), () -> persist(group, gamemode, player));
+    }
+
+    private void saveOnlinePlayer(Player player) {
+        if (!player.isOnline()) {
+            return;
         }
-        currentPlayer.setHealth(newData.getHealth());
-        currentPlayer.setLevel(newData.getLevel());
-        currentPlayer.setSaturationLevel(newData.getSaturation());
-        currentPlayer.setPotionEffects(newData.getActivePotionEffects());
-        currentPlayer.setFallDistance(newData.getFallDistance());
-        currentPlayer.setFireTicks(newData.getFireTicks());
-        currentPlayer.setMaxAir(newData.getMaximumAir());
-        currentPlayer.setRemainingAir(newData.getRemainingAir());
-
-        if (plugin.getEconomy() != null) {
-            currentPlayer.setBankBalance(plugin.getEconomy().bankBalance(newData.getName()).balance);
-            currentPlayer.setBalance(plugin.getEconomy().getBalance(newData));
+
+        Group group = groupManager.getGroupFromWorld(player.getWorld().getName());
+        GameMode gamemode = settings.getProperty(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES) ? player.getGameMode() : GameMode.SURVIVAL;
+
+        ConsoleLogger.debug("Saving current data of online player '" + player.getName() + "'");
+
+        // Keep a cached entry for the current group in line with what is on disk
+        PWIPlayer pwiPlayer = playerCache.peek(makeKey(player.getUniqueId(), group, player.getGameMode()));
+        if (pwiPlayer != null) {
+            pwiPlayer = updateCache(player, pwiPlayer);
+        } else {
+            pwiPlayer = pwiPlayerFactory.create(player, group);
         }
+
+        pwiPlayer.setSaved(true);
+        PWIPlayer snapshot = pwiPlayer;
+        storageScheduler.runBackground(player.getUniqueId(), () -> persist(group, gamemode, snapshot));
+    }
+
+    /**
+     * Save a profile, and mark it as persisted once the save has finished, so it can be dropped
+     * from the cache. A profile that is only queued for saving must stay in the cache, or a load
+     * in the meantime would read the old data.
+     */
+    private void persist(Group group, GameMode gamemode, PWIPlayer player) {
+        dataSource.saveToDatabase(group, gamemode, player);
+        player.setPersisted(true);
+    }
+
+    /**
+     * Replaces a player in the cache with their current data. The cached PWIPlayer is
+     * not changed, as it may still be being saved on another thread.
+     *
+     * @param newData The current snapshot of the Player
+     * @param currentPlayer The PWIPlayer currently in the cache
+     * @return The PWIPlayer that is now in the cache
+     */
+    public PWIPlayer updateCache(Player newData, PWIPlayer currentPlayer) {
+        ConsoleLogger.debug("Updating player '" + newData.getName() + "' in the cache");
+
+        Group group = currentPlayer.getGroup();
+        PWIPlayer updated = pwiPlayerFactory.create(newData, group);
+        playerCache.put(makeKey(newData.getUniqueId(), group, newData.getGameMode()), updated);
+        return updated;
     }
 
     /**
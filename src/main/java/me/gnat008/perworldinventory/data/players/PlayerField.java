@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data.players;
+
+import ch.jalu.configme.properties.Property;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.util.DiffUtils;
+import org.bukkit.attribute.Attribute;
+import org.bukkit.attribute.AttributeInstance;
+import org.bukkit.entity.Player;
+import org.bukkit.potion.PotionEffect;
+
+import java.util.Objects;
+
+/**
+ * The parts of a {@link PWIPlayer} that can be applied to a player, each tied to the
+ * setting that decides whether it is loaded. The constants are declared in the order
+ * they are applied in.
+ * <p>
+ * Every field either sets its value unconditionally, or in diff mode only when it is
+ * different from what the player currently has.
+ */
+public enum PlayerField {
+
+    ENDER_CHEST(PwiProperties.LOAD_ENDER_CHESTS) {
+        @Override
+        void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes) {
+            if (diff) {
+                DiffUtils.applyContents(player.getEnderChest(), profile.getEnderChest());
+            } else {
+                player.getEnderChest().setContents(profile.getEnderChest());
+            }
+        }
+    },
+
+    INVENTORY(PwiProperties.LOAD_INVENTORY) {
+        @Override
+        void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes) {
+            if (diff) {
+                DiffUtils.applyContents(player.getInventory(), profile.getInventory());
+                DiffUtils.applyArmor(player.getInventory(), profile.getArmor());
+            } else {
+                player.getInventory().setContents(profile.getInventory());
+                player.getInventory().setArmorContents(profile.getArmor());
+            }
+        }
+    },
+
+    CAN_FLY(PwiProperties.LOAD_CAN_FLY) {
+        @Override
+        void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes) {
+            if (!diff || player.getAllowFlight() != profile.getCanFly())
+                player.setAllowFlight(profile.getCanFly());
+        }
+    },
+
+    DISPLAY_NAME(PwiProperties.LOAD_DISPLAY_NAME) {
+        @Override
+        void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes) {
+            if (!diff || !Objects.equals(player.getDisplayName(), profile.getDisplayName()))
+                player.setDisplayName(profile.getDisplayName());
+        }
+    },
+
+    EXHAUSTION(PwiProperties.LOAD_EXHAUSTION) {
+        @Override
+        void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes) {
+            if (!diff || player.getExhaustion() != profile.getExhaustion())
+                player.setExhaustion(profile.getExhaustion());
+        }
+    },
+
+    EXP(PwiProperties.LOAD_EXP) {
+        @Override
+        void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes) {
+            if (!diff || player.getExp() != profile.getExperience())
+                player.setExp(profile.getExperience());
+        }
+    },
+
+    FLYING(PwiProperties.LOAD_FLYING) {
+        @Override
+        void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes) {
+            if (player.getAllowFlight() && (!diff || player.isFlying() != profile.isFlying()))
+                player.setFlying(profile.isFlying());
+        }
+    },
+
+    FOOD(PwiProperties.LOAD_HUNGER) {
+        @Override
+        void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes) {
+            if (!diff || player.getFoodLevel() != profile.getFoodLevel())
+                player.setFoodLevel(profile.getFoodLevel());
+        }
+    },
+
+    HEALTH(PwiProperties.LOAD_HEALTH) {
+        @Override
+        @SuppressWarnings("deprecation")
+        void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes) {
+            if (useAttributes) {
+                AttributeInstance maxHealth = player.getAttribute(Attribute.GENERIC_MAX_HEALTH);
+                if (!diff || maxHealth.getBaseValue() != profile.getMaxHealth())
+                    maxHealth.setBaseValue(profile.getMaxHealth());
+            } else if (!diff || player.getMaxHealth() != profile.getMaxHealth()) {
+                player.setMaxHealth(profile.getMaxHealth());
+            }
+
+            double health = profile.getHealth() > 0 && profile.getHealth() <= profile.getMaxHealth()
+                    ? profile.getHealth() : profile.getMaxHealth();
+            if (!diff || player.getHealth() != health)
+                player.setHealth(health);
+        }
+    },
+
+    GAMEMODE(PwiProperties.LOAD_GAMEMODE) {
+        @Override
+        void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes) {
+            if (!diff || player.getGameMode() != profile.getGamemode())
+                player.setGameMode(profile.getGamemode());
+        }
+    },
+
+    LEVEL(PwiProperties.LOAD_LEVEL) {
+        @Override
+        void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes) {
+            if (!diff || player.getLevel() != profile.getLevel())
+                player.setLevel(profile.getLevel());
+        }
+    },
+
+    POTION_EFFECTS(PwiProperties.LOAD_POTION_EFFECTS) {
+        @Override
+        void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes) {
+            if (diff) {
+                DiffUtils.applyPotionEffects(player, profile.getPotionEffects());
+            } else {
+                for (PotionEffect effect : player.getActivePotionEffects()) {
+                    player.removePotionEffect(effect.getType());
+                }
+                player.addPotionEffects(profile.getPotionEffects());
+            }
+        }
+    },
+
+    SATURATION(PwiProperties.LOAD_SATURATION) {
+        @Override
+        void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes) {
+            if (!diff || player.getSaturation() != profile.getSaturationLevel())
+                player.setSaturation(profile.getSaturationLevel());
+        }
+    },
+
+    FALL_DISTANCE(PwiProperties.LOAD_FALL_DISTANCE) {
+        @Override
+        void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes) {
+            if (!diff || player.getFallDistance() != profile.getFallDistance())
+                player.setFallDistance(profile.getFallDistance());
+        }
+    },
+
+    FIRE_TICKS(PwiProperties.LOAD_FIRE_TICKS) {
+        @Override
+        void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes) {
+            if (!diff || player.getFireTicks() != profile.getFireTicks())
+                player.setFireTicks(profile.getFireTicks());
+        }
+    },
+
+    MAX_AIR(PwiProperties.LOAD_MAX_AIR) {
+        @Override
+        void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes) {
+            if (!diff || player.getMaximumAir() != profile.getMaxAir())
+                player.setMaximumAir(profile.getMaxAir());
+        }
+    },
+
+    REMAINING_AIR(PwiProperties.LOAD_REMAINING_AIR) {
+        @Override
+        void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes) {
+            if (!diff || player.getRemainingAir() != profile.getRemainingAir())
+                player.setRemainingAir(profile.getRemainingAir());
+        }
+    };
+
+    private final Property<Boolean> property;
+
+    PlayerField(Property<Boolean> property) {
+        this.property = property;
+    }
+
+    /**
+     * Get the setting that decides whether this field is loaded.
+     *
+     * @return The property.
+     */
+    public Property<Boolean> getProperty() {
+        return property;
+    }
+
+    /**
+     * Apply this field of a profile to a player.
+     *
+     * @param player The player to apply the field to.
+     * @param profile The profile to take the value from.
+     * @param diff If the value should only be set when it is different.
+     * @param useAttributes If the server has the max health attribute.
+     */
+    abstract void apply(Player player, PWIPlayer profile, boolean diff, boolean useAttributes);
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data.players;
+
+import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import org.bukkit.entity.Player;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Applies profiles to players. Which fields are loaded is decided once, when the plugin is
+ * enabled and on every reload, instead of checking the settings for every field on every
+ * world change. Both profiles from the cache and profiles read from storage go through here.
+ */
+public class ProfileApplier {
+
+    private final Settings settings;
+    private final BukkitService bukkitService;
+    private final LazyEnderChests lazyEnderChests;
+
+    private volatile ApplyPlan plan;
+
+    @Inject
+    ProfileApplier(Settings settings, BukkitService bukkitService, LazyEnderChests lazyEnderChests) {
+        this.settings = settings;
+        this.bukkitService = bukkitService;
+        this.lazyEnderChests = lazyEnderChests;
+    }
+
+    /**
+     * Build the apply plan from the current settings. Has to be called after the settings
+     * have been reloaded.
+     */
+    @PostConstruct
+    public void reload() {
+        List<PlayerField> fields = new ArrayList<>();
+        for (PlayerField field : PlayerField.values()) {
+            if (settings.getProperty(field.getProperty())) {
+                fields.add(field);
+            }
+        }
+
+        // With separate gamemode inventories, the gamemode decides which profile is loaded
+        if (settings.getProperty(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES)) {
+            fields.remove(PlayerField.GAMEMODE);
+        }
+
+        plan = new ApplyPlan(fields.toArray(new PlayerField[fields.size()]),
+                settings.getProperty(PwiProperties.DIFF_APPLY), bukkitService.shouldUseAttributes(),
+                settings.getProperty(PwiProperties.LAZY_ENDER_CHESTS));
+    }
+
+    /**
+     * Apply all enabled fields of a profile to a player.
+     *
+     * @param player The player to apply the profile to.
+     * @param profile The profile to apply.
+     */
+    public void apply(Player player, PWIPlayer profile) {
+        ApplyPlan current = plan;
+        for (PlayerField field : current.fields) {
+            apply(player, profile, field, current);
+        }
+    }
+
+    /**
+     * Apply the enabled fields of a profile to a player, skipping the fields the profile
+     * does not have a value for.
+     *
+     * @param player The player to apply the profile to.
+     * @param profile The profile to apply.
+     * @param present The fields the profile has a value for.
+     */
+    public void apply(Player player, PWIPlayer profile, Set<PlayerField> present) {
+        ApplyPlan current = plan;
+        for (PlayerField field : current.fields) {
+            if (present.contains(field)) {
+                apply(player, profile, field, current);
+            }
+        }
+    }
+
+    private void apply(Player player, PWIPlayer profile, PlayerField field, ApplyPlan current) {
+        if (field == PlayerField.ENDER_CHEST && lazyEnderChests.defer(player, profile, current.lazyEnderChest)) {
+            return;
+        }
+        field.apply(player, profile, current.diff, current.useAttributes);
+    }
+
+    /**
+     * Get whether a field is applied to players. Fields that are not applied do not need to
+     * be read from storage.
+     *
+     * @param field The field to check.
+     * @return True if the field is part of the apply plan.
+     */
+    public boolean isEnabled(PlayerField field) {
+        return plan.enabled.contains(field);
+    }
+
+    /**
+     * Get whether ender chests are loaded, and may be kept encoded until they are opened.
+     * See {@link LazyEnderChests}.
+     *
+     * @return True if ender chests that are read from storage do not need to be decoded.
+     */
+    public boolean isEnderChestLazy() {
+        return plan.lazyEnderChest;
+    }
+
+    /**
+     * The fields to apply and how to apply them. Never changed after being built; a reload
+     * replaces the whole plan, so a switch in progress always sees one consistent plan.
+     */
+    private static final class ApplyPlan {
+        private final PlayerField[] fields;
+        private final Set<PlayerField> enabled;
+        private final boolean diff;
+        private final boolean useAttributes;
+        private final boolean lazyEnderChest;
+
+        ApplyPlan(PlayerField[] fields, boolean diff, boolean useAttributes, boolean lazyEnderChest) {
+            this.fields = fields;
+            this.enabled = EnumSet.noneOf(PlayerField.class);
+            for (PlayerField field : fields) {
+                enabled.add(field);
+            }
+            this.diff = diff;
+            this.useAttributes = useAttributes;
+            this.lazyEnderChest = lazyEnderChest && enabled.contains(PlayerField.ENDER_CHEST);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data.players;
+
+import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.util.FlightRecorder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The cache of {@link PWIPlayer}s, split into tiers by how recently each profile was used.
+ * <ul>
+ *     <li>Hot: the most recently used profiles keep their items as live ItemStacks.</li>
+ *     <li>Warm: older profiles have their items encoded into a compact buffer, which is
+ *     decoded again when the profile is used.</li>
+ *     <li>Cold: profiles beyond the warm tier are dropped from memory once they are saved,
+ *     and are read from disk when needed.</li>
+ * </ul>
+ * With a hot tier size of 0, all profiles stay hot, like before tiers existed.
+ * <p>
+ * The profiles of a player in the group they are in can be pinned. Pinned profiles stay hot
+ * and are never dropped, so switching gamemodes within the group does not read from disk.
+ */
+public class ProfileCache {
+
+    private final int hotSize;
+    private final int warmSize;
+    private final boolean offHeap;
+    private final int buckets;
+
+    // Key format: uuid.group.gamemode
+    private final Map<String, PWIPlayer> entries = new ConcurrentHashMap<>();
+    // Keys from least to most recently used; guarded by itself
+    private final LinkedHashMap<String, Boolean> recency = new LinkedHashMap<>(16, 0.75f, true);
+    // Key prefix (uuid.group.) of the pinned profiles of each player, by UUID
+    private final Map<String, String> pinned = new ConcurrentHashMap<>();
+    // Keys by the autosave bucket of their player, so a tick of the autosave only visits its own
+    private final Map<Integer, Set<String>> keysByBucket = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param hotSize The number of profiles that keep their items decoded, or 0 to keep all decoded.
+     * @param warmSize The number of encoded profiles to keep in memory, or 0 for no limit.
+     * @param offHeap If encoded items should be stored outside of the Java heap.
+     * @param buckets The number of autosave buckets to spread the players over.
+     */
+    ProfileCache(int hotSize, int warmSize, boolean offHeap, int buckets) {
+        this.hotSize = hotSize;
+        this.warmSize = warmSize;
+        this.offHeap = offHeap;
+        this.buckets = buckets;
+    }
+
+    /**
+     * Get the autosave bucket of a player.
+     *
+     * @param uuid The UUID of the player.
+     * @return The bucket, from 0 to the number of buckets.
+     */
+    int getBucket(UUID uuid) {
+        return Math.floorMod(uuid.hashCode(), buckets);
+    }
+
+    /**
+     * Get the keys of the profiles of the players in an autosave bucket. The set is live, and
+     * can be iterated while profiles are added and removed.
+     *
+     * @param bucket The bucket.
+     * @return The keys in the bucket.
+     */
+    Set<String> keysInBucket(int bucket) {
+        Set<String> keys = keysByBucket.get(bucket);
+        return keys == null ? Collections.emptySet() : keys;
+    }
+
+    /**
+     * Get a profile to use it, which moves it to the front of the hot tier.
+     *
+     * @param key The key of the profile.
+     * @return The profile, or null if it is not cached.
+     */
+    PWIPlayer get(String key) {
+        PWIPlayer player = entries.get(key);
+        if (player != null) {
+            synchronized (recency) {
+                recency.get(key);
+            }
+        }
+        return player;
+    }
+
+    /**
+     * Get a profile without counting it as used, for example to save it.
+     *
+     * @param key The key of the profile.
+     * @return The profile, or null if it is not cached.
+     */
+    PWIPlayer peek(String key) {
+        return entries.get(key);
+    }
+
+    void put(String key, PWIPlayer player) {
+        if (entries.put(key, player) == null) {
+            keysByBucket.computeIfAbsent(getBucket(player.getUuid()), k -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+        synchronized (recency) {
+            recency.put(key, Boolean.TRUE);
+        }
+    }
+
+    void remove(String key) {
+        PWIPlayer player = entries.remove(key);
+        if (player != null) {
+            Set<String> keys = keysByBucket.get(getBucket(player.getUuid()));
+            if (keys != null) {
+                keys.remove(key);
+            }
+        }
+        synchronized (recency) {
+            recency.remove(key);
+        }
+    }
+
+    boolean containsKey(String key) {
+        return entries.containsKey(key);
+    }
+
+    Set<String> keySet() {
+        return entries.keySet();
+    }
+
+    Set<Map.Entry<String, PWIPlayer>> entrySet() {
+        return entries.entrySet();
+    }
+
+    void clear() {
+        entries.clear();
+        keysByBucket.clear();
+        pinned.clear();
+        synchronized (recency) {
+            recency.clear();
+        }
+    }
+
+    /**
+     * Pin the profiles of a player in a group, and unpin the ones in the group that was
+     * pinned for them before.
+     *
+     * @param uuid The UUID of the player.
+     * @param group The name of the group.
+     * @return The name of the group that was pinned before, or null.
+     */
+    String pin(UUID uuid, String group) {
+        String previous = pinned.put(uuid.toString(), uuid + "." + group + ".");
+        return previous == null ? null : getGroupName(previous);
+    }
+
+    /**
+     * Unpin the profiles of a player.
+     *
+     * @param uuid The UUID of the player.
+     * @return The name of the group that was pinned, or null.
+     */
+    String unpin(UUID uuid) {
+        String previous = pinned.remove(uuid.toString());
+        return previous == null ? null : getGroupName(previous);
+    }
+
+    /**
+     * Get whether a profile is pinned.
+     *
+     * @param key The key of the profile.
+     * @return True if the profile is pinned.
+     */
+    boolean isPinned(String key) {
+        int uuidEnd = key.indexOf('.');
+        String prefix = uuidEnd < 0 ? null : pinned.get(key.substring(0, uuidEnd));
+        return prefix != null && key.startsWith(prefix) && key.indexOf('.', prefix.length()) < 0;
+    }
+
+    /**
+     * Record a {@link FlightRecorder.Type#CACHE_EVICTION} event for a profile that was dropped.
+     *
+     * @param player The dropped profile.
+     * @param reason Why it was dropped.
+     */
+    static void recordEviction(PWIPlayer player, String reason) {
+        FlightRecorder.begin(FlightRecorder.Type.CACHE_EVICTION).player(player.getUuid())
+                .group(player.getGroup() == null ? null : player.getGroup().getName())
+                .gameMode(player.getGamemode()).cause(reason).commit();
+    }
+
+    /**
+     * Move the profiles that fall out of the hot tier to the warm tier, and drop the persisted
+     * profiles that fall out of the warm tier.
+     */
+    void enforceTiers() {
+        if (hotSize <= 0) {
+            return;
+        }
+
+        List<String> keys;
+        synchronized (recency) {
+            keys = new ArrayList<>(recency.keySet());
+        }
+
+        int rank = 0;
+        for (int i = keys.size() - 1; i >= 0; i--, rank++) {
+            String key = keys.get(i);
+            PWIPlayer player = entries.get(key);
+            if (player == null || rank < hotSize || isPinned(key)) {
+                continue;
+            }
+
+            if (warmSize > 0 && rank >= hotSize + warmSize && player.isPersisted()) {
+                remove(key);
+                recordEviction(player, "COLD");
+                continue;
+            }
+
+            try {
+                player.demote(offHeap);
+            } catch (IOException ex) {
+                ConsoleLogger.warning("Unable to encode the cached items of '" + player.getName() + "', keeping them as they are:", ex);
+            }
+        }
+    }
+
+    /**
+     * Get the number of profiles in the hot tier.
+     *
+     * @return The number of profiles with decoded items.
+     */
+    public int countHot() {
+        int count = 0;
+        for (PWIPlayer player : entries.values()) {
+            if (!player.isDemoted()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of item stacks held by the profiles in the hot tier. Each of these is a
+     * live object on the heap, usually with its own ItemMeta.
+     *
+     * @return The number of item stacks.
+     */
+    public int countHotItems() {
+        int count = 0;
+        for (PWIPlayer player : entries.values()) {
+            count += player.countDecodedItems();
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of profiles in the warm tier.
+     *
+     * @return The number of profiles with encoded items.
+     */
+    public int countWarm() {
+        return entries.size() - countHot();
+    }
+
+    /**
+     * Get the memory used by the encoded items of the warm tier.
+     *
+     * @return The number of bytes.
+     */
+    public long getWarmBytes() {
+        long bytes = 0;
+        for (PWIPlayer player : entries.values()) {
+            EncodedItems encoded = player.isDemoted() ? player.getEncodedItems() : null;
+            if (encoded != null) {
+                bytes += encoded.size();
+            }
+        }
+        return bytes;
+    }
+
+    private static String getGroupName(String prefix) {
+        return prefix.substring(prefix.indexOf('.') + 1, prefix.length() - 1);
+    }
+}
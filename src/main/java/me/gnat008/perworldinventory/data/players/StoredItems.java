@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.data.players;
+
+import com.google.gson.JsonArray;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.function.Function;
+
+/**
+ * Items as they were read from storage, in the current data format, that have not been
+ * decoded yet. The stored JSON is never changed, so it can be written back as it is.
+ */
+public final class StoredItems {
+
+    private final JsonArray json;
+    private final Function<JsonArray, ItemStack[]> decoder;
+
+    /**
+     * Constructor.
+     *
+     * @param json The stored items.
+     * @param decoder The function to decode the stored items with.
+     */
+    public StoredItems(JsonArray json, Function<JsonArray, ItemStack[]> decoder) {
+        this.json = json;
+        this.decoder = decoder;
+    }
+
+    /**
+     * Get the items as they were stored.
+     *
+     * @return The stored items.
+     */
+    public JsonArray getJson() {
+        return json;
+    }
+
+    /**
+     * Decode the items. Every call decodes them again, into new item stacks.
+     *
+     * @return The decoded items.
+     */
+    public ItemStack[] decode() {
+        return decoder.apply(json);
+    }
+}
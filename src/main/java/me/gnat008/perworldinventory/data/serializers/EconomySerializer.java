@@ -18,10 +18,8 @@
 package me.gnat008.perworldinventory.data.serializers;
 
 import com.google.gson.JsonObject;
-import me.gnat008.perworldinventory.ConsoleLogger;
 import me.gnat008.perworldinventory.data.players.PWIPlayer;
 import net.milkbowl.vault.economy.Economy;
-import org.bukkit.entity.Player;
 
 public class EconomySerializer {
 
@@ -35,10 +33,7 @@ public class EconomySerializer {
         return data;
     }
 
-    public static void deserialize(Economy econ, JsonObject data, Player player) {
-        if (data.has("balance")) {
-            ConsoleLogger.debug("[ECON] Depositing " + data.get("balance").getAsDouble() + " to '" + player.getName() + "'!");
-            econ.depositPlayer(player, data.get("balance").getAsDouble());
-        }
+    public static double deserialize(JsonObject data) {
+        return data.has("balance") ? data.get("balance").getAsDouble() : 0;
     }
 }
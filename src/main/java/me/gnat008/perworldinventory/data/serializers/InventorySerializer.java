@@ -18,14 +18,15 @@
 package me.gnat008.perworldinventory.data.serializers;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 import me.gnat008.perworldinventory.ConsoleLogger;
 import me.gnat008.perworldinventory.data.players.PWIPlayer;
-import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.inventory.PlayerInventory;
 
 import javax.inject.Inject;
+import java.io.IOException;
 
 public class InventorySerializer {
 
@@ -70,27 +71,76 @@ public class InventorySerializer {
     }
 
     /**
-     * Sets the Inventory using an ItemStack array constructed from a JsonObject.
+     * Write a PlayerInventory, including the armor contents, like {@link #serializePlayerInventory(PWIPlayer)}
+     * but without building the whole object first.
      *
-     * @param player The InventoryHolder to which the Inventory will be set
-     * @param inv    The reference JsonArray
-     * @param format Data format being used; 0 is old, 1 is new
+     * @param player The player to serialize
+     * @param writer The writer to write to
+     * @throws IOException If the inventory could not be written
+     */
+    public void writePlayerInventory(PWIPlayer player, JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("inventory");
+        writeInventory(player.getInventory(), writer);
+        writer.name("armor");
+        writeInventory(player.getArmor(), writer);
+        writer.endObject();
+    }
+
+    /**
+     * Write an ItemStack array like {@link #serializeInventory(ItemStack[])}, one item at a time.
+     *
+     * @param contents The items in the inventory
+     * @param writer The writer to write to
+     * @throws IOException If the items could not be written
      */
-    public void setInventory(Player player, JsonObject inv, int format) {
-        PlayerInventory inventory = player.getInventory();
-        
+    public void writeInventory(ItemStack[] contents, JsonWriter writer) throws IOException {
+        writer.beginArray();
+        for (int i = 0; i < contents.length; i++) {
+            JsonObject values = itemSerializer.serializeItem(contents[i], i);
+            if (values != null)
+                PlayerSerializer.GSON.toJson(values, writer);
+        }
+        writer.endArray();
+    }
+
+    /**
+     * Read a serialized PlayerInventory, including the armor contents, into a profile.
+     * Missing parts are read as empty.
+     *
+     * @param profile The profile to fill
+     * @param inv     The serialized inventory
+     * @param size    The size of the player's inventory
+     * @param format  Data format being used; 0 is old, 1 is new
+     */
+    public void deserializePlayerInventory(PWIPlayer profile, JsonObject inv, int size, int format) {
         ItemStack[] armor = deserializeInventory(inv.getAsJsonArray("armor"), 4, format);
-        ItemStack[] inventoryContents = deserializeInventory(inv.getAsJsonArray("inventory"), inventory.getSize(), format);
+        ItemStack[] inventoryContents = deserializeInventory(inv.getAsJsonArray("inventory"), size, format);
 
-        inventory.clear();
-        if (armor != null) {
-        	inventory.setArmorContents(armor);
+        profile.setArmor(armor != null ? armor : new ItemStack[4]);
+        profile.setInventory(inventoryContents != null ? inventoryContents : new ItemStack[size]);
+    }
+
+    /**
+     * Decode every item of a serialized inventory, to check that none of them is damaged.
+     *
+     * @param inv    The serialized items, or null if there are none
+     * @param format Data format being used
+     * @throws IOException If an item could not be decoded
+     */
+    public void checkInventory(JsonArray inv, int format) throws IOException {
+        if (inv == null) {
+            return;
         }
-        
-        if (inventoryContents != null) {
-        	inventory.setContents(inventoryContents);
+
+        for (JsonElement element : inv) {
+            JsonObject item = element.getAsJsonObject();
+            int index = item.get("index").getAsInt();
+            if (index < 0) {
+                throw new IOException("Item in slot " + index + " is out of range");
+            }
+            itemSerializer.decodeItem(item, format);
         }
-       
     }
 
     /**
@@ -21,6 +21,7 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import me.gnat008.perworldinventory.PerWorldInventory;
 import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.data.ItemStore;
 import me.gnat008.perworldinventory.data.players.PWIPlayer;
 import org.bukkit.Material;
 import org.bukkit.enchantments.Enchantment;
@@ -43,6 +44,9 @@ public class ItemSerializer {
     @Inject
     private PerWorldInventory plugin;
 
+    @Inject
+    private ItemStore itemStore;
+
     ItemSerializer() {}
 
     /**
@@ -87,6 +91,17 @@ public class ItemSerializer {
             return null;
         }
 
+        if (itemStore.isEnabled()) {
+            try {
+                String reference = itemStore.put(values.get("item").getAsString());
+                values.remove("item");
+                values.addProperty(ItemStore.REFERENCE_KEY, reference);
+            } catch (IOException ex) {
+                // Saving the item in the profile itself is always readable
+                ConsoleLogger.warning("Unable to store item '" + item.getType().toString() + "', saving it inline:", ex);
+            }
+        }
+
         return values;
     }
 
@@ -98,23 +113,59 @@ public class ItemSerializer {
      * @return The deserialized item stack.
      */
     public ItemStack deserializeItem(JsonObject data, int format) {
+        try {
+            return decodeItem(data, format);
+        } catch (IOException ex) {
+            ConsoleLogger.severe("Unable to deserialize an item:", ex);
+            return new ItemStack(Material.AIR);
+        }
+    }
+
+    /**
+     * Deserialize an ItemStack like {@link ItemSerializer#deserializeItem(JsonObject, int)}, but fail
+     * instead of logging an error and returning air.
+     *
+     * @param data The Json to read.
+     * @param format The data format being used.
+     * @return The deserialized item stack.
+     * @throws IOException If the item could not be decoded, or the stored item it references is missing.
+     */
+    public ItemStack decodeItem(JsonObject data, int format) throws IOException {
         switch (format) {
             case 0:
                 return getItem(data);
             case 1:
             case 2:
-                try (ByteArrayInputStream inputStream = new ByteArrayInputStream(Base64Coder.decodeLines(data.get("item").getAsString()));
+                String encoded = getEncodedItem(data);
+                if (encoded == null) {
+                    throw new IOException("Stored item '" + data.get(ItemStore.REFERENCE_KEY).getAsString() + "' is missing");
+                }
+
+                try (ByteArrayInputStream inputStream = new ByteArrayInputStream(Base64Coder.decodeLines(encoded));
                      BukkitObjectInputStream dataInput = new BukkitObjectInputStream(inputStream)) {
                     return (ItemStack) dataInput.readObject();
-                } catch (IOException | ClassNotFoundException ex) {
-                    ConsoleLogger.severe("Unable to deserialize an item:", ex);
-                    return new ItemStack(Material.AIR);
+                } catch (ClassNotFoundException ex) {
+                    throw new IOException(ex);
                 }
             default:
                 throw new IllegalArgumentException("Unknown data format '" + format + "'");
         }
     }
 
+    /**
+     * Get the encoded item of a serialized item, which is either saved in the item itself,
+     * or referenced in the {@link ItemStore}.
+     *
+     * @param data The Json to read.
+     * @return The encoded item, or null if the referenced item is not in the store.
+     */
+    private String getEncodedItem(JsonObject data) {
+        if (data.has(ItemStore.REFERENCE_KEY)) {
+            return itemStore.get(data.get(ItemStore.REFERENCE_KEY).getAsString());
+        }
+        return data.get("item").getAsString();
+    }
+
     /**
      * Get an ItemStack from a JsonObject.
      *
@@ -17,12 +17,16 @@
 
 package me.gnat008.perworldinventory.data.serializers;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import me.gnat008.perworldinventory.util.FileUtils;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.World;
 
+import java.io.IOException;
+import java.io.StringWriter;
+
 public class LocationSerializer {
 
     private LocationSerializer() {}
@@ -34,16 +38,35 @@ public class LocationSerializer {
      * @return The JsonObject in String form
      */
     public static String serialize(Location location) {
-        Gson gson = new Gson();
-        JsonObject root = new JsonObject();
+        StringWriter out = new StringWriter();
+        try {
+            serialize(location, FileUtils.newJsonWriter(out));
+        } catch (IOException ex) {
+            // A StringWriter does not throw
+            throw new IllegalStateException(ex);
+        }
+
+        return out.toString();
+    }
 
-        root.addProperty("world", location.getWorld().getName());
-        root.addProperty("x", location.getX());
-        root.addProperty("y", location.getY());
-        root.addProperty("z", location.getZ());
-        root.addProperty("pitch", location.getPitch());
-        root.addProperty("yaw", location.getYaw());
-        return gson.toJson(root);
+    /**
+     * Serialize a Location straight to a writer. The output is the same as that
+     * of {@link LocationSerializer#serialize(Location)}.
+     *
+     * @param location The {@link org.bukkit.Location}
+     * @param writer The writer to write to
+     * @throws IOException If the location could not be written
+     */
+    public static void serialize(Location location, JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("world").value(location.getWorld().getName());
+        writer.name("x").value(location.getX());
+        writer.name("y").value(location.getY());
+        writer.name("z").value(location.getZ());
+        // Boxed, so they are written as floats rather than widened to doubles
+        writer.name("pitch").value(Float.valueOf(location.getPitch()));
+        writer.name("yaw").value(Float.valueOf(location.getYaw()));
+        writer.endObject();
     }
 
     /**
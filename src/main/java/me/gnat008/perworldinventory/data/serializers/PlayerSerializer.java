@@ -18,33 +18,66 @@
 package me.gnat008.perworldinventory.data.serializers;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import me.gnat008.perworldinventory.BukkitService;
 import me.gnat008.perworldinventory.PerWorldInventory;
 import me.gnat008.perworldinventory.ConsoleLogger;
-import me.gnat008.perworldinventory.config.PwiProperties;
-import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.EconomyService;
+import me.gnat008.perworldinventory.data.ProfileCheck;
+import me.gnat008.perworldinventory.data.ProfileSection;
 import me.gnat008.perworldinventory.data.players.PWIPlayer;
+import me.gnat008.perworldinventory.data.players.PWIPlayerFactory;
+import me.gnat008.perworldinventory.data.players.PlayerField;
+import me.gnat008.perworldinventory.data.players.ProfileApplier;
+import me.gnat008.perworldinventory.data.players.StoredItems;
 import me.gnat008.perworldinventory.events.InventoryLoadCompleteEvent;
-import net.milkbowl.vault.economy.Economy;
-import net.milkbowl.vault.economy.EconomyResponse;
+import me.gnat008.perworldinventory.groups.Group;
+import me.gnat008.perworldinventory.util.FileUtils;
+import me.gnat008.perworldinventory.util.FlightRecorder;
+import me.gnat008.perworldinventory.util.JsonChecksum;
 import org.bukkit.Bukkit;
+import org.bukkit.GameMode;
 import org.bukkit.entity.Player;
 
 import javax.inject.Inject;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
 
 public class PlayerSerializer {
 
+    /** The data format that is written. See {@link #serialize(PWIPlayer)}. */
+    public static final int DATA_FORMAT = 2;
+
+    /** Gson is thread safe, so every save shares this instance. */
+    public static final Gson GSON = new Gson();
+
+    private static final int ENDER_CHEST_SIZE = 27;
+    private static final int INVENTORY_SIZE = 36;
+
     @Inject
     private BukkitService bukkitService;
     @Inject
     private InventorySerializer inventorySerializer;
     @Inject
-    private Settings settings;
+    private PWIPlayerFactory pwiPlayerFactory;
+    @Inject
+    private ProfileApplier profileApplier;
     @Inject
     private StatSerializer statSerializer;
     @Inject
     private PerWorldInventory plugin;
+    @Inject
+    private EconomyService economyService;
 
     PlayerSerializer() {}
 
@@ -63,66 +96,243 @@ public class PlayerSerializer {
      * @return The serialized stats.
      */
     public String serialize(PWIPlayer player) {
-        Gson gson = new Gson();
-        JsonObject root = new JsonObject();
+        StringWriter out = new StringWriter();
+        try {
+            serialize(player, FileUtils.newJsonWriter(out));
+        } catch (IOException ex) {
+            // A StringWriter does not throw
+            throw new IllegalStateException(ex);
+        }
+
+        return JsonChecksum.append(out.toString());
+    }
 
+    /**
+     * Serialize a Player straight to a writer, without building the whole document first.
+     * The output is the same as that of {@link PlayerSerializer#serialize(PWIPlayer)}, without
+     * the checksum; {@link FileUtils#writeJson(java.io.File, FileUtils.JsonContent, boolean)} adds it.
+     *
+     * @param player The player to serialize.
+     * @param writer The writer to write to.
+     * @throws IOException If the data could not be written.
+     */
+    public void serialize(PWIPlayer player, JsonWriter writer) throws IOException {
         ConsoleLogger.debug("[SERIALIZER] Serializing player '" + player.getName()+ "'");
-        root.addProperty("data-format", 2);
-        root.add("ender-chest", inventorySerializer.serializeInventory(player.getEnderChest()));
-        root.add("inventory", inventorySerializer.serializePlayerInventory(player));
-        root.add("stats", StatSerializer.serialize(player));
+        FlightRecorder.Event event = FlightRecorder.begin(FlightRecorder.Type.SERIALIZE).player(player.getUuid())
+                .group(player.getGroup() == null ? null : player.getGroup().getName()).gameMode(player.getGamemode());
+        writer.beginObject();
+        writer.name("data-format").value(DATA_FORMAT);
+        writer.name("ender-chest");
+        StoredItems storedEnderChest = player.getStoredEnderChest();
+        if (storedEnderChest != null) {
+            // Never decoded, so it is written back as it was read
+            GSON.toJson(storedEnderChest.getJson(), writer);
+        } else {
+            inventorySerializer.writeInventory(player.getEnderChest(), writer);
+        }
+        writer.name("inventory");
+        inventorySerializer.writePlayerInventory(player, writer);
+        writer.name("stats");
+        GSON.toJson(StatSerializer.serialize(player), writer);
 
-        if (plugin.isEconEnabled())
-            root.add("economy", EconomySerializer.serialize(player, plugin.getEconomy()));
+        if (plugin.isEconEnabled()) {
+            writer.name("economy");
+            GSON.toJson(EconomySerializer.serialize(player, plugin.getEconomy()), writer);
+        }
 
+        writer.endObject();
+        event.commit();
         ConsoleLogger.debug("[SERIALIZER] Done serializing player '" + player.getName()+ "'");
-
-        return gson.toJson(root);
     }
 
     /**
      * Deserialize all aspects of a player, and apply their data. See {@link PlayerSerializer#serialize(PWIPlayer)}
      * for an explanation of the data format number.
      *
-     * @param data   The saved player information.
-     * @param player The Player to apply the deserialized information to.
+     * @param data     The saved player information.
+     * @param player   The Player to apply the deserialized information to.
+     * @param group    The group of the profile that is loaded.
+     * @param gamemode The gamemode of the profile that is loaded.
+     * @param cause    The reason the data is loaded.
      */
-    public void deserialize(final JsonObject data, final Player player, DeserializeCause cause) {
+    public void deserialize(final JsonObject data, final Player player, Group group, GameMode gamemode,
+                            DeserializeCause cause) {
         ConsoleLogger.debug("[SERIALIZER] Deserializing player '" + player.getName()+ "'");
+        FlightRecorder.Event deserializeEvent = FlightRecorder.begin(FlightRecorder.Type.DESERIALIZE)
+                .player(player.getUniqueId()).group(group.getName()).gameMode(gamemode).cause(cause);
 
         int format = 0;
         if (data.has("data-format"))
             format = data.get("data-format").getAsInt();
 
-        if (settings.getProperty(PwiProperties.LOAD_ENDER_CHESTS) && data.has("ender-chest"))
-            player.getEnderChest().setContents(inventorySerializer.deserializeInventory(data.getAsJsonArray("ender-chest"),
-                    player.getEnderChest().getSize(), format));
-        if (settings.getProperty(PwiProperties.LOAD_INVENTORY) && data.has("inventory"))
-            inventorySerializer.setInventory(player, data.getAsJsonObject("inventory"), format);
+        // Only the fields that are loaded are read; the profile is then applied like a cached one
+        PWIPlayer profile = pwiPlayerFactory.createEmpty(player);
+        Set<PlayerField> present = EnumSet.noneOf(PlayerField.class);
+        if (profileApplier.isEnabled(PlayerField.ENDER_CHEST) && data.has("ender-chest")) {
+            JsonArray enderChest = data.getAsJsonArray("ender-chest");
+            int size = player.getEnderChest().getSize();
+            if (profileApplier.isEnderChestLazy() && format == DATA_FORMAT) {
+                profile.setStoredEnderChest(new StoredItems(enderChest,
+                        items -> inventorySerializer.deserializeInventory(items, size, DATA_FORMAT)));
+            } else {
+                profile.setEnderChest(inventorySerializer.deserializeInventory(enderChest, size, format));
+            }
+            present.add(PlayerField.ENDER_CHEST);
+        }
+        if (profileApplier.isEnabled(PlayerField.INVENTORY) && data.has("inventory")) {
+            inventorySerializer.deserializePlayerInventory(profile, data.getAsJsonObject("inventory"),
+                    player.getInventory().getSize(), format);
+            present.add(PlayerField.INVENTORY);
+        }
         if (data.has("stats"))
-            statSerializer.deserialize(player, data.getAsJsonObject("stats"), format);
+            statSerializer.deserialize(data.getAsJsonObject("stats"), format, profile, present);
+        FlightRecorder.Event applyEvent = FlightRecorder.begin(FlightRecorder.Type.APPLY)
+                .player(player.getUniqueId()).group(group.getName()).gameMode(gamemode).cause(cause);
+        profileApplier.apply(player, profile, present);
+
         if (plugin.isEconEnabled()) {
-            Economy econ = plugin.getEconomy();
-            if (econ == null) {
-                ConsoleLogger.warning("Economy saving is turned on, but no economy found!");
-                return;
+            double balance = data.has("economy") ? EconomySerializer.deserialize(data.getAsJsonObject("economy")) : 0;
+            ConsoleLogger.debug("[ECON] Setting the balance of '" + player.getName() + "' to " + balance);
+            economyService.setBalance(player, balance);
+        }
+        applyEvent.commit();
+        deserializeEvent.commit();
+
+        ConsoleLogger.debug("[SERIALIZER] Done deserializing player '" + player.getName()+ "'");
+
+        // Call event to signal loading is done
+        InventoryLoadCompleteEvent event = new InventoryLoadCompleteEvent(player, cause);
+        bukkitService.callEvent(event);
+    }
+
+    /**
+     * Read some sections of stored data into a profile. The data is streamed, and the sections
+     * that are not requested are skipped without being parsed or decoded. Reading stops as soon
+     * as all requested sections and the data format have been seen.
+     * <p>
+     * All stats are read, also the ones that are not loaded when a player changes worlds.
+     *
+     * @param reader The reader of the stored data.
+     * @param profile The profile to fill.
+     * @param sections The sections to read.
+     * @return The requested sections that were found in the data.
+     * @throws IOException If the data could not be read.
+     */
+    public Set<ProfileSection> readSections(JsonReader reader, PWIPlayer profile, Set<ProfileSection> sections)
+            throws IOException {
+        Map<ProfileSection, JsonElement> found = new EnumMap<>(ProfileSection.class);
+        int format = -1;
+
+        // Old files do not always start with the data format, so it may come after the sections
+        JsonParser parser = new JsonParser();
+        reader.beginObject();
+        while (reader.hasNext() && (format < 0 || found.size() < sections.size())) {
+            String name = reader.nextName();
+            ProfileSection section = ProfileSection.fromKey(name);
+            if (name.equals("data-format")) {
+                format = reader.nextInt();
+            } else if (section != null && sections.contains(section)) {
+                found.put(section, parser.parse(reader));
+            } else {
+                reader.skipValue();
             }
+        }
+        format = Math.max(format, 0);
 
-            ConsoleLogger.debug("[ECON] Withdrawing " + econ.getBalance(player) + " from '" + player.getName() + "'!");
-            EconomyResponse er = econ.withdrawPlayer(player, econ.getBalance(player));
-            if (!er.transactionSuccess()) {
-                ConsoleLogger.warning("[ECON] Unable to withdraw funds from '" + player.getName() + "': " + er.errorMessage);
+        for (Map.Entry<ProfileSection, JsonElement> entry : found.entrySet()) {
+            JsonElement value = entry.getValue();
+            switch (entry.getKey()) {
+                case ENDER_CHEST:
+                    JsonArray enderChest = value.getAsJsonArray();
+                    profile.setEnderChest(inventorySerializer.deserializeInventory(enderChest,
+                            getSize(enderChest, ENDER_CHEST_SIZE), format));
+                    break;
+                case INVENTORY:
+                    JsonObject inventory = value.getAsJsonObject();
+                    inventorySerializer.deserializePlayerInventory(profile, inventory,
+                            getSize(inventory.getAsJsonArray("inventory"), INVENTORY_SIZE), format);
+                    break;
+                case STATS:
+                    statSerializer.deserializeAll(value.getAsJsonObject(), format, profile,
+                            EnumSet.noneOf(PlayerField.class));
+                    break;
+                case ECONOMY:
+                    profile.setBalance(EconomySerializer.deserialize(value.getAsJsonObject()));
+                    break;
+                default:
+                    throw new IllegalStateException("Unhandled section '" + entry.getKey() + "'");
             }
+        }
+
+        return found.isEmpty() ? EnumSet.noneOf(ProfileSection.class) : EnumSet.copyOf(found.keySet());
+    }
+
+    /**
+     * Check stored data for damage: that it matches its checksum, if it has one, and that every
+     * section and item in it can be decoded. Nothing is applied or logged.
+     *
+     * @param data The stored data.
+     * @param profile An empty profile to decode the data into.
+     * @return The result.
+     */
+    public ProfileCheck verify(String data, PWIPlayer profile) {
+        return verify(data.getBytes(StandardCharsets.UTF_8), profile);
+    }
 
-            if (data.has("economy") && er.transactionSuccess()) {
-                EconomySerializer.deserialize(econ, data.getAsJsonObject("economy"), player);
+    /**
+     * Check stored data for damage, like {@link #verify(String, PWIPlayer)}, with the checksum
+     * checked against the bytes as they were stored in UTF-8.
+     *
+     * @param data The stored bytes.
+     * @param profile An empty profile to decode the data into.
+     * @return The result.
+     */
+    public ProfileCheck verify(byte[] data, PWIPlayer profile) {
+        JsonChecksum.Result checksum = JsonChecksum.check(data);
+        if (checksum == JsonChecksum.Result.INVALID) {
+            return ProfileCheck.corrupt("The checksum does not match");
+        }
+
+        try {
+            JsonObject root = new JsonParser().parse(new String(data, StandardCharsets.UTF_8)).getAsJsonObject();
+            int format = root.has("data-format") ? root.get("data-format").getAsInt() : 0;
+            if (format < 0 || format > DATA_FORMAT) {
+                return ProfileCheck.corrupt("Unknown data format " + format);
+            }
+
+            if (root.has("ender-chest")) {
+                inventorySerializer.checkInventory(root.getAsJsonArray("ender-chest"), format);
+            }
+            if (root.has("inventory")) {
+                JsonObject inventory = root.getAsJsonObject("inventory");
+                inventorySerializer.checkInventory(inventory.getAsJsonArray("inventory"), format);
+                inventorySerializer.checkInventory(inventory.getAsJsonArray("armor"), format);
             }
+            if (root.has("stats")) {
+                statSerializer.deserializeAll(root.getAsJsonObject("stats"), format, profile, EnumSet.noneOf(PlayerField.class));
+            }
+            if (root.has("economy")) {
+                EconomySerializer.deserialize(root.getAsJsonObject("economy"));
+            }
+        } catch (IOException | RuntimeException ex) {
+            return ProfileCheck.corrupt(ex.getMessage() != null ? ex.getMessage() : ex.getClass().getSimpleName());
         }
 
-        ConsoleLogger.debug("[SERIALIZER] Done deserializing player '" + player.getName()+ "'");
+        return checksum == JsonChecksum.Result.VALID ? ProfileCheck.INTACT : ProfileCheck.UNCHECKED;
+    }
 
-        // Call event to signal loading is done
-        InventoryLoadCompleteEvent event = new InventoryLoadCompleteEvent(player, cause);
-        bukkitService.callEvent(event);
+    /**
+     * Get the size of an inventory that all stored items fit in, for players who may not be online.
+     */
+    private static int getSize(JsonArray items, int minimum) {
+        int size = minimum;
+        if (items != null) {
+            for (JsonElement item : items) {
+                if (item.isJsonObject() && item.getAsJsonObject().has("index")) {
+                    size = Math.max(size, item.getAsJsonObject().get("index").getAsInt() + 1);
+                }
+            }
+        }
+        return size;
     }
 }
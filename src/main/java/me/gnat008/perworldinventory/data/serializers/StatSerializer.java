@@ -18,23 +18,18 @@
 package me.gnat008.perworldinventory.data.serializers;
 
 import com.google.gson.JsonObject;
-import me.gnat008.perworldinventory.BukkitService;
-import me.gnat008.perworldinventory.config.PwiProperties;
-import me.gnat008.perworldinventory.config.Settings;
 import me.gnat008.perworldinventory.data.players.PWIPlayer;
+import me.gnat008.perworldinventory.data.players.PlayerField;
+import me.gnat008.perworldinventory.data.players.ProfileApplier;
 import org.bukkit.GameMode;
-import org.bukkit.attribute.Attribute;
-import org.bukkit.entity.Player;
 
 import javax.inject.Inject;
+import java.util.Set;
 
 public class StatSerializer {
 
     @Inject
-    BukkitService bukkitService;
-
-    @Inject
-    private Settings settings;
+    private ProfileApplier profileApplier;
 
     private StatSerializer() {}
 
@@ -68,81 +63,124 @@ public class StatSerializer {
     }
 
     /**
-     * Apply stats to a player.
+     * Read the stats that are loaded from storage into a profile.
      *
-     * @param player The Player to apply the stats to.
-     * @param stats  The stats to apply.
+     * @param stats   The stats to read.
      * @param dataFormat See {@link PlayerSerializer#serialize(PWIPlayer)}.
+     * @param profile The profile to fill.
+     * @param present The fields that were read are added to this set.
      */
-    public void deserialize(Player player,JsonObject stats, int dataFormat) {
-        if (settings.getProperty(PwiProperties.LOAD_CAN_FLY) && stats.has("can-fly"))
-            player.setAllowFlight(stats.get("can-fly").getAsBoolean());
-        if (settings.getProperty(PwiProperties.LOAD_DISPLAY_NAME) && stats.has("display-name"))
-            player.setDisplayName(stats.get("display-name").getAsString());
-        if (settings.getProperty(PwiProperties.LOAD_EXHAUSTION) && stats.has("exhaustion"))
-            player.setExhaustion((float) stats.get("exhaustion").getAsDouble());
-        if (settings.getProperty(PwiProperties.LOAD_EXP) && stats.has("exp"))
-            player.setExp((float) stats.get("exp").getAsDouble());
-        if (settings.getProperty(PwiProperties.LOAD_FLYING) && stats.has("flying") && player.getAllowFlight())
-            player.setFlying(stats.get("flying").getAsBoolean());
-        if (settings.getProperty(PwiProperties.LOAD_HUNGER) && stats.has("food"))
-            player.setFoodLevel(stats.get("food").getAsInt());
-        if (settings.getProperty(PwiProperties.LOAD_HEALTH) &&
-                stats.has("max-health") &&
-                stats.has("health")) {
-            double maxHealth = stats.get("max-health").getAsDouble();
-            if (bukkitService.shouldUseAttributes()) {
-                player.getAttribute(Attribute.GENERIC_MAX_HEALTH).setBaseValue(maxHealth);
-            } else {
-                player.setMaxHealth(maxHealth);
-            }
+    public void deserialize(JsonObject stats, int dataFormat, PWIPlayer profile, Set<PlayerField> present) {
+        read(stats, dataFormat, profile, present, false);
+    }
 
-            double health = stats.get("health").getAsDouble();
-            if (health > 0 && health <= maxHealth) {
-                player.setHealth(health);
-            } else {
-                player.setHealth(maxHealth);
-            }
+    /**
+     * Read all stats into a profile, including the ones that are not loaded.
+     *
+     * @param stats   The stats to read.
+     * @param dataFormat See {@link PlayerSerializer#serialize(PWIPlayer)}.
+     * @param profile The profile to fill.
+     * @param present The fields that were read are added to this set.
+     */
+    public void deserializeAll(JsonObject stats, int dataFormat, PWIPlayer profile, Set<PlayerField> present) {
+        read(stats, dataFormat, profile, present, true);
+    }
+
+    private void read(JsonObject stats, int dataFormat, PWIPlayer profile, Set<PlayerField> present, boolean all) {
+        if (reads(PlayerField.CAN_FLY, all) && stats.has("can-fly")) {
+            profile.setCanFly(stats.get("can-fly").getAsBoolean());
+            present.add(PlayerField.CAN_FLY);
         }
-        if (settings.getProperty(PwiProperties.LOAD_GAMEMODE) && (!settings.getProperty(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES)) && stats.has("gamemode")) {
-            if (stats.get("gamemode").getAsString().length() > 1) {
-                player.setGameMode(GameMode.valueOf(stats.get("gamemode").getAsString()));
-            } else {
-                int gm = stats.get("gamemode").getAsInt();
-                switch (gm) {
-                    case 0:
-                        player.setGameMode(GameMode.CREATIVE);
-                        break;
-                    case 1:
-                        player.setGameMode(GameMode.SURVIVAL);
-                        break;
-                    case 2:
-                        player.setGameMode(GameMode.ADVENTURE);
-                        break;
-                    case 3:
-                        player.setGameMode(GameMode.SPECTATOR);
-                        break;
-                }
-            }
+        if (reads(PlayerField.DISPLAY_NAME, all) && stats.has("display-name")) {
+            profile.setDisplayName(stats.get("display-name").getAsString());
+            present.add(PlayerField.DISPLAY_NAME);
+        }
+        if (reads(PlayerField.EXHAUSTION, all) && stats.has("exhaustion")) {
+            profile.setExhaustion((float) stats.get("exhaustion").getAsDouble());
+            present.add(PlayerField.EXHAUSTION);
+        }
+        if (reads(PlayerField.EXP, all) && stats.has("exp")) {
+            profile.setExperience((float) stats.get("exp").getAsDouble());
+            present.add(PlayerField.EXP);
+        }
+        if (reads(PlayerField.FLYING, all) && stats.has("flying")) {
+            profile.setFlying(stats.get("flying").getAsBoolean());
+            present.add(PlayerField.FLYING);
+        }
+        if (reads(PlayerField.FOOD, all) && stats.has("food")) {
+            profile.setFoodLevel(stats.get("food").getAsInt());
+            present.add(PlayerField.FOOD);
+        }
+        if (reads(PlayerField.HEALTH, all) && stats.has("max-health") && stats.has("health")) {
+            profile.setMaxHealth(stats.get("max-health").getAsDouble());
+            profile.setHealth(stats.get("health").getAsDouble());
+            present.add(PlayerField.HEALTH);
         }
-        if (settings.getProperty(PwiProperties.LOAD_LEVEL) && stats.has("level"))
-            player.setLevel(stats.get("level").getAsInt());
-        if (settings.getProperty(PwiProperties.LOAD_POTION_EFFECTS) && stats.has("potion-effects")) {
-            if (dataFormat < 2) {
-                PotionEffectSerializer.setPotionEffects(stats.get("potion-effects").getAsString(), player);
-            } else {
-                PotionEffectSerializer.setPotionEffects(stats.getAsJsonArray("potion-effects"), player);
+        if (reads(PlayerField.GAMEMODE, all) && stats.has("gamemode")) {
+            GameMode gameMode = deserializeGameMode(stats.get("gamemode").getAsString());
+            if (gameMode != null) {
+                profile.setGamemode(gameMode);
+                present.add(PlayerField.GAMEMODE);
             }
         }
-        if (settings.getProperty(PwiProperties.LOAD_SATURATION) && stats.has("saturation"))
-            player.setSaturation((float) stats.get("saturation").getAsDouble());
-        if (settings.getProperty(PwiProperties.LOAD_FALL_DISTANCE) && stats.has("fallDistance"))
-            player.setFallDistance(stats.get("fallDistance").getAsFloat());
-        if (settings.getProperty(PwiProperties.LOAD_FIRE_TICKS) && stats.has("fireTicks"))
-            player.setFireTicks(stats.get("fireTicks").getAsInt());
-        if (settings.getProperty(PwiProperties.LOAD_MAX_AIR) && stats.has("maxAir"))
-            player.setMaximumAir(stats.get("maxAir").getAsInt());
-        if (settings.getProperty(PwiProperties.LOAD_REMAINING_AIR) && stats.has("remainingAir"))
-            player.setRemainingAir(stats.get("remainingAir").getAsInt());
+        if (reads(PlayerField.LEVEL, all) && stats.has("level")) {
+            profile.setLevel(stats.get("level").getAsInt());
+            present.add(PlayerField.LEVEL);
+        }
+        if (reads(PlayerField.POTION_EFFECTS, all) && stats.has("potion-effects")) {
+            profile.setPotionEffects(dataFormat < 2
+                    ? PotionEffectSerializer.deserialize(stats.get("potion-effects").getAsString())
+                    : PotionEffectSerializer.deserialize(stats.getAsJsonArray("potion-effects")));
+            present.add(PlayerField.POTION_EFFECTS);
+        }
+        if (reads(PlayerField.SATURATION, all) && stats.has("saturation")) {
+            profile.setSaturationLevel((float) stats.get("saturation").getAsDouble());
+            present.add(PlayerField.SATURATION);
+        }
+        if (reads(PlayerField.FALL_DISTANCE, all) && stats.has("fallDistance")) {
+            profile.setFallDistance(stats.get("fallDistance").getAsFloat());
+            present.add(PlayerField.FALL_DISTANCE);
+        }
+        if (reads(PlayerField.FIRE_TICKS, all) && stats.has("fireTicks")) {
+            profile.setFireTicks(stats.get("fireTicks").getAsInt());
+            present.add(PlayerField.FIRE_TICKS);
+        }
+        if (reads(PlayerField.MAX_AIR, all) && stats.has("maxAir")) {
+            profile.setMaxAir(stats.get("maxAir").getAsInt());
+            present.add(PlayerField.MAX_AIR);
+        }
+        if (reads(PlayerField.REMAINING_AIR, all) && stats.has("remainingAir")) {
+            profile.setRemainingAir(stats.get("remainingAir").getAsInt());
+            present.add(PlayerField.REMAINING_AIR);
+        }
+    }
+
+    private boolean reads(PlayerField field, boolean all) {
+        return all || profileApplier.isEnabled(field);
+    }
+
+    /**
+     * Get a GameMode from its name, or from the number it was stored as in old versions.
+     *
+     * @param value The stored value.
+     * @return The GameMode, or null if the value is unknown.
+     */
+    private static GameMode deserializeGameMode(String value) {
+        if (value.length() > 1) {
+            return GameMode.valueOf(value);
+        }
+
+        switch (value) {
+            case "0":
+                return GameMode.CREATIVE;
+            case "1":
+                return GameMode.SURVIVAL;
+            case "2":
+                return GameMode.ADVENTURE;
+            case "3":
+                return GameMode.SPECTATOR;
+            default:
+                return null;
+        }
     }
 }
@@ -20,6 +20,8 @@ package me.gnat008.perworldinventory.groups;
 import org.bukkit.GameMode;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -31,6 +33,7 @@ public class Group {
 
     private String name;
     private Set<String> worlds;
+    private List<String> patterns = Collections.emptyList();
     private GameMode gameMode;
     private boolean configured;
 
@@ -81,6 +84,25 @@ public class Group {
         return this.worlds;
     }
 
+    /**
+     * Get the world patterns of this group. Worlds whose name matches one of the patterns
+     * are in this group as well.
+     *
+     * @return A List of patterns, as written in the worlds.yml file.
+     */
+    public List<String> getPatterns() {
+        return this.patterns;
+    }
+
+    /**
+     * Set the world patterns of this group.
+     *
+     * @param patterns A list of patterns, as written in the worlds.yml file.
+     */
+    public void setPatterns(List<String> patterns) {
+        this.patterns = patterns;
+    }
+
     /**
      * Get the name of this group.
      *
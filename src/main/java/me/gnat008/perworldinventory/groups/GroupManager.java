@@ -29,11 +29,18 @@ import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class GroupManager {
 
     private Map<String, Group> groups = new HashMap<>();
 
+    // Groups of worlds that are not in worlds.yml, by lowercase name; dropped when their world unloads
+    private final Map<String, Group> unconfiguredGroups = new ConcurrentHashMap<>();
+    // Memoized result of getGroupFromWorld, by world name
+    private final Map<String, Group> worldGroups = new ConcurrentHashMap<>();
+    private volatile WorldMatcher matcher = WorldMatcher.compile(Collections.emptyList());
+
     @Inject
     private PerWorldInventory plugin;
 
@@ -44,15 +51,17 @@ public class GroupManager {
 
     public void clearGroups() {
         groups.clear();
+        recompile();
     }
 
     /**
-     * Get the total number of groups. Used for metrics collecting.
+     * Get the total number of groups, including the groups of loaded worlds that
+     * are not configured. Used for metrics collecting.
      *
      * @return The number of groups.
      */
     public int countGroups() {
-        return groups.size();
+        return groups.size() + unconfiguredGroups.size();
     }
 
     /**
@@ -73,11 +82,46 @@ public class GroupManager {
      * @param gamemode The default GameMode for this group.
      */
     public void addGroup(String name, Collection<String> worlds, GameMode gamemode) {
-        ConsoleLogger.debug("Adding group to memory. Group: " + name + " Worlds: " + worlds.toString() + " Gamemode: " + gamemode.name());
+        addGroup(name, worlds, Collections.emptyList(), gamemode);
+    }
+
+    /**
+     * Add a Group to memory.
+     *
+     * @param name The name of the group.
+     * @param worlds A list of world names in this group.
+     * @param patterns A list of world patterns of this group, see {@link WorldMatcher}.
+     * @param gamemode The default GameMode for this group.
+     */
+    public void addGroup(String name, Collection<String> worlds, List<String> patterns, GameMode gamemode) {
+        putGroup(name, worlds, patterns, gamemode);
+        recompile();
+    }
+
+    /**
+     * Add a Group to memory without rebuilding the world matcher, so a bulk load only
+     * builds it once at the end.
+     */
+    private void putGroup(String name, Collection<String> worlds, List<String> patterns, GameMode gamemode) {
+        ConsoleLogger.debug("Adding group to memory. Group: " + name + " Worlds: " + worlds.toString()
+                + " Patterns: " + patterns.toString() + " Gamemode: " + gamemode.name());
 
         Set<String> worldSet = new HashSet<>();
         worldSet.addAll(worlds);
-        groups.put(name.toLowerCase(), new Group(name, worldSet, gamemode, true));
+        Group group = new Group(name, worldSet, gamemode, true);
+        group.setPatterns(new ArrayList<>(patterns));
+        groups.put(name.toLowerCase(), group);
+    }
+
+    /**
+     * Add worlds to an existing group.
+     *
+     * @param group The group to add the worlds to.
+     * @param worlds A list of world names to add.
+     */
+    public void addWorlds(Group group, Collection<String> worlds) {
+        group.addWorlds(worlds);
+        recompile();
     }
 
     /**
@@ -88,36 +132,68 @@ public class GroupManager {
      * @return The Group, or null.
      */
     public Group getGroup(String group) {
-        return groups.get(group.toLowerCase());
+        Group result = groups.get(group.toLowerCase());
+        return result != null ? result : unconfiguredGroups.get(group.toLowerCase());
     }
 
     /**
-     * Get a group by the name of a world. This method iterates through the groups
-     * and checks if each one contains the name of the given world. If no groups contain
-     * the world, a new group will be created and returned.
+     * Get a group by the name of a world. The world names and patterns of all groups are
+     * compiled into a {@link WorldMatcher}, and the result is remembered until the world
+     * unloads. If no groups contain the world, a new group will be created and returned.
      *
      * @param world The name of the world in the group.
      * @return The group that contains the given world.
      */
     public Group getGroupFromWorld(String world) {
-        Group result = null;
-        for (Group group : this.groups.values()) {
+        Group result = worldGroups.get(world);
+        if (result != null) {
+            return result;
+        }
+
+        result = matcher.match(world);
+        if (result == null) {
+            result = findUnconfiguredGroup(world);
+        }
+
+        worldGroups.put(world, result);
+        return result;
+    }
+
+    /**
+     * Forget the group of a world, when the world unloads. If the world was not configured,
+     * its group is removed as well; worlds created for a single minigame round would otherwise
+     * stay in memory forever.
+     *
+     * @param world The name of the world.
+     */
+    public void onWorldUnload(String world) {
+        Group group = worldGroups.remove(world);
+        if (group != null && !group.isConfigured() && !worldGroups.containsValue(group)) {
+            unconfiguredGroups.remove(group.getName().toLowerCase(), group);
+        }
+    }
+
+    private Group findUnconfiguredGroup(String world) {
+        for (Group group : unconfiguredGroups.values()) {
             if (group.containsWorld(world)) {
-                result = group;
+                return group;
             }
         }
 
-        if (result == null) { // If true, world was not defined in worlds.yml
-            Set<String> worlds = new HashSet<>();
-            worlds.add(world);
-            worlds.add(world + "_nether");
-            worlds.add(world + "_the_end");
-            result = new Group(world, worlds, GameMode.SURVIVAL, false);
+        // World was not defined in worlds.yml
+        Set<String> worlds = new HashSet<>();
+        worlds.add(world);
+        worlds.add(world + "_nether");
+        worlds.add(world + "_the_end");
+        Group group = new Group(world, worlds, GameMode.SURVIVAL, false);
 
-            groups.put(world.toLowerCase(), result);
-        }
+        Group existing = unconfiguredGroups.putIfAbsent(world.toLowerCase(), group);
+        return existing != null ? existing : group;
+    }
 
-        return result;
+    private void recompile() {
+        matcher = WorldMatcher.compile(groups.values());
+        worldGroups.clear();
     }
 
     /**
@@ -127,6 +203,7 @@ public class GroupManager {
      */
     public void loadGroupsToMemory(FileConfiguration config) {
         groups.clear();
+        unconfiguredGroups.clear();
 
         for (String key : config.getConfigurationSection("groups.").getKeys(false)) {
             List<String> worlds;
@@ -141,19 +218,18 @@ public class GroupManager {
                 }
             }
 
-            if (settings.getProperty(PwiProperties.MANAGE_GAMEMODES)) {
-                GameMode gameMode = GameMode.SURVIVAL;
-                if (config.getString("groups." + key + ".default-gamemode") != null) {
-                    gameMode = GameMode.valueOf(config.getString("groups." + key + ".default-gamemode").toUpperCase());
-                }
+            List<String> patterns = config.getStringList("groups." + key + ".patterns");
 
-                addGroup(key, worlds, gameMode);
-            } else {
-                addGroup(key, worlds);
+            GameMode gameMode = GameMode.SURVIVAL;
+            if (settings.getProperty(PwiProperties.MANAGE_GAMEMODES)
+                    && config.getString("groups." + key + ".default-gamemode") != null) {
+                gameMode = GameMode.valueOf(config.getString("groups." + key + ".default-gamemode").toUpperCase());
             }
+            putGroup(key, worlds, patterns, gameMode);
 
             setDefaultsFile(key);
         }
+        recompile();
     }
 
     /**
@@ -168,6 +244,9 @@ public class GroupManager {
             String groupKey = "groups." + group.getName();
             groupsConfigFile.set(groupKey, null);
             groupsConfigFile.set(groupKey + ".worlds", group.getWorlds());
+            if (!group.getPatterns().isEmpty()) {
+                groupsConfigFile.set(groupKey + ".patterns", group.getPatterns());
+            }
             // Saving gamemode regardless of management; might be saving after convert
             groupsConfigFile.set(groupKey + ".default-gamemode", group.getGameMode().name());
         }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.groups;
+
+import me.gnat008.perworldinventory.ConsoleLogger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Finds the configured group of a world, from the world lists and world patterns of all groups.
+ * <p>
+ * World names and prefixes are stored in a trie, so a lookup walks the world name once no matter
+ * how many groups there are. Globs that only end in a wildcard are prefixes as well. All other
+ * patterns become regexes, which are tried in the order they are configured in if no world
+ * name or prefix matches. An exact world name beats a prefix, and a longer prefix beats a shorter one.
+ * <p>
+ * Patterns are written as {@code prefix:bw_arena_}, {@code glob:sw_*} or {@code regex:^mg_[0-9]+$}.
+ * A pattern without a type is read as a glob.
+ */
+final class WorldMatcher {
+
+    private static final String PREFIX = "prefix:";
+    private static final String GLOB = "glob:";
+    private static final String REGEX = "regex:";
+
+    private final Node root = new Node();
+    private final List<RegexRule> regexRules = new ArrayList<>();
+
+    private WorldMatcher() {
+    }
+
+    /**
+     * Compile the worlds and patterns of a number of groups.
+     *
+     * @param groups The groups to compile.
+     * @return The matcher.
+     */
+    static WorldMatcher compile(Collection<Group> groups) {
+        WorldMatcher matcher = new WorldMatcher();
+        for (Group group : groups) {
+            if (group.getWorlds() != null) {
+                for (String world : group.getWorlds()) {
+                    Node node = matcher.insert(world);
+                    if (node.exact != null && node.exact != group) {
+                        ConsoleLogger.warning("World '" + world + "' is in both group '" + node.exact.getName()
+                                + "' and group '" + group.getName() + "'; using '" + group.getName() + "'");
+                    }
+                    node.exact = group;
+                }
+            }
+            for (String pattern : group.getPatterns()) {
+                matcher.addPattern(group, pattern);
+            }
+        }
+
+        return matcher;
+    }
+
+    /**
+     * Get the group a world belongs to.
+     *
+     * @param world The name of the world.
+     * @return The group, or null if no world name or pattern matches.
+     */
+    Group match(String world) {
+        Node node = root;
+        Group longestPrefix = root.prefix;
+        for (int i = 0; i < world.length() && node != null; i++) {
+            node = node.children.get(world.charAt(i));
+            if (node != null && node.prefix != null) {
+                longestPrefix = node.prefix;
+            }
+        }
+
+        if (node != null && node.exact != null) {
+            return node.exact;
+        }
+        if (longestPrefix != null) {
+            return longestPrefix;
+        }
+
+        for (RegexRule rule : regexRules) {
+            if (rule.pattern.matcher(world).matches()) {
+                return rule.group;
+            }
+        }
+        return null;
+    }
+
+    private void addPattern(Group group, String pattern) {
+        if (pattern.startsWith(PREFIX)) {
+            insert(pattern.substring(PREFIX.length())).prefix = group;
+        } else if (pattern.startsWith(REGEX)) {
+            addRegex(group, pattern, pattern.substring(REGEX.length()));
+        } else {
+            String glob = pattern.startsWith(GLOB) ? pattern.substring(GLOB.length()) : pattern;
+            int firstWildcard = indexOfWildcard(glob);
+            if (firstWildcard == glob.length() - 1 && glob.charAt(firstWildcard) == '*') {
+                insert(glob.substring(0, firstWildcard)).prefix = group;
+            } else if (firstWildcard == -1) {
+                insert(glob).exact = group;
+            } else {
+                addRegex(group, pattern, globToRegex(glob));
+            }
+        }
+    }
+
+    private void addRegex(Group group, String pattern, String regex) {
+        try {
+            regexRules.add(new RegexRule(Pattern.compile(regex), group));
+        } catch (PatternSyntaxException ex) {
+            ConsoleLogger.warning("Ignoring invalid world pattern '" + pattern + "' of group '" + group.getName()
+                    + "': " + ex.getDescription());
+        }
+    }
+
+    private Node insert(String key) {
+        Node node = root;
+        for (int i = 0; i < key.length(); i++) {
+            node = node.children.computeIfAbsent(key.charAt(i), c -> new Node());
+        }
+        return node;
+    }
+
+    private static int indexOfWildcard(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            if (glob.charAt(i) == '*' || glob.charAt(i) == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return regex.toString();
+    }
+
+    private static final class Node {
+        private final Map<Character, Node> children = new HashMap<>();
+        /** Group of the world whose name ends at this node. */
+        private Group exact;
+        /** Group of the worlds whose name starts with the characters up to this node. */
+        private Group prefix;
+    }
+
+    private static final class RegexRule {
+        private final Pattern pattern;
+        private final Group group;
+
+        RegexRule(Pattern pattern, Group group) {
+            this.pattern = pattern;
+            this.group = group;
+        }
+    }
+}
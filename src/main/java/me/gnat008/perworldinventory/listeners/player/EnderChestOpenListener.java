@@ -0,0 +1,45 @@
+package me.gnat008.perworldinventory.listeners.player;
+
+import me.gnat008.perworldinventory.data.players.LazyEnderChests;
+import org.bukkit.entity.HumanEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.inventory.InventoryOpenEvent;
+import org.bukkit.event.inventory.InventoryType;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
+
+import javax.inject.Inject;
+
+/**
+ * Listens for ender chests being opened, to decode their contents if they were deferred.
+ * See {@link LazyEnderChests}.
+ */
+public class EnderChestOpenListener implements Listener {
+
+    @Inject
+    private LazyEnderChests lazyEnderChests;
+
+    EnderChestOpenListener() {}
+
+    // Lowest, so the items are there before other plugins look at the inventory
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onInventoryOpen(InventoryOpenEvent event) {
+        Inventory inventory = event.getInventory();
+        if (inventory.getType() != InventoryType.ENDER_CHEST) {
+            return;
+        }
+
+        // Admins may open the ender chest of someone else
+        InventoryHolder holder = inventory.getHolder();
+        if (holder instanceof Player) {
+            lazyEnderChests.materialize((Player) holder);
+        }
+        HumanEntity viewer = event.getPlayer();
+        if (viewer instanceof Player && inventory.equals(viewer.getEnderChest())) {
+            lazyEnderChests.materialize((Player) viewer);
+        }
+    }
+}
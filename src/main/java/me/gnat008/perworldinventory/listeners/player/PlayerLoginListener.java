@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.listeners.player;
+
+import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.data.DataSource;
+import me.gnat008.perworldinventory.data.StorageScheduler;
+import me.gnat008.perworldinventory.data.players.PWIPlayerManager;
+import org.bukkit.ChatColor;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerLoginEvent;
+
+import javax.inject.Inject;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes sure a player's data is no longer being saved elsewhere before they log in.
+ */
+public class PlayerLoginListener implements Listener {
+
+    private DataSource dataSource;
+    private PWIPlayerManager playerManager;
+    private StorageScheduler storageScheduler;
+
+    /** Players whose data was acquired, but who may still be denied by another plugin. */
+    private final Set<UUID> acquired = ConcurrentHashMap.newKeySet();
+
+    @Inject
+    PlayerLoginListener(DataSource dataSource, PWIPlayerManager playerManager, StorageScheduler storageScheduler) {
+        this.dataSource = dataSource;
+        this.playerManager = playerManager;
+        this.storageScheduler = storageScheduler;
+    }
+
+    @EventHandler(priority = EventPriority.HIGHEST)
+    public void onPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return;
+        }
+
+        // Login events are fired off the main thread, so the player can wait here
+        if (dataSource.acquirePlayer(event.getUniqueId())) {
+            acquired.add(event.getUniqueId());
+        } else {
+            ConsoleLogger.warning("Not letting '" + event.getName() + "' join, their data is still being saved elsewhere");
+            event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, ChatColor.RED + "Your inventory is still "
+                    + "being saved on another server. Please try again in a moment");
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLoginResult(AsyncPlayerPreLoginEvent event) {
+        if (acquired.remove(event.getUniqueId()) && event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            dataSource.releasePlayer(event.getUniqueId());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onLogin(PlayerLoginEvent event) {
+        UUID uuid = event.getPlayer().getUniqueId();
+        if (event.getResult() != PlayerLoginEvent.Result.ALLOWED) {
+            storageScheduler.runBackground(uuid, () -> dataSource.releasePlayer(uuid));
+            return;
+        }
+
+        // Anything cached from an earlier visit may have been changed on another server since
+        playerManager.removePlayer(uuid);
+    }
+}
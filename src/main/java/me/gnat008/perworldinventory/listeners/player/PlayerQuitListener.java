@@ -17,6 +17,7 @@
 
 package me.gnat008.perworldinventory.listeners.player;
 
+import me.gnat008.perworldinventory.permission.PermissionManager;
 import me.gnat008.perworldinventory.process.PlayerQuitProcess;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
@@ -30,21 +31,25 @@ import javax.inject.Inject;
 public class PlayerQuitListener implements Listener {
 
     private PlayerQuitProcess process;
+    private PermissionManager permissionManager;
 
     @Inject
-    PlayerQuitListener(PlayerQuitProcess process) {
+    PlayerQuitListener(PlayerQuitProcess process, PermissionManager permissionManager) {
         this.process = process;
+        this.permissionManager = permissionManager;
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerQuit(PlayerQuitEvent event) {
         Player player = event.getPlayer();
         process.processPlayerLeave(player);
+        permissionManager.invalidate(player);
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerKick(PlayerKickEvent event) {
         Player player = event.getPlayer();
         process.processPlayerLeave(player);
+        permissionManager.invalidate(player);
     }
 }
@@ -0,0 +1,26 @@
+package me.gnat008.perworldinventory.listeners.server;
+
+import me.gnat008.perworldinventory.groups.GroupManager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.WorldUnloadEvent;
+
+import javax.inject.Inject;
+
+/**
+ * Listens for worlds being unloaded, so that the groups of worlds that
+ * no longer exist are not kept in memory.
+ */
+public class WorldUnloadListener implements Listener {
+
+    @Inject
+    private GroupManager groupManager;
+
+    WorldUnloadListener() {}
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        groupManager.onWorldUnload(event.getWorld().getName());
+    }
+}
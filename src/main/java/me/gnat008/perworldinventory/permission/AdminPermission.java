@@ -2,6 +2,8 @@ package me.gnat008.perworldinventory.permission;
 
 public enum AdminPermission implements PermissionNode {
 
+    BULK("perworldinventory.bulk", DefaultPermission.OP_ONLY),
+
     CONVERT("perworldinventory.convert", DefaultPermission.OP_ONLY),
 
     HELP("perworldinventory.help", DefaultPermission.OP_ONLY),
@@ -10,6 +12,8 @@ public enum AdminPermission implements PermissionNode {
 
     SETDEFAULTS("perworldinventory.setdefaults", DefaultPermission.OP_ONLY),
 
+    STORAGE("perworldinventory.storage", DefaultPermission.OP_ONLY),
+
     VERSION("perworldinventory.version", DefaultPermission.OP_ONLY);
 
     private String node;
@@ -1,25 +1,51 @@
 package me.gnat008.perworldinventory.permission;
 
 import me.gnat008.perworldinventory.ConsoleLogger;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.PluginManager;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PermissionManager {
 
     private final PluginManager pluginManager;
+    private final Settings settings;
 
     private boolean usingPermissionsPlugin;
 
+    // Permission plugins may resolve inherited groups on every check, so decisions are cached per player.
+    // Permissions can differ per world, so they are kept per world they were made in
+    private final Map<UUID, Decisions> decisions = new ConcurrentHashMap<>();
+    private volatile long cacheMillis;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
     @Inject
-    PermissionManager(PluginManager pluginManager) {
+    PermissionManager(PluginManager pluginManager, Settings settings) {
         this.pluginManager = pluginManager;
+        this.settings = settings;
         checkForPlugins();
     }
 
+    /**
+     * Reads how long permission decisions are cached for, and forgets all cached decisions.
+     */
+    @PostConstruct
+    public void reload() {
+        cacheMillis = TimeUnit.SECONDS.toMillis(settings.getProperty(PwiProperties.PERMISSION_CACHE_SECONDS));
+        invalidateAll();
+    }
+
     /**
      * Evaluate whether the sender has permission to perform an action.
      *
@@ -35,18 +61,89 @@ public class PermissionManager {
             return node.getDefaultPermission().evaluate(sender);
 
         Player player = (Player) sender;
-        return player.hasPermission(node.getNode());
+        if (cacheMillis <= 0) {
+            return player.hasPermission(node.getNode());
+        }
+
+        long now = System.currentTimeMillis();
+        String world = player.getWorld().getName();
+        Decisions cached = decisions.get(player.getUniqueId());
+        if (cached == null || cached.expiresAt <= now) {
+            cached = new Decisions(now + cacheMillis);
+            decisions.put(player.getUniqueId(), cached);
+        }
+
+        Map<String, Boolean> permissions = cached.byWorld.computeIfAbsent(world, name -> new ConcurrentHashMap<>());
+        Boolean decision = permissions.get(node.getNode());
+        if (decision != null) {
+            hits.incrementAndGet();
+            return decision;
+        }
+
+        misses.incrementAndGet();
+        boolean result = player.hasPermission(node.getNode());
+        permissions.put(node.getNode(), result);
+        return result;
+    }
+
+    /**
+     * Cache the decisions of all permissions that are checked when a player switches worlds
+     * or game modes, so the first switch does not have to wait for the permission plugin.
+     *
+     * @param player The player to cache the decisions of.
+     */
+    public void cachePlayer(Player player) {
+        if (cacheMillis <= 0 || !usingPermissionsPlugin) {
+            return;
+        }
+
+        invalidate(player);
+        for (PlayerPermission permission : PlayerPermission.values()) {
+            hasPermission(player, permission);
+        }
+    }
+
+    /**
+     * Forget the cached permission decisions of a player, for example after changing their
+     * permissions or when they leave.
+     *
+     * @param player The player.
+     */
+    public void invalidate(Player player) {
+        decisions.remove(player.getUniqueId());
+    }
+
+    /**
+     * Forget the cached permission decisions of all players.
+     */
+    public void invalidateAll() {
+        decisions.clear();
+    }
+
+    /**
+     * Get the percentage of permission checks that were answered from the cache since the
+     * last call, and start counting again.
+     *
+     * @return The hit rate from 0 to 100, or 0 if there were no checks.
+     */
+    public int pollHitRate() {
+        int hitCount = hits.getAndSet(0);
+        int total = hitCount + misses.getAndSet(0);
+        return total == 0 ? 0 : hitCount * 100 / total;
     }
 
     public void onPluginDisable(String pluginName) {
         if (PermissionSystem.isPermissionSystem(pluginName)) {
             checkForPlugins();
+            invalidateAll();
         }
     }
 
     public void onPluginEnable(String pluginName) {
-        if (PermissionSystem.isPermissionSystem(pluginName))
+        if (PermissionSystem.isPermissionSystem(pluginName)) {
             checkForPlugins();
+            invalidateAll();
+        }
     }
 
     private void checkForPlugins() {
@@ -67,4 +164,14 @@ public class PermissionManager {
             }
         }
     }
+
+    private static final class Decisions {
+        private final long expiresAt;
+        // Decisions by world name, then by permission node
+        private final Map<String, Map<String, Boolean>> byWorld = new ConcurrentHashMap<>();
+
+        Decisions(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
 }
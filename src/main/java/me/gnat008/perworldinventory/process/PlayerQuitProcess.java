@@ -38,8 +38,7 @@ public class PlayerQuitProcess {
         if (cached != null) {
             ConsoleLogger.debug("Cached data for player '" + player.getName() + "' found! Updating and setting them as saved");
 
-            playerManager.updateCache(player, cached);
-            cached.setSaved(true);
+            playerManager.updateCache(player, cached).setSaved(true);
         }
 
         ConsoleLogger.debug("Saving logout data for player '" + player.getName() + "'...");
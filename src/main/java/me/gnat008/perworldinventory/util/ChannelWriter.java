@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A buffered writer that encodes straight into a channel in UTF-8, the charset all data
+ * files are stored in.
+ * <p>
+ * The buffers and the encoder are kept per thread and reused for every file that thread writes,
+ * so saving a player does not allocate new buffers each time.
+ */
+final class ChannelWriter extends Writer {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final ThreadLocal<Buffers> POOL = ThreadLocal.withInitial(Buffers::new);
+
+    private final WritableByteChannel channel;
+    private final Buffers buffers;
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param channel The channel to write to. It is not closed when the writer is closed.
+     */
+    ChannelWriter(WritableByteChannel channel) {
+        this.channel = channel;
+
+        Buffers pooled = POOL.get();
+        this.buffers = pooled.inUse ? new Buffers() : pooled;
+        buffers.inUse = true;
+        buffers.reset();
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (!buffers.chars.hasRemaining()) {
+            encode(false);
+        }
+        buffers.chars.put((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(buffers.chars.remaining(), len);
+            buffers.chars.put(cbuf, off, count);
+            off += count;
+            len -= count;
+            if (!buffers.chars.hasRemaining()) {
+                encode(false);
+            }
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(buffers.chars.remaining(), len);
+            buffers.chars.put(str, off, off + count);
+            off += count;
+            len -= count;
+            if (!buffers.chars.hasRemaining()) {
+                encode(false);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        encode(false);
+        writeBytes();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        try {
+            encode(true);
+            while (buffers.encoder.flush(buffers.bytes).isOverflow()) {
+                writeBytes();
+            }
+            writeBytes();
+        } finally {
+            buffers.inUse = false;
+        }
+    }
+
+    private void encode(boolean endOfInput) throws IOException {
+        CharBuffer chars = buffers.chars;
+        chars.flip();
+        while (true) {
+            CoderResult result = buffers.encoder.encode(chars, buffers.bytes, endOfInput);
+            if (result.isOverflow()) {
+                writeBytes();
+            } else {
+                if (result.isError()) {
+                    result.throwException();
+                }
+                break;
+            }
+        }
+        // A high surrogate at the end stays behind until its low surrogate is written
+        chars.compact();
+    }
+
+    private void writeBytes() throws IOException {
+        ByteBuffer bytes = buffers.bytes;
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+
+    private static final class Buffers {
+        private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+        private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE * 2);
+        // Same error handling as OutputStreamWriter, so the output is the same as that of FileUtils#writeData
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private boolean inUse;
+
+        void reset() {
+            chars.clear();
+            bytes.clear();
+            encoder.reset();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * A writer that adds a {@link JsonChecksum} to the JSON document written through it.
+ * <p>
+ * The last character is held back until the next one is written, so when the document is
+ * finished, the checksum property can still be put in front of its closing brace.
+ */
+final class ChecksumWriter extends Writer {
+
+    private final Writer out;
+    private final JsonChecksum.Crc crc = new JsonChecksum.Crc();
+    private int pending = -1;
+    private int previous = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param out The writer to write to. It is not closed when this writer is closed.
+     */
+    ChecksumWriter(Writer out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        writePending();
+        pending = (char) c;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (len > 0) {
+            writePending();
+            out.write(cbuf, off, len - 1);
+            crc.update(CharBuffer.wrap(cbuf), off, len - 1);
+            previous = len > 1 ? cbuf[off + len - 2] : previous;
+            pending = cbuf[off + len - 1];
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (len > 0) {
+            writePending();
+            out.write(str, off, len - 1);
+            crc.update(str, off, len - 1);
+            previous = len > 1 ? str.charAt(off + len - 2) : previous;
+            pending = str.charAt(off + len - 1);
+        }
+    }
+
+    /**
+     * Write the checksum and the character that was held back. Call once the document is complete.
+     *
+     * @throws IOException If the checksum could not be written.
+     */
+    void finish() throws IOException {
+        if (pending == '}' && previous >= 0 && previous != '{') {
+            out.write(JsonChecksum.suffix(crc));
+        } else if (pending >= 0) {
+            out.write(pending);
+        }
+        pending = -1;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    private void writePending() throws IOException {
+        if (pending >= 0) {
+            out.write(pending);
+            crc.update((char) pending);
+            previous = pending;
+        }
+    }
+}
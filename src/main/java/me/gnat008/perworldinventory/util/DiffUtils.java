@@ -0,0 +1,138 @@
+package me.gnat008.perworldinventory.util;
+
+import org.bukkit.Material;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.bukkit.potion.PotionEffect;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Methods to change an inventory or a player's potion effects to a target state, while
+ * only touching what is actually different. Every call to a setter on an inventory sends
+ * an update to the client, so leaving identical slots alone saves both work and packets.
+ */
+public final class DiffUtils {
+
+    private DiffUtils() {
+    }
+
+    /**
+     * Set the contents of an inventory, only changing the slots that differ. If most of the
+     * slots differ, the contents are set in one go, which is a single update to the client.
+     *
+     * @param inventory The inventory to change.
+     * @param target The contents the inventory should have. Slots beyond the end of the array are emptied.
+     * @return The number of slots that were different.
+     */
+    public static int applyContents(Inventory inventory, ItemStack[] target) {
+        int size = inventory.getSize();
+        boolean[] changed = new boolean[size];
+        int changes = 0;
+
+        for (int i = 0; i < size; i++) {
+            ItemStack wanted = i < target.length ? target[i] : null;
+            if (!isSameItem(inventory.getItem(i), wanted)) {
+                changed[i] = true;
+                changes++;
+            }
+        }
+
+        if (changes > size / 2) {
+            inventory.setContents(target);
+        } else if (changes > 0) {
+            for (int i = 0; i < size; i++) {
+                if (changed[i]) {
+                    inventory.setItem(i, i < target.length ? target[i] : null);
+                }
+            }
+        }
+
+        return changes;
+    }
+
+    /**
+     * Set the armor contents of a player inventory, only changing the pieces that differ.
+     *
+     * @param inventory The inventory to change.
+     * @param target The armor in the same order as {@link PlayerInventory#getArmorContents()}:
+     *               boots, leggings, chestplate, helmet.
+     * @return The number of armor pieces that were different.
+     */
+    public static int applyArmor(PlayerInventory inventory, ItemStack[] target) {
+        int changes = 0;
+
+        if (!isSameItem(inventory.getBoots(), armorPiece(target, 0))) {
+            inventory.setBoots(armorPiece(target, 0));
+            changes++;
+        }
+        if (!isSameItem(inventory.getLeggings(), armorPiece(target, 1))) {
+            inventory.setLeggings(armorPiece(target, 1));
+            changes++;
+        }
+        if (!isSameItem(inventory.getChestplate(), armorPiece(target, 2))) {
+            inventory.setChestplate(armorPiece(target, 2));
+            changes++;
+        }
+        if (!isSameItem(inventory.getHelmet(), armorPiece(target, 3))) {
+            inventory.setHelmet(armorPiece(target, 3));
+            changes++;
+        }
+
+        return changes;
+    }
+
+    /**
+     * Set the active potion effects of a player, only removing the effects that are not in the
+     * target and only adding the effects the player does not have yet.
+     *
+     * @param player The player to change.
+     * @param target The effects the player should have.
+     * @return The number of effects that were removed or added.
+     */
+    public static int applyPotionEffects(Player player, Collection<PotionEffect> target) {
+        Set<PotionEffect> wanted = new HashSet<>(target);
+        Set<PotionEffect> current = new HashSet<>(player.getActivePotionEffects());
+        int changes = 0;
+
+        for (PotionEffect effect : current) {
+            if (!wanted.contains(effect)) {
+                player.removePotionEffect(effect.getType());
+                changes++;
+            }
+        }
+        for (PotionEffect effect : wanted) {
+            if (!current.contains(effect)) {
+                player.addPotionEffect(effect);
+                changes++;
+            }
+        }
+
+        return changes;
+    }
+
+    /**
+     * Check if two slots hold the same item. Empty slots may be either null or air.
+     *
+     * @param first The first item.
+     * @param second The second item.
+     * @return True if both items are equal, or both slots are empty.
+     */
+    public static boolean isSameItem(ItemStack first, ItemStack second) {
+        boolean firstEmpty = first == null || first.getType() == Material.AIR;
+        boolean secondEmpty = second == null || second.getType() == Material.AIR;
+        if (firstEmpty || secondEmpty) {
+            return firstEmpty && secondEmpty;
+        }
+
+        return first.equals(second);
+    }
+
+    private static ItemStack armorPiece(ItemStack[] armor, int index) {
+        return armor != null && index < armor.length ? armor[index] : null;
+    }
+}
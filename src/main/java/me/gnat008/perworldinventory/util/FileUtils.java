@@ -1,9 +1,17 @@
 package me.gnat008.perworldinventory.util;
 
+import com.google.gson.JsonIOException;
+import com.google.gson.stream.JsonWriter;
 import me.gnat008.perworldinventory.ConsoleLogger;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Utility methods for handling files.
@@ -32,19 +40,106 @@ public final class FileUtils {
     }
 
     /**
-     * Writes the given data to the provided file.
+     * Opens a reader for a file that was written by this class, which reads it in UTF-8.
+     *
+     * @param file The file to read.
+     * @return The reader.
+     * @throws FileNotFoundException If the file does not exist.
+     */
+    public static Reader newReader(File file) throws FileNotFoundException {
+        return new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the given data to the provided file in UTF-8.
      *
      * @param file The file to write to.
      * @param data The data to write.
      */
     public static void writeData(File file, String data) {
-        try (FileWriter writer = new FileWriter(file)) {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
             writer.write(data);
         } catch (IOException ex) {
             ConsoleLogger.severe("Could not write data to file '" + file + "':", ex);
         }
     }
 
+    /**
+     * Writes JSON to the provided file as it is produced, without building the whole
+     * document in memory first. The bytes are the same as those of {@link #writeData(File, String)}
+     * with the output of {@link com.google.gson.Gson#toJson(com.google.gson.JsonElement)}.
+     *
+     * @param file The file to write to.
+     * @param content Writes the JSON.
+     * @return True if the file was written, false if an error was logged.
+     */
+    public static boolean writeJson(File file, JsonContent content) {
+        return writeJson(file, content, false);
+    }
+
+    /**
+     * Writes JSON to the provided file as it is produced, like {@link #writeJson(File, JsonContent)},
+     * optionally with a {@link JsonChecksum} at the end.
+     * <p>
+     * The JSON is written to a temporary file next to the target, which then replaces the target.
+     * If writing fails, even with an unchecked exception, the target is left as it was.
+     *
+     * @param file The file to write to.
+     * @param content Writes the JSON.
+     * @param checksum True to add a checksum.
+     * @return True if the file was written, false if an error was logged.
+     */
+    public static boolean writeJson(File file, JsonContent content, boolean checksum) {
+        Path tmp = new File(file.getParentFile(), file.getName() + ".tmp-" + Thread.currentThread().getId()).toPath();
+        boolean moved = false;
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                 Writer out = new ChannelWriter(channel)) {
+                ChecksumWriter checksumWriter = checksum ? new ChecksumWriter(out) : null;
+                JsonWriter writer = newJsonWriter(checksum ? checksumWriter : out);
+                content.write(writer);
+                writer.flush();
+                if (checksumWriter != null) {
+                    checksumWriter.finish();
+                }
+            }
+            replace(tmp, file.toPath());
+            moved = true;
+            return true;
+        } catch (IOException | JsonIOException ex) {
+            ConsoleLogger.severe("Could not write data to file '" + file + "':", ex);
+            return false;
+        } finally {
+            if (!moved) {
+                tmp.toFile().delete();
+            }
+        }
+    }
+
+    private static void replace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Creates a JsonWriter with the same settings {@link com.google.gson.Gson#toJson(com.google.gson.JsonElement)}
+     * uses, so streamed JSON is written exactly like JSON that is built as a tree.
+     *
+     * @param out The writer to write to.
+     * @return The JsonWriter.
+     */
+    public static JsonWriter newJsonWriter(Writer out) {
+        JsonWriter writer = new JsonWriter(out);
+        writer.setLenient(true);
+        writer.setHtmlSafe(true);
+        writer.setSerializeNulls(false);
+        return writer;
+    }
+
     /**
      * Creates the given file if it doesn't exist.
      *
@@ -62,4 +157,19 @@ public final class FileUtils {
         }
         return file;
     }
+
+    /**
+     * Writes a JSON document.
+     */
+    @FunctionalInterface
+    public interface JsonContent {
+
+        /**
+         * Write the document.
+         *
+         * @param writer The writer to write to.
+         * @throws IOException If the document could not be written.
+         */
+        void write(JsonWriter writer) throws IOException;
+    }
 }
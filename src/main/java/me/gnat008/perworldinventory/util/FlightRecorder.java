@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.util;
+
+import org.bukkit.GameMode;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Java Flight Recorder events for the work of the plugin, so that time in a recording can be
+ * attributed to players, groups and gamemodes instead of anonymous scheduler tasks.
+ * <p>
+ * The plugin still runs on Java 8 servers without JFR, so the event types are defined at
+ * runtime with {@code jdk.jfr.EventFactory}, looked up by reflection. Without JFR, or while no
+ * recording is running, {@link #begin(Type)} returns a shared event that ignores everything,
+ * so the cost is one check per event and nothing is allocated.
+ */
+public final class FlightRecorder {
+
+    /**
+     * The types of events, all in the "PerWorldInventory" category of a recording.
+     */
+    public enum Type {
+        PROFILE_LOAD("ProfileLoad", "Profile Load", "Reading a stored profile from storage"),
+        PROFILE_SAVE("ProfileSave", "Profile Save", "Writing a profile to storage"),
+        SERIALIZE("Serialize", "Serialize", "Encoding a profile as JSON"),
+        DESERIALIZE("Deserialize", "Deserialize", "Decoding a stored profile and applying it to a player"),
+        APPLY("Apply", "Apply", "Applying a profile to a player on the main thread"),
+        CACHE_EVICTION("CacheEviction", "Cache Eviction", "Dropping a saved profile from the cache"),
+        DEFAULT_LOADOUT("DefaultLoadout", "Default Loadout", "Loading a default loadout for a player without a stored profile");
+
+        private final String name;
+        private final String label;
+        private final String description;
+
+        Type(String name, String label, String description) {
+            this.name = name;
+            this.label = label;
+            this.description = description;
+        }
+    }
+
+    // Field indices, in the order of FIELDS
+    private static final int PLAYER = 0;
+    private static final int GROUP = 1;
+    private static final int GAME_MODE = 2;
+    private static final int BYTES = 3;
+    private static final int CAUSE = 4;
+    private static final String[][] FIELDS = {
+            {"player", "Player", "The UUID of the player"},
+            {"group", "Group", "The group of the profile"},
+            {"gameMode", "Game Mode", "The gamemode of the profile"},
+            {"bytes", "Size", "The size of the stored profile"},
+            {"cause", "Cause", "Why the work was done"}};
+
+    private static final Event DISABLED = new Event(null, null);
+    private static final Recorder RECORDER = Recorder.create();
+
+    private FlightRecorder() {
+    }
+
+    /**
+     * Get whether events can be recorded, which requires a JVM with JFR.
+     *
+     * @return True if the event types are registered with JFR.
+     */
+    public static boolean isAvailable() {
+        return RECORDER != null;
+    }
+
+    /**
+     * Start timing an event. Set its fields and {@link Event#commit() commit} it when the work
+     * is done.
+     *
+     * @param type The type of event.
+     * @return The event; one that records nothing if no recording includes the type.
+     */
+    public static Event begin(Type type) {
+        if (RECORDER == null) {
+            return DISABLED;
+        }
+
+        Object event = RECORDER.begin(type);
+        return event == null ? DISABLED : new Event(RECORDER, event);
+    }
+
+    /**
+     * An event that is being timed. The setters return the event, to chain them.
+     */
+    public static final class Event {
+        private final Recorder recorder;
+        private final Object event;
+
+        private Event(Recorder recorder, Object event) {
+            this.recorder = recorder;
+            this.event = event;
+        }
+
+        /**
+         * Get whether the event is recorded, to skip work that is only needed for its fields.
+         *
+         * @return True if the event is recorded.
+         */
+        public boolean isRecording() {
+            return event != null;
+        }
+
+        public Event player(UUID uuid) {
+            if (event != null && uuid != null) {
+                recorder.set(event, PLAYER, uuid.toString());
+            }
+            return this;
+        }
+
+        public Event group(String group) {
+            if (event != null) {
+                recorder.set(event, GROUP, group);
+            }
+            return this;
+        }
+
+        public Event gameMode(GameMode gameMode) {
+            if (event != null && gameMode != null) {
+                recorder.set(event, GAME_MODE, gameMode.name());
+            }
+            return this;
+        }
+
+        public Event bytes(long bytes) {
+            if (event != null) {
+                recorder.set(event, BYTES, bytes);
+            }
+            return this;
+        }
+
+        public Event cause(Enum<?> cause) {
+            if (event != null && cause != null) {
+                recorder.set(event, CAUSE, cause.name());
+            }
+            return this;
+        }
+
+        public Event cause(String cause) {
+            if (event != null) {
+                recorder.set(event, CAUSE, cause);
+            }
+            return this;
+        }
+
+        /**
+         * End the event and write it to the running recordings.
+         */
+        public void commit() {
+            if (event != null) {
+                recorder.commit(event);
+            }
+        }
+    }
+
+    /**
+     * The event types registered with JFR and handles to the methods of {@code jdk.jfr.Event}.
+     */
+    private static final class Recorder {
+        // The factories must stay reachable, or their event types are unregistered
+        private final Map<Type, Object> factories = new EnumMap<>(Type.class);
+        // An event of each type, only used to check whether the type is enabled
+        private final Map<Type, Object> probes = new EnumMap<>(Type.class);
+        private final MethodHandle newEvent;
+        private final MethodHandle isEnabled;
+        private final MethodHandle begin;
+        private final MethodHandle commit;
+        private final MethodHandle set;
+
+        private Recorder(MethodHandle newEvent, MethodHandle isEnabled, MethodHandle begin, MethodHandle commit,
+                         MethodHandle set) {
+            this.newEvent = newEvent;
+            this.isEnabled = isEnabled;
+            this.begin = begin;
+            this.commit = commit;
+            this.set = set;
+        }
+
+        /**
+         * Register the event types with JFR.
+         *
+         * @return The recorder, or null if JFR is not available.
+         */
+        static Recorder create() {
+            try {
+                Class<?> eventClass = Class.forName("jdk.jfr.Event");
+                Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+                Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+                Class<?> valueClass = Class.forName("jdk.jfr.ValueDescriptor");
+                Constructor<?> newAnnotation = annotationClass.getConstructor(Class.class, Object.class);
+                Constructor<?> newValue = valueClass.getConstructor(Class.class, String.class, List.class);
+
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                MethodType objectVoid = MethodType.methodType(void.class, Object.class);
+                Recorder recorder = new Recorder(
+                        lookup.findVirtual(factoryClass, "newEvent", MethodType.methodType(eventClass))
+                                .asType(MethodType.methodType(Object.class, Object.class)),
+                        lookup.findVirtual(eventClass, "isEnabled", MethodType.methodType(boolean.class))
+                                .asType(MethodType.methodType(boolean.class, Object.class)),
+                        lookup.findVirtual(eventClass, "begin", MethodType.methodType(void.class)).asType(objectVoid),
+                        lookup.findVirtual(eventClass, "commit", MethodType.methodType(void.class)).asType(objectVoid),
+                        lookup.findVirtual(eventClass, "set", MethodType.methodType(void.class, int.class, Object.class))
+                                .asType(MethodType.methodType(void.class, Object.class, int.class, Object.class)));
+
+                List<Object> fields = new ArrayList<>();
+                for (String[] field : FIELDS) {
+                    List<Object> annotations = new ArrayList<>(Arrays.asList(
+                            newAnnotation.newInstance(annotation("jdk.jfr.Label"), field[1]),
+                            newAnnotation.newInstance(annotation("jdk.jfr.Description"), field[2])));
+                    if (field[0].equals("bytes")) {
+                        annotations.add(newAnnotation.newInstance(annotation("jdk.jfr.DataAmount"), "BYTES"));
+                    }
+                    fields.add(newValue.newInstance(field[0].equals("bytes") ? long.class : String.class, field[0],
+                            annotations));
+                }
+
+                for (Type type : Type.values()) {
+                    List<Object> annotations = Arrays.asList(
+                            newAnnotation.newInstance(annotation("jdk.jfr.Name"), "me.gnat008.perworldinventory." + type.name),
+                            newAnnotation.newInstance(annotation("jdk.jfr.Label"), type.label),
+                            newAnnotation.newInstance(annotation("jdk.jfr.Description"), type.description),
+                            newAnnotation.newInstance(annotation("jdk.jfr.Category"), new String[]{"PerWorldInventory"}));
+                    Object factory = factoryClass.getMethod("create", List.class, List.class)
+                            .invoke(null, annotations, Collections.unmodifiableList(fields));
+                    recorder.factories.put(type, factory);
+                    recorder.probes.put(type, recorder.newEvent.invoke(factory));
+                }
+                return recorder;
+            } catch (Throwable ex) {
+                // Java 8 before update 262, or a JVM without JFR
+                return null;
+            }
+        }
+
+        private static Class<? extends Annotation> annotation(String name) throws ClassNotFoundException {
+            return Class.forName(name).asSubclass(Annotation.class);
+        }
+
+        /**
+         * Start an event if a recording includes its type.
+         *
+         * @param type The type of event.
+         * @return The started event, or null if it would not be recorded.
+         */
+        Object begin(Type type) {
+            try {
+                if (!(boolean) isEnabled.invokeExact(probes.get(type))) {
+                    return null;
+                }
+
+                Object event = newEvent.invokeExact(factories.get(type));
+                begin.invokeExact(event);
+                return event;
+            } catch (Throwable ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        void set(Object event, int field, Object value) {
+            try {
+                set.invokeExact(event, field, value);
+            } catch (Throwable ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        void commit(Object event) {
+            try {
+                commit.invokeExact(event);
+            } catch (Throwable ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Checksums of stored JSON documents, so damaged files are noticed before they are loaded.
+ * <p>
+ * The checksum is kept in the last property of the document, {@value #KEY}, as a CRC32 in hex
+ * of the UTF-8 bytes of all text before that property. Readers that do not know about checksums
+ * read it as any other property. Documents that are not JSON objects, or empty ones, get no
+ * checksum. Stored documents are always written in UTF-8, so the checksum can be checked
+ * against the bytes that were read.
+ */
+public final class JsonChecksum {
+
+    /** Name of the property that holds the checksum. */
+    public static final String KEY = "checksum";
+
+    static final String PREFIX = ",\"" + KEY + "\":\"";
+    private static final byte[] PREFIX_BYTES = PREFIX.getBytes(StandardCharsets.UTF_8);
+    /** The name of the checksum property, as it appears anywhere in a document. */
+    private static final byte[] NAME_BYTES = ("\"" + KEY + "\":").getBytes(StandardCharsets.UTF_8);
+    private static final int HEX_LENGTH = 8;
+    /** The prefix, the checksum, the closing quote and the closing brace. */
+    private static final int SUFFIX_LENGTH = PREFIX.length() + HEX_LENGTH + 2;
+
+    /**
+     * The result of checking a document.
+     */
+    public enum Result {
+        /** The document has no checksum, e.g. because it was saved by an older version. */
+        MISSING,
+        /** The document matches its checksum. */
+        VALID,
+        /** The document does not match its checksum, so it was damaged after it was written. */
+        INVALID
+    }
+
+    private JsonChecksum() {
+    }
+
+    /**
+     * Add a checksum to a JSON document.
+     *
+     * @param json The document.
+     * @return The document with a checksum.
+     */
+    public static String append(String json) {
+        int end = json.length() - 1;
+        if (end < 1 || json.charAt(end) != '}' || json.charAt(end - 1) == '{') {
+            return json;
+        }
+
+        Crc crc = new Crc();
+        crc.update(json, 0, end);
+        return json.substring(0, end) + suffix(crc);
+    }
+
+    /**
+     * Check a JSON document against its checksum.
+     *
+     * @param json The document.
+     * @return The result.
+     */
+    public static Result check(String json) {
+        return check(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Check a JSON document, as it was stored in UTF-8, against its checksum. A document that
+     * has a checksum property that can not be read is damaged, e.g. because it was cut off.
+     *
+     * @param data The bytes of the document.
+     * @return The result.
+     */
+    public static Result check(byte[] data) {
+        int length = data.length;
+        int start = length - SUFFIX_LENGTH;
+        if (start < 0 || data[length - 2] != '"' || data[length - 1] != '}' || !contains(data, start, PREFIX_BYTES)) {
+            return indexOf(data, NAME_BYTES) >= 0 ? Result.INVALID : Result.MISSING;
+        }
+
+        long expected;
+        try {
+            expected = Long.parseLong(new String(data, length - HEX_LENGTH - 2, HEX_LENGTH, StandardCharsets.US_ASCII), 16);
+        } catch (NumberFormatException ex) {
+            return Result.INVALID;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, start);
+        return crc.getValue() == expected || getLegacyValue(data, start) == expected ? Result.VALID : Result.INVALID;
+    }
+
+    /**
+     * Get the checksum as earlier versions wrote it, of only the ASCII characters other than
+     * question marks, so profiles they saved are not taken for damaged ones.
+     */
+    private static long getLegacyValue(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < length; i++) {
+            if (data[i] >= 0 && data[i] != '?') {
+                crc.update(data[i]);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * The end of a document with a checksum, starting at the checksum property.
+     */
+    static String suffix(Crc crc) {
+        return PREFIX + String.format("%08x", crc.getValue()) + "\"}";
+    }
+
+    private static boolean contains(byte[] data, int offset, byte[] part) {
+        for (int i = 0; i < part.length; i++) {
+            if (data[offset + i] != part[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] data, byte[] part) {
+        for (int offset = data.length - part.length; offset >= 0; offset--) {
+            if (contains(data, offset, part)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A CRC32 of the UTF-8 bytes of text that is added a piece at a time. Characters that can
+     * not be encoded, i.e. surrogates without their other half, count as a question mark, like
+     * the encoder that writes the file replaces them.
+     */
+    static final class Crc {
+
+        private static final int SCRATCH_SIZE = 4096;
+
+        private final CRC32 crc = new CRC32();
+        private final byte[] scratch = new byte[SCRATCH_SIZE];
+        private int count;
+        /** A high surrogate whose low surrogate has not been added yet, or -1. */
+        private int highSurrogate = -1;
+
+        /**
+         * Add some text.
+         *
+         * @param text The text.
+         * @param offset The index of the first character to add.
+         * @param length The number of characters to add.
+         */
+        void update(CharSequence text, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                update(text.charAt(i));
+            }
+        }
+
+        /**
+         * Add a character.
+         *
+         * @param c The character.
+         */
+        void update(char c) {
+            if (count > scratch.length - 4) {
+                flush();
+            }
+
+            if (highSurrogate >= 0) {
+                int high = highSurrogate;
+                highSurrogate = -1;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint((char) high, c);
+                    scratch[count++] = (byte) (0xF0 | codePoint >> 18);
+                    scratch[count++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    scratch[count++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    scratch[count++] = (byte) (0x80 | codePoint & 0x3F);
+                    return;
+                }
+                scratch[count++] = '?';
+            }
+
+            if (c < 0x80) {
+                scratch[count++] = (byte) c;
+            } else if (c < 0x800) {
+                scratch[count++] = (byte) (0xC0 | c >> 6);
+                scratch[count++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                scratch[count++] = '?';
+            } else {
+                scratch[count++] = (byte) (0xE0 | c >> 12);
+                scratch[count++] = (byte) (0x80 | c >> 6 & 0x3F);
+                scratch[count++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+
+        /**
+         * Get the checksum of all text added so far.
+         *
+         * @return The checksum.
+         */
+        long getValue() {
+            if (highSurrogate >= 0) {
+                highSurrogate = -1;
+                scratch[count++] = '?';
+            }
+            flush();
+            return crc.getValue();
+        }
+
+        private void flush() {
+            crc.update(scratch, 0, count);
+            count = 0;
+        }
+    }
+}
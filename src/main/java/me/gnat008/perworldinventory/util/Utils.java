@@ -1,7 +1,5 @@
 package me.gnat008.perworldinventory.util;
 
-import me.gnat008.perworldinventory.PerWorldInventory;
-import net.milkbowl.vault.economy.Economy;
 import org.bukkit.Bukkit;
 import org.bukkit.attribute.Attribute;
 import org.bukkit.entity.Player;
@@ -48,22 +46,21 @@ public final class Utils {
 
     /**
      * Clear a player's inventory and set all of their stats to default.
+     * Their balance is left alone, and set when the next profile is applied.
      *
-     * @param plugin {@link PerWorldInventory} for econ.
      * @param player The player to zero.
      */
-    public static void zeroPlayer(PerWorldInventory plugin, Player player) {
-        zeroPlayer(plugin, player, true);
+    public static void zeroPlayer(Player player) {
+        zeroPlayer(player, true);
     }
 
     /**
      * Set a player's stats to defaults, and optionally clear their inventory.
      *
-     * @param plugin {@link PerWorldInventory} for econ.
      * @param player The player to zero.
      * @param clearInventory Clear the player's inventory.
      */
-    public static void zeroPlayer(PerWorldInventory plugin, Player player, boolean clearInventory) {
+    public static void zeroPlayer(Player player, boolean clearInventory) {
         if (clearInventory) {
             player.getInventory().clear();
             player.getEnderChest().clear();
@@ -85,11 +82,5 @@ public final class Utils {
         player.setSaturation(5f);
         player.setFallDistance(0f);
         player.setFireTicks(0);
-
-        if (plugin.isEconEnabled()) {
-            Economy econ = plugin.getEconomy();
-            econ.bankWithdraw(player.getName(), econ.bankBalance(player.getName()).amount);
-            econ.withdrawPlayer(player, econ.getBalance(player));
-        }
     }
 }
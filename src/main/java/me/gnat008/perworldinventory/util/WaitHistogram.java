@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014-2016  Gnat008
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.gnat008.perworldinventory.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets that grow roughly exponentially, from 1 ms to 10 seconds.
+ * Recording is lock-free, so it can be done on any thread.
+ */
+public final class WaitHistogram {
+
+    /** The upper bound of each bucket in milliseconds; one more bucket holds everything longer. */
+    private static final long[] BOUNDS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_MILLIS.length + 1);
+
+    /**
+     * Count a duration.
+     *
+     * @param nanos The duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < BOUNDS_MILLIS.length && millis >= BOUNDS_MILLIS[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+    }
+
+    /**
+     * Get the number of durations in each bucket.
+     *
+     * @return The counts, one per bucket of {@link #getLabel(int)}.
+     */
+    public long[] getCounts() {
+        long[] result = new long[counts.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of durations that were counted.
+     *
+     * @return The total count.
+     */
+    public long getTotal() {
+        long total = 0;
+        for (long count : getCounts()) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Get an upper bound of a percentile of the counted durations.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The upper bound of the bucket the percentile falls in, in milliseconds; -1 if it
+     *         is in the last bucket, which has no upper bound, and 0 if nothing was counted.
+     */
+    public long getPercentileMillis(double percentile) {
+        long[] snapshot = getCounts();
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(rank, 1)) {
+                return BOUNDS_MILLIS[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get a label for a bucket, like "<5ms".
+     *
+     * @param bucket The index of the bucket.
+     * @return The label.
+     */
+    public static String getLabel(int bucket) {
+        return bucket < BOUNDS_MILLIS.length
+                ? "<" + BOUNDS_MILLIS[bucket] + "ms"
+                : ">=" + BOUNDS_MILLIS[BOUNDS_MILLIS.length - 1] + "ms";
+    }
+}
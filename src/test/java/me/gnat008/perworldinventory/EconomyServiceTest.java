@@ -0,0 +1,169 @@
+package me.gnat008.perworldinventory;
+
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import net.milkbowl.vault.economy.Economy;
+import net.milkbowl.vault.economy.EconomyResponse;
+import net.milkbowl.vault.economy.EconomyResponse.ResponseType;
+import org.bukkit.entity.Player;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for {@link EconomyService}.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class EconomyServiceTest {
+
+    private static final EconomyResponse SUCCESS = new EconomyResponse(0, 0, ResponseType.SUCCESS, null);
+
+    @InjectMocks
+    private EconomyService economyService;
+
+    @Mock
+    private PerWorldInventory plugin;
+
+    @Mock
+    private Settings settings;
+
+    @Mock
+    private Economy economy;
+
+    @BeforeClass
+    public static void initLogger() {
+        TestHelper.initMockLogger();
+    }
+
+    @Before
+    public void setup() {
+        given(plugin.getEconomy()).willReturn(economy);
+    }
+
+    @Test
+    public void shouldOnlyDepositDifference() {
+        // given
+        Player player = mockPlayer();
+        given(settings.getProperty(PwiProperties.ECONOMY_ASYNC)).willReturn(false);
+        given(economy.getBalance(player)).willReturn(30.0);
+        given(economy.depositPlayer(player, 70.0)).willReturn(SUCCESS);
+        given(economy.hasBankSupport()).willReturn(false);
+
+        // when
+        economyService.setBalances(player, 100.0, 50.0);
+
+        // then
+        verify(economy).depositPlayer(player, 70.0);
+        verify(economy, never()).withdrawPlayer(eq(player), anyDouble());
+        verify(economy, never()).bankBalance(anyString());
+        verify(economy, never()).bankWithdraw(anyString(), anyDouble());
+    }
+
+    @Test
+    public void shouldNotTransactIfBalancesAreEqual() {
+        // given
+        Player player = mockPlayer();
+        given(settings.getProperty(PwiProperties.ECONOMY_ASYNC)).willReturn(false);
+        given(economy.getBalance(player)).willReturn(25.0);
+        given(economy.hasBankSupport()).willReturn(true);
+        given(economy.bankBalance("Bobby")).willReturn(new EconomyResponse(0, 10.0, ResponseType.SUCCESS, null));
+
+        // when
+        economyService.setBalances(player, 25.0, 10.0);
+
+        // then
+        verify(economy, never()).depositPlayer(eq(player), anyDouble());
+        verify(economy, never()).withdrawPlayer(eq(player), anyDouble());
+        verify(economy, never()).bankDeposit(anyString(), anyDouble());
+        verify(economy, never()).bankWithdraw(anyString(), anyDouble());
+    }
+
+    @Test
+    public void shouldOnlyApplyLastTargetThatIsNotAppliedInAsyncMode() throws InterruptedException {
+        // given
+        Player player = mockPlayer();
+        given(player.getUniqueId()).willReturn(UUID.fromString("7f7c909b-24f1-49a4-817f-baa4f4973980"));
+        given(settings.getProperty(PwiProperties.ECONOMY_ASYNC)).willReturn(true);
+        given(economy.getBalance(player)).willReturn(0.0, 10.0);
+        CountDownLatch applying = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        given(economy.depositPlayer(eq(player), anyDouble())).willAnswer(invocation -> {
+            applying.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return SUCCESS;
+        });
+
+        // when
+        economyService.setBalance(player, 10.0);
+        applying.await(5, TimeUnit.SECONDS);
+        economyService.setBalance(player, 20.0);
+        economyService.setBalance(player, 35.0);
+        double expected = economyService.getBalance(player);
+        release.countDown();
+        economyService.shutdown();
+
+        // then
+        assertThat(expected, equalTo(35.0));
+        verify(economy).depositPlayer(player, 10.0);
+        verify(economy).depositPlayer(player, 25.0);
+        verify(economy, times(2)).getBalance(player);
+    }
+
+    @Test
+    public void shouldReadBalancesOnEconomyThreadInAsyncMode() {
+        // given
+        Player player = mockPlayer();
+        given(player.getUniqueId()).willReturn(UUID.fromString("7f7c909b-24f1-49a4-817f-baa4f4973980"));
+        given(settings.getProperty(PwiProperties.ECONOMY_ASYNC)).willReturn(true);
+        Set<Thread> readingThreads = ConcurrentHashMap.newKeySet();
+        given(economy.getBalance(player)).willAnswer(invocation -> {
+            readingThreads.add(Thread.currentThread());
+            return 30.0;
+        });
+        given(economy.hasBankSupport()).willReturn(true);
+        given(economy.bankBalance("Bobby")).willAnswer(invocation -> {
+            readingThreads.add(Thread.currentThread());
+            return new EconomyResponse(0, 50.0, ResponseType.SUCCESS, null);
+        });
+        given(economy.depositPlayer(player, 70.0)).willReturn(SUCCESS);
+        given(economy.bankWithdraw("Bobby", 40.0)).willReturn(SUCCESS);
+
+        // when
+        economyService.setBalances(player, 100.0, 10.0);
+        economyService.shutdown();
+
+        // then
+        verify(economy).depositPlayer(player, 70.0);
+        verify(economy).bankWithdraw("Bobby", 40.0);
+        assertThat(readingThreads, hasSize(1));
+        assertThat(readingThreads.contains(Thread.currentThread()), equalTo(false));
+    }
+
+    private static Player mockPlayer() {
+        Player player = mock(Player.class);
+        given(player.getName()).willReturn("Bobby");
+        return player;
+    }
+}
@@ -0,0 +1,78 @@
+package me.gnat008.perworldinventory;
+
+import me.gnat008.perworldinventory.data.DataSourceType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Runs a short {@link LoadSimulator} against every data source, with an in-memory store for
+ * the shared one, and checks that every switch finished with the right inventory, also after a restart.
+ */
+public class LoadSimulationTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldSwitchUnderLoadWithFlatFile() throws IOException {
+        simulate(DataSourceType.FLATFILE);
+    }
+
+    @Test
+    public void shouldSwitchUnderLoadWithLogStore() throws IOException {
+        simulate(DataSourceType.LOG);
+    }
+
+    @Test
+    public void shouldSwitchUnderLoadWithSharedStore() throws IOException {
+        simulate(DataSourceType.SHARED);
+    }
+
+    @Test
+    public void shouldLoadProfilesAfterRestartWithLogStoreAndShutdownJournal() throws IOException {
+        // The journal is only replayed into flat files, so the log store has to save normally
+        simulate(new LoadSimulator(temporaryFolder.newFolder(), DataSourceType.LOG)
+                .withPlayers(500)
+                .withTicks(100)
+                .withTickMillis(10)
+                .withShutdownJournal(true)
+                .withRestart(true));
+    }
+
+    @Test
+    public void shouldLoadProfilesAfterRestartWithFlatFileAndShutdownJournal() throws IOException {
+        simulate(new LoadSimulator(temporaryFolder.newFolder(), DataSourceType.FLATFILE)
+                .withPlayers(500)
+                .withTicks(100)
+                .withTickMillis(10)
+                .withShutdownJournal(true)
+                .withRestart(true));
+    }
+
+    private void simulate(DataSourceType type) throws IOException {
+        simulate(new LoadSimulator(temporaryFolder.newFolder(), type)
+                .withPlayers(2000)
+                .withTicks(100)
+                .withTickMillis(10));
+    }
+
+    private void simulate(LoadSimulator simulator) throws IOException {
+        // given / when
+        LoadSimulator.Report report = simulator.run();
+
+        // then
+        assertThat(report.getFirstError(), report.getErrors(), equalTo(0));
+        assertThat(report.getStarted(), greaterThan(0));
+        assertThat(report.getCompleted(), equalTo(report.getStarted()));
+        assertThat(report.getVerified(), greaterThan(0));
+        assertThat(report.getMismatches(), equalTo(0));
+        assertThat(report.getIoCounts().get("saveToDatabase"), greaterThan(0L));
+    }
+}
@@ -0,0 +1,1323 @@
+package me.gnat008.perworldinventory;
+
+import ch.jalu.injector.Injector;
+import ch.jalu.injector.InjectorBuilder;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.data.DataSource;
+import me.gnat008.perworldinventory.data.DataSourceProvider;
+import me.gnat008.perworldinventory.data.DataSourceType;
+import me.gnat008.perworldinventory.data.LoopbackProfileStore;
+import me.gnat008.perworldinventory.data.ProfileStore;
+import me.gnat008.perworldinventory.data.StorageScheduler;
+import me.gnat008.perworldinventory.data.players.PWIPlayerManager;
+import me.gnat008.perworldinventory.events.InventoryLoadCompleteEvent;
+import me.gnat008.perworldinventory.groups.Group;
+import me.gnat008.perworldinventory.groups.GroupManager;
+import org.bukkit.Bukkit;
+import org.bukkit.GameMode;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.attribute.AttributeInstance;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.PlayerDeathEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerGameModeChangeEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerLoginEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemFactory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginLogger;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.RegisteredServiceProvider;
+import org.bukkit.plugin.ServicePriority;
+import org.bukkit.plugin.ServicesManager;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Headless load simulation of world switching. Thousands of fake players join, change worlds,
+ * change gamemodes, die, edit their inventories and quit, through the real listeners of the
+ * plugin and the data source of the configured type.
+ * <p>
+ * The Bukkit scheduler is emulated by a main thread loop on the calling thread, which runs the
+ * player actions and due tasks of one tick at a time, and a pool of real threads for async tasks.
+ * A fixed seed makes the sequence of actions the same on every run; the timing of async work is
+ * not. Every switch between profiles is timed from the first event until the plugin calls
+ * {@link InventoryLoadCompleteEvent}, and the inventory the player gets is compared with the
+ * one they left in that group and gamemode.
+ * <p>
+ * Players, worlds and the server are plain proxies instead of Mockito mocks, which would record
+ * millions of calls. {@code setGameMode} on a fake player does not fire a gamemode change event,
+ * so the simulation is meant for configurations where the plugin does not set gamemodes.
+ */
+public final class LoadSimulator {
+
+    /** Group name, default gamemode, then the worlds of the group. */
+    private static final String[][] GROUPS = {
+            {"survival", "SURVIVAL", "survival", "survival_nether", "survival_the_end"},
+            {"creative", "CREATIVE", "creative", "plots"},
+            {"minigames", "ADVENTURE", "lobby", "arena"}};
+    private static final GameMode[] GAME_MODES = {GameMode.SURVIVAL, GameMode.CREATIVE, GameMode.ADVENTURE};
+    private static final int MAX_DRAIN_TICKS = 6000;
+    private static final String DEFAULT_LOADOUT = "{\"data-format\":2,\"ender-chest\":[],"
+            + "\"inventory\":{\"inventory\":[],\"armor\":[]},\"stats\":{\"potion-effects\":[]}}";
+
+    private final File dataFolder;
+    private final DataSourceType dataSourceType;
+    /** The store of the SHARED data source, which outlives restarts like a real one. */
+    private final ProfileStore profileStore = new LoopbackProfileStore("simulation");
+    private int playerCount = 2000;
+    private int ticks = 200;
+    private long tickMillis = 50;
+    private int actionsPerTick = -1;
+    private int asyncThreads = 4;
+    private long seed = 42;
+    private boolean shutdownJournal;
+    private boolean restart;
+
+    private Random random;
+    private SimulatedScheduler scheduler;
+    private SimulatedPluginManager pluginManager;
+    private CountingLogHandler logHandler;
+    private CountingDataSource io;
+    private PerWorldInventory plugin;
+    private Injector injector;
+    private GroupManager groupManager;
+
+    private final Map<String, World> worlds = new LinkedHashMap<>();
+    private final List<FakePlayer> players = new ArrayList<>();
+    private final Map<UUID, FakePlayer> playersById = new ConcurrentHashMap<>();
+    /** Logins and rejoins that are scheduled or running. */
+    private final AtomicInteger pendingLogins = new AtomicInteger();
+
+    // Only used on the main thread
+    private int started;
+    private int completed;
+    private int verified;
+    private int mismatches;
+    private final List<Long> switchNanos = new ArrayList<>();
+    private final List<Long> switchTicks = new ArrayList<>();
+    private final List<Long> tickNanos = new ArrayList<>();
+    private final Map<String, Integer> actions = new TreeMap<>();
+
+    /**
+     * Create a simulation.
+     *
+     * @param dataFolder The empty folder to use as the data folder of the plugin.
+     * @param dataSourceType The type of data source to simulate.
+     */
+    public LoadSimulator(File dataFolder, DataSourceType dataSourceType) {
+        this.dataFolder = dataFolder;
+        this.dataSourceType = dataSourceType;
+    }
+
+    public LoadSimulator withPlayers(int playerCount) {
+        this.playerCount = playerCount;
+        return this;
+    }
+
+    public LoadSimulator withTicks(int ticks) {
+        this.ticks = ticks;
+        return this;
+    }
+
+    /**
+     * Set how long a tick lasts at least. A tick that takes longer is not made up for, like on
+     * a real server. Shorter ticks than the 50 ms of a server compress time, so the async work
+     * takes more ticks.
+     *
+     * @param tickMillis The minimum length of a tick in milliseconds, or 0 to not wait.
+     * @return This simulator.
+     */
+    public LoadSimulator withTickMillis(long tickMillis) {
+        this.tickMillis = tickMillis;
+        return this;
+    }
+
+    /**
+     * Set how many random players are picked to do something every tick. Players that are
+     * offline or still waiting for their inventory do nothing. Defaults to one in 40 players.
+     *
+     * @param actionsPerTick The number of picks per tick.
+     * @return This simulator.
+     */
+    public LoadSimulator withActionsPerTick(int actionsPerTick) {
+        this.actionsPerTick = actionsPerTick;
+        return this;
+    }
+
+    public LoadSimulator withAsyncThreads(int asyncThreads) {
+        this.asyncThreads = asyncThreads;
+        return this;
+    }
+
+    public LoadSimulator withSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public LoadSimulator withShutdownJournal(boolean shutdownJournal) {
+        this.shutdownJournal = shutdownJournal;
+        return this;
+    }
+
+    /**
+     * Stop the server while all players are online after the configured number of ticks, start it
+     * again on the same data folder and run the ticks once more. Players keep the inventory they
+     * had, like the player data of a real server, so switching back to a profile they left before
+     * the restart checks that it was loaded back.
+     *
+     * @param restart Whether to restart.
+     * @return This simulator.
+     */
+    public LoadSimulator withRestart(boolean restart) {
+        this.restart = restart;
+        return this;
+    }
+
+    /**
+     * Run the simulation: let all players join, run the configured number of ticks with random
+     * actions, wait for all switches to finish, let all players quit and disable the plugin.
+     *
+     * @return The results.
+     * @throws IOException If the plugin could not be set up.
+     */
+    public Report run() throws IOException {
+        random = new Random(seed);
+        setUp();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < playerCount; i++) {
+            FakePlayer player = createPlayer(i);
+            players.add(player);
+            playersById.put(player.uuid, player);
+        }
+        simulate();
+        if (restart) {
+            tearDown();
+            for (FakePlayer player : players) {
+                player.online = false;
+            }
+            setUp();
+            simulate();
+        }
+        long runNanos = System.nanoTime() - start;
+
+        for (FakePlayer player : players) {
+            if (player.online) {
+                quit(player);
+            }
+        }
+        for (int tick = 0; tick < 20; tick++) {
+            runTick(false);
+        }
+        tearDown();
+
+        return new Report(this, runNanos);
+    }
+
+    /**
+     * Let all players join, run the configured number of ticks with random actions and wait
+     * for all switches to finish.
+     */
+    private void simulate() {
+        for (FakePlayer player : players) {
+            login(player);
+        }
+        runTick(false);
+        while (pendingLogins.get() > 0) {
+            runTick(false);
+        }
+
+        int picks = actionsPerTick >= 0 ? actionsPerTick : Math.max(1, playerCount / 40);
+        for (int tick = 0; tick < ticks; tick++) {
+            for (int i = 0; i < picks; i++) {
+                act(players.get(random.nextInt(players.size())));
+            }
+            runTick(true);
+        }
+
+        for (int tick = 0; tick < MAX_DRAIN_TICKS && (started > completed || pendingLogins.get() > 0); tick++) {
+            runTick(false);
+        }
+    }
+
+    /**
+     * Start the plugin, or start it again on the same data folder after {@link #tearDown()}.
+     */
+    private void setUp() throws IOException {
+        File config = new File(dataFolder, "config.yml");
+        if (!config.exists()) {
+            Files.copy(TestHelper.getJarFile("/config.yml").toPath(), config.toPath());
+        }
+        File defaults = new File(dataFolder, "data" + File.separator + "defaults");
+        defaults.mkdirs();
+        // An empty loadout, as the shipped one holds items only a server can decode
+        Files.write(new File(defaults, "__default.json").toPath(), DEFAULT_LOADOUT.getBytes(StandardCharsets.UTF_8));
+        Settings settings = new Settings(config);
+        settings.setProperty(PwiProperties.DATA_SOURCE, dataSourceType);
+        settings.setProperty(PwiProperties.USE_SHUTDOWN_JOURNAL, shutdownJournal);
+
+        if (logHandler == null) {
+            Logger logger = Logger.getAnonymousLogger();
+            logger.setUseParentHandlers(false);
+            logHandler = new CountingLogHandler();
+            logger.addHandler(logHandler);
+            ConsoleLogger.setLogger(logger);
+        }
+
+        for (String[] group : GROUPS) {
+            for (int i = 2; i < group.length; i++) {
+                String name = group[i];
+                worlds.computeIfAbsent(name, key -> proxy(World.class, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getName":
+                            return name;
+                        case "getUID":
+                            return UUID.nameUUIDFromBytes(name.getBytes());
+                        default:
+                            return defaultAnswer(proxy, method, args, name);
+                    }
+                }));
+            }
+        }
+
+        scheduler = new SimulatedScheduler(asyncThreads, logHandler);
+        pluginManager = new SimulatedPluginManager(logHandler, this::onEvent);
+        Server server = createServer();
+        TestHelper.setField(Bukkit.class, "server", null, server);
+
+        // PluginDescriptionFile is final and so cannot be mocked
+        PluginDescriptionFile descriptionFile = new PluginDescriptionFile(
+                "PerWorldInventory", "N/A", PerWorldInventory.class.getCanonicalName());
+        plugin = new PerWorldInventory(new JavaPluginLoader(server), descriptionFile, dataFolder, null);
+        TestHelper.setField(JavaPlugin.class, "logger", plugin, mock(PluginLogger.class));
+
+        injector = new InjectorBuilder().addDefaultHandlers("me.gnat008.perworldinventory").create();
+        injector.register(PerWorldInventory.class, plugin);
+        injector.register(Server.class, server);
+        injector.register(PluginManager.class, server.getPluginManager());
+        injector.provide(DataFolder.class, dataFolder);
+        injector.register(Settings.class, settings);
+        // Keep counting across restarts
+        io = new CountingDataSource(injector.getSingleton(DataSourceProvider.class).get(),
+                io == null ? new ConcurrentHashMap<>() : io.counts);
+        injector.register(DataSource.class, proxy(DataSource.class, io));
+        plugin.injectServices(injector);
+        plugin.registerEventListeners(injector);
+
+        groupManager = injector.getSingleton(GroupManager.class);
+        for (String[] group : GROUPS) {
+            groupManager.addGroup(group[0], Arrays.asList(group).subList(2, group.length), GameMode.valueOf(group[1]));
+        }
+    }
+
+    /**
+     * Disable the plugin the way {@link PerWorldInventory#onDisable()} does.
+     */
+    private void tearDown() {
+        injector.getSingleton(StorageScheduler.class).shutdown();
+        injector.getSingleton(PWIPlayerManager.class).onDisable();
+        injector.getSingleton(DataSource.class).close();
+        injector.getSingleton(EconomyService.class).shutdown();
+        scheduler.shutdown();
+    }
+
+    private Server createServer() {
+        ServerProxies proxies = new ServerProxies();
+        return proxy(Server.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getScheduler":
+                    return proxies.scheduler;
+                case "getPluginManager":
+                    return proxies.pluginManager;
+                case "getServicesManager":
+                    return proxies.servicesManager;
+                case "getItemFactory":
+                    return proxies.itemFactory;
+                case "getOnlinePlayers":
+                    return getOnlinePlayers();
+                case "getPlayer":
+                case "getPlayerExact":
+                    return findPlayer(args[0]);
+                case "getOfflinePlayers":
+                    return new OfflinePlayer[0];
+                case "getWorld":
+                    return worlds.get(args[0]);
+                case "getWorlds":
+                    return new ArrayList<>(worlds.values());
+                case "getVersion":
+                    return "git-Spigot-8a048fe-3c19fef (MC: 1.11.2)";
+                case "getBukkitVersion":
+                    return "1.11.2-R0.1-SNAPSHOT";
+                case "getLogger":
+                    return Logger.getAnonymousLogger();
+                case "isPrimaryThread":
+                    return scheduler.isMainThread();
+                default:
+                    return defaultAnswer(proxy, method, args, "Server");
+            }
+        });
+    }
+
+    private List<Player> getOnlinePlayers() {
+        List<Player> online = new ArrayList<>();
+        for (FakePlayer player : players) {
+            if (player.online) {
+                online.add(player.proxy);
+            }
+        }
+        return online;
+    }
+
+    private Player findPlayer(Object id) {
+        for (FakePlayer player : players) {
+            if (player.online && (player.uuid.equals(id) || player.name.equals(id))) {
+                return player.proxy;
+            }
+        }
+        return null;
+    }
+
+    private FakePlayer createPlayer(int index) {
+        List<World> all = new ArrayList<>(worlds.values());
+        FakePlayer player = new FakePlayer(new UUID(0x5157L, index), "Sim" + index, all.get(random.nextInt(all.size())),
+                GAME_MODES[random.nextInt(2)]);
+        player.inventory.contents[0] = new ItemStack(Material.STONE, 1 + random.nextInt(64));
+        return player;
+    }
+
+    /**
+     * Let a player log in: the pre-login event is fired on an async thread, the login and join
+     * events on the main thread afterwards.
+     */
+    private void login(FakePlayer player) {
+        pendingLogins.incrementAndGet();
+        scheduler.runAsync(() -> {
+            AsyncPlayerPreLoginEvent preLogin =
+                    new AsyncPlayerPreLoginEvent(player.name, InetAddress.getLoopbackAddress(), player.uuid);
+            pluginManager.callEvent(preLogin);
+            scheduler.runSync(() -> {
+                pendingLogins.decrementAndGet();
+                if (preLogin.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+                    count("login refused");
+                    rejoin(player, 20);
+                    return;
+                }
+
+                PlayerLoginEvent loginEvent = new PlayerLoginEvent(player.proxy, "localhost", InetAddress.getLoopbackAddress());
+                pluginManager.callEvent(loginEvent);
+                player.online = true;
+                pluginManager.callEvent(new PlayerJoinEvent(player.proxy, null));
+            }, 0);
+        });
+    }
+
+    private void rejoin(FakePlayer player, long delay) {
+        pendingLogins.incrementAndGet();
+        scheduler.runSync(() -> {
+            pendingLogins.decrementAndGet();
+            login(player);
+        }, delay);
+    }
+
+    private void quit(FakePlayer player) {
+        pluginManager.callEvent(new PlayerQuitEvent(player.proxy, null));
+        player.online = false;
+    }
+
+    /**
+     * Let a player do something random, if they are online and not waiting for their inventory.
+     */
+    private void act(FakePlayer player) {
+        if (!player.online || player.pendingKey != null) {
+            return;
+        }
+
+        int roll = random.nextInt(100);
+        if (roll < 40) {
+            changeWorld(player, true);
+        } else if (roll < 50) {
+            changeWorld(player, false);
+        } else if (roll < 65) {
+            changeGameMode(player);
+        } else if (roll < 75) {
+            count("death");
+            pluginManager.callEvent(new PlayerDeathEvent(player.proxy, new ArrayList<>(), 0, null));
+        } else if (roll < 95) {
+            count("inventory edit");
+            player.inventory.contents[0] = new ItemStack(Material.STONE, 1 + random.nextInt(64));
+        } else {
+            count("quit");
+            quit(player);
+            rejoin(player, 20 + random.nextInt(80));
+        }
+    }
+
+    /**
+     * Teleport a player to another world, in the same group or in another one, the way Bukkit
+     * does: the teleport event, then the change, then the changed world event.
+     */
+    private void changeWorld(FakePlayer player, boolean otherGroup) {
+        Group current = groupManager.getGroupFromWorld(player.world.getName());
+        List<World> targets = new ArrayList<>();
+        for (World world : worlds.values()) {
+            boolean sameGroup = groupManager.getGroupFromWorld(world.getName()).equals(current);
+            if (world != player.world && sameGroup != otherGroup) {
+                targets.add(world);
+            }
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        World to = targets.get(random.nextInt(targets.size()));
+        World from = player.world;
+        count(otherGroup ? "world change" : "world change in group");
+        if (otherGroup) {
+            leave(player, groupManager.getGroupFromWorld(to.getName()).getName(), player.gameMode);
+        }
+
+        PlayerTeleportEvent teleport = new PlayerTeleportEvent(player.proxy,
+                new Location(from, 0, 64, 0), new Location(to, 0, 64, 0));
+        pluginManager.callEvent(teleport);
+        if (teleport.isCancelled()) {
+            player.pendingKey = null;
+            return;
+        }
+
+        player.world = to;
+        pluginManager.callEvent(new PlayerChangedWorldEvent(player.proxy, from));
+    }
+
+    private void changeGameMode(FakePlayer player) {
+        GameMode to = GAME_MODES[random.nextInt(GAME_MODES.length)];
+        if (to == player.gameMode) {
+            return;
+        }
+
+        count("gamemode change");
+        leave(player, groupManager.getGroupFromWorld(player.world.getName()).getName(), to);
+        PlayerGameModeChangeEvent event = new PlayerGameModeChangeEvent(player.proxy, to);
+        pluginManager.callEvent(event);
+        if (event.isCancelled()) {
+            player.pendingKey = null;
+            return;
+        }
+        player.gameMode = to;
+    }
+
+    /**
+     * Remember what a player leaves behind in their current profile, and start timing the switch
+     * to another profile.
+     */
+    private void leave(FakePlayer player, String group, GameMode gameMode) {
+        String current = groupManager.getGroupFromWorld(player.world.getName()).getName() + "." + player.gameMode;
+        player.expected.put(current, copy(player.inventory.contents[0]));
+        player.pendingKey = group + "." + gameMode;
+        player.pendingSince = System.nanoTime();
+        player.pendingTick = scheduler.getTick();
+        started++;
+    }
+
+    private void onEvent(Event event) {
+        if (!(event instanceof InventoryLoadCompleteEvent)) {
+            return;
+        }
+
+        FakePlayer player = playersById.get(((InventoryLoadCompleteEvent) event).getPlayer().getUniqueId());
+        if (player == null || player.pendingKey == null) {
+            return;
+        }
+
+        completed++;
+        switchNanos.add(System.nanoTime() - player.pendingSince);
+        switchTicks.add(scheduler.getTick() - player.pendingTick);
+        if (player.expected.containsKey(player.pendingKey)) {
+            verified++;
+            if (!Objects.equals(player.expected.get(player.pendingKey), player.inventory.contents[0])) {
+                mismatches++;
+            }
+        }
+        player.pendingKey = null;
+    }
+
+    private void runTick(boolean measure) {
+        long start = System.nanoTime();
+        scheduler.runTick();
+        long elapsed = System.nanoTime() - start;
+        if (measure) {
+            tickNanos.add(elapsed);
+        }
+
+        long sleep = TimeUnit.MILLISECONDS.toNanos(tickMillis) - elapsed;
+        if (sleep > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void count(String action) {
+        actions.merge(action, 1, Integer::sum);
+    }
+
+    private static ItemStack copy(ItemStack item) {
+        return item == null ? null : item.clone();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(LoadSimulator.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    /**
+     * Answer the methods of {@link Object}, and return nothing for all other methods: null, zero,
+     * false or an empty collection.
+     */
+    private static Object defaultAnswer(Object proxy, Method method, Object[] args, String name) {
+        switch (method.getName()) {
+            case "equals":
+                return args != null && args.length == 1 ? proxy == args[0] : false;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return name;
+            default:
+                break;
+        }
+
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0.0;
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == List.class || type == Collection.class) {
+            return new ArrayList<>();
+        } else if (type == Set.class) {
+            return Collections.emptySet();
+        } else if (type == Map.class) {
+            return Collections.emptyMap();
+        }
+        return null;
+    }
+
+    private static long percentile(List<Long> values, double percentile) {
+        if (values.isEmpty()) {
+            return 0;
+        }
+
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    /**
+     * The results of a simulation.
+     */
+    public static final class Report {
+        private final DataSourceType dataSourceType;
+        private final int players;
+        private final int ticks;
+        private final long runNanos;
+        private final int started;
+        private final int completed;
+        private final int verified;
+        private final int mismatches;
+        private final int errors;
+        private final String firstError;
+        private final int warnings;
+        private final List<Long> switchNanos;
+        private final List<Long> switchTicks;
+        private final List<Long> tickNanos;
+        private final Map<String, Integer> actions;
+        private final Map<String, Long> ioCounts;
+
+        Report(LoadSimulator simulator, long runNanos) {
+            this.dataSourceType = simulator.dataSourceType;
+            this.players = simulator.playerCount;
+            this.ticks = simulator.restart ? 2 * simulator.ticks : simulator.ticks;
+            this.runNanos = runNanos;
+            this.started = simulator.started;
+            this.completed = simulator.completed;
+            this.verified = simulator.verified;
+            this.mismatches = simulator.mismatches;
+            this.errors = simulator.logHandler.errors.get();
+            this.firstError = simulator.logHandler.firstError;
+            this.warnings = simulator.logHandler.warnings.get();
+            this.switchNanos = simulator.switchNanos;
+            this.switchTicks = simulator.switchTicks;
+            this.tickNanos = simulator.tickNanos;
+            this.actions = simulator.actions;
+            this.ioCounts = simulator.io.getCounts();
+        }
+
+        public int getStarted() {
+            return started;
+        }
+
+        public int getCompleted() {
+            return completed;
+        }
+
+        /**
+         * @return The number of switches back to a profile the player had been in before, whose
+         *         inventory was compared with the one the player left there.
+         */
+        public int getVerified() {
+            return verified;
+        }
+
+        public int getMismatches() {
+            return mismatches;
+        }
+
+        /**
+         * @return The number of severe log messages and exceptions thrown by listeners and tasks.
+         */
+        public int getErrors() {
+            return errors;
+        }
+
+        public String getFirstError() {
+            return firstError;
+        }
+
+        /**
+         * @return The number of calls per data source method.
+         */
+        public Map<String, Long> getIoCounts() {
+            return ioCounts;
+        }
+
+        /**
+         * @param percentile The percentile, like 99.
+         * @return The switch latency at the percentile in milliseconds.
+         */
+        public double getSwitchMillis(double percentile) {
+            return percentile(switchNanos, percentile) / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = runNanos / 1e9;
+            StringBuilder report = new StringBuilder();
+            report.append(String.format("[load simulation] %s: %d players, %d ticks, %.1f s%n",
+                    dataSourceType, players, ticks, seconds));
+            report.append(String.format("[load simulation]   actions: %s%n", actions));
+            report.append(String.format("[load simulation]   switches: %d of %d done, %.0f/s, %d of %d checked inventories wrong%n",
+                    completed, started, completed / seconds, mismatches, verified));
+            report.append(String.format("[load simulation]   switch latency: p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms"
+                            + " | p50 %d ticks, p99 %d ticks, max %d ticks%n",
+                    getSwitchMillis(50), getSwitchMillis(95), getSwitchMillis(99), getSwitchMillis(100),
+                    percentile(switchTicks, 50), percentile(switchTicks, 99), percentile(switchTicks, 100)));
+            report.append(String.format("[load simulation]   main thread per tick: p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                    percentile(tickNanos, 50) / 1e6, percentile(tickNanos, 99) / 1e6, percentile(tickNanos, 100) / 1e6));
+            report.append(String.format("[load simulation]   io: %s%n", ioCounts));
+            report.append(String.format("[load simulation]   %d errors, %d warnings", errors, warnings));
+            if (firstError != null) {
+                report.append(", first error: ").append(firstError);
+            }
+            return report.toString();
+        }
+    }
+
+    /**
+     * The proxies the server hands out.
+     */
+    private final class ServerProxies {
+        private final BukkitScheduler scheduler = proxy(BukkitScheduler.class, LoadSimulator.this.scheduler);
+        private final PluginManager pluginManager = proxy(PluginManager.class, LoadSimulator.this.pluginManager);
+        private final ServicesManager servicesManager = proxy(ServicesManager.class, (proxy, method, args) -> {
+            if (method.getName().equals("getRegistration") && args[0] == ProfileStore.class) {
+                return new RegisteredServiceProvider<>(ProfileStore.class, profileStore, ServicePriority.Normal, plugin);
+            }
+            return defaultAnswer(proxy, method, args, "ServicesManager");
+        });
+        private final ItemFactory itemFactory = proxy(ItemFactory.class, (proxy, method, args) -> {
+            if (method.getName().equals("equals") && args.length == 2) {
+                // Items without meta are the only ones in the simulation
+                return args[0] == args[1];
+            }
+            return defaultAnswer(proxy, method, args, "ItemFactory");
+        });
+    }
+
+    /**
+     * A player whose state is kept in fields and a map of properties: {@code setFoodLevel(15)}
+     * makes {@code getFoodLevel()} return 15.
+     */
+    private final class FakePlayer implements InvocationHandler {
+        private final UUID uuid;
+        private final String name;
+        private final Player proxy;
+        private final FakeInventory inventory;
+        private final FakeInventory enderChest;
+        private final AttributeInstance maxHealth;
+        private final Map<String, Object> properties = Collections.synchronizedMap(new HashMap<>());
+
+        private volatile World world;
+        private volatile GameMode gameMode;
+        private volatile boolean online;
+
+        // Only used on the main thread
+        /** The first item of the inventory the player left in every profile, by group and gamemode. */
+        private final Map<String, ItemStack> expected = new HashMap<>();
+        private String pendingKey;
+        private long pendingSince;
+        private long pendingTick;
+
+        FakePlayer(UUID uuid, String name, World world, GameMode gameMode) {
+            this.uuid = uuid;
+            this.name = name;
+            this.world = world;
+            this.gameMode = gameMode;
+            this.proxy = proxy(Player.class, this);
+            this.inventory = new FakeInventory(41, proxy);
+            this.enderChest = new FakeInventory(27, proxy);
+            this.maxHealth = LoadSimulator.proxy(AttributeInstance.class, (attribute, method, args) -> {
+                switch (method.getName()) {
+                    case "getBaseValue":
+                    case "getValue":
+                    case "getDefaultValue":
+                        return properties.get("MaxHealth");
+                    case "setBaseValue":
+                        properties.put("MaxHealth", args[0]);
+                        return null;
+                    default:
+                        return defaultAnswer(attribute, method, args, "Attribute");
+                }
+            });
+            properties.put("Health", 20.0);
+            properties.put("MaxHealth", 20.0);
+            properties.put("FoodLevel", 20);
+            properties.put("Saturation", 5f);
+            properties.put("MaximumAir", 300);
+            properties.put("RemainingAir", 300);
+            properties.put("DisplayName", name);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String method_ = method.getName();
+            switch (method_) {
+                case "getUniqueId":
+                    return uuid;
+                case "getName":
+                    return name;
+                case "getWorld":
+                    return world;
+                case "getLocation":
+                    return new Location(world, 0, 64, 0);
+                case "getGameMode":
+                    return gameMode;
+                case "setGameMode":
+                    gameMode = (GameMode) args[0];
+                    return null;
+                case "isOnline":
+                    return online;
+                case "getInventory":
+                    return inventory.proxy;
+                case "getEnderChest":
+                    return enderChest.proxy;
+                case "getAttribute":
+                    return maxHealth;
+                case "getActivePotionEffects":
+                    return new ArrayList<>();
+                default:
+                    break;
+            }
+
+            if (method_.startsWith("set") && args != null && args.length == 1) {
+                properties.put(method_.substring(3), args[0]);
+                return null;
+            }
+            String property = method_.startsWith("get") ? method_.substring(3)
+                    : method_.startsWith("is") ? method_.substring(2) : null;
+            if (property != null && (args == null || args.length == 0) && properties.containsKey(property)) {
+                return properties.get(property);
+            }
+            return defaultAnswer(proxy, method, args, name);
+        }
+    }
+
+    /**
+     * An inventory that keeps copies of the items it is given, like the inventories of a server.
+     * A player inventory has 36 storage slots, then boots, leggings, chestplate, helmet and the
+     * off hand.
+     */
+    private static final class FakeInventory implements InvocationHandler {
+        private final ItemStack[] contents;
+        private final Player holder;
+        private final Inventory proxy;
+
+        FakeInventory(int size, Player holder) {
+            this.contents = new ItemStack[size];
+            this.holder = holder;
+            this.proxy = size == 41 ? proxy(PlayerInventory.class, this) : proxy(Inventory.class, this);
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getSize":
+                    return contents.length;
+                case "getItem":
+                    return contents[(int) args[0]];
+                case "setItem":
+                    contents[(int) args[0]] = copy((ItemStack) args[1]);
+                    return null;
+                case "getContents":
+                    return contents.clone();
+                case "setContents":
+                    ItemStack[] items = (ItemStack[]) args[0];
+                    for (int i = 0; i < contents.length; i++) {
+                        contents[i] = i < items.length ? copy(items[i]) : null;
+                    }
+                    return null;
+                case "clear":
+                    if (args == null || args.length == 0) {
+                        Arrays.fill(contents, null);
+                        return null;
+                    } else if (args[0] instanceof Integer) {
+                        contents[(int) args[0]] = null;
+                        return null;
+                    }
+                    break;
+                case "getArmorContents":
+                    return Arrays.copyOfRange(contents, 36, 40);
+                case "setArmorContents":
+                    ItemStack[] armor = (ItemStack[]) args[0];
+                    for (int i = 0; i < 4; i++) {
+                        contents[36 + i] = i < armor.length ? copy(armor[i]) : null;
+                    }
+                    return null;
+                case "getBoots":
+                    return contents[36];
+                case "getLeggings":
+                    return contents[37];
+                case "getChestplate":
+                    return contents[38];
+                case "getHelmet":
+                    return contents[39];
+                case "setBoots":
+                    contents[36] = copy((ItemStack) args[0]);
+                    return null;
+                case "setLeggings":
+                    contents[37] = copy((ItemStack) args[0]);
+                    return null;
+                case "setChestplate":
+                    contents[38] = copy((ItemStack) args[0]);
+                    return null;
+                case "setHelmet":
+                    contents[39] = copy((ItemStack) args[0]);
+                    return null;
+                case "getHolder":
+                    return holder;
+                default:
+                    break;
+            }
+            return defaultAnswer(proxy, method, args, "Inventory");
+        }
+    }
+
+    /**
+     * Emulates the Bukkit scheduler: sync tasks run in {@link #runTick()} on the main thread, async
+     * tasks on a pool of real threads.
+     */
+    private static final class SimulatedScheduler implements InvocationHandler {
+        private final ExecutorService async;
+        private final CountingLogHandler errors;
+        private final PriorityQueue<Task> queue = new PriorityQueue<>(
+                Comparator.<Task>comparingLong(task -> task.nextTick).thenComparingInt(task -> task.id));
+        private final AtomicInteger ids = new AtomicInteger();
+        private volatile Thread mainThread;
+        private volatile long tick;
+
+        SimulatedScheduler(int threads, CountingLogHandler errors) {
+            AtomicInteger count = new AtomicInteger();
+            this.async = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "Simulated Async #" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.errors = errors;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "runTask":
+                    return runSync((Runnable) args[1], 0, -1).proxy;
+                case "runTaskLater":
+                    return runSync((Runnable) args[1], (long) args[2], -1).proxy;
+                case "runTaskTimer":
+                    return runSync((Runnable) args[1], (long) args[2], (long) args[3]).proxy;
+                case "runTaskAsynchronously":
+                    runAsync((Runnable) args[1]);
+                    return asyncTask((Plugin) args[0]);
+                case "scheduleSyncDelayedTask":
+                    return runSync((Runnable) args[1], args.length > 2 ? (long) args[2] : 0, -1).id;
+                case "cancelTask":
+                    cancel(task -> task.id == (int) args[0]);
+                    return null;
+                case "cancelTasks":
+                    cancel(task -> true);
+                    return null;
+                case "isCurrentlyRunning":
+                case "isQueued":
+                    return false;
+                case "equals":
+                case "hashCode":
+                case "toString":
+                    return defaultAnswer(proxy, method, args, "Scheduler");
+                default:
+                    throw new UnsupportedOperationException("The simulation does not support " + method);
+            }
+        }
+
+        void runSync(Runnable runnable) {
+            runSync(runnable, 0, -1);
+        }
+
+        void runSync(Runnable runnable, long delay) {
+            runSync(runnable, delay, -1);
+        }
+
+        private synchronized Task runSync(Runnable runnable, long delay, long period) {
+            // Like Bukkit, a task runs on the next tick at the earliest
+            Task task = new Task(ids.incrementAndGet(), runnable, tick + Math.max(1, delay), period);
+            queue.add(task);
+            return task;
+        }
+
+        void runAsync(Runnable runnable) {
+            async.execute(() -> {
+                try {
+                    runnable.run();
+                } catch (RuntimeException ex) {
+                    errors.exception("async task", ex);
+                }
+            });
+        }
+
+        private BukkitTask asyncTask(Plugin owner) {
+            int id = ids.incrementAndGet();
+            return proxy(BukkitTask.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getTaskId":
+                        return id;
+                    case "getOwner":
+                        return owner;
+                    default:
+                        return defaultAnswer(proxy, method, args, "AsyncTask");
+                }
+            });
+        }
+
+        private synchronized void cancel(java.util.function.Predicate<Task> filter) {
+            for (Task task : queue) {
+                if (filter.test(task)) {
+                    task.cancelled = true;
+                }
+            }
+        }
+
+        /**
+         * Run all sync tasks that are due in the next tick, on the calling thread.
+         */
+        void runTick() {
+            mainThread = Thread.currentThread();
+            List<Task> due = new ArrayList<>();
+            synchronized (this) {
+                tick++;
+                while (!queue.isEmpty() && queue.peek().nextTick <= tick) {
+                    due.add(queue.poll());
+                }
+            }
+
+            for (Task task : due) {
+                if (task.cancelled) {
+                    continue;
+                }
+
+                try {
+                    task.runnable.run();
+                } catch (RuntimeException ex) {
+                    errors.exception("sync task", ex);
+                }
+
+                if (task.period > 0 && !task.cancelled) {
+                    synchronized (this) {
+                        task.nextTick = tick + task.period;
+                        queue.add(task);
+                    }
+                }
+            }
+        }
+
+        long getTick() {
+            return tick;
+        }
+
+        boolean isMainThread() {
+            return Thread.currentThread() == mainThread;
+        }
+
+        void shutdown() {
+            cancel(task -> true);
+            async.shutdown();
+            try {
+                async.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private final class Task {
+            private final int id;
+            private final Runnable runnable;
+            private final long period;
+            private final BukkitTask proxy;
+            private long nextTick;
+            private volatile boolean cancelled;
+
+            Task(int id, Runnable runnable, long nextTick, long period) {
+                this.id = id;
+                this.runnable = runnable;
+                this.nextTick = nextTick;
+                this.period = period;
+                this.proxy = LoadSimulator.proxy(BukkitTask.class, (task, method, args) -> {
+                    switch (method.getName()) {
+                        case "getTaskId":
+                            return id;
+                        case "isSync":
+                            return true;
+                        case "isCancelled":
+                            return cancelled;
+                        case "cancel":
+                            cancelled = true;
+                            return null;
+                        default:
+                            return defaultAnswer(task, method, args, "Task " + id);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Calls the {@link EventHandler} methods of registered listeners, by priority, on the calling
+     * thread, and passes every event to a monitor afterwards.
+     */
+    private static final class SimulatedPluginManager implements InvocationHandler {
+        private final List<RegisteredHandler> handlers = new CopyOnWriteArrayList<>();
+        private final CountingLogHandler errors;
+        private final java.util.function.Consumer<Event> monitor;
+
+        SimulatedPluginManager(CountingLogHandler errors, java.util.function.Consumer<Event> monitor) {
+            this.errors = errors;
+            this.monitor = monitor;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "registerEvents":
+                    register((Listener) args[0]);
+                    return null;
+                case "callEvent":
+                    callEvent((Event) args[0]);
+                    return null;
+                case "getPlugins":
+                    return new Plugin[0];
+                default:
+                    return defaultAnswer(proxy, method, args, "PluginManager");
+            }
+        }
+
+        private void register(Listener listener) {
+            List<RegisteredHandler> added = new ArrayList<>(handlers);
+            for (Method method : listener.getClass().getDeclaredMethods()) {
+                EventHandler annotation = method.getAnnotation(EventHandler.class);
+                if (annotation != null && method.getParameterCount() == 1) {
+                    method.setAccessible(true);
+                    added.add(new RegisteredHandler(listener, method, annotation));
+                }
+            }
+            added.sort(Comparator.comparingInt(handler -> handler.annotation.priority().ordinal()));
+            handlers.clear();
+            handlers.addAll(added);
+        }
+
+        void callEvent(Event event) {
+            for (RegisteredHandler handler : handlers) {
+                if (!handler.method.getParameterTypes()[0].isInstance(event)) {
+                    continue;
+                }
+                if (handler.annotation.ignoreCancelled() && event instanceof Cancellable
+                        && ((Cancellable) event).isCancelled()) {
+                    continue;
+                }
+
+                try {
+                    handler.method.invoke(handler.listener, event);
+                } catch (InvocationTargetException ex) {
+                    errors.exception(handler.listener.getClass().getSimpleName(), ex.getCause());
+                } catch (IllegalAccessException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+            monitor.accept(event);
+        }
+
+        private static final class RegisteredHandler {
+            private final Listener listener;
+            private final Method method;
+            private final EventHandler annotation;
+
+            RegisteredHandler(Listener listener, Method method, EventHandler annotation) {
+                this.listener = listener;
+                this.method = method;
+                this.annotation = annotation;
+            }
+        }
+    }
+
+    /**
+     * Forwards to a data source and counts the calls of each method.
+     */
+    private static final class CountingDataSource implements InvocationHandler {
+        private final DataSource dataSource;
+        private final Map<String, AtomicLong> counts;
+
+        CountingDataSource(DataSource dataSource, Map<String, AtomicLong> counts) {
+            this.dataSource = dataSource;
+            this.counts = counts;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return defaultAnswer(proxy, method, args, "DataSource");
+            }
+
+            counts.computeIfAbsent(method.getName(), name -> new AtomicLong()).incrementAndGet();
+            try {
+                return method.invoke(dataSource, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+
+        Map<String, Long> getCounts() {
+            Map<String, Long> result = new TreeMap<>();
+            counts.forEach((method, count) -> result.put(method, count.get()));
+            return result;
+        }
+    }
+
+    /**
+     * Counts the warnings and errors the plugin logs, and the exceptions of listeners and tasks.
+     */
+    private static final class CountingLogHandler extends Handler {
+        private final AtomicInteger errors = new AtomicInteger();
+        private final AtomicInteger warnings = new AtomicInteger();
+        private volatile String firstError;
+
+        @Override
+        public void publish(LogRecord record) {
+            if (record.getLevel().intValue() >= Level.SEVERE.intValue()) {
+                error(record.getMessage() + (record.getThrown() != null ? " " + record.getThrown() : ""));
+            } else if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+                warnings.incrementAndGet();
+            }
+        }
+
+        void exception(String source, Throwable ex) {
+            error("Exception in " + source + ": " + ex);
+        }
+
+        private synchronized void error(String message) {
+            if (errors.getAndIncrement() == 0) {
+                firstError = message;
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
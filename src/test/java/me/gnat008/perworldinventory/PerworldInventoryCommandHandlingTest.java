@@ -2,11 +2,13 @@ package me.gnat008.perworldinventory;
 
 import ch.jalu.injector.Injector;
 import ch.jalu.injector.InjectorBuilder;
+import me.gnat008.perworldinventory.commands.BulkCommand;
 import me.gnat008.perworldinventory.commands.ConvertCommand;
 import me.gnat008.perworldinventory.commands.HelpCommand;
 import me.gnat008.perworldinventory.commands.PerWorldInventoryCommand;
 import me.gnat008.perworldinventory.commands.ReloadCommand;
 import me.gnat008.perworldinventory.commands.SetWorldDefaultCommand;
+import me.gnat008.perworldinventory.commands.StorageCommand;
 import me.gnat008.perworldinventory.commands.VersionCommand;
 import me.gnat008.perworldinventory.permission.AdminPermission;
 import me.gnat008.perworldinventory.permission.PermissionManager;
@@ -59,6 +61,8 @@ public class PerworldInventoryCommandHandlingTest {
     @Mock
     private PerWorldInventoryCommand pwiCommand;
     @Mock
+    private BulkCommand bulkCommand;
+    @Mock
     private ConvertCommand convertCommand;
     @Mock
     private HelpCommand helpCommand;
@@ -67,6 +71,8 @@ public class PerworldInventoryCommandHandlingTest {
     @Mock
     private SetWorldDefaultCommand setWorldDefaultsCommand;
     @Mock
+    private StorageCommand storageCommand;
+    @Mock
     private VersionCommand versionCommand;
 
     @Rule
@@ -89,11 +95,13 @@ public class PerworldInventoryCommandHandlingTest {
 
         Injector injector = new InjectorBuilder().addDefaultHandlers("me.gnat008.perworldinventory").create();
         injector.register(PermissionManager.class, permissionManager);
+        injector.register(BulkCommand.class, bulkCommand);
         injector.register(ConvertCommand.class, convertCommand);
         injector.register(HelpCommand.class, helpCommand);
         injector.register(PerWorldInventoryCommand.class, pwiCommand);
         injector.register(ReloadCommand.class, reloadCommand);
         injector.register(SetWorldDefaultCommand.class, setWorldDefaultsCommand);
+        injector.register(StorageCommand.class, storageCommand);
         injector.register(VersionCommand.class, versionCommand);
         plugin.registerCommands(injector);
         TestHelper.setField(PerWorldInventory.class, "permissionManager", plugin, permissionManager);
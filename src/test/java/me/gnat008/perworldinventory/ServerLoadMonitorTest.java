@@ -0,0 +1,134 @@
+package me.gnat008.perworldinventory;
+
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+
+/**
+ * Tests for {@link ServerLoadMonitor}.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ServerLoadMonitorTest {
+
+    @Mock
+    private BukkitService bukkitService;
+
+    @Mock
+    private Settings settings;
+
+    private ServerLoadMonitor loadMonitor;
+    private long now;
+
+    @BeforeClass
+    public static void initLogger() {
+        TestHelper.initMockLogger();
+    }
+
+    @Before
+    public void setup() {
+        given(settings.getProperty(PwiProperties.DEGRADED_MODE_MSPT)).willReturn(60);
+        given(settings.getProperty(PwiProperties.DEGRADED_MODE_MAX_DEFER_SECONDS)).willReturn(300);
+        loadMonitor = new ServerLoadMonitor(bukkitService, settings);
+        now = 1;
+    }
+
+    @Test
+    public void shouldStayNormalOnHealthyServer() {
+        // given / when
+        runTicks(200, 50);
+
+        // then
+        assertFalse(loadMonitor.isDegraded());
+        assertThat(loadMonitor.pollModeChanges(), equalTo(0));
+    }
+
+    @Test
+    public void shouldNotDegradeOnSingleLagSpike() {
+        // given
+        runTicks(100, 50);
+
+        // when
+        runTicks(1, 200);
+        runTicks(10, 50);
+
+        // then
+        assertFalse(loadMonitor.isDegraded());
+    }
+
+    @Test
+    public void shouldEnterAndLeaveDegradedMode() {
+        // given / when
+        runTicks(200, 80);
+
+        // then
+        assertTrue(loadMonitor.isDegraded());
+        assertThat(loadMonitor.pollModeChanges(), equalTo(1));
+
+        // when
+        runTicks(200, 50);
+
+        // then
+        assertFalse(loadMonitor.isDegraded());
+        assertThat(loadMonitor.pollModeChanges(), equalTo(1));
+    }
+
+    @Test
+    public void shouldCountEachDeferredWorkOnce() {
+        // given
+        runTicks(200, 100);
+
+        // when
+        boolean autosave = loadMonitor.shouldDefer("autosave", now);
+        loadMonitor.shouldDefer("autosave", now + 1);
+        boolean conversion = loadMonitor.shouldDefer("conversion", now);
+        int deferred = loadMonitor.pollDeferred();
+
+        // then
+        assertTrue(autosave);
+        assertTrue(conversion);
+        assertThat(deferred, equalTo(2));
+        assertThat(loadMonitor.pollDeferred(), equalTo(0));
+    }
+
+    @Test
+    public void shouldRunWorkThatWasDeferredTooLong() {
+        // given
+        runTicks(200, 100);
+        long start = now;
+        assertTrue(loadMonitor.shouldDefer("autosave", start));
+
+        // when / then
+        assertTrue(loadMonitor.shouldDefer("autosave", start + TimeUnit.SECONDS.toNanos(299)));
+        assertFalse(loadMonitor.shouldDefer("autosave", start + TimeUnit.SECONDS.toNanos(300)));
+        assertFalse(loadMonitor.shouldDefer("autosave", start + TimeUnit.SECONDS.toNanos(301)));
+        assertTrue(loadMonitor.isDegraded());
+
+        // when
+        runTicks(400, 20);
+
+        // then
+        assertFalse(loadMonitor.shouldDefer("autosave", now));
+        runTicks(200, 100);
+        assertTrue(loadMonitor.shouldDefer("autosave", now));
+    }
+
+    private void runTicks(int ticks, long millisPerTick) {
+        for (int i = 0; i < ticks; i++) {
+            loadMonitor.sample(now);
+            now += TimeUnit.MILLISECONDS.toNanos(millisPerTick);
+        }
+    }
+}
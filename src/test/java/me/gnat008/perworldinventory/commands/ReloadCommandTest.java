@@ -2,7 +2,9 @@ package me.gnat008.perworldinventory.commands;
 
 import me.gnat008.perworldinventory.PerWorldInventory;
 import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.data.players.ProfileApplier;
 import me.gnat008.perworldinventory.groups.GroupManager;
+import me.gnat008.perworldinventory.permission.PermissionManager;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.entity.Player;
 import org.junit.Test;
@@ -37,6 +39,12 @@ public class ReloadCommandTest {
     @Mock
     private Settings settings;
 
+    @Mock
+    private PermissionManager permissionManager;
+
+    @Mock
+    private ProfileApplier profileApplier;
+
     @Test
     public void shouldPerformReload() {
         // given
@@ -51,6 +59,8 @@ public class ReloadCommandTest {
         verify(player).sendMessage(argThat(containsString("Configuration files reloaded")));
         verify(settings).reload();
         verify(plugin).reload();
+        verify(profileApplier).reload();
+        verify(permissionManager).reload();
         verify(groupManager).loadGroupsToMemory(worldsConfig);
     }
 }
@@ -36,7 +36,7 @@ public class SettingsConsistencyTest {
             assertThat("config.yml does not have property for " + property,
                 ymlConfiguration.contains(property.getPath()), equalTo(true));
             assertThat("config.yml does not have same default value for " + property,
-                property.getDefaultValue(), equalTo(ymlConfiguration.get(property.getPath())));
+                toYamlValue(property.getDefaultValue()), equalTo(ymlConfiguration.get(property.getPath())));
         }
     }
 
@@ -50,4 +50,9 @@ public class SettingsConsistencyTest {
         // when / then
         assertThat(Sets.difference(keysInYml, keysInCode), empty());
     }
-}
\ No newline at end of file
+
+    private static Object toYamlValue(Object value) {
+        // Enum properties are stored by their name
+        return value instanceof Enum<?> ? ((Enum<?>) value).name() : value;
+    }
+}
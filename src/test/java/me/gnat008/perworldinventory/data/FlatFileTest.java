@@ -1,5 +1,6 @@
 package me.gnat008.perworldinventory.data;
 
+import ch.jalu.configme.properties.Property;
 import ch.jalu.injector.Injector;
 import ch.jalu.injector.InjectorBuilder;
 import ch.jalu.injector.testing.InjectDelayed;
@@ -7,10 +8,14 @@ import com.google.common.io.Files;
 import me.gnat008.perworldinventory.BukkitService;
 import me.gnat008.perworldinventory.DataFolder;
 import me.gnat008.perworldinventory.PerWorldInventory;
+import me.gnat008.perworldinventory.EconomyService;
+import me.gnat008.perworldinventory.ServerLoadMonitor;
 import me.gnat008.perworldinventory.TestHelper;
 import me.gnat008.perworldinventory.config.Settings;
 import me.gnat008.perworldinventory.data.players.PWIPlayer;
+import me.gnat008.perworldinventory.data.serializers.ItemSerializer;
 import me.gnat008.perworldinventory.groups.Group;
+import me.gnat008.perworldinventory.util.JsonChecksum;
 import org.bukkit.*;
 import org.bukkit.entity.Player;
 import org.junit.Before;
@@ -23,13 +28,25 @@ import org.mockito.junit.MockitoJUnitRunner;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.UUID;
 
 import static me.gnat008.perworldinventory.TestHelper.mockGroup;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
 
 /**
  * Test for {@link FlatFile}
@@ -48,13 +65,19 @@ public class FlatFileTest {
     private Settings settings;
     @Mock
     private BukkitService bukkitService;
+    @Mock
+    private ItemSerializer itemSerializer;
+    @Mock
+    private StorageScheduler storageScheduler;
 
     @Rule
     public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
+    private File testFolder;
+
     @Before
     public void setup() throws IOException {
-        File testFolder = temporaryFolder.newFolder();
+        testFolder = temporaryFolder.newFolder();
         String userDataPath = "data/7f7c909b-24f1-49a4-817f-baa4f4973980/";
         File source = TestHelper.getJarFile(TestHelper.PROJECT_ROOT + userDataPath + "last-logout.json");
         File userFolder = new File(testFolder, userDataPath);
@@ -66,6 +89,9 @@ public class FlatFileTest {
         destination = new File(userFolder, "test-group.json");
         Files.copy(data, destination);
 
+        given(settings.getProperty(any(Property.class)))
+                .willAnswer(invocation -> ((Property<?>) invocation.getArgument(0)).getDefaultValue());
+
         // Injector is restricted to creating classes only in 'data' package:
         // ensures that anything else that is required has to be provided explicitly
         Injector injector = new InjectorBuilder().addDefaultHandlers("me.gnat008.perworldinventory.data").create();
@@ -73,6 +99,10 @@ public class FlatFileTest {
         injector.register(PerWorldInventory.class, plugin);
         injector.register(Settings.class, settings);
         injector.register(BukkitService.class, bukkitService);
+        injector.register(ServerLoadMonitor.class, mock(ServerLoadMonitor.class));
+        injector.register(EconomyService.class, mock(EconomyService.class));
+        injector.register(ItemSerializer.class, itemSerializer);
+        injector.register(StorageScheduler.class, storageScheduler);
         flatFile = injector.getSingleton(FlatFile.class);
     }
 
@@ -166,6 +196,86 @@ public class FlatFileTest {
         assertTrue(result == null);
     }
 
+    @Test
+    public void shouldReadOnlyRequestedSections() {
+        // given
+        runTasksImmediately();
+        List<ProfileProjection> results = new ArrayList<>();
+
+        // when
+        flatFile.getSections(mockGroup("test-group"), GameMode.SURVIVAL, UUID_WITH_DATA,
+                EnumSet.of(ProfileSection.STATS, ProfileSection.ECONOMY), results::add);
+
+        // then
+        assertThat(results, hasSize(1));
+        ProfileProjection projection = results.get(0);
+        assertThat(projection.getSections(), contains(ProfileSection.STATS, ProfileSection.ECONOMY));
+        assertThat(projection.getProfile().getFoodLevel(), equalTo(20));
+        assertThat(projection.getProfile().getMaxAir(), equalTo(300));
+        assertThat(projection.getProfile().getBalance(), equalTo(0.0));
+        assertThat(projection.getProfile().getInventory().length, equalTo(0));
+        verifyZeroInteractions(itemSerializer);
+    }
+
+    @Test
+    public void shouldReadNoSectionsWithoutData() {
+        // given
+        runTasksImmediately();
+        List<ProfileProjection> results = new ArrayList<>();
+
+        // when
+        flatFile.getSections(mockGroup("test-group"), GameMode.CREATIVE, UUID_WITH_DATA,
+                EnumSet.of(ProfileSection.INVENTORY), results::add);
+
+        // then
+        assertThat(results, hasSize(1));
+        assertThat(results.get(0).has(ProfileSection.INVENTORY), equalTo(false));
+    }
+
+    @Test
+    public void shouldVerifyAndQuarantineProfiles() throws IOException {
+        // given
+        File userFolder = new File(testFolder, "data/" + UUID_WITH_DATA);
+        String intact = JsonChecksum.append("{\"data-format\":2,\"ender-chest\":[],\"stats\":{\"level\":3}}");
+        Files.write(intact, new File(userFolder, "intact.json"), StandardCharsets.UTF_8);
+        Files.write(intact.replace("\"level\":3", "\"level\":4"), new File(userFolder, "damaged.json"), StandardCharsets.UTF_8);
+        ProfileKey damaged = new ProfileKey(UUID_WITH_DATA, "damaged", GameMode.SURVIVAL);
+
+        // when
+        ProfileCheck oldResult = flatFile.verifyProfile(new ProfileKey(UUID_WITH_DATA, "test-group", GameMode.SURVIVAL));
+        ProfileCheck intactResult = flatFile.verifyProfile(new ProfileKey(UUID_WITH_DATA, "intact", GameMode.SURVIVAL));
+        ProfileCheck damagedResult = flatFile.verifyProfile(damaged);
+        boolean quarantined = flatFile.quarantineProfile(damaged);
+
+        // then
+        assertThat(oldResult.getStatus(), equalTo(ProfileCheck.Status.UNCHECKED));
+        assertThat(intactResult.getStatus(), equalTo(ProfileCheck.Status.INTACT));
+        assertThat(damagedResult.getStatus(), equalTo(ProfileCheck.Status.CORRUPT));
+        assertTrue(quarantined);
+        assertFalse(new File(userFolder, "damaged.json").exists());
+        assertTrue(new File(testFolder, "quarantine/" + UUID_WITH_DATA + "/damaged.json").exists());
+    }
+
+    @Test
+    public void shouldListStoredProfiles() {
+        // given / when
+        List<ProfileKey> result = flatFile.listProfiles(UUID_WITH_DATA);
+
+        // then
+        assertThat(result, contains(new ProfileKey(UUID_WITH_DATA, "test-group", GameMode.SURVIVAL)));
+    }
+
+    private void runTasksImmediately() {
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(1)).run();
+            return null;
+        }).when(storageScheduler).runInteractive(any(UUID.class), any(Runnable.class));
+        given(bukkitService.runTask(any(Runnable.class))).willAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        });
+    }
+
     /**
      * Sets the {@link Server} field in the Bukkit class with a mock and makes it return
      * the given World object for {@link Bukkit#getWorld(String)}.
@@ -0,0 +1,208 @@
+package me.gnat008.perworldinventory.data;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.ServerLoadMonitor;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.data.serializers.ItemSerializer;
+import me.gnat008.perworldinventory.util.JsonChecksum;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for {@link FormatMigrator}.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class FormatMigratorTest {
+
+    private static final String LEGACY = "{\"data-format\":1,\"ender-chest\":[],\"inventory\":{\"inventory\":[],\"armor\":[]},"
+            + "\"stats\":{\"level\":3,\"potion-effects\":\"\"}}";
+    private static final String CURRENT = "{\"data-format\":2,\"ender-chest\":[],\"inventory\":{\"inventory\":[],\"armor\":[]},"
+            + "\"stats\":{\"level\":3,\"potion-effects\":[]}}";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private BukkitService bukkitService;
+    @Mock
+    private StorageScheduler storageScheduler;
+    @Mock
+    private ServerLoadMonitor loadMonitor;
+    @Mock
+    private ItemSerializer itemSerializer;
+    @Mock
+    private Settings settings;
+
+    private File pluginFolder;
+    private DataLayout layout;
+    private FormatMigrator formatMigrator;
+
+    @Before
+    public void setup() throws IOException {
+        pluginFolder = temporaryFolder.newFolder();
+        given(settings.getProperty(PwiProperties.SHARDED_LAYOUT)).willReturn(false);
+        given(settings.getProperty(PwiProperties.DATA_ROOTS)).willReturn(Collections.emptyList());
+        layout = new DataLayout(pluginFolder, settings);
+        formatMigrator = new FormatMigrator(pluginFolder, layout, bukkitService, storageScheduler, loadMonitor, itemSerializer, settings);
+    }
+
+    @Test
+    public void shouldUpgradeLegacyFilesInBackground() throws IOException {
+        // given
+        File legacy = writeFile("data/7f7c909b-24f1-49a4-817f-baa4f4973980/survival.json", LEGACY);
+        File current = writeFile("data/7f7c909b-24f1-49a4-817f-baa4f4973980/creative.json", CURRENT);
+        File logout = writeFile("data/7f7c909b-24f1-49a4-817f-baa4f4973980/last-logout.json", "{\"world\":\"world\"}");
+
+        // when
+        formatMigrator.migrateBatch(1);
+        formatMigrator.migrateBatch(1);
+
+        // then
+        assertThat(formatMigrator.getRemaining(), equalTo(0));
+        assertFalse(new File(pluginFolder, FormatMigrator.DONE_FILE_NAME).exists());
+
+        // when
+        formatMigrator.migrateBatch(1);
+
+        // then
+        assertThat(readFile(legacy), equalTo(JsonChecksum.append(CURRENT)));
+        assertThat(readFile(current), equalTo(CURRENT));
+        assertThat(readFile(logout), equalTo("{\"world\":\"world\"}"));
+        assertTrue(new File(pluginFolder, FormatMigrator.DONE_FILE_NAME).exists());
+    }
+
+    @Test
+    public void shouldUpgradeFormatZeroItems() {
+        // given
+        JsonObject data = new JsonParser().parse("{\"ender-chest\":[{\"index\":4,\"id\":1,\"amount\":2,\"data\":0}]}")
+                .getAsJsonObject();
+        ItemStack stone = new ItemStack(Material.STONE, 2);
+        given(itemSerializer.deserializeItem(data.getAsJsonArray("ender-chest").get(0).getAsJsonObject(), 0))
+                .willReturn(stone);
+        JsonObject encoded = new JsonObject();
+        encoded.addProperty("index", 4);
+        encoded.addProperty("item", "rO0AB");
+        given(itemSerializer.serializeItem(stone, 4)).willReturn(encoded);
+
+        // when
+        boolean result = formatMigrator.upgrade(data);
+
+        // then
+        assertTrue(result);
+        assertThat(data.get("data-format").getAsInt(), equalTo(2));
+        JsonArray enderChest = data.getAsJsonArray("ender-chest");
+        assertThat(enderChest.size(), equalTo(1));
+        assertThat(enderChest.get(0), equalTo(encoded));
+    }
+
+    @Test
+    public void shouldLeaveDataAsItWasIfItemCannotBeConverted() {
+        // given
+        String json = "{\"ender-chest\":[{\"index\":0,\"id\":1,\"amount\":1,\"data\":0}],\"stats\":{\"potion-effects\":\"\"}}";
+        JsonObject data = new JsonParser().parse(json).getAsJsonObject();
+        given(itemSerializer.deserializeItem(any(JsonObject.class), anyInt())).willReturn(new ItemStack(Material.STONE));
+
+        // when
+        try {
+            formatMigrator.upgrade(data);
+            fail("Expected exception");
+        } catch (IllegalStateException ex) {
+            // then
+            assertThat(data, equalTo(new JsonParser().parse(json)));
+        }
+    }
+
+    @Test
+    public void shouldNotReplaceFileThatIsSavedWhileItIsChecked() throws Exception {
+        // given
+        UUID uuid = UUID.fromString("7f7c909b-24f1-49a4-817f-baa4f4973980");
+        File file = writeFile("data/" + uuid + "/survival.json", LEGACY);
+        formatMigrator.upgradeLoaded(file, new JsonParser().parse(LEGACY).getAsJsonObject());
+        ArgumentCaptor<Runnable> write = ArgumentCaptor.forClass(Runnable.class);
+        verify(storageScheduler).runBackground(any(), write.capture());
+
+        // when
+        Lock save = layout.lockPlayer(uuid);
+        Thread writer = new Thread(write.getValue());
+        writer.start();
+        writer.join(200);
+
+        // then
+        assertTrue(writer.isAlive());
+
+        // when
+        Files.write(file.toPath(), "{\"saved\":true}".getBytes(StandardCharsets.UTF_8));
+        file.setLastModified(file.lastModified() + 5000);
+        save.unlock();
+        writer.join(5000);
+
+        // then
+        assertFalse(writer.isAlive());
+        assertThat(readFile(file), equalTo("{\"saved\":true}"));
+    }
+
+    @Test
+    public void shouldReadFileAfterSaveWithSameTimestamp() throws Exception {
+        // given
+        UUID uuid = UUID.fromString("7f7c909b-24f1-49a4-817f-baa4f4973980");
+        File file = writeFile("data/" + uuid + "/survival.json", LEGACY);
+        long lastModified = file.lastModified();
+        formatMigrator.migrateBatch(0);
+
+        // when
+        Lock save = layout.lockPlayer(uuid);
+        Thread migrator = new Thread(() -> formatMigrator.migrateBatch(1));
+        migrator.start();
+        migrator.join(200);
+        // A file system with one second timestamps does not see the save
+        Files.write(file.toPath(), CURRENT.getBytes(StandardCharsets.UTF_8));
+        file.setLastModified(lastModified);
+        save.unlock();
+        migrator.join(5000);
+
+        // then
+        assertFalse(migrator.isAlive());
+        assertThat(readFile(file), equalTo(CURRENT));
+    }
+
+    private File writeFile(String path, String content) throws IOException {
+        File file = new File(pluginFolder, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String readFile(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
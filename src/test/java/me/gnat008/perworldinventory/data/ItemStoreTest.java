@@ -0,0 +1,213 @@
+package me.gnat008.perworldinventory.data;
+
+import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.TestHelper;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.data.players.PWIPlayer;
+import me.gnat008.perworldinventory.data.serializers.PlayerSerializer;
+import org.bukkit.GameMode;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests for {@link ItemStore}.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ItemStoreTest {
+
+    @Mock
+    private BukkitService bukkitService;
+
+    @Mock
+    private Settings settings;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File pluginFolder;
+    private DataLayout layout;
+    private ItemStore itemStore;
+
+    @BeforeClass
+    public static void initLogger() {
+        TestHelper.initMockLogger();
+    }
+
+    @Before
+    public void setup() throws IOException {
+        pluginFolder = temporaryFolder.newFolder();
+        given(settings.getProperty(PwiProperties.SHARDED_LAYOUT)).willReturn(false);
+        given(settings.getProperty(PwiProperties.DATA_ROOTS)).willReturn(Collections.emptyList());
+        layout = new DataLayout(pluginFolder, settings);
+        itemStore = new ItemStore(pluginFolder, layout, bukkitService, settings);
+    }
+
+    @Test
+    public void shouldStoreSameItemOnce() throws IOException {
+        // given / when
+        String first = itemStore.put("rO0ABXNyABpvcmcuYnVra2l0");
+        String second = itemStore.put("rO0ABXNyABpvcmcuYnVra2l0");
+        String other = itemStore.put("rO0ABXNyABpvcmcuYnVra2l1");
+
+        // then
+        assertThat(first, equalTo(second));
+        assertThat(first, not(equalTo(other)));
+        assertThat(itemStore.getReferenceCount(first), equalTo(2));
+        assertThat(countStoredItems(), equalTo(2));
+    }
+
+    @Test
+    public void shouldReadStoredItemFromDisk() throws IOException {
+        // given
+        String hash = itemStore.put("rO0ABXNyABpvcmcuYnVra2l0");
+
+        // when
+        ItemStore restarted = new ItemStore(pluginFolder, layout, bukkitService, settings);
+
+        // then
+        assertThat(restarted.get(hash), equalTo("rO0ABXNyABpvcmcuYnVra2l0"));
+        assertThat(restarted.get("0000000000"), nullValue());
+    }
+
+    @Test
+    public void shouldRemoveUnreferencedItems() throws IOException {
+        // given
+        given(settings.getProperty(PwiProperties.DATA_SOURCE)).willReturn(DataSourceType.FLATFILE);
+        String kept = itemStore.put("kept");
+        String removed = itemStore.put("removed");
+        makeOld(kept);
+        makeOld(removed);
+        writeProfile("{\"inventory\":{\"inventory\":[{\"index\":0,\"item-ref\":\"" + kept + "\"}]}}");
+        // Items stored since the scan before are kept, their profile may not be saved yet
+        assertThat(itemStore.collectGarbage(), equalTo(0));
+        String recent = itemStore.put("recent");
+        makeOld(recent);
+
+        // when
+        int count = itemStore.collectGarbage();
+
+        // then
+        assertThat(count, equalTo(1));
+        assertThat(itemStore.get(kept), equalTo("kept"));
+        assertThat(itemStore.get(removed), nullValue());
+        assertThat(itemStore.get(recent), equalTo("recent"));
+        assertThat(itemStore.getReferenceCount(kept), equalTo(1));
+    }
+
+    @Test
+    public void shouldKeepItemsReferencedOutsidePlayerFiles() throws IOException {
+        // given
+        given(settings.getProperty(PwiProperties.DATA_SOURCE)).willReturn(DataSourceType.FLATFILE);
+        String inDefaults = itemStore.put("defaults");
+        String inQuarantine = itemStore.put("quarantine");
+        String inJournal = itemStore.put("journal");
+        writeFile("data/defaults/test-group.json", reference(inDefaults));
+        writeFile("quarantine/" + TestHelper.TEST_UUID + "/test-group.json", reference(inQuarantine));
+
+        PlayerSerializer playerSerializer = mock(PlayerSerializer.class);
+        PWIPlayer player = mock(PWIPlayer.class);
+        given(player.getUuid()).willReturn(TestHelper.TEST_UUID);
+        given(playerSerializer.serialize(player)).willReturn(reference(inJournal));
+        try (ShutdownJournal.Writer writer = new ShutdownJournal(pluginFolder, playerSerializer).openWriter()) {
+            writer.appendProfile("test-group", GameMode.SURVIVAL, player);
+        }
+        new File(pluginFolder, ShutdownJournal.FILE_NAME)
+                .renameTo(new File(pluginFolder, ShutdownJournal.FAILED_PREFIX + "1"));
+
+        itemStore.collectGarbage();
+        makeOld(inDefaults);
+        makeOld(inQuarantine);
+        makeOld(inJournal);
+
+        // when
+        int count = itemStore.collectGarbage();
+
+        // then
+        assertThat(count, equalTo(0));
+        assertThat(itemStore.getReferenceCount(inDefaults), equalTo(1));
+        assertThat(itemStore.getReferenceCount(inQuarantine), equalTo(1));
+        assertThat(itemStore.getReferenceCount(inJournal), equalTo(1));
+    }
+
+    @Test
+    public void shouldNotCollectForOtherDataSources() throws IOException {
+        // given
+        given(settings.getProperty(PwiProperties.ITEM_STORE)).willReturn(true);
+        given(settings.getProperty(PwiProperties.DATA_SOURCE)).willReturn(DataSourceType.LOG);
+        String hash = itemStore.put("removed");
+        itemStore.collectGarbage();
+        makeOld(hash);
+
+        // when
+        int count = itemStore.collectGarbage();
+
+        // then
+        assertThat(count, equalTo(0));
+        assertThat(itemStore.get(hash), equalTo("removed"));
+        assertThat(itemStore.isEnabled(), equalTo(false));
+    }
+
+    @Test
+    public void shouldNotCollectWhileJournalIsPending() throws IOException {
+        // given
+        given(settings.getProperty(PwiProperties.DATA_SOURCE)).willReturn(DataSourceType.FLATFILE);
+        String hash = itemStore.put("removed");
+        makeOld(hash);
+        new File(pluginFolder, ShutdownJournal.FILE_NAME).createNewFile();
+
+        // when
+        int count = itemStore.collectGarbage();
+
+        // then
+        assertThat(count, equalTo(0));
+        assertThat(itemStore.get(hash), equalTo("removed"));
+    }
+
+    private void makeOld(String hash) {
+        File file = new File(new File(new File(pluginFolder, "items"), hash.substring(0, 2)), hash + ".item");
+        file.setLastModified(System.currentTimeMillis() - 3_600_000L);
+    }
+
+    private void writeProfile(String json) throws IOException {
+        writeFile("data/" + TestHelper.TEST_UUID + "/test-group.json", json);
+    }
+
+    private void writeFile(String path, String json) throws IOException {
+        File file = new File(pluginFolder, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String reference(String hash) {
+        return "{\"inventory\":{\"inventory\":[{\"index\":0,\"item-ref\":\"" + hash + "\"}]}}";
+    }
+
+    private int countStoredItems() {
+        int count = 0;
+        File[] buckets = new File(pluginFolder, "items").listFiles();
+        for (File bucket : buckets) {
+            count += bucket.listFiles().length;
+        }
+        return count;
+    }
+}
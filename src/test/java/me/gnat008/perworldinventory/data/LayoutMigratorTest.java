@@ -0,0 +1,131 @@
+package me.gnat008.perworldinventory.data;
+
+import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.ServerLoadMonitor;
+import me.gnat008.perworldinventory.TestHelper;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+
+/**
+ * Tests for {@link LayoutMigrator} and {@link DataLayout}.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class LayoutMigratorTest {
+
+    private static final UUID UUID_1 = UUID.fromString("7f7c909b-24f1-49a4-817f-baa4f4973980");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private BukkitService bukkitService;
+    @Mock
+    private StorageScheduler storageScheduler;
+    @Mock
+    private ServerLoadMonitor loadMonitor;
+    @Mock
+    private Settings settings;
+
+    private File pluginFolder;
+
+    @BeforeClass
+    public static void initLogger() {
+        TestHelper.initMockLogger();
+    }
+
+    @Before
+    public void setup() throws IOException {
+        pluginFolder = temporaryFolder.newFolder();
+        given(settings.getProperty(PwiProperties.SHARDED_LAYOUT)).willReturn(true);
+    }
+
+    @Test
+    public void shouldReadOldFolderUntilPlayerIsMoved() throws IOException {
+        // given
+        given(settings.getProperty(PwiProperties.DATA_ROOTS)).willReturn(Arrays.asList("disk1", "disk2"));
+        File legacy = writeFile("data/" + UUID_1 + "/survival.json", "{\"data-format\":2}");
+        DataLayout layout = new DataLayout(pluginFolder, settings);
+        LayoutMigrator migrator = new LayoutMigrator(layout, bukkitService, storageScheduler, loadMonitor, settings);
+        File home = layout.getHomeFolder(UUID_1);
+
+        // when / then
+        assertThat(layout.getUserFolder(UUID_1), equalTo(legacy.getParentFile()));
+        assertThat(scan(layout), contains(legacy.getParentFile()));
+
+        // when
+        migrator.migrateBatch(10);
+
+        // then
+        assertThat(home.getParentFile().getParentFile().getName(), equalTo("7f"));
+        assertThat(readFile(new File(home, "survival.json")), equalTo("{\"data-format\":2}"));
+        assertFalse(legacy.getParentFile().exists());
+        assertTrue(layout.isSettled());
+        assertThat(layout.getUserFolder(UUID_1), equalTo(home));
+        assertTrue(new DataLayout(pluginFolder, settings).isSettled());
+        assertThat(scan(layout), contains(home));
+    }
+
+    @Test
+    public void shouldDeleteOldFolderThatWasMovedAlready() throws IOException {
+        // given
+        given(settings.getProperty(PwiProperties.DATA_ROOTS)).willReturn(new ArrayList<>());
+        DataLayout layout = new DataLayout(pluginFolder, settings);
+        File home = layout.getHomeFolder(UUID_1);
+        File stale = writeFile("data/" + UUID_1 + "/survival.json", "{\"data-format\":1}");
+        writeFile(pluginFolder.toPath().relativize(home.toPath()) + "/survival.json", "{\"data-format\":2}");
+        LayoutMigrator migrator = new LayoutMigrator(layout, bukkitService, storageScheduler, loadMonitor, settings);
+
+        // when / then
+        assertThat(layout.getUserFolder(UUID_1), equalTo(home));
+        assertThat(scan(layout), contains(home));
+
+        // when
+        migrator.migrateBatch(10);
+
+        // then
+        assertFalse(stale.getParentFile().exists());
+        assertThat(readFile(new File(home, "survival.json")), equalTo("{\"data-format\":2}"));
+        assertTrue(layout.isSettled());
+    }
+
+    private static List<File> scan(DataLayout layout) throws IOException {
+        List<File> folders = new ArrayList<>();
+        layout.scanPlayers((uuid, folder) -> folders.add(folder));
+        return folders;
+    }
+
+    private File writeFile(String path, String content) throws IOException {
+        File file = new File(pluginFolder, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String readFile(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
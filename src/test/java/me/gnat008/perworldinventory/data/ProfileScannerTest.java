@@ -0,0 +1,149 @@
+package me.gnat008.perworldinventory.data;
+
+import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.TestHelper;
+import me.gnat008.perworldinventory.config.Settings;
+import org.bukkit.GameMode;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for {@link ProfileScanner}.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ProfileScannerTest {
+
+    private static final UUID FIRST = UUID.fromString("11111111-0000-0000-0000-000000000000");
+    private static final UUID SECOND = UUID.fromString("22222222-0000-0000-0000-000000000000");
+    private static final UUID THIRD = UUID.fromString("33333333-0000-0000-0000-000000000000");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private BukkitService bukkitService;
+    @Mock
+    private DataSource dataSource;
+    @Mock
+    private Settings settings;
+
+    private File pluginFolder;
+    private ProfileScanner profileScanner;
+
+    @BeforeClass
+    public static void initLogger() {
+        TestHelper.initMockLogger();
+    }
+
+    @Before
+    public void setup() throws IOException {
+        pluginFolder = temporaryFolder.newFolder();
+        profileScanner = new ProfileScanner(pluginFolder, bukkitService, dataSource, settings);
+
+        given(bukkitService.runTaskAsync(any(Runnable.class))).willAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        });
+        given(bukkitService.runTask(any(Runnable.class))).willAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        });
+        willScanPlayers(FIRST, SECOND, THIRD);
+    }
+
+    @Test
+    public void shouldResumeFromCheckpoint() throws IOException {
+        // given
+        File checkpoint = new File(pluginFolder, "scans/reset.checkpoint");
+        checkpoint.getParentFile().mkdirs();
+        Files.write(checkpoint.toPath(), (FIRST + "\n").getBytes(StandardCharsets.UTF_8));
+        Set<ProfileKey> visited = ConcurrentHashMap.newKeySet();
+
+        // when
+        ProfileScan scan = profileScanner.start("reset", EnumSet.noneOf(ProfileSection.class), 2, 0, true,
+                (key, projection) -> visited.add(key), done -> { });
+
+        // then
+        assertTrue(scan.isDone());
+        assertThat(visited, containsInAnyOrder(key(SECOND), key(THIRD)));
+        assertThat(scan.getResumed(), equalTo(1));
+        assertThat(scan.getProfiles(), equalTo(2));
+        assertFalse(checkpoint.exists());
+        verify(dataSource, never()).listProfiles(FIRST);
+        verify(dataSource, never()).readSections(any(ProfileKey.class), any());
+    }
+
+    @Test
+    public void shouldKeepCheckpointOfDonePlayersIfProfileFails() throws IOException {
+        // given
+        Set<ProfileSection> sections = EnumSet.of(ProfileSection.ECONOMY);
+        ProfileProjection projection = new ProfileProjection(null, sections);
+        given(dataSource.readSections(any(ProfileKey.class), any())).willReturn(projection);
+
+        // when
+        ProfileScan scan = profileScanner.start("wealth", sections, 1, 0, true, (key, read) -> {
+            if (key.getUuid().equals(SECOND)) {
+                throw new IllegalStateException("Broken profile");
+            }
+        }, done -> { });
+
+        // then
+        assertThat(scan.getProfiles(), equalTo(2));
+        assertThat(scan.getFailures(), equalTo(1));
+        File checkpoint = new File(pluginFolder, "scans/wealth.checkpoint");
+        assertThat(Files.readAllLines(checkpoint.toPath(), StandardCharsets.UTF_8),
+                contains(FIRST.toString(), THIRD.toString()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void willScanPlayers(UUID... uuids) throws IOException {
+        willAnswer(invocation -> {
+            Predicate<UUID> action = invocation.getArgument(0);
+            for (UUID uuid : uuids) {
+                if (!action.test(uuid)) {
+                    break;
+                }
+            }
+            return null;
+        }).given(dataSource).scanPlayers(any(Predicate.class));
+        // Players in the checkpoint are not listed
+        for (UUID uuid : uuids) {
+            lenient().when(dataSource.listProfiles(uuid))
+                    .thenReturn(Collections.singletonList(key(uuid)));
+        }
+    }
+
+    private static ProfileKey key(UUID uuid) {
+        return new ProfileKey(uuid, "world", GameMode.SURVIVAL);
+    }
+}
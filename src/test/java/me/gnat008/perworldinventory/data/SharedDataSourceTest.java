@@ -0,0 +1,213 @@
+package me.gnat008.perworldinventory.data;
+
+import com.google.gson.JsonObject;
+import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.TestHelper;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.data.players.PWIPlayer;
+import me.gnat008.perworldinventory.data.players.PWIPlayerFactory;
+import me.gnat008.perworldinventory.data.serializers.DeserializeCause;
+import me.gnat008.perworldinventory.data.serializers.PlayerSerializer;
+import me.gnat008.perworldinventory.groups.Group;
+import org.bukkit.GameMode;
+import org.bukkit.entity.Player;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+/**
+ * Tests for {@link SharedDataSource}, with two servers sharing a {@link LoopbackProfileStore}.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SharedDataSourceTest {
+
+    private static final UUID PLAYER = UUID.fromString("7f7c909b-24f1-49a4-817f-baa4f4973980");
+    private static final Group GROUP = new Group("default", null, null);
+
+    @Mock
+    private BukkitService bukkitService;
+    @Mock
+    private PlayerSerializer playerSerializer;
+    @Mock
+    private PWIPlayerFactory pwiPlayerFactory;
+    @Mock
+    private FlatFile flatFile;
+    @Mock
+    private StorageScheduler storageScheduler;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private LoopbackProfileStore store;
+    private File dataFolder;
+
+    @BeforeClass
+    public static void initLogger() {
+        TestHelper.initMockLogger();
+    }
+
+    @Before
+    public void setup() throws IOException {
+        store = new LoopbackProfileStore("test");
+        dataFolder = temporaryFolder.newFolder();
+        lenient().doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(1)).run();
+            return null;
+        }).when(storageScheduler).runBackground(any(UUID.class), any(Runnable.class));
+        lenient().doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(1)).run();
+            return null;
+        }).when(storageScheduler).runInteractive(any(UUID.class), any(Runnable.class));
+    }
+
+    @Test
+    public void shouldWaitForOtherServerToSaveBeforeLoading() throws Exception {
+        // given
+        SharedDataSource serverA = createServer("a", 5);
+        SharedDataSource serverB = createServer("b", 5);
+        PWIPlayer profile = mock(PWIPlayer.class);
+        given(profile.getUuid()).willReturn(PLAYER);
+        given(playerSerializer.serialize(profile)).willReturn("{\"data-format\":2,\"from\":\"a\"}");
+        willAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).given(bukkitService).runTask(any(Runnable.class));
+        assertTrue(serverA.acquirePlayer(PLAYER));
+
+        // when
+        CompletableFuture<Boolean> joinB = CompletableFuture.supplyAsync(() -> serverB.acquirePlayer(PLAYER));
+        Thread.sleep(300);
+        boolean joinedEarly = joinB.isDone();
+        serverA.saveToDatabase(GROUP, GameMode.SURVIVAL, profile);
+        serverA.releasePlayer(PLAYER);
+        boolean joined = joinB.get(5, TimeUnit.SECONDS);
+
+        Player player = mock(Player.class);
+        given(player.getUniqueId()).willReturn(PLAYER);
+        serverB.getFromDatabase(GROUP, GameMode.SURVIVAL, player, DeserializeCause.WORLD_CHANGE);
+
+        // then
+        assertFalse(joinedEarly);
+        assertTrue(joined);
+        assertThat(store.getLeaseHolder(PLAYER), equalTo("b"));
+        ArgumentCaptor<JsonObject> dataCaptor = ArgumentCaptor.forClass(JsonObject.class);
+        verify(playerSerializer).deserialize(dataCaptor.capture(), eq(player), eq(GROUP), eq(GameMode.SURVIVAL),
+                eq(DeserializeCause.WORLD_CHANGE));
+        assertThat(dataCaptor.getValue().get("from").getAsString(), equalTo("a"));
+    }
+
+    @Test
+    public void shouldTimeOutAndRefuseWritesWithoutLease() {
+        // given
+        SharedDataSource serverA = createServer("a", 5);
+        SharedDataSource serverB = createServer("b", 0);
+        PWIPlayer profile = mock(PWIPlayer.class);
+        given(profile.getUuid()).willReturn(PLAYER);
+        given(playerSerializer.serialize(profile)).willReturn("{\"from\":\"b\"}");
+        serverA.acquirePlayer(PLAYER);
+
+        // when
+        boolean joined = serverB.acquirePlayer(PLAYER);
+        serverB.saveToDatabase(GROUP, GameMode.SURVIVAL, profile);
+
+        // then
+        assertFalse(joined);
+        assertThat(store.getLeaseHolder(PLAYER), equalTo("a"));
+        assertThat(store.readProfile(new ProfileKey(PLAYER, GROUP.getName(), GameMode.SURVIVAL)), nullValue());
+    }
+
+    @Test
+    public void shouldKeepGeneratedServerIdAcrossRestarts() {
+        // given
+        SharedDataSource server = createServer("", 5);
+        String serverId = server.getServerId();
+        server.close();
+
+        // when
+        SharedDataSource restarted = createServer("", 5);
+
+        // then
+        assertThat(serverId, startsWith("server-"));
+        assertThat(restarted.getServerId(), equalTo(serverId));
+        assertTrue(new File(dataFolder, SharedDataSource.SERVER_ID_FILE).exists());
+        assertThat(createServer("a", 5).getServerId(), not(equalTo(serverId)));
+    }
+
+    @Test
+    public void shouldNotLoadProfileThatIsNotValid() {
+        // given
+        SharedDataSource server = createServer("a", 5);
+        assertTrue(server.acquirePlayer(PLAYER));
+        store.writeProfile(new ProfileKey(PLAYER, GROUP.getName(), GameMode.SURVIVAL), "{\"data-format\":", "a");
+        store.writeProfile(new ProfileKey(PLAYER, GROUP.getName(), GameMode.CREATIVE), "[]", "a");
+        Player player = mock(Player.class);
+        given(player.getUniqueId()).willReturn(PLAYER);
+
+        // when
+        server.getFromDatabase(GROUP, GameMode.SURVIVAL, player, DeserializeCause.WORLD_CHANGE);
+        server.getFromDatabase(GROUP, GameMode.CREATIVE, player, DeserializeCause.WORLD_CHANGE);
+
+        // then
+        verifyZeroInteractions(bukkitService, playerSerializer, flatFile);
+    }
+
+    @Test
+    public void shouldLetPlayerLogInAgainWhileOldSessionIsOnline() {
+        // given
+        SharedDataSource server = createServer("a", 5);
+        assertTrue(server.acquirePlayer(PLAYER));
+        given(bukkitService.isOnline(PLAYER)).willReturn(true);
+
+        // when
+        long start = System.currentTimeMillis();
+        boolean joined = server.acquirePlayer(PLAYER);
+        long waitedMillis = System.currentTimeMillis() - start;
+        // The old session is saved and released after the duplicate login kick
+        server.releasePlayer(PLAYER);
+
+        // then
+        assertTrue(joined);
+        assertThat(waitedMillis, lessThan(1000L));
+        assertThat(store.getLeaseHolder(PLAYER), equalTo("a"));
+        server.releasePlayer(PLAYER);
+        assertThat(store.getLeaseHolder(PLAYER), nullValue());
+    }
+
+    private SharedDataSource createServer(String serverId, int waitSeconds) {
+        Settings settings = mock(Settings.class);
+        given(settings.getProperty(PwiProperties.SERVER_ID)).willReturn(serverId);
+        given(settings.getProperty(PwiProperties.LEASE_WAIT_SECONDS)).willReturn(waitSeconds);
+        given(settings.getProperty(PwiProperties.LEASE_TTL_SECONDS)).willReturn(60);
+        return new SharedDataSource(dataFolder, store, settings, bukkitService, playerSerializer, pwiPlayerFactory, flatFile, storageScheduler);
+    }
+}
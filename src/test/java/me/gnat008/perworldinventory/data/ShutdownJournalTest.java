@@ -0,0 +1,277 @@
+package me.gnat008.perworldinventory.data;
+
+import me.gnat008.perworldinventory.TestHelper;
+import me.gnat008.perworldinventory.data.players.PWIPlayer;
+import me.gnat008.perworldinventory.data.serializers.PlayerSerializer;
+import org.bukkit.GameMode;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests for {@link ShutdownJournal}.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ShutdownJournalTest {
+
+    private static final UUID OTHER_UUID = UUID.fromString("11111111-2222-3333-4444-555555555555");
+
+    @Mock
+    private PlayerSerializer playerSerializer;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File dataFolder;
+
+    @BeforeClass
+    public static void initLogger() {
+        TestHelper.initMockLogger();
+    }
+
+    @Before
+    public void setup() throws IOException {
+        dataFolder = temporaryFolder.newFolder();
+    }
+
+    @Test
+    public void shouldReplayNewestRecordOfEachProfile() throws IOException {
+        // given
+        PWIPlayer first = mockPWIPlayer(TestHelper.TEST_UUID);
+        PWIPlayer second = mockPWIPlayer(TestHelper.TEST_UUID);
+        PWIPlayer other = mockPWIPlayer(OTHER_UUID);
+        given(playerSerializer.serialize(first)).willReturn("{\"first\":1}");
+        given(playerSerializer.serialize(second)).willReturn("{\"second\":2}");
+        given(playerSerializer.serialize(other)).willReturn("{\"other\":3}");
+
+        ShutdownJournal journal = new ShutdownJournal(dataFolder, playerSerializer);
+        try (ShutdownJournal.Writer writer = journal.openWriter()) {
+            writer.appendProfile("test-group", GameMode.SURVIVAL, first);
+            writer.appendProfile("test-group", GameMode.CREATIVE, other);
+            writer.appendProfile("test-group", GameMode.SURVIVAL, second);
+        }
+        List<ShutdownJournal.Record> replayed = new ArrayList<>();
+
+        // when
+        ShutdownJournal nextStart = startAgain();
+        assertTrue(nextStart.hasJournal());
+        nextStart.replay(replayed::add);
+
+        // then
+        assertThat(replayed, hasSize(2));
+        assertThat(replayed.get(0).getUuid(), equalTo(OTHER_UUID));
+        assertThat(replayed.get(0).getGameMode(), equalTo(GameMode.CREATIVE));
+        assertThat(replayed.get(1).getUuid(), equalTo(TestHelper.TEST_UUID));
+        assertThat(replayed.get(1).getGroup(), equalTo("test-group"));
+        assertThat(replayed.get(1).getData(), equalTo("{\"second\":2}"));
+        assertFalse(nextStart.hasJournal());
+    }
+
+    @Test
+    public void shouldReplayLogoutRecords() throws IOException {
+        // given
+        PWIPlayer player = mockPWIPlayer(TestHelper.TEST_UUID);
+        World world = mock(World.class);
+        given(world.getName()).willReturn("world");
+        given(player.getLocation()).willReturn(new Location(world, 1, 2, 3));
+
+        ShutdownJournal journal = new ShutdownJournal(dataFolder, playerSerializer);
+        try (ShutdownJournal.Writer writer = journal.openWriter()) {
+            writer.appendLogout(player);
+        }
+        List<ShutdownJournal.Record> replayed = new ArrayList<>();
+
+        // when
+        startAgain().replay(replayed::add);
+
+        // then
+        assertThat(replayed, hasSize(1));
+        assertTrue(replayed.get(0).isLogout());
+        assertTrue(replayed.get(0).getData().contains("\"world\":\"world\""));
+    }
+
+    @Test
+    public void shouldReplayCompleteRecordsOfTruncatedJournal() throws IOException {
+        // given
+        PWIPlayer first = mockPWIPlayer(TestHelper.TEST_UUID);
+        PWIPlayer other = mockPWIPlayer(OTHER_UUID);
+        given(playerSerializer.serialize(first)).willReturn("{\"first\":1}");
+        given(playerSerializer.serialize(other)).willReturn("{\"other\":2}");
+
+        ShutdownJournal journal = new ShutdownJournal(dataFolder, playerSerializer);
+        try (ShutdownJournal.Writer writer = journal.openWriter()) {
+            writer.appendProfile("test-group", GameMode.SURVIVAL, first);
+            writer.appendProfile("test-group", GameMode.SURVIVAL, other);
+        }
+        // Cut off the end marker and part of the last record
+        try (RandomAccessFile file = new RandomAccessFile(new File(dataFolder, "shutdown.journal"), "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        List<ShutdownJournal.Record> replayed = new ArrayList<>();
+
+        // when
+        startAgain().replay(replayed::add);
+
+        // then
+        assertThat(replayed, hasSize(1));
+        assertThat(replayed.get(0).getData(), equalTo("{\"first\":1}"));
+    }
+
+    @Test
+    public void shouldReplayRecordsBeforeNegativeLengthAndKeepJournal() throws IOException {
+        // given
+        writeTwoProfiles();
+        // The length of the second record: magic, first record, then type, UUID, group and gamemode
+        try (RandomAccessFile file = new RandomAccessFile(new File(dataFolder, "shutdown.journal"), "rw")) {
+            file.seek(4 + 54 + 1 + 16 + 12 + 10);
+            file.writeInt(-1);
+        }
+        List<ShutdownJournal.Record> replayed = new ArrayList<>();
+
+        // when
+        ShutdownJournal nextStart = startAgain();
+        nextStart.replay(replayed::add);
+
+        // then
+        assertThat(replayed, hasSize(1));
+        assertThat(replayed.get(0).getData(), equalTo("{\"first\":1}"));
+        assertFalse(nextStart.hasJournal());
+        String[] failed = dataFolder.list((dir, name) -> name.startsWith("shutdown.journal.failed-"));
+        assertThat(failed.length, equalTo(1));
+    }
+
+    @Test
+    public void shouldReplayRecordsBeforeUnknownGameMode() throws IOException {
+        // given
+        writeTwoProfiles();
+        try (RandomAccessFile file = new RandomAccessFile(new File(dataFolder, "shutdown.journal"), "rw")) {
+            file.seek(4 + 54 + 1 + 16 + 12 + 2);
+            file.write("SURVIVXL".getBytes(StandardCharsets.UTF_8));
+        }
+        List<ShutdownJournal.Record> replayed = new ArrayList<>();
+
+        // when
+        ShutdownJournal nextStart = startAgain();
+        nextStart.replay(replayed::add);
+
+        // then
+        assertThat(replayed, hasSize(1));
+        assertThat(replayed.get(0).getUuid(), equalTo(TestHelper.TEST_UUID));
+        assertFalse(nextStart.hasJournal());
+    }
+
+    @Test
+    public void shouldKeepJournalIfRecordFailed() throws IOException {
+        // given
+        PWIPlayer player = mockPWIPlayer(TestHelper.TEST_UUID);
+        given(playerSerializer.serialize(player)).willReturn("{}");
+
+        ShutdownJournal journal = new ShutdownJournal(dataFolder, playerSerializer);
+        try (ShutdownJournal.Writer writer = journal.openWriter()) {
+            writer.appendProfile("test-group", GameMode.SURVIVAL, player);
+        }
+
+        // when
+        ShutdownJournal nextStart = startAgain();
+        nextStart.replay(record -> false);
+
+        // then
+        assertFalse(nextStart.hasJournal());
+        String[] failed = dataFolder.list((dir, name) -> name.startsWith("shutdown.journal.failed-"));
+        assertThat(failed.length, equalTo(1));
+    }
+
+    @Test
+    public void shouldNotWaitWithoutReplay() {
+        // given
+        ShutdownJournal journal = new ShutdownJournal(dataFolder, playerSerializer);
+
+        // when / then
+        assertFalse(journal.hasJournal());
+        journal.awaitReplay(TestHelper.TEST_UUID); // returns immediately
+    }
+
+    @Test
+    public void shouldKnowPendingPlayersBeforeReplayStarts() throws Exception {
+        // given
+        PWIPlayer player = mockPWIPlayer(TestHelper.TEST_UUID);
+        World world = mock(World.class);
+        given(world.getName()).willReturn("world");
+        given(player.getLocation()).willReturn(new Location(world, 1, 2, 3));
+        try (ShutdownJournal.Writer writer = new ShutdownJournal(dataFolder, playerSerializer).openWriter()) {
+            writer.appendLogout(player);
+        }
+        ShutdownJournal nextStart = startAgain();
+        CountDownLatch loaded = new CountDownLatch(1);
+
+        // when
+        Thread load = new Thread(() -> {
+            nextStart.awaitReplay(TestHelper.TEST_UUID);
+            loaded.countDown();
+        });
+        load.start();
+
+        // then
+        assertFalse(loaded.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(nextStart.getUnreplayedLogout(TestHelper.TEST_UUID).contains("\"world\":\"world\""));
+
+        // when
+        nextStart.replay(record -> true);
+
+        // then
+        assertTrue(loaded.await(5, TimeUnit.SECONDS));
+        assertThat(nextStart.getUnreplayedLogout(TestHelper.TEST_UUID), nullValue());
+    }
+
+    /**
+     * Create the journal the way the next start of the server does.
+     */
+    private void writeTwoProfiles() throws IOException {
+        PWIPlayer first = mockPWIPlayer(TestHelper.TEST_UUID);
+        PWIPlayer other = mockPWIPlayer(OTHER_UUID);
+        given(playerSerializer.serialize(first)).willReturn("{\"first\":1}");
+        given(playerSerializer.serialize(other)).willReturn("{\"other\":2}");
+        try (ShutdownJournal.Writer writer = new ShutdownJournal(dataFolder, playerSerializer).openWriter()) {
+            writer.appendProfile("test-group", GameMode.SURVIVAL, first);
+            writer.appendProfile("test-group", GameMode.SURVIVAL, other);
+        }
+    }
+
+    private ShutdownJournal startAgain() {
+        ShutdownJournal journal = new ShutdownJournal(dataFolder, playerSerializer);
+        journal.readJournal();
+        return journal;
+    }
+
+    private static PWIPlayer mockPWIPlayer(UUID uuid) {
+        PWIPlayer player = mock(PWIPlayer.class);
+        given(player.getUuid()).willReturn(uuid);
+        return player;
+    }
+}
@@ -0,0 +1,117 @@
+package me.gnat008.perworldinventory.data;
+
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.data.StorageScheduler.Priority;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests for {@link StorageScheduler}.
+ */
+public class StorageSchedulerTest {
+
+    private static final UUID ALEX = UUID.fromString("7f7c909b-24f1-49a4-817f-baa4f4973980");
+    private static final UUID STEVE = UUID.fromString("0e4d9a4c-3b3e-4d2a-9a4b-9f1f6c1d2e3f");
+
+    @Test
+    public void shouldRunInteractiveWorkFirstButKeepPlayerOrder() throws InterruptedException {
+        // given
+        Settings settings = mock(Settings.class);
+        given(settings.getProperty(PwiProperties.STORAGE_THREADS)).willReturn(1);
+        given(settings.getProperty(PwiProperties.STORAGE_BACKGROUND_PER_SECOND)).willReturn(0);
+        given(settings.getProperty(PwiProperties.STORAGE_BACKGROUND_MAX_WAIT_MS)).willReturn(60000);
+        StorageScheduler scheduler = new StorageScheduler(settings);
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // when
+        scheduler.runBackground(null, () -> {
+            running.countDown();
+            await(release);
+        });
+        running.await(5, TimeUnit.SECONDS);
+        scheduler.runBackground(STEVE, () -> order.add("save steve"));
+        scheduler.runBackground(ALEX, () -> order.add("save alex"));
+        scheduler.runInteractive(ALEX, () -> order.add("load alex"));
+        scheduler.runInteractive(STEVE, () -> order.add("load steve"));
+        release.countDown();
+        scheduler.shutdown();
+
+        // then
+        assertThat(order, equalTo(Arrays.asList("save alex", "load alex", "save steve", "load steve")));
+        assertThat(scheduler.getWaitHistogram(Priority.INTERACTIVE).getTotal(), equalTo(2L));
+        assertThat(scheduler.getWaitHistogram(Priority.BACKGROUND).getTotal(), equalTo(3L));
+        assertThat(scheduler.getQueued(Priority.BACKGROUND), equalTo(0));
+    }
+
+    @Test
+    public void shouldNotStartWorkForPlayerWhileTheirEarlierWorkRuns() throws InterruptedException {
+        // given
+        Settings settings = mock(Settings.class);
+        given(settings.getProperty(PwiProperties.STORAGE_THREADS)).willReturn(2);
+        given(settings.getProperty(PwiProperties.STORAGE_BACKGROUND_PER_SECOND)).willReturn(0);
+        given(settings.getProperty(PwiProperties.STORAGE_BACKGROUND_MAX_WAIT_MS)).willReturn(60000);
+        StorageScheduler scheduler = new StorageScheduler(settings);
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch steveLoaded = new CountDownLatch(1);
+
+        // when
+        scheduler.runBackground(ALEX, () -> {
+            order.add("save alex");
+            running.countDown();
+            await(release);
+            order.add("saved alex");
+        });
+        running.await(5, TimeUnit.SECONDS);
+        scheduler.runInteractive(ALEX, () -> order.add("load alex"));
+        scheduler.runInteractive(STEVE, () -> {
+            order.add("load steve");
+            steveLoaded.countDown();
+        });
+        boolean otherPlayerRan = steveLoaded.await(5, TimeUnit.SECONDS);
+        release.countDown();
+        scheduler.shutdown();
+
+        // then
+        assertTrue(otherPlayerRan);
+        assertThat(order, equalTo(Arrays.asList("save alex", "load steve", "saved alex", "load alex")));
+    }
+
+    @Test
+    public void shouldRunWorkInlineAfterShutdown() {
+        // given
+        StorageScheduler scheduler = new StorageScheduler(mock(Settings.class));
+        scheduler.shutdown();
+        List<String> order = new CopyOnWriteArrayList<>();
+
+        // when
+        scheduler.runBackground(ALEX, () -> order.add("save alex"));
+
+        // then
+        assertThat(order, equalTo(Arrays.asList("save alex")));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package me.gnat008.perworldinventory.data.log;
+
+import me.gnat008.perworldinventory.TestHelper;
+import me.gnat008.perworldinventory.data.ProfileKey;
+import org.bukkit.GameMode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link LogProfileStore}.
+ */
+public class LogProfileStoreTest {
+
+    private static final UUID PLAYER = UUID.fromString("7f7c909b-24f1-49a4-817f-baa4f4973980");
+    private static final ProfileKey SURVIVAL = new ProfileKey(PLAYER, "default", GameMode.SURVIVAL);
+    private static final ProfileKey CREATIVE = new ProfileKey(PLAYER, "default", GameMode.CREATIVE);
+    private static final ProfileKey NETHER = new ProfileKey(PLAYER, "nether", GameMode.SURVIVAL);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File folder;
+    private LogProfileStore store;
+
+    @BeforeClass
+    public static void initLogger() {
+        TestHelper.initMockLogger();
+    }
+
+    @Before
+    public void setup() throws IOException {
+        folder = temporaryFolder.newFolder();
+    }
+
+    @After
+    public void closeStore() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Test
+    public void shouldRebuildIndexAfterRestart() throws IOException {
+        // given
+        store = openStore();
+        for (int i = 0; i < 20; i++) {
+            store.writeProfile(SURVIVAL, "{\"round\":" + i + "}", "server");
+        }
+        store.writeProfile(CREATIVE, "{\"creative\":true}", "server");
+        store.writeProfile(NETHER, "{\"nether\":true}", "server");
+        store.deleteProfile(CREATIVE);
+        store.writeLogout(PLAYER, "{\"world\":\"world\"}", "server");
+        store.close();
+
+        // when
+        store = openStore();
+
+        // then
+        assertThat(store.getSegmentCount(), greaterThan(2));
+        assertThat(store.readProfile(SURVIVAL), equalTo("{\"round\":19}"));
+        assertThat(store.readProfile(CREATIVE), nullValue());
+        assertThat(store.readProfile(NETHER), equalTo("{\"nether\":true}"));
+        assertThat(store.readLogout(PLAYER), equalTo("{\"world\":\"world\"}"));
+        assertThat(store.listProfiles(PLAYER), containsInAnyOrder(SURVIVAL, NETHER));
+    }
+
+    @Test
+    public void shouldCutOffIncompleteRecordAfterCrash() throws IOException {
+        // given
+        store = openStore();
+        store.writeProfile(SURVIVAL, "{\"saved\":true}", "server");
+        store.close();
+        File segment = new File(folder, "segment-000001.log");
+        long size = segment.length();
+        try (FileOutputStream out = new FileOutputStream(segment, true)) {
+            // The start of a record that was being written when the server stopped
+            out.write(new byte[]{0x50, 0x57, 0x49, 0x52, 0, 0, 1});
+        }
+
+        // when
+        store = openStore();
+        store.writeProfile(NETHER, "{\"after\":true}", "server");
+
+        // then
+        assertThat(store.readProfile(SURVIVAL), equalTo("{\"saved\":true}"));
+        assertThat(store.readProfile(NETHER), equalTo("{\"after\":true}"));
+        assertThat(segment.length(), greaterThan(size));
+        store.close();
+        store = openStore();
+        assertThat(store.readProfile(NETHER), equalTo("{\"after\":true}"));
+    }
+
+    @Test
+    public void shouldCompactOutdatedSegments() throws IOException {
+        // given
+        store = openStore();
+        store.writeProfile(NETHER, "{\"nether\":true}", "server");
+        store.writeProfile(CREATIVE, "{\"creative\":true}", "server");
+        store.deleteProfile(CREATIVE);
+        for (int i = 0; i < 40; i++) {
+            store.writeProfile(SURVIVAL, "{\"round\":" + i + "}", "server");
+        }
+        int segmentsBefore = store.getSegmentCount();
+
+        // when
+        boolean compacted = false;
+        while (store.compact()) {
+            compacted = true;
+        }
+
+        // then
+        assertTrue(compacted);
+        assertThat(store.getSegmentCount(), lessThan(segmentsBefore));
+        assertThat(store.readProfile(SURVIVAL), equalTo("{\"round\":39}"));
+        assertThat(store.readProfile(NETHER), equalTo("{\"nether\":true}"));
+        assertThat(store.readProfile(CREATIVE), nullValue());
+        store.close();
+        store = openStore();
+        assertThat(store.readProfile(SURVIVAL), equalTo("{\"round\":39}"));
+        assertThat(store.readProfile(NETHER), equalTo("{\"nether\":true}"));
+        assertThat(store.readProfile(CREATIVE), nullValue());
+        assertFalse(store.compact());
+    }
+
+    private LogProfileStore openStore() throws IOException {
+        // Small segments, so a few saves fill several of them
+        LogProfileStore logStore = new LogProfileStore(folder, 200, 0);
+        logStore.load();
+        return logStore;
+    }
+}
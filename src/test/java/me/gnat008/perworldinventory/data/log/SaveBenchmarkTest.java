@@ -0,0 +1,185 @@
+package me.gnat008.perworldinventory.data.log;
+
+import ch.jalu.configme.properties.Property;
+import ch.jalu.injector.Injector;
+import ch.jalu.injector.InjectorBuilder;
+import com.google.gson.stream.JsonWriter;
+import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.DataFolder;
+import me.gnat008.perworldinventory.EconomyService;
+import me.gnat008.perworldinventory.PerWorldInventory;
+import me.gnat008.perworldinventory.ServerLoadMonitor;
+import me.gnat008.perworldinventory.TestHelper;
+import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.data.DataSource;
+import me.gnat008.perworldinventory.data.FlatFile;
+import me.gnat008.perworldinventory.data.ProfileKey;
+import me.gnat008.perworldinventory.data.ProfileStore;
+import me.gnat008.perworldinventory.data.SharedDataSource;
+import me.gnat008.perworldinventory.data.players.PWIPlayer;
+import me.gnat008.perworldinventory.data.serializers.ItemSerializer;
+import me.gnat008.perworldinventory.data.serializers.PlayerSerializer;
+import me.gnat008.perworldinventory.groups.Group;
+import me.gnat008.perworldinventory.util.JsonChecksum;
+import org.bukkit.GameMode;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Sustained saves through {@link FlatFile}, which rewrites one file per profile, and through
+ * {@link LogProfileStore}, which appends every save to a segment. Both have to end up with the
+ * latest data.
+ * <p>
+ * The timed comparison of both only runs when asked for with {@code -Dpwi.benchmark=true}, as
+ * timings on a shared build machine say little. It reports the numbers and never fails on them.
+ */
+public class SaveBenchmarkTest {
+
+    /** Set to true to run the timed comparison. */
+    private static final String BENCHMARK_PROPERTY = "pwi.benchmark";
+
+    private static final int PLAYERS = 300;
+    private static final String[] GROUPS = {"survival", "creative_world"};
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void initLogger() {
+        TestHelper.initMockLogger();
+    }
+
+    @Test
+    public void shouldKeepLatestDataAfterSustainedSaves() throws IOException {
+        // given
+        File folder = temporaryFolder.newFolder();
+        Injector injector = createInjector(folder);
+        FlatFile flatFile = injector.getSingleton(FlatFile.class);
+        LogProfileStore store = new LogProfileStore(new File(folder, "log"), 64L * 1024 * 1024, 0);
+        store.load();
+        injector.register(ProfileStore.class, store);
+        DataSource logDataSource = injector.getSingleton(SharedDataSource.class);
+        List<PWIPlayer> players = createPlayers();
+
+        // when
+        saveRounds(flatFile, players);
+        saveRounds(logDataSource, players);
+
+        // then
+        // All saves together are smaller than one segment
+        assertThat(store.getSegmentCount(), equalTo(1));
+        PWIPlayer last = players.get(PLAYERS - 1);
+        File file = flatFile.getFile(GameMode.SURVIVAL, new Group(GROUPS[0], null, null), last.getUuid());
+        assertThat(new String(Files.readAllBytes(file.toPath())), equalTo(JsonChecksum.append(payload(last))));
+        assertThat(store.readProfile(new ProfileKey(last.getUuid(), GROUPS[0], GameMode.SURVIVAL)), equalTo(payload(last)));
+        store.close();
+    }
+
+    @Test
+    public void shouldCompareSustainedSaves() throws IOException {
+        assumeTrue("Run with -D" + BENCHMARK_PROPERTY + "=true to compare save times",
+                Boolean.getBoolean(BENCHMARK_PROPERTY));
+
+        // given
+        File folder = temporaryFolder.newFolder();
+        Injector injector = createInjector(folder);
+        FlatFile flatFile = injector.getSingleton(FlatFile.class);
+        LogProfileStore store = new LogProfileStore(new File(folder, "log"), 64L * 1024 * 1024, 0);
+        store.load();
+        injector.register(ProfileStore.class, store);
+        DataSource logDataSource = injector.getSingleton(SharedDataSource.class);
+        List<PWIPlayer> players = createPlayers();
+        // Warm up both, so the JIT has compiled the save paths before they are timed
+        saveRounds(flatFile, players.subList(0, 20));
+        saveRounds(logDataSource, players.subList(0, 20));
+
+        // when
+        long flatFileNanos = saveRounds(flatFile, players);
+        long logNanos = saveRounds(logDataSource, players);
+
+        // then
+        int saves = PLAYERS * GROUPS.length * ROUNDS;
+        System.out.println(String.format("[save benchmark] %d saves   flatfile: %5d ms | log: %5d ms, %d segments",
+                saves, TimeUnit.NANOSECONDS.toMillis(flatFileNanos), TimeUnit.NANOSECONDS.toMillis(logNanos),
+                store.getSegmentCount()));
+        store.close();
+    }
+
+    private static long saveRounds(DataSource dataSource, List<PWIPlayer> players) {
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (PWIPlayer player : players) {
+                for (String group : GROUPS) {
+                    dataSource.saveToDatabase(new Group(group, null, null), GameMode.SURVIVAL, player);
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static Injector createInjector(File folder) throws IOException {
+        Settings settings = mock(Settings.class);
+        given(settings.getProperty(any(Property.class)))
+                .willAnswer(invocation -> ((Property<?>) invocation.getArgument(0)).getDefaultValue());
+        PlayerSerializer playerSerializer = mock(PlayerSerializer.class);
+        // Both data sources write the same data, so only the way it is stored differs
+        given(playerSerializer.serialize(any(PWIPlayer.class)))
+                .willAnswer(invocation -> payload(invocation.getArgument(0)));
+        willAnswer(invocation -> {
+            ((JsonWriter) invocation.getArgument(1)).jsonValue(payload(invocation.getArgument(0)));
+            return null;
+        }).given(playerSerializer).serialize(any(PWIPlayer.class), any(JsonWriter.class));
+
+        Injector injector = new InjectorBuilder().addDefaultHandlers("me.gnat008.perworldinventory.data").create();
+        injector.provide(DataFolder.class, folder);
+        injector.register(PerWorldInventory.class, mock(PerWorldInventory.class));
+        injector.register(Settings.class, settings);
+        injector.register(BukkitService.class, mock(BukkitService.class));
+        injector.register(ServerLoadMonitor.class, mock(ServerLoadMonitor.class));
+        injector.register(EconomyService.class, mock(EconomyService.class));
+        injector.register(ItemSerializer.class, mock(ItemSerializer.class));
+        injector.register(PlayerSerializer.class, playerSerializer);
+        return injector;
+    }
+
+    private static List<PWIPlayer> createPlayers() {
+        List<PWIPlayer> players = new ArrayList<>();
+        for (int i = 0; i < PLAYERS; i++) {
+            PWIPlayer player = mock(PWIPlayer.class);
+            given(player.getUuid()).willReturn(new UUID(0, i));
+            given(player.getName()).willReturn("Player" + i);
+            players.add(player);
+        }
+        return players;
+    }
+
+    /**
+     * About the size of a profile with a full inventory.
+     */
+    private static String payload(PWIPlayer player) {
+        StringBuilder data = new StringBuilder("{\"data-format\":2,\"player\":\"" + player.getUuid() + "\",\"items\":\"");
+        for (int i = 0; i < 6000; i++) {
+            data.append((char) ('a' + i % 26));
+        }
+        return data.append("\"}").toString();
+    }
+}
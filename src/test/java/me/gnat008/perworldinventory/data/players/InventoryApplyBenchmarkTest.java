@@ -0,0 +1,257 @@
+package me.gnat008.perworldinventory.data.players;
+
+import ch.jalu.configme.properties.Property;
+import ch.jalu.injector.testing.BeforeInjecting;
+import ch.jalu.injector.testing.DelayedInjectionRunner;
+import ch.jalu.injector.testing.InjectDelayed;
+import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.EconomyService;
+import me.gnat008.perworldinventory.PerWorldInventory;
+import me.gnat008.perworldinventory.ServerLoadMonitor;
+import me.gnat008.perworldinventory.TestHelper;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.data.DataSource;
+import me.gnat008.perworldinventory.data.ShutdownJournal;
+import me.gnat008.perworldinventory.data.StorageScheduler;
+import me.gnat008.perworldinventory.data.serializers.DeserializeCause;
+import me.gnat008.perworldinventory.groups.Group;
+import me.gnat008.perworldinventory.groups.GroupManager;
+import org.bukkit.Bukkit;
+import org.bukkit.GameMode;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.attribute.Attribute;
+import org.bukkit.attribute.AttributeInstance;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.Invocation;
+
+import java.util.Collections;
+
+import static me.gnat008.perworldinventory.TestHelper.mockGroup;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+
+/**
+ * Benchmark of the number of setter calls and slot updates needed for an inventory switch,
+ * comparing the regular apply (reset the player, then set everything) with the diff apply.
+ */
+@RunWith(DelayedInjectionRunner.class)
+public class InventoryApplyBenchmarkTest {
+
+    private static final int INVENTORY_SIZE = 41;
+    private static final int ENDER_CHEST_SIZE = 27;
+
+    @InjectDelayed
+    private PWIPlayerManager playerManager;
+
+    @InjectDelayed
+    private PWIPlayerFactory pwiPlayerFactory;
+
+    @InjectDelayed
+    private LazyEnderChests lazyEnderChests;
+
+    @InjectDelayed
+    private ProfileApplier profileApplier;
+
+    @Mock
+    private PerWorldInventory plugin;
+
+    @Mock
+    private BukkitService bukkitService;
+
+    @Mock
+    private DataSource dataSource;
+
+    @Mock
+    private GroupManager groupManager;
+
+    @Mock
+    private Settings settings;
+
+    @Mock
+    private ShutdownJournal shutdownJournal;
+
+    @Mock
+    private ServerLoadMonitor loadMonitor;
+
+    @Mock
+    private EconomyService economyService;
+
+    @Mock
+    private StorageScheduler storageScheduler;
+
+    private boolean diffApply;
+
+    @BeforeInjecting
+    public void initSettings() {
+        given(settings.getProperty(any(Property.class))).willAnswer(invocation -> {
+            Property<?> property = invocation.getArgument(0);
+            return property == PwiProperties.DIFF_APPLY ? diffApply : property.getDefaultValue();
+        });
+
+        Server server = mock(Server.class);
+        TestHelper.setField(Bukkit.class, "server", null, server);
+        given(server.getScheduler()).willReturn(mock(BukkitScheduler.class));
+        given(server.getPluginManager()).willReturn(mock(PluginManager.class));
+        given(server.getVersion()).willReturn("git-Spigot-8a048fe-3c19fef (MC: 1.11.2)");
+        given(plugin.getServer()).willReturn(server);
+    }
+
+    @Test
+    public void shouldNeedNoUpdatesForIdenticalProfile() {
+        Counts full = measure(false, 0);
+        Counts diff = measure(true, 0);
+
+        assertThat(diff.slotUpdates, equalTo(0));
+        assertThat(diff.setterCalls, equalTo(0));
+    }
+
+    @Test
+    public void shouldNeedFewerUpdatesForMostlyIdenticalProfile() {
+        Counts full = measure(false, 3);
+        Counts diff = measure(true, 3);
+
+        assertThat(diff.slotUpdates, equalTo(3));
+        assertThat(diff.setterCalls, lessThan(full.setterCalls));
+    }
+
+    @Test
+    public void shouldNotNeedMoreUpdatesForDifferentProfile() {
+        Counts full = measure(false, INVENTORY_SIZE);
+        Counts diff = measure(true, INVENTORY_SIZE);
+
+        assertThat(diff.slotUpdates, lessThanOrEqualTo(full.slotUpdates));
+        assertThat(diff.setterCalls, lessThanOrEqualTo(full.setterCalls));
+    }
+
+    /**
+     * Cache the current state of a player, change a number of inventory slots, then switch back
+     * to the cached state and count the calls made on the player and its inventories.
+     */
+    private Counts measure(boolean diff, int changedSlots) {
+        diffApply = diff;
+        profileApplier.reload();
+        Group group = mockGroup("benchmark");
+
+        ItemStack[] contents = new ItemStack[INVENTORY_SIZE];
+        for (int i = 0; i < 36; i += 2) {
+            contents[i] = new ItemStack(Material.STONE, i + 1);
+        }
+        ItemStack[] enderChest = new ItemStack[ENDER_CHEST_SIZE];
+        enderChest[0] = new ItemStack(Material.DIAMOND_SWORD);
+
+        PlayerInventory inventory = mockInventory(PlayerInventory.class, contents);
+        Inventory enderInventory = mockInventory(Inventory.class, enderChest);
+        Player player = mockPlayer(inventory, enderInventory);
+        playerManager.addPlayer(player, group);
+
+        // The player's current inventory differs from the cached one in some slots
+        for (int i = 0; i < changedSlots; i++) {
+            contents[i] = new ItemStack(Material.DIAMOND_SWORD, 1);
+        }
+
+        Counts before = count(player, inventory, enderInventory);
+        playerManager.getPlayerData(group, GameMode.SURVIVAL, player, DeserializeCause.WORLD_CHANGE);
+        Counts after = count(player, inventory, enderInventory);
+
+        return new Counts(after.setterCalls - before.setterCalls, after.slotUpdates - before.slotUpdates);
+    }
+
+    private static Counts count(Object... mocks) {
+        int setterCalls = 0;
+        int slotUpdates = 0;
+        for (Object mock : mocks) {
+            for (Invocation invocation : mockingDetails(mock).getInvocations()) {
+                String name = invocation.getMethod().getName();
+                if (name.startsWith("set") || name.equals("clear")
+                        || name.equals("removePotionEffect") || name.startsWith("addPotionEffect")) {
+                    setterCalls++;
+                }
+
+                switch (name) {
+                    case "setItem":
+                    case "setHelmet":
+                    case "setChestplate":
+                    case "setLeggings":
+                    case "setBoots":
+                        slotUpdates++;
+                        break;
+                    case "setArmorContents":
+                        slotUpdates += 4;
+                        break;
+                    case "setContents":
+                    case "clear":
+                        slotUpdates += ((Inventory) mock).getSize();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        return new Counts(setterCalls, slotUpdates);
+    }
+
+    private static <T extends Inventory> T mockInventory(Class<T> type, ItemStack[] contents) {
+        T inventory = mock(type);
+        given(inventory.getSize()).willReturn(contents.length);
+        given(inventory.getItem(anyInt())).willAnswer(invocation -> contents[(int) invocation.getArgument(0)]);
+        given(inventory.getContents()).willAnswer(invocation -> contents.clone());
+        if (inventory instanceof PlayerInventory) {
+            PlayerInventory playerInventory = (PlayerInventory) inventory;
+            given(playerInventory.getArmorContents()).willAnswer(invocation ->
+                    new ItemStack[]{contents[36], contents[37], contents[38], contents[39]});
+            given(playerInventory.getBoots()).willAnswer(invocation -> contents[36]);
+            given(playerInventory.getLeggings()).willAnswer(invocation -> contents[37]);
+            given(playerInventory.getChestplate()).willAnswer(invocation -> contents[38]);
+            given(playerInventory.getHelmet()).willAnswer(invocation -> contents[39]);
+        }
+        return inventory;
+    }
+
+    private static Player mockPlayer(PlayerInventory inventory, Inventory enderChest) {
+        Player player = mock(Player.class);
+        given(player.getUniqueId()).willReturn(TestHelper.TEST_UUID);
+        given(player.getName()).willReturn("Benchmark");
+        given(player.getGameMode()).willReturn(GameMode.SURVIVAL);
+        given(player.getInventory()).willReturn(inventory);
+        given(player.getEnderChest()).willReturn(enderChest);
+        given(player.getActivePotionEffects()).willReturn(Collections.emptyList());
+        given(player.getFoodLevel()).willReturn(20);
+        given(player.getHealth()).willReturn(20.0);
+        given(player.getMaxHealth()).willReturn(20.0);
+        given(player.getSaturation()).willReturn(5f);
+        given(player.getMaximumAir()).willReturn(300);
+        given(player.getRemainingAir()).willReturn(300);
+        AttributeInstance maxHealth = mock(AttributeInstance.class);
+        given(maxHealth.getBaseValue()).willReturn(20.0);
+        given(maxHealth.getValue()).willReturn(20.0);
+        given(player.getAttribute(Attribute.GENERIC_MAX_HEALTH)).willReturn(maxHealth);
+        return player;
+    }
+
+    private static final class Counts {
+        private final int setterCalls;
+        private final int slotUpdates;
+
+        Counts(int setterCalls, int slotUpdates) {
+            this.setterCalls = setterCalls;
+            this.slotUpdates = slotUpdates;
+        }
+    }
+}
@@ -4,32 +4,59 @@ import ch.jalu.injector.testing.BeforeInjecting;
 import ch.jalu.injector.testing.DelayedInjectionRunner;
 import ch.jalu.injector.testing.InjectDelayed;
 import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.EconomyService;
 import me.gnat008.perworldinventory.PerWorldInventory;
+import me.gnat008.perworldinventory.ServerLoadMonitor;
 import me.gnat008.perworldinventory.TestHelper;
 import me.gnat008.perworldinventory.config.PwiProperties;
 import me.gnat008.perworldinventory.config.Settings;
 import me.gnat008.perworldinventory.data.DataSource;
+import me.gnat008.perworldinventory.data.ProfileProjection;
+import me.gnat008.perworldinventory.data.ProfileSection;
+import me.gnat008.perworldinventory.data.ShutdownJournal;
+import me.gnat008.perworldinventory.data.StorageScheduler;
+import me.gnat008.perworldinventory.data.serializers.DeserializeCause;
 import me.gnat008.perworldinventory.groups.Group;
 import me.gnat008.perworldinventory.groups.GroupManager;
 import org.bukkit.Bukkit;
 import org.bukkit.GameMode;
 import org.bukkit.Server;
+import org.bukkit.World;
 import org.bukkit.attribute.Attribute;
 import org.bukkit.attribute.AttributeInstance;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.PlayerInventory;
+import org.bukkit.plugin.PluginManager;
 import org.bukkit.scheduler.BukkitScheduler;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.UUID;
+
 import static me.gnat008.perworldinventory.TestHelper.mockGroup;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 /**
  * Tests for {@link PWIPlayerManager}.
@@ -43,6 +70,9 @@ public class PWIPlayerManagerTest {
     @InjectDelayed
     private PWIPlayerFactory pwiPlayerFactory;
 
+    @InjectDelayed
+    private LazyEnderChests lazyEnderChests;
+
     @Mock
     private PerWorldInventory plugin;
 
@@ -58,9 +88,28 @@ public class PWIPlayerManagerTest {
     @Mock
     private Settings settings;
 
+    @Mock
+    private ShutdownJournal shutdownJournal;
+
+    @Mock
+    private ServerLoadMonitor loadMonitor;
+
+    @Mock
+    private ProfileApplier profileApplier;
+
+    @Mock
+    private EconomyService economyService;
+
+    @Mock
+    private StorageScheduler storageScheduler;
+
     @BeforeInjecting
     public void initSettings() {
         given(settings.getProperty(PwiProperties.SAVE_INTERVAL)).willReturn(300);
+        given(settings.getProperty(PwiProperties.SAVE_MAX_PER_TICK)).willReturn(10);
+        given(settings.getProperty(PwiProperties.CACHE_HOT_SIZE)).willReturn(0);
+        given(settings.getProperty(PwiProperties.CACHE_WARM_SIZE)).willReturn(0);
+        given(settings.getProperty(PwiProperties.CACHE_WARM_OFF_HEAP)).willReturn(false);
 
         // Add mocks for Bukkit.getScheduler, called in @PostConstruct method
         Server server = mock(Server.class);
@@ -143,14 +192,233 @@ public class PWIPlayerManagerTest {
         assertThat(result, equalTo(expected));
     }
 
+    @Test
+    public void shouldSaveCachedPlayerInItsTickOfTheInterval() {
+        // given
+        Player player = mockPlayer("Alex", GameMode.SURVIVAL);
+        Group group = mockGroup("test");
+        given(groupManager.getGroup("test")).willReturn(group);
+        given(settings.getProperty(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES)).willReturn(true);
+        playerManager.addPlayer(player, group);
+        int tick = Math.floorMod(TestHelper.TEST_UUID.hashCode(), 300 * 20);
+
+        // when
+        for (int i = 0; i < tick; i++) {
+            playerManager.autoSave();
+        }
+
+        // then
+        verify(storageScheduler, never()).runBackground(any(UUID.class), any(Runnable.class));
+
+        // when
+        playerManager.autoSave();
+
+        // then
+        verify(storageScheduler).runBackground(any(UUID.class), any(Runnable.class));
+        assertThat(playerManager.getPlayer(group, player).isSaved(), equalTo(true));
+    }
+
+    @Test
+    public void shouldKeepQueuedProfileUntilItsSaveFinished() {
+        // given
+        Player player = mockPlayer("Alex", GameMode.SURVIVAL);
+        Group group = mockGroup("test");
+        given(groupManager.getGroup("test")).willReturn(group);
+        given(settings.getProperty(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES)).willReturn(true);
+        playerManager.addPlayer(player, group);
+        for (int i = 0; i < 300 * 20; i++) {
+            playerManager.autoSave();
+        }
+        ArgumentCaptor<Runnable> save = ArgumentCaptor.forClass(Runnable.class);
+        verify(storageScheduler).runBackground(any(UUID.class), save.capture());
+
+        // when
+        for (int i = 0; i < 300 * 20; i++) {
+            playerManager.autoSave();
+        }
+
+        // then
+        assertThat(playerManager.getPlayer(group, player), not(nullValue()));
+
+        // when
+        save.getValue().run();
+        for (int i = 0; i < 300 * 20; i++) {
+            playerManager.autoSave();
+        }
+
+        // then
+        verify(dataSource).saveToDatabase(eq(group), eq(GameMode.SURVIVAL), any(PWIPlayer.class));
+        assertThat(playerManager.getPlayer(group, player), nullValue());
+    }
+
+    @Test
+    public void shouldSaveOnlinePlayerInItsTickOfTheInterval() {
+        // given
+        Player player = mockPlayer("Alex", GameMode.SURVIVAL);
+        Group group = mockGroup("test");
+        World world = mock(World.class);
+        given(world.getName()).willReturn("world");
+        given(player.getWorld()).willReturn(world);
+        given(player.isOnline()).willReturn(true);
+        given(groupManager.getGroupFromWorld("world")).willReturn(group);
+        given(settings.getProperty(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES)).willReturn(true);
+        doReturn(Collections.singletonList(player)).when(Bukkit.getServer()).getOnlinePlayers();
+        int tick = Math.floorMod(TestHelper.TEST_UUID.hashCode(), 300 * 20);
+
+        // when
+        for (int i = 0; i < tick; i++) {
+            playerManager.autoSave();
+        }
+
+        // then
+        verify(storageScheduler, never()).runBackground(any(UUID.class), any(Runnable.class));
+
+        // when
+        playerManager.autoSave();
+
+        // then
+        verify(storageScheduler).runBackground(any(UUID.class), any(Runnable.class));
+        // Once per second, not on every tick
+        verify(Bukkit.getServer(), times(tick / 20 + 1)).getOnlinePlayers();
+    }
+
+    @Test
+    public void shouldRemoveSavedPlayerAfterFullInterval() {
+        // given
+        Player player = mockPlayer("Steve", GameMode.SURVIVAL);
+        Group group = mockGroup("test");
+        given(groupManager.getGroup("test")).willReturn(group);
+        given(settings.getProperty(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES)).willReturn(true);
+        willAnswer(invocation -> {
+            invocation.getArgument(1, Runnable.class).run();
+            return null;
+        }).given(storageScheduler).runBackground(any(UUID.class), any(Runnable.class));
+        playerManager.addPlayer(player, group);
+
+        // when
+        for (int i = 0; i < 2 * 300 * 20; i++) {
+            playerManager.autoSave();
+        }
+
+        // then
+        verify(storageScheduler, times(1)).runBackground(any(UUID.class), any(Runnable.class));
+        assertThat(playerManager.getPlayer(group, player), nullValue());
+    }
+
+    @Test
+    public void shouldNotSaveWhileServerIsOverloaded() {
+        // given
+        Player player = mockPlayer("Herobrine", GameMode.SURVIVAL);
+        Group group = mockGroup("test");
+        given(settings.getProperty(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES)).willReturn(true);
+        playerManager.addPlayer(player, group);
+        given(loadMonitor.shouldDefer("autosave")).willReturn(true);
+
+        // when
+        for (int i = 0; i < 300 * 20; i++) {
+            playerManager.autoSave();
+        }
+
+        // then
+        verify(storageScheduler, never()).runBackground(any(UUID.class), any(Runnable.class));
+        assertThat(playerManager.getPlayer(group, player).isSaved(), equalTo(false));
+    }
+
+    @Test
+    public void shouldReplaceCachedPlayerInsteadOfChangingIt() {
+        // given
+        Player player = mockPlayer("Notch", GameMode.SURVIVAL);
+        Group group = mockGroup("test");
+        given(settings.getProperty(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES)).willReturn(true);
+        given(player.getLevel()).willReturn(3);
+        playerManager.addPlayer(player, group);
+        PWIPlayer original = playerManager.getPlayer(group, player);
+        original.setSaved(true);
+        given(player.getLevel()).willReturn(8);
+
+        // when
+        PWIPlayer updated = playerManager.updateCache(player, original);
+
+        // then
+        assertThat(playerManager.getPlayer(group, player), sameInstance(updated));
+        assertThat(original.getLevel(), equalTo(3));
+        assertThat(original.isSaved(), equalTo(true));
+        assertThat(updated.getLevel(), equalTo(8));
+        assertThat(updated.isSaved(), equalTo(false));
+    }
+
+    @Test
+    public void shouldKeepPinnedProfilesUntilPlayerLeavesGroup() {
+        // given
+        Player player = mockPlayer("Builder", GameMode.CREATIVE);
+        Group group = mockGroup("plots");
+        Group other = mockGroup("survival");
+        given(settings.getProperty(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES)).willReturn(true);
+        given(settings.getProperty(PwiProperties.CACHE_PIN_CURRENT_GROUP)).willReturn(true);
+        given(settings.getProperty(PwiProperties.DIFF_APPLY)).willReturn(true);
+        given(settings.getProperty(PwiProperties.USE_ECONOMY)).willReturn(false);
+        given(Bukkit.getServer().getPluginManager()).willReturn(mock(PluginManager.class));
+        playerManager.addPlayer(player, group);
+        playerManager.getPlayer(group, player).setSaved(true);
+        playerManager.getPlayerData(group, GameMode.CREATIVE, player, DeserializeCause.GAMEMODE_CHANGE);
+
+        // when
+        for (int i = 0; i < 300 * 20; i++) {
+            playerManager.autoSave();
+        }
+
+        // then
+        PWIPlayer pinned = playerManager.getPlayer(group, player);
+        assertThat(pinned, not(nullValue()));
+
+        // when
+        playerManager.updateCache(player, pinned);
+        playerManager.addPlayer(player, other);
+        playerManager.getPlayerData(other, GameMode.CREATIVE, player, DeserializeCause.WORLD_CHANGE);
+        playerManager.autoSave();
+
+        // then
+        verify(storageScheduler).runBackground(any(UUID.class), any(Runnable.class));
+        assertThat(playerManager.getPlayer(group, player).isSaved(), equalTo(true));
+    }
+
+    @Test
+    public void shouldPassCopyOfCachedProfileToSectionCallback() {
+        // given
+        Player player = mockPlayer("Alex", GameMode.SURVIVAL);
+        Group group = mockGroup("test");
+        given(settings.getProperty(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES)).willReturn(true);
+        willAnswer(invocation -> {
+            invocation.getArgument(0, Runnable.class).run();
+            return null;
+        }).given(bukkitService).runTask(any(Runnable.class));
+        playerManager.addPlayer(player, group);
+        PWIPlayer cached = playerManager.getPlayer(group, player);
+        List<ProfileProjection> projections = new ArrayList<>();
+
+        // when
+        playerManager.loadSections(TestHelper.TEST_UUID, group, GameMode.SURVIVAL,
+                EnumSet.of(ProfileSection.INVENTORY, ProfileSection.ECONOMY), projections::add);
+
+        // then
+        assertThat(projections, hasSize(1));
+        ProfileProjection projection = projections.get(0);
+        assertThat(projection.getProfile(), not(sameInstance(cached)));
+        assertThat(projection.getProfile().getInventory(), not(sameInstance(cached.getInventory())));
+        assertThat(projection.getProfile().getInventory().length, equalTo(cached.getInventory().length));
+        assertThat(projection.has(ProfileSection.INVENTORY), equalTo(true));
+        assertThat(projection.has(ProfileSection.ECONOMY), equalTo(false));
+        assertThat(projection.getProfile().getEnderChest().length, equalTo(0));
+    }
+
     private Player mockPlayer(String name, GameMode gameMode) {
         Player mock = mock(Player.class);
         PlayerInventory inv = mock(PlayerInventory.class);
-        inv.setContents(new ItemStack[39]);
-        inv.setArmorContents(new ItemStack[4]);
+        given(inv.getContents()).willReturn(new ItemStack[39]);
+        given(inv.getArmorContents()).willReturn(new ItemStack[4]);
 
         Inventory enderChest = mock(Inventory.class);
-        enderChest.setContents(new ItemStack[27]);
+        given(enderChest.getContents()).willReturn(new ItemStack[27]);
 
         given(mock.getInventory()).willReturn(inv);
         given(mock.getEnderChest()).willReturn(enderChest);
@@ -0,0 +1,209 @@
+package me.gnat008.perworldinventory.data.players;
+
+import ch.jalu.configme.properties.Property;
+import com.google.gson.JsonArray;
+import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
+import org.bukkit.GameMode;
+import org.bukkit.Material;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for {@link ProfileApplier}.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ProfileApplierTest {
+
+    @Mock
+    private Settings settings;
+
+    @Mock
+    private BukkitService bukkitService;
+
+    private LazyEnderChests lazyEnderChests;
+    private ProfileApplier profileApplier;
+    private final Map<Property<?>, Object> overrides = new HashMap<>();
+
+    @Before
+    public void setup() {
+        given(settings.getProperty(any(Property.class))).willAnswer(invocation -> {
+            Property<?> property = invocation.getArgument(0);
+            return overrides.containsKey(property) ? overrides.get(property) : Boolean.FALSE;
+        });
+        overrides.put(PwiProperties.LOAD_HUNGER, true);
+        overrides.put(PwiProperties.LOAD_LEVEL, true);
+        lazyEnderChests = new LazyEnderChests();
+        profileApplier = new ProfileApplier(settings, bukkitService, lazyEnderChests);
+    }
+
+    @Test
+    public void shouldOnlyApplyEnabledFields() {
+        // given
+        overrides.put(PwiProperties.LOAD_LEVEL, false);
+        profileApplier.reload();
+        Player player = mock(Player.class);
+        PWIPlayer profile = mock(PWIPlayer.class);
+        given(profile.getFoodLevel()).willReturn(17);
+
+        // when
+        profileApplier.apply(player, profile);
+
+        // then
+        verify(player).setFoodLevel(17);
+        verify(player, never()).setLevel(anyInt());
+        assertFalse(profileApplier.isEnabled(PlayerField.LEVEL));
+    }
+
+    @Test
+    public void shouldNotApplyGameModeWithSeparateInventories() {
+        // given
+        overrides.put(PwiProperties.LOAD_GAMEMODE, true);
+        overrides.put(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES, true);
+        profileApplier.reload();
+
+        // when / then
+        assertFalse(profileApplier.isEnabled(PlayerField.GAMEMODE));
+
+        // when
+        overrides.put(PwiProperties.SEPARATE_GAMEMODE_INVENTORIES, false);
+        profileApplier.reload();
+
+        // then
+        assertTrue(profileApplier.isEnabled(PlayerField.GAMEMODE));
+    }
+
+    @Test
+    public void shouldSkipFieldsThatAreNotPresent() {
+        // given
+        profileApplier.reload();
+        Player player = mock(Player.class);
+        PWIPlayer profile = mock(PWIPlayer.class);
+        given(profile.getLevel()).willReturn(12);
+
+        // when
+        profileApplier.apply(player, profile, EnumSet.of(PlayerField.LEVEL));
+
+        // then
+        verify(player).setLevel(12);
+        verify(player, never()).setFoodLevel(anyInt());
+        verify(player, never()).setGameMode(any(GameMode.class));
+    }
+
+    @Test
+    public void shouldDecodeLazyEnderChestOnlyWhenOpened() {
+        // given
+        overrides.put(PwiProperties.LOAD_ENDER_CHESTS, true);
+        overrides.put(PwiProperties.LAZY_ENDER_CHESTS, true);
+        profileApplier.reload();
+        Player player = mock(Player.class);
+        given(player.getUniqueId()).willReturn(UUID.fromString("7f7c909b-24f1-49a4-817f-baa4f4973980"));
+        Inventory enderChest = mock(Inventory.class);
+        given(player.getEnderChest()).willReturn(enderChest);
+        given(enderChest.getContents()).willReturn(new ItemStack[27]);
+
+        ItemStack[] decoded = new ItemStack[27];
+        AtomicInteger decodes = new AtomicInteger();
+        StoredItems stored = new StoredItems(new JsonArray(), json -> {
+            decodes.incrementAndGet();
+            return decoded;
+        });
+        PWIPlayer profile = new PWIPlayer(player.getUniqueId(), null);
+        profile.setStoredEnderChest(stored);
+
+        // when
+        profileApplier.apply(player, profile);
+        PWIPlayer saved = new PWIPlayer(player.getUniqueId(), null);
+        lazyEnderChests.copyTo(player, saved);
+
+        // then
+        assertTrue(profileApplier.isEnderChestLazy());
+        verify(enderChest).clear();
+        verify(enderChest, never()).setContents(any(ItemStack[].class));
+        assertThat(saved.getStoredEnderChest(), sameInstance(stored));
+        assertThat(decodes.get(), equalTo(0));
+
+        // when
+        lazyEnderChests.materialize(player);
+        lazyEnderChests.materialize(player);
+
+        // then
+        verify(enderChest).setContents(decoded);
+        assertThat(decodes.get(), equalTo(1));
+    }
+
+    @Test
+    public void shouldMergeItemsAddedToDeferredEnderChest() {
+        // given
+        overrides.put(PwiProperties.LOAD_ENDER_CHESTS, true);
+        overrides.put(PwiProperties.LAZY_ENDER_CHESTS, true);
+        profileApplier.reload();
+        Player player = mock(Player.class);
+        given(player.getUniqueId()).willReturn(UUID.fromString("7f7c909b-24f1-49a4-817f-baa4f4973980"));
+        Inventory enderChest = mock(Inventory.class);
+        given(player.getEnderChest()).willReturn(enderChest);
+        AtomicReference<ItemStack[]> contents = new AtomicReference<>(new ItemStack[27]);
+        given(enderChest.getContents()).willAnswer(invocation -> contents.get());
+        willAnswer(invocation -> {
+            contents.set(invocation.getArgument(0));
+            return null;
+        }).given(enderChest).setContents(any(ItemStack[].class));
+
+        AtomicInteger decodes = new AtomicInteger();
+        StoredItems stored = new StoredItems(new JsonArray(), json -> {
+            decodes.incrementAndGet();
+            ItemStack[] items = new ItemStack[27];
+            items[0] = new ItemStack(Material.DIAMOND_SWORD, 1);
+            return items;
+        });
+        PWIPlayer profile = new PWIPlayer(player.getUniqueId(), null);
+        profile.setStoredEnderChest(stored);
+        profileApplier.apply(player, profile);
+
+        // when
+        // Another plugin puts items into the ender chest while it is deferred
+        contents.get()[0] = new ItemStack(Material.STONE, 5);
+        contents.get()[4] = new ItemStack(Material.ENDER_CHEST, 2);
+        PWIPlayer saved = new PWIPlayer(player.getUniqueId(), null);
+        lazyEnderChests.copyTo(player, saved);
+        lazyEnderChests.materialize(player);
+
+        // then
+        assertThat(saved.getStoredEnderChest(), nullValue());
+        ItemStack[] expected = new ItemStack[27];
+        expected[0] = new ItemStack(Material.DIAMOND_SWORD, 1);
+        expected[1] = new ItemStack(Material.STONE, 5);
+        expected[4] = new ItemStack(Material.ENDER_CHEST, 2);
+        assertThat(saved.getEnderChest(), equalTo(expected));
+        assertThat(contents.get(), equalTo(expected));
+        assertThat(decodes.get(), equalTo(1));
+    }
+}
@@ -0,0 +1,151 @@
+package me.gnat008.perworldinventory.data.players;
+
+import org.bukkit.Material;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests for {@link ProfileCache}.
+ */
+public class ProfileCacheTest {
+
+    @Test
+    public void shouldDemoteProfilesBeyondHotTier() {
+        // given
+        ProfileCache cache = new ProfileCache(1, 0, false, 1);
+        PWIPlayer older = createProfile("older");
+        PWIPlayer newer = createProfile("newer");
+        cache.put("older", older);
+        cache.put("newer", newer);
+
+        // when
+        cache.enforceTiers();
+
+        // then
+        assertTrue(older.isDemoted());
+        assertFalse(newer.isDemoted());
+        assertThat(cache.countHot(), equalTo(1));
+        assertThat(cache.countWarm(), equalTo(1));
+        assertTrue(cache.getWarmBytes() > 0);
+    }
+
+    @Test
+    public void shouldPromoteProfileWhenItemsAreUsed() {
+        // given
+        ProfileCache cache = new ProfileCache(1, 0, true, 1);
+        PWIPlayer profile = createProfile("profile");
+        cache.put("profile", profile);
+        cache.put("other", createProfile("other"));
+        cache.enforceTiers();
+        assertTrue(profile.isDemoted());
+        assertTrue(profile.getEncodedItems().isOffHeap());
+
+        // when
+        ItemStack[] inventory = cache.get("profile").getInventory();
+
+        // then
+        assertFalse(profile.isDemoted());
+        assertThat(inventory, arrayContaining(new ItemStack(Material.STONE, 3), null));
+        assertThat(profile.getArmor(), arrayContaining(new ItemStack(Material.LEATHER_HELMET)));
+    }
+
+    @Test
+    public void shouldOnlyDropPersistedProfilesBeyondWarmTier() {
+        // given
+        ProfileCache cache = new ProfileCache(1, 1, false, 1);
+        PWIPlayer unsaved = createProfile("unsaved");
+        unsaved.setSaved(false);
+        unsaved.setPersisted(false);
+        PWIPlayer queued = createProfile("queued");
+        queued.setPersisted(false);
+        cache.put("unsaved", unsaved);
+        cache.put("queued", queued);
+        cache.put("saved", createProfile("saved"));
+        cache.put("warm", createProfile("warm"));
+        cache.put("hot", createProfile("hot"));
+
+        // when
+        cache.enforceTiers();
+
+        // then
+        assertNull(cache.peek("saved"));
+        assertNotNull(cache.peek("unsaved"));
+        assertTrue(cache.peek("unsaved").isDemoted());
+        assertNotNull(cache.peek("queued"));
+        assertTrue(cache.peek("warm").isDemoted());
+        assertFalse(cache.peek("hot").isDemoted());
+    }
+
+    @Test
+    public void shouldKeepPinnedProfilesHot() {
+        // given
+        ProfileCache cache = new ProfileCache(1, 1, false, 1);
+        UUID uuid = UUID.randomUUID();
+        String creative = uuid + ".plots.creative";
+        String survival = uuid + ".plots.survival";
+        String otherGroup = uuid + ".plots.nether.survival";
+        cache.put(creative, createProfile("creative"));
+        cache.put(survival, createProfile("survival"));
+        cache.put(otherGroup, createProfile("other"));
+        cache.put("warm", createProfile("warm"));
+        cache.put("hot", createProfile("hot"));
+        cache.pin(uuid, "plots");
+
+        // when
+        cache.enforceTiers();
+
+        // then
+        assertFalse(cache.peek(creative).isDemoted());
+        assertFalse(cache.peek(survival).isDemoted());
+        assertNull(cache.peek(otherGroup));
+        assertThat(cache.unpin(uuid), equalTo("plots"));
+        assertFalse(cache.isPinned(creative));
+    }
+
+    @Test
+    public void shouldKeepKeysByAutosaveBucket() {
+        // given
+        ProfileCache cache = new ProfileCache(0, 0, false, 6000);
+        PWIPlayer profile = createProfile("profile");
+        int bucket = cache.getBucket(profile.getUuid());
+
+        // when
+        cache.put("profile", profile);
+        cache.put("profile", profile);
+
+        // then
+        assertThat(cache.keysInBucket(bucket), contains("profile"));
+        assertThat(cache.keysInBucket((bucket + 1) % 6000), empty());
+
+        // when
+        cache.remove("profile");
+
+        // then
+        assertThat(cache.keysInBucket(bucket), empty());
+    }
+
+    private static PWIPlayer createProfile(String name) {
+        Player player = mock(Player.class);
+        given(player.getUniqueId()).willReturn(UUID.randomUUID());
+        given(player.getName()).willReturn(name);
+        PWIPlayer profile = new PWIPlayer(player);
+        profile.setArmor(new ItemStack[]{new ItemStack(Material.LEATHER_HELMET)});
+        profile.setInventory(new ItemStack[]{new ItemStack(Material.STONE, 3), null});
+        return profile;
+    }
+}
@@ -9,11 +9,14 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
 import static me.gnat008.perworldinventory.TestHelper.mockGroup;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 
@@ -157,4 +160,34 @@ public class GroupManagerTest {
         assertThat(result.getWorlds(), equalTo(expected.getWorlds()));
         assertThat(result.getGameMode(), equalTo(expected.getGameMode()));
     }
+
+    @Test
+    public void shouldGetGroupFromWorldPattern() {
+        // given
+        groupManager.clearGroups(); // Clear any existing groups
+        groupManager.addGroup("bedwars", Collections.emptyList(), Collections.singletonList("prefix:bw_arena_"), GameMode.ADVENTURE);
+
+        // when
+        Group result = groupManager.getGroupFromWorld("bw_arena_1834");
+
+        // then
+        assertThat(result, sameInstance(groupManager.getGroup("bedwars")));
+        assertThat(groupManager.countGroups(), equalTo(1));
+    }
+
+    @Test
+    public void shouldForgetUnconfiguredGroupWhenWorldUnloads() {
+        // given
+        groupManager.clearGroups(); // Clear any existing groups
+        Group group = groupManager.getGroupFromWorld("sw_7712");
+        assertThat(groupManager.getGroupFromWorld("sw_7712"), sameInstance(group));
+        assertThat(groupManager.countGroups(), equalTo(1));
+
+        // when
+        groupManager.onWorldUnload("sw_7712");
+
+        // then
+        assertThat(groupManager.countGroups(), equalTo(0));
+        assertThat(groupManager.getGroup("sw_7712"), nullValue());
+    }
 }
@@ -0,0 +1,81 @@
+package me.gnat008.perworldinventory.groups;
+
+import me.gnat008.perworldinventory.TestHelper;
+import org.bukkit.GameMode;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests for {@link WorldMatcher}.
+ */
+public class WorldMatcherTest {
+
+    @BeforeClass
+    public static void initLogger() {
+        TestHelper.initMockLogger();
+    }
+
+    @Test
+    public void shouldMatchWorldNamesAndPatterns() {
+        // given
+        Group survival = group("survival", Arrays.asList("world", "world_nether"));
+        Group bedwars = group("bedwars", Collections.emptyList(), "prefix:bw_");
+        Group skywars = group("skywars", Collections.emptyList(), "glob:sw_*");
+        Group minigames = group("minigames", Collections.emptyList(), "regex:^mg_[0-9]+$", "glob:arena_?_*");
+        WorldMatcher matcher = WorldMatcher.compile(Arrays.asList(survival, bedwars, skywars, minigames));
+
+        // when / then
+        assertThat(matcher.match("world"), sameInstance(survival));
+        assertThat(matcher.match("world_nether"), sameInstance(survival));
+        assertThat(matcher.match("bw_arena_1834"), sameInstance(bedwars));
+        assertThat(matcher.match("sw_7712"), sameInstance(skywars));
+        assertThat(matcher.match("mg_42"), sameInstance(minigames));
+        assertThat(matcher.match("arena_4_red"), sameInstance(minigames));
+        assertThat(matcher.match("mg_forty"), nullValue());
+        assertThat(matcher.match("worl"), nullValue());
+        assertThat(matcher.match("world_the_end"), nullValue());
+    }
+
+    @Test
+    public void shouldPreferWorldNameAndLongestPrefix() {
+        // given
+        Group lobby = group("lobby", Collections.singletonList("bw_lobby"));
+        Group bedwars = group("bedwars", Collections.emptyList(), "prefix:bw_");
+        Group ranked = group("ranked", Collections.emptyList(), "bw_ranked_*");
+        Group fallback = group("fallback", Collections.emptyList(), "regex:bw_.*");
+        WorldMatcher matcher = WorldMatcher.compile(Arrays.asList(fallback, lobby, bedwars, ranked));
+
+        // when / then
+        assertThat(matcher.match("bw_lobby"), sameInstance(lobby));
+        assertThat(matcher.match("bw_ranked_12"), sameInstance(ranked));
+        assertThat(matcher.match("bw_casual_3"), sameInstance(bedwars));
+    }
+
+    @Test
+    public void shouldIgnoreInvalidRegex() {
+        // given
+        Group group = group("broken", Collections.emptyList(), "regex:mg_[", "regex:ok_.*");
+
+        // when
+        WorldMatcher matcher = WorldMatcher.compile(Collections.singletonList(group));
+
+        // then
+        assertThat(matcher.match("ok_1"), sameInstance(group));
+        assertThat(matcher.match("mg_["), nullValue());
+    }
+
+    private static Group group(String name, List<String> worlds, String... patterns) {
+        Group group = new Group(name, new HashSet<>(worlds), GameMode.SURVIVAL, true);
+        group.setPatterns(Arrays.asList(patterns));
+        return group;
+    }
+}
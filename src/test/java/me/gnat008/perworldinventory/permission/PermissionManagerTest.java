@@ -1,8 +1,12 @@
 package me.gnat008.perworldinventory.permission;
 
+import me.gnat008.perworldinventory.config.PwiProperties;
+import me.gnat008.perworldinventory.config.Settings;
 import org.bukkit.Server;
+import org.bukkit.World;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.PluginManager;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -10,10 +14,15 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.util.UUID;
+
 import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 /**
  * Test for {@link PermissionManager}.
@@ -30,6 +39,9 @@ public class PermissionManagerTest {
     @Mock
     private PluginManager pluginManager;
 
+    @Mock
+    private Settings settings;
+
     @Test
     public void shouldUseDefaultPermissionForCommandSender() {
         // given
@@ -148,4 +160,104 @@ public class PermissionManagerTest {
         // then
         assertThat(result, equalTo(true));
     }
+
+    @Test
+    public void shouldCachePermissionDecisions() {
+        // given
+        PermissionManager manager = createManagerWithPermissionPlugin();
+        Player player = mockPlayerInWorld("world");
+        given(player.hasPermission(PlayerPermission.BYPASS_WORLDS.getNode())).willReturn(true);
+
+        // when
+        boolean first = manager.hasPermission(player, PlayerPermission.BYPASS_WORLDS);
+        boolean second = manager.hasPermission(player, PlayerPermission.BYPASS_WORLDS);
+
+        // then
+        assertThat(first, equalTo(true));
+        assertThat(second, equalTo(true));
+        verify(player, times(1)).hasPermission(PlayerPermission.BYPASS_WORLDS.getNode());
+        assertThat(manager.pollHitRate(), equalTo(50));
+        assertThat(manager.pollHitRate(), equalTo(0));
+    }
+
+    @Test
+    public void shouldForgetDecisionsWhenPermissionPluginChanges() {
+        // given
+        PermissionManager manager = createManagerWithPermissionPlugin();
+        Player player = mockPlayerInWorld("world");
+        manager.cachePlayer(player);
+
+        // when
+        manager.onPluginEnable("PermissionsEx");
+        manager.hasPermission(player, PlayerPermission.BYPASS_GAMEMODE);
+
+        // then
+        verify(player, times(2)).hasPermission(PlayerPermission.BYPASS_GAMEMODE.getNode());
+        verify(player, times(1)).hasPermission(PlayerPermission.BYPASS_WORLDS.getNode());
+    }
+
+    @Test
+    public void shouldNotUseDecisionsFromOtherWorld() {
+        // given
+        PermissionManager manager = createManagerWithPermissionPlugin();
+        Player player = mockPlayerInWorld("world");
+        given(player.hasPermission(PlayerPermission.BYPASS_WORLDS.getNode())).willReturn(false);
+        manager.hasPermission(player, PlayerPermission.BYPASS_WORLDS);
+        World nether = mock(World.class);
+        given(nether.getName()).willReturn("world_nether");
+        given(player.getWorld()).willReturn(nether);
+        given(player.hasPermission(PlayerPermission.BYPASS_WORLDS.getNode())).willReturn(true);
+
+        // when
+        boolean result = manager.hasPermission(player, PlayerPermission.BYPASS_WORLDS);
+
+        // then
+        assertThat(result, equalTo(true));
+        verify(player, times(2)).hasPermission(PlayerPermission.BYPASS_WORLDS.getNode());
+    }
+
+    @Test
+    public void shouldKeepDecisionsOfEachWorld() {
+        // given
+        PermissionManager manager = createManagerWithPermissionPlugin();
+        Player player = mockPlayerInWorld("world");
+        World overworld = player.getWorld();
+        World nether = mock(World.class);
+        given(nether.getName()).willReturn("world_nether");
+        given(player.hasPermission(PlayerPermission.BYPASS_WORLDS.getNode())).willReturn(false);
+        manager.hasPermission(player, PlayerPermission.BYPASS_WORLDS);
+        given(player.getWorld()).willReturn(nether);
+        manager.hasPermission(player, PlayerPermission.BYPASS_WORLDS);
+        manager.pollHitRate();
+
+        // when
+        given(player.getWorld()).willReturn(overworld);
+        manager.hasPermission(player, PlayerPermission.BYPASS_WORLDS);
+        given(player.getWorld()).willReturn(nether);
+        manager.hasPermission(player, PlayerPermission.BYPASS_WORLDS);
+
+        // then
+        assertThat(manager.pollHitRate(), equalTo(100));
+        verify(player, times(2)).hasPermission(PlayerPermission.BYPASS_WORLDS.getNode());
+    }
+
+    private static Player mockPlayerInWorld(String worldName) {
+        World world = mock(World.class);
+        given(world.getName()).willReturn(worldName);
+        Player player = mock(Player.class);
+        given(player.getUniqueId()).willReturn(UUID.randomUUID());
+        given(player.getWorld()).willReturn(world);
+        return player;
+    }
+
+    private PermissionManager createManagerWithPermissionPlugin() {
+        Plugin plugin = mock(Plugin.class);
+        given(plugin.isEnabled()).willReturn(true);
+        given(pluginManager.getPlugin(anyString())).willReturn(plugin);
+        given(settings.getProperty(PwiProperties.PERMISSION_CACHE_SECONDS)).willReturn(30);
+
+        PermissionManager manager = new PermissionManager(pluginManager, settings);
+        manager.reload();
+        return manager;
+    }
 }
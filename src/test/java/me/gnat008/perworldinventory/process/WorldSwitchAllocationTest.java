@@ -0,0 +1,384 @@
+package me.gnat008.perworldinventory.process;
+
+import ch.jalu.injector.Injector;
+import ch.jalu.injector.InjectorBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.stream.JsonWriter;
+import me.gnat008.perworldinventory.BukkitService;
+import me.gnat008.perworldinventory.EconomyService;
+import me.gnat008.perworldinventory.PerWorldInventory;
+import me.gnat008.perworldinventory.ServerLoadMonitor;
+import me.gnat008.perworldinventory.TestHelper;
+import me.gnat008.perworldinventory.config.Settings;
+import me.gnat008.perworldinventory.data.DataSource;
+import me.gnat008.perworldinventory.data.ItemStore;
+import me.gnat008.perworldinventory.data.ShutdownJournal;
+import me.gnat008.perworldinventory.data.StorageScheduler;
+import me.gnat008.perworldinventory.data.players.PWIPlayer;
+import me.gnat008.perworldinventory.data.players.PWIPlayerFactory;
+import me.gnat008.perworldinventory.data.players.PWIPlayerManager;
+import me.gnat008.perworldinventory.data.serializers.InventorySerializer;
+import me.gnat008.perworldinventory.data.serializers.PlayerSerializer;
+import me.gnat008.perworldinventory.events.InventoryLoadEvent;
+import me.gnat008.perworldinventory.groups.Group;
+import me.gnat008.perworldinventory.groups.GroupManager;
+import me.gnat008.perworldinventory.permission.PermissionManager;
+import org.bukkit.Bukkit;
+import org.bukkit.GameMode;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.attribute.AttributeInstance;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemFactory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static me.gnat008.perworldinventory.TestHelper.mockGroup;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Allocation regression tests for the world switch hot path. Every scenario is run many times
+ * on the test thread, and the bytes it allocates per run, read from the thread allocation
+ * counter, have to stay within the budget of the scenario.
+ * <p>
+ * Players, inventories and the server are plain proxies instead of Mockito mocks, because a
+ * call on a mock allocates kilobytes and would hide what the plugin itself allocates. The
+ * settings are real as well.
+ * <p>
+ * Strings take twice the bytes on JDK 8, which stores them as UTF-16, so every scenario has a
+ * budget for compact strings (JDK 9 and later) and one for UTF-16 strings. The numbers below
+ * were measured with this test on OpenJDK 17, the UTF-16 ones with {@code -XX:-CompactStrings},
+ * which gives strings the JDK 8 layout. Budgets are about 10% above the compact numbers and
+ * 20% above the UTF-16 ones, since JDK 8 itself could not be measured and differs in more than
+ * strings. A change that needs more should raise them in the same commit, so the increase is
+ * reviewed like any other change.
+ */
+public class WorldSwitchAllocationTest {
+
+    /** If strings are stored as UTF-16, as on JDK 8 or with compact strings turned off. */
+    private static final boolean UTF16_STRINGS = System.getProperty("java.specification.version").startsWith("1.")
+            || ManagementFactory.getRuntimeMXBean().getInputArguments().contains("-XX:-CompactStrings");
+
+    /** Bytes per world switch, from the process down to the applied cached profile. Measured 32.8 / 39.5 KiB. */
+    private static final long WORLD_SWITCH_BUDGET = budget(36 * 1024, 48 * 1024);
+    /** Bytes per cache lookup of a profile. Measured 800 / 1256 bytes. */
+    private static final long CACHE_LOOKUP_BUDGET = budget(896, 1536);
+    /** Bytes per profile written with {@link PlayerSerializer#serialize(PWIPlayer, JsonWriter)}. Measured 217 / 240 KiB. */
+    private static final long SERIALIZE_BUDGET = budget(240 * 1024, 288 * 1024);
+    /** Bytes per inventory read with {@link InventorySerializer#deserializeInventory}. Measured 106 / 110 KiB. */
+    private static final long DESERIALIZE_BUDGET = budget(118 * 1024, 132 * 1024);
+
+    private static final int WARMUP_RUNS = 500;
+    private static final int MEASURED_RUNS = 2000;
+    private static final int INVENTORY_SIZE = 41;
+    private static final int ENDER_CHEST_SIZE = 27;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private BukkitService bukkitService;
+    private PWIPlayerManager playerManager;
+    private InventoryChangeProcess process;
+    private PWIPlayerFactory pwiPlayerFactory;
+    private PlayerSerializer playerSerializer;
+    private InventorySerializer inventorySerializer;
+
+    @BeforeClass
+    public static void initLogger() {
+        TestHelper.initMockLogger();
+    }
+
+    @Before
+    public void setUpInjector() throws IOException {
+        File config = temporaryFolder.newFile("config.yml");
+        Files.copy(TestHelper.getJarFile("/config.yml").toPath(), config.toPath(), REPLACE_EXISTING);
+
+        ItemFactory itemFactory = stub(ItemFactory.class, answers()
+                .with("equals", args -> args.length == 2 && args[0] == args[1]));
+        Server server = stub(Server.class, answers()
+                .returning("getScheduler", stub(BukkitScheduler.class, answers()))
+                .returning("getPluginManager", stub(PluginManager.class, answers()))
+                .returning("getItemFactory", itemFactory)
+                .returning("getVersion", "git-Spigot-8a048fe-3c19fef (MC: 1.11.2)"));
+        TestHelper.setField(Bukkit.class, "server", null, server);
+        PerWorldInventory plugin = mock(PerWorldInventory.class);
+        given(plugin.getServer()).willReturn(server);
+        bukkitService = mock(BukkitService.class);
+
+        Injector injector = new InjectorBuilder().addDefaultHandlers("me.gnat008.perworldinventory").create();
+        injector.register(PerWorldInventory.class, plugin);
+        injector.register(Settings.class, new Settings(config));
+        injector.register(BukkitService.class, bukkitService);
+        injector.register(DataSource.class, mock(DataSource.class));
+        injector.register(GroupManager.class, mock(GroupManager.class));
+        injector.register(PermissionManager.class, mock(PermissionManager.class));
+        injector.register(ShutdownJournal.class, mock(ShutdownJournal.class));
+        injector.register(ServerLoadMonitor.class, mock(ServerLoadMonitor.class));
+        injector.register(EconomyService.class, mock(EconomyService.class));
+        injector.register(StorageScheduler.class, mock(StorageScheduler.class));
+        injector.register(ItemStore.class, mock(ItemStore.class));
+
+        playerManager = injector.getSingleton(PWIPlayerManager.class);
+        process = injector.getSingleton(InventoryChangeProcess.class);
+        pwiPlayerFactory = injector.getSingleton(PWIPlayerFactory.class);
+        playerSerializer = injector.getSingleton(PlayerSerializer.class);
+        inventorySerializer = injector.getSingleton(InventorySerializer.class);
+    }
+
+    @Test
+    public void shouldStayWithinWorldSwitchBudget() {
+        // given
+        Player player = createPlayer();
+        Group[] groups = {mockGroup("survival"), mockGroup("creative")};
+        // What InventoryLoadingListener does when the event is called
+        willAnswer(invocation -> {
+            InventoryLoadEvent event = invocation.getArgument(0);
+            playerManager.getPlayerData(event.getGroup(), event.getNewGameMode(), event.getPlayer(), event.getCause());
+            return null;
+        }).given(bukkitService).callEvent(any(InventoryLoadEvent.class));
+
+        // when
+        long bytes = measure(run -> {
+            Group from = groups[run % 2];
+            Group to = groups[(run + 1) % 2];
+            playerManager.addPlayer(player, from);
+            process.processWorldChange(player, from, to);
+        });
+
+        // then
+        assertWithinBudget("world switch", bytes, WORLD_SWITCH_BUDGET);
+    }
+
+    @Test
+    public void shouldStayWithinCacheLookupBudget() {
+        // given
+        Player player = createPlayer();
+        Group group = mockGroup("survival");
+        playerManager.addPlayer(player, group);
+
+        // when
+        long bytes = measure(run -> playerManager.getPlayer(group, player));
+
+        // then
+        assertWithinBudget("cache lookup", bytes, CACHE_LOOKUP_BUDGET);
+    }
+
+    @Test
+    public void shouldStayWithinSerializeBudget() {
+        // given
+        PWIPlayer profile = pwiPlayerFactory.create(createPlayer(), mockGroup("survival"));
+        JsonWriter writer = new JsonWriter(new DiscardingWriter());
+        // Lenient, so one writer takes any number of documents
+        writer.setLenient(true);
+
+        // when
+        long bytes = measure(run -> {
+            try {
+                playerSerializer.serialize(profile, writer);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+
+        // then
+        assertWithinBudget("serialize", bytes, SERIALIZE_BUDGET);
+    }
+
+    @Test
+    public void shouldStayWithinDeserializeBudget() {
+        // given
+        JsonArray inventory = inventorySerializer.serializeInventory(createContents());
+
+        // when
+        long bytes = measure(run -> inventorySerializer.deserializeInventory(inventory, INVENTORY_SIZE, 2));
+
+        // then
+        assertWithinBudget("deserialize", bytes, DESERIALIZE_BUDGET);
+    }
+
+    /**
+     * Run a scenario until it is warmed up, then measure the bytes it allocates per run.
+     */
+    private static long measure(Scenario scenario) {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("Thread allocation counters are not supported by this JVM",
+                threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        for (int run = 0; run < WARMUP_RUNS; run++) {
+            scenario.run(run);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(thread);
+        for (int run = 0; run < MEASURED_RUNS; run++) {
+            scenario.run(run);
+        }
+        return (allocations.getThreadAllocatedBytes(thread) - before) / MEASURED_RUNS;
+    }
+
+    private static long budget(long compactStrings, long utf16Strings) {
+        return UTF16_STRINGS ? utf16Strings : compactStrings;
+    }
+
+    private static void assertWithinBudget(String scenario, long bytes, long budget) {
+        assertThat(scenario + " allocates more than its budget", bytes, lessThanOrEqualTo(budget));
+    }
+
+    private static ItemStack[] createContents() {
+        ItemStack[] contents = new ItemStack[INVENTORY_SIZE];
+        for (int i = 0; i < 36; i += 2) {
+            contents[i] = new ItemStack(Material.STONE, i + 1);
+        }
+        contents[39] = new ItemStack(Material.DIAMOND_HELMET);
+        return contents;
+    }
+
+    /**
+     * A survival player with a half full inventory and a sword in their ender chest.
+     */
+    private static Player createPlayer() {
+        ItemStack[] contents = createContents();
+        ItemStack[] enderChest = new ItemStack[ENDER_CHEST_SIZE];
+        enderChest[0] = new ItemStack(Material.DIAMOND_SWORD);
+
+        PlayerInventory inventory = stub(PlayerInventory.class, answers()
+                .returning("getSize", INVENTORY_SIZE)
+                .with("getItem", args -> contents[(int) args[0]])
+                .with("getContents", args -> contents.clone())
+                .with("getArmorContents", args -> new ItemStack[]{contents[36], contents[37], contents[38], contents[39]})
+                .with("getBoots", args -> contents[36])
+                .with("getLeggings", args -> contents[37])
+                .with("getChestplate", args -> contents[38])
+                .with("getHelmet", args -> contents[39]));
+        Inventory enderInventory = stub(Inventory.class, answers()
+                .returning("getSize", ENDER_CHEST_SIZE)
+                .with("getItem", args -> enderChest[(int) args[0]])
+                .with("getContents", args -> enderChest.clone()));
+
+        AttributeInstance maxHealth = stub(AttributeInstance.class, answers()
+                .returning("getBaseValue", 20.0)
+                .returning("getValue", 20.0));
+
+        return stub(Player.class, answers()
+                .returning("getUniqueId", TestHelper.TEST_UUID)
+                .returning("getName", "Switcher")
+                .returning("getGameMode", GameMode.SURVIVAL)
+                .returning("getInventory", inventory)
+                .returning("getEnderChest", enderInventory)
+                .returning("getFoodLevel", 20)
+                .returning("getHealth", 20.0)
+                .returning("getMaxHealth", 20.0)
+                .returning("getSaturation", 5f)
+                .returning("getMaximumAir", 300)
+                .returning("getRemainingAir", 300)
+                .returning("getAttribute", maxHealth));
+    }
+
+    private static Answers answers() {
+        return new Answers();
+    }
+
+    /**
+     * Create a proxy of an interface that answers calls by method name. Other methods return
+     * nothing: null, zero, false or an empty collection.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, Answers answers) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Answer answer = answers.answers.get(method.getName());
+            if (answer != null) {
+                return answer.answer(args);
+            } else if (method.getName().equals("equals")) {
+                return proxy == args[0];
+            } else if (method.getName().equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+
+            Class<?> returnType = method.getReturnType();
+            if (returnType == boolean.class) {
+                return false;
+            } else if (returnType == int.class) {
+                return 0;
+            } else if (returnType == long.class) {
+                return 0L;
+            } else if (returnType == short.class) {
+                return (short) 0;
+            } else if (returnType == double.class) {
+                return 0.0;
+            } else if (returnType == float.class) {
+                return 0f;
+            } else if (returnType == List.class || returnType == Collection.class) {
+                return Collections.emptyList();
+            } else if (returnType == Set.class) {
+                return Collections.emptySet();
+            }
+            return null;
+        });
+    }
+
+    private interface Answer {
+        Object answer(Object[] args);
+    }
+
+    private static final class Answers {
+        private final Map<String, Answer> answers = new HashMap<>();
+
+        Answers returning(String method, Object value) {
+            return with(method, args -> value);
+        }
+
+        Answers with(String method, Answer answer) {
+            answers.put(method, answer);
+            return this;
+        }
+    }
+
+    private interface Scenario {
+        void run(int run);
+    }
+
+    private static final class DiscardingWriter extends Writer {
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package me.gnat008.perworldinventory.util;
+
+import org.bukkit.Material;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.bukkit.potion.PotionEffect;
+import org.bukkit.potion.PotionEffectType;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+/**
+ * Tests for {@link DiffUtils}.
+ */
+public class DiffUtilsTest {
+
+    @Test
+    public void shouldTreatNullAndAirAsSameItem() {
+        // given / when / then
+        assertThat(DiffUtils.isSameItem(null, new ItemStack(Material.AIR)), equalTo(true));
+        assertThat(DiffUtils.isSameItem(new ItemStack(Material.STONE, 2), new ItemStack(Material.STONE, 2)), equalTo(true));
+        assertThat(DiffUtils.isSameItem(new ItemStack(Material.STONE, 2), new ItemStack(Material.STONE, 3)), equalTo(false));
+        assertThat(DiffUtils.isSameItem(null, new ItemStack(Material.STONE)), equalTo(false));
+    }
+
+    @Test
+    public void shouldOnlySetDifferentSlots() {
+        // given
+        ItemStack[] current = {new ItemStack(Material.STONE), null, new ItemStack(Material.DIAMOND_SWORD), null};
+        ItemStack[] target = {new ItemStack(Material.STONE), null, new ItemStack(Material.STONE), null};
+        Inventory inventory = mockInventory(current);
+
+        // when
+        int changes = DiffUtils.applyContents(inventory, target);
+
+        // then
+        assertThat(changes, equalTo(1));
+        verify(inventory).setItem(2, target[2]);
+        verify(inventory, never()).setItem(0, target[0]);
+        verify(inventory, never()).setContents(any());
+    }
+
+    @Test
+    public void shouldEmptySlotsBeyondTarget() {
+        // given
+        ItemStack[] current = {null, null, null, new ItemStack(Material.STONE)};
+        Inventory inventory = mockInventory(current);
+
+        // when
+        int changes = DiffUtils.applyContents(inventory, new ItemStack[2]);
+
+        // then
+        assertThat(changes, equalTo(1));
+        verify(inventory).setItem(3, null);
+    }
+
+    @Test
+    public void shouldSetWholeContentsIfMostSlotsDiffer() {
+        // given
+        ItemStack[] current = new ItemStack[4];
+        ItemStack[] target = {new ItemStack(Material.STONE), new ItemStack(Material.STONE), new ItemStack(Material.STONE), null};
+        Inventory inventory = mockInventory(current);
+
+        // when
+        int changes = DiffUtils.applyContents(inventory, target);
+
+        // then
+        assertThat(changes, equalTo(3));
+        verify(inventory).setContents(target);
+        verify(inventory, never()).setItem(anyInt(), any());
+    }
+
+    @Test
+    public void shouldOnlySetDifferentArmorPieces() {
+        // given
+        PlayerInventory inventory = mock(PlayerInventory.class);
+        ItemStack boots = new ItemStack(Material.LEATHER_BOOTS);
+        ItemStack helmet = new ItemStack(Material.LEATHER_HELMET);
+        given(inventory.getBoots()).willReturn(boots);
+        given(inventory.getHelmet()).willReturn(null);
+        ItemStack[] target = {boots, null, null, helmet};
+
+        // when
+        int changes = DiffUtils.applyArmor(inventory, target);
+
+        // then
+        assertThat(changes, equalTo(1));
+        verify(inventory).setHelmet(helmet);
+        verify(inventory, never()).setBoots(any());
+        verify(inventory, never()).setLeggings(any());
+        verify(inventory, never()).setChestplate(any());
+    }
+
+    @Test
+    public void shouldNotTouchIdenticalPotionEffects() {
+        // given
+        Player player = mock(Player.class);
+        PotionEffect effect = new PotionEffect(PotionEffectType.CONFUSION, 100, 1);
+        given(player.getActivePotionEffects()).willReturn(Collections.singletonList(effect));
+
+        // when
+        int changes = DiffUtils.applyPotionEffects(player, Collections.singletonList(new PotionEffect(PotionEffectType.CONFUSION, 100, 1)));
+
+        // then
+        assertThat(changes, equalTo(0));
+        verify(player, never()).removePotionEffect(any());
+        verify(player, never()).addPotionEffect(any());
+    }
+
+    @Test
+    public void shouldReplaceDifferentPotionEffects() {
+        // given
+        Player player = mock(Player.class);
+        PotionEffect current = new PotionEffect(PotionEffectType.CONFUSION, 100, 1);
+        PotionEffect wanted = new PotionEffect(PotionEffectType.CONFUSION, 200, 1);
+        given(player.getActivePotionEffects()).willReturn(Collections.singletonList(current));
+
+        // when
+        int changes = DiffUtils.applyPotionEffects(player, Arrays.asList(wanted));
+
+        // then
+        assertThat(changes, equalTo(2));
+        verify(player).removePotionEffect(PotionEffectType.CONFUSION);
+        verify(player).addPotionEffect(wanted);
+    }
+
+    @Test
+    public void shouldNotTouchEmptyInventoryWithEmptyTarget() {
+        // given
+        Inventory inventory = mockInventory(new ItemStack[4]);
+
+        // when
+        int changes = DiffUtils.applyContents(inventory, new ItemStack[4]);
+
+        // then
+        assertThat(changes, equalTo(0));
+        verify(inventory, never()).setContents(any());
+        verify(inventory, never()).setItem(anyInt(), any());
+    }
+
+    private static Inventory mockInventory(ItemStack[] contents) {
+        Inventory inventory = mock(Inventory.class);
+        given(inventory.getSize()).willReturn(contents.length);
+        given(inventory.getItem(anyInt())).willAnswer(invocation -> contents[(int) invocation.getArgument(0)]);
+        return inventory;
+    }
+}
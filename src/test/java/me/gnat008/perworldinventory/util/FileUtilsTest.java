@@ -0,0 +1,110 @@
+package me.gnat008.perworldinventory.util;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import me.gnat008.perworldinventory.data.serializers.LocationSerializer;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests for {@link FileUtils}.
+ */
+public class FileUtilsTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldStreamSameBytesAsGson() throws IOException {
+        // given
+        JsonObject root = new JsonObject();
+        root.addProperty("data-format", 2);
+        root.addProperty("display-name", "§cAdmin <Steve> & 'friends' 😀");
+        root.addProperty("saturation", 0.1f);
+        root.addProperty("health", 19.5);
+        root.add("missing", null);
+        JsonArray items = new JsonArray();
+        StringBuilder base64 = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            // Long enough to cross several buffers, with a surrogate pair on the way
+            base64.append(i == 2730 ? "😀" : "ab=");
+        }
+        JsonObject item = new JsonObject();
+        item.addProperty("index", 0);
+        item.addProperty("item", base64.toString());
+        items.add(item);
+        root.add("inventory", items);
+
+        File expected = temporaryFolder.newFile();
+        File actual = temporaryFolder.newFile();
+        Gson gson = new Gson();
+
+        // when
+        FileUtils.writeData(expected, gson.toJson(root));
+        FileUtils.writeJson(actual, writer -> gson.toJson(root, writer));
+
+        // then
+        assertThat(Files.readAllBytes(actual.toPath()), equalTo(Files.readAllBytes(expected.toPath())));
+    }
+
+    @Test
+    public void shouldStreamLocationLikeTree() throws IOException {
+        // given
+        World world = mock(World.class);
+        given(world.getName()).willReturn("world_nether");
+        Location location = new Location(world, 1.2, 3.4, 5.6, 7.8f, 0.1f);
+
+        JsonObject root = new JsonObject();
+        root.addProperty("world", "world_nether");
+        root.addProperty("x", 1.2);
+        root.addProperty("y", 3.4);
+        root.addProperty("z", 5.6);
+        root.addProperty("pitch", 0.1f);
+        root.addProperty("yaw", 7.8f);
+        File file = temporaryFolder.newFile();
+
+        // when
+        FileUtils.writeJson(file, writer -> LocationSerializer.serialize(location, writer));
+
+        // then
+        assertThat(new String(Files.readAllBytes(file.toPath())), equalTo(new Gson().toJson(root)));
+    }
+
+    @Test
+    public void shouldKeepFileWhenWritingFails() throws IOException {
+        // given
+        File file = temporaryFolder.newFile();
+        FileUtils.writeData(file, "{\"kept\":true}");
+
+        // when
+        try {
+            FileUtils.writeJson(file, writer -> {
+                writer.beginObject().name("kept").value(false);
+                throw new IllegalStateException("Broken profile");
+            });
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+
+        // then
+        assertThat(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), equalTo("{\"kept\":true}"));
+        assertThat(file.getParentFile().list(), arrayWithSize(1));
+    }
+}
@@ -0,0 +1,92 @@
+package me.gnat008.perworldinventory.util;
+
+import me.gnat008.perworldinventory.data.serializers.DeserializeCause;
+import org.bukkit.GameMode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests for {@link FlightRecorder}. The JFR API is used by reflection, as the tests are built
+ * for Java 8 like the plugin.
+ */
+public class FlightRecorderTest {
+
+    private static final UUID ALEX = UUID.fromString("7f7c909b-24f1-49a4-817f-baa4f4973980");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldIgnoreEventsWhileNotRecording() {
+        // given / when
+        FlightRecorder.Event event = FlightRecorder.begin(FlightRecorder.Type.PROFILE_LOAD)
+                .player(ALEX).bytes(1234);
+
+        // then
+        assertFalse(event.isRecording());
+        assertThat(event, equalTo(FlightRecorder.begin(FlightRecorder.Type.APPLY)));
+        event.commit();
+    }
+
+    @Test
+    public void shouldRecordEventWithFields() throws Exception {
+        assumeTrue(FlightRecorder.isAvailable());
+
+        // given
+        Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+        Object recording = recordingClass.getConstructor().newInstance();
+        recordingClass.getMethod("start").invoke(recording);
+
+        // when
+        FlightRecorder.Event event = FlightRecorder.begin(FlightRecorder.Type.PROFILE_LOAD);
+        event.player(ALEX).group("survival").gameMode(GameMode.CREATIVE).bytes(1234)
+                .cause(DeserializeCause.WORLD_CHANGE).commit();
+        FlightRecorder.begin(FlightRecorder.Type.SERIALIZE).commit();
+
+        // then
+        assertTrue(event.isRecording());
+        File file = temporaryFolder.newFile("recording.jfr");
+        recordingClass.getMethod("stop").invoke(recording);
+        recordingClass.getMethod("dump", Path.class).invoke(recording, file.toPath());
+        recordingClass.getMethod("close").invoke(recording);
+
+        List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+                .getMethod("readAllEvents", Path.class).invoke(null, file.toPath());
+        events.removeIf(recorded -> !getTypeName(recorded).startsWith("me.gnat008.perworldinventory."));
+        assertThat(events, hasSize(2));
+        Object recorded = events.get(0);
+        assertThat(getTypeName(recorded), equalTo("me.gnat008.perworldinventory.ProfileLoad"));
+        assertThat(getValue(recorded, "player"), equalTo(ALEX.toString()));
+        assertThat(getValue(recorded, "group"), equalTo("survival"));
+        assertThat(getValue(recorded, "gameMode"), equalTo("CREATIVE"));
+        assertThat(getValue(recorded, "bytes"), equalTo(1234L));
+        assertThat(getValue(recorded, "cause"), equalTo("WORLD_CHANGE"));
+        assertThat(getTypeName(events.get(1)), equalTo("me.gnat008.perworldinventory.Serialize"));
+    }
+
+    private static String getTypeName(Object recordedEvent) {
+        try {
+            Object type = recordedEvent.getClass().getMethod("getEventType").invoke(recordedEvent);
+            return (String) type.getClass().getMethod("getName").invoke(type);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static Object getValue(Object recordedEvent, String field) throws ReflectiveOperationException {
+        return recordedEvent.getClass().getMethod("getValue", String.class).invoke(recordedEvent, field);
+    }
+}
@@ -0,0 +1,101 @@
+package me.gnat008.perworldinventory.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests for {@link JsonChecksum}.
+ */
+public class JsonChecksumTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldStreamSameChecksumAsString() throws IOException {
+        // given
+        StringBuilder items = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            // Long enough to cross several buffers, with a surrogate pair and other non-ASCII on the way
+            items.append(i == 2730 ? "😀" : i == 1500 ? "é?" : "abc");
+        }
+        File file = temporaryFolder.newFile();
+
+        // when
+        FileUtils.writeJson(file, writer -> {
+            writer.beginObject();
+            writer.name("data-format").value(2);
+            writer.name("items").value(items.toString());
+            writer.endObject();
+        }, true);
+
+        // then
+        byte[] written = Files.readAllBytes(file.toPath());
+        String expected = JsonChecksum.append("{\"data-format\":2,\"items\":\"" + items + "\"}");
+        assertThat(new String(written, StandardCharsets.UTF_8), equalTo(expected));
+        assertThat(JsonChecksum.check(written), equalTo(JsonChecksum.Result.VALID));
+        assertThat(JsonChecksum.check(expected), equalTo(JsonChecksum.Result.VALID));
+    }
+
+    @Test
+    public void shouldDetectDamage() {
+        // given
+        String json = JsonChecksum.append("{\"data-format\":2,\"stats\":{\"level\":30}}");
+
+        // when / then
+        assertThat(JsonChecksum.check(json), equalTo(JsonChecksum.Result.VALID));
+        assertThat(JsonChecksum.check(json.replace("30", "31")), equalTo(JsonChecksum.Result.INVALID));
+        assertThat(JsonChecksum.check(json.replace("2", "3")), equalTo(JsonChecksum.Result.INVALID));
+        assertThat(JsonChecksum.check("{\"data-format\":2,\"stats\":{\"level\":30}}"), equalTo(JsonChecksum.Result.MISSING));
+        assertThat(JsonChecksum.append("{}"), equalTo("{}"));
+    }
+
+    @Test
+    public void shouldDetectDamageToNonAsciiText() {
+        // given
+        String json = JsonChecksum.append("{\"data-format\":2,\"name\":\"Café?\"}");
+
+        // when / then
+        assertThat(JsonChecksum.check(json), equalTo(JsonChecksum.Result.VALID));
+        assertThat(JsonChecksum.check(json.replace("é", "è")), equalTo(JsonChecksum.Result.INVALID));
+        assertThat(JsonChecksum.check(json.replace("?", "!")), equalTo(JsonChecksum.Result.INVALID));
+    }
+
+    @Test
+    public void shouldTreatChecksumThatCanNotBeReadAsDamage() {
+        // given
+        String json = JsonChecksum.append("{\"data-format\":2,\"stats\":{\"level\":30}}");
+
+        // when / then
+        assertThat(JsonChecksum.check(json.substring(0, json.length() - 3)), equalTo(JsonChecksum.Result.INVALID));
+        assertThat(JsonChecksum.check(json + "\n"), equalTo(JsonChecksum.Result.INVALID));
+        assertThat(JsonChecksum.check(json.replaceFirst("\"[0-9a-f]{8}\"", "\"12\"")), equalTo(JsonChecksum.Result.INVALID));
+    }
+
+    @Test
+    public void shouldAcceptChecksumOfEarlierVersions() {
+        // given
+        String json = "{\"data-format\":2,\"name\":\"Café?\"}";
+        CRC32 legacy = new CRC32();
+        for (char c : json.substring(0, json.length() - 1).toCharArray()) {
+            if (c < 0x80 && c != '?') {
+                legacy.update(c);
+            }
+        }
+        String stored = json.substring(0, json.length() - 1) + String.format(",\"checksum\":\"%08x\"}", legacy.getValue());
+
+        // when / then
+        assertThat(JsonChecksum.check(stored), equalTo(JsonChecksum.Result.VALID));
+        assertThat(JsonChecksum.check(stored.replace("data", "date")), equalTo(JsonChecksum.Result.INVALID));
+    }
+}